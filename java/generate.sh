@@ -0,0 +1,20 @@
+#! /bin/bash
+DBNAME=$1
+PORT=$2
+RESERVATIONS=${3:-10000000}
+SEED=${4:-42}
+
+# Streams synthetic scale data straight into an existing (empty) database, parent tables first.
+# Example: source ./generate.sh flightDB 5432 10000000 42
+load() {
+	java -cp lib/*:bin/ DataGenerator - $RESERVATIONS $SEED $1 | psql -h localhost -p $PORT -c "COPY $2 FROM STDIN WITH DELIMITER ','" $DBNAME
+}
+load customer Customer
+load pilots Pilot
+load planes Plane
+load technician Technician
+load flights Flight
+load reservation Reservation
+load flightinfo FlightInfo
+load repairs Repairs
+load schedule Schedule
@@ -0,0 +1,387 @@
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import org.postgresql.PGConnection;
+
+/**
+ * Audit trail of the write operations (planes, pilots, flights, technicians
+ * and reservations added), kept in the Audit_Log table of sql/audit.sql.
+ *
+ * Recording an event costs the menu thread one slot claimed with a CAS on a
+ * bounded ring buffer; no lock is taken and nothing is sent to the database.
+ * A background thread drains the ring every flushMillis (or as soon as it is
+ * half full) and writes the whole batch with one COPY on its own connection.
+ *
+ * Durability modes:
+ *   async  the operation does not wait; events of the last flushMillis are
+ *          lost if the process dies, and events are dropped (and counted)
+ *          when the ring is full.  The writer commits with
+ *          synchronous_commit off, since the events are not awaited anyway.
+ *   sync   the operation returns once its event is committed.  Waiting
+ *          operations are written together, so concurrent bookings share a
+ *          COPY and a commit; a full ring makes the caller wait rather than
+ *          drop.
+ *
+ * Settings are Java system properties:
+ *   dbproject.audit              async or sync (unset or off disables auditing)
+ *   dbproject.auditFlushMillis   longest time an async event waits (default 200)
+ *   dbproject.auditBuffer        ring slots, rounded up to a power of two (default 8192)
+ *
+ * The main method is the query tool:
+ *   java -cp lib/*:bin/ AuditLog <dbname> <port> <user> [--table T] [--key K] [--operation O] [--by dbuser] [--since yyyy-MM-dd] [--until yyyy-MM-dd] [--limit N]
+ */
+public class AuditLog{
+	public static final int ASYNC = 0;
+	public static final int SYNC = 1;
+	/* how long a sync caller waits for its event before giving up on it */
+	static final long SYNC_WAIT_MILLIS = 5000;
+
+	/** One change. */
+	static final class Event{
+		final long millis;
+		final String operation;
+		final String table;
+		final int key;
+		final String detail;
+
+		Event(long millis, String operation, String table, int key, String detail){
+			this.millis = millis;
+			this.operation = operation;
+			this.table = table;
+			this.key = key;
+			this.detail = detail;
+		}
+	}
+
+	/**
+	 * Bounded multi-producer, single-consumer ring.  Every slot carries a
+	 * sequence number: a producer may fill slot i of lap n once it reads
+	 * n * capacity + i there, and the consumer may empty it once it reads one
+	 * more than that.  Producers race only on the CAS of the head.
+	 */
+	static final class Ring{
+		final Event[] slots;
+		final AtomicLongArray sequence;
+		final int mask;
+		final AtomicLong head = new AtomicLong();
+		/* written by the consumer only */
+		volatile long tail = 0;
+
+		Ring(int capacity){
+			int cap = 2;
+			while(cap < capacity) cap <<= 1;
+			slots = new Event[cap];
+			sequence = new AtomicLongArray(cap);
+			for(int i = 0; i < cap; i++) sequence.set(i, i);
+			mask = cap - 1;
+		}
+
+		/**
+		 * @return the position of the event, or -1 if the ring is full
+		 */
+		long offer(Event e){
+			while(true){
+				long pos = head.get();
+				int i = (int)pos & mask;
+				long seq = sequence.get(i);
+				if(seq == pos){
+					if(head.compareAndSet(pos, pos + 1)){
+						slots[i] = e;
+						sequence.lazySet(i, pos + 1);
+						return pos;
+					}
+				}
+				else if(seq < pos){
+					return -1;
+				}
+			}
+		}
+
+		/** @return the next event, or null if there is none yet */
+		Event poll(){
+			long t = tail;
+			int i = (int)t & mask;
+			if(sequence.get(i) != t + 1) return null;
+			Event e = slots[i];
+			slots[i] = null;
+			sequence.lazySet(i, t + slots.length);
+			tail = t + 1;
+			return e;
+		}
+
+		long size(){
+			return head.get() - tail;
+		}
+	}
+
+	private final DBproject esql;
+	private final String dbUser;
+	private final String osUser = System.getProperty("user.name", "");
+	private final int mode;
+	private final long flushMillis;
+	private final Ring ring;
+	private final AtomicLong dropped = new AtomicLong();
+	/* every event before this position is committed or given up */
+	private volatile long written = 0;
+	private final Object writtenLock = new Object();
+	private final Thread writer;
+	private volatile boolean running = true;
+
+	public AuditLog(DBproject esql, String dbUser, int mode, long flushMillis, int capacity){
+		this.esql = esql;
+		this.dbUser = dbUser;
+		this.mode = mode;
+		this.flushMillis = flushMillis;
+		this.ring = new Ring(capacity);
+		this.writer = new Thread(new Runnable(){
+			public void run(){
+				writeLoop();
+			}
+		}, "audit-writer");
+		this.writer.setDaemon(true);
+		this.writer.start();
+	}
+
+	/**
+	 * @return the audit log configured by dbproject.audit, or null if unset
+	 */
+	public static AuditLog fromSystemProperties(DBproject esql, String dbUser){
+		String mode = System.getProperty("dbproject.audit", "off");
+		if(mode.equals("off") || mode.isEmpty()) return null;
+		if(!mode.equals("async") && !mode.equals("sync")){
+			System.err.println("Warning - Unknown dbproject.audit mode " + mode + ", auditing is off");
+			return null;
+		}
+		return new AuditLog(esql, dbUser, mode.equals("sync") ? SYNC : ASYNC,
+			Long.getLong("dbproject.auditFlushMillis", 200L), Integer.getInteger("dbproject.auditBuffer", 8192));
+	}
+
+	/**
+	 * Records a change.  In sync mode, returns once it is committed.
+	 *
+	 * @param key the primary key of the row written
+	 * @param detail what was written, or null
+	 */
+	public void record(String operation, String table, int key, String detail){
+		Event e = new Event(System.currentTimeMillis(), operation, table, key, detail);
+		long pos = ring.offer(e);
+		if(pos < 0){
+			if(mode == ASYNC){
+				dropped.incrementAndGet();
+				return;
+			}
+			long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(SYNC_WAIT_MILLIS);
+			while((pos = ring.offer(e)) < 0){
+				LockSupport.unpark(writer);
+				if(System.nanoTime() > deadline){
+					dropped.incrementAndGet();
+					return;
+				}
+				LockSupport.parkNanos(100000);
+			}
+		}
+		if(mode == SYNC){
+			LockSupport.unpark(writer);
+			awaitWritten(pos + 1);
+		}
+		else if(ring.size() > ring.slots.length / 2){
+			LockSupport.unpark(writer);
+		}
+	}
+
+	private void awaitWritten(long pos){
+		long deadline = System.currentTimeMillis() + SYNC_WAIT_MILLIS;
+		synchronized(writtenLock){
+			while(written < pos){
+				long left = deadline - System.currentTimeMillis();
+				if(left <= 0){
+					System.err.println("Warning - Audit event not committed after " + SYNC_WAIT_MILLIS + " ms");
+					return;
+				}
+				try{
+					writtenLock.wait(left);
+				}catch(InterruptedException e){
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+	}
+
+	/** @return the events dropped because the ring was full */
+	public long dropped(){
+		return dropped.get();
+	}
+
+	private void writeLoop(){
+		Connection conn = null;
+		List<Event> batch = new ArrayList<Event>();
+		long position = 0;
+		while(running || ring.size() > 0 || !batch.isEmpty()){
+			if(batch.isEmpty() && ring.size() == 0){
+				LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(flushMillis));
+			}
+			Event e;
+			//a batch held back by a failed write takes at most one ring's worth more
+			while(batch.size() < ring.slots.length && (e = ring.poll()) != null) batch.add(e);
+			if(batch.isEmpty()) continue;
+			try{
+				if(conn == null){
+					conn = esql.openConnection();
+					if(mode == ASYNC){
+						Statement stmt = conn.createStatement();
+						stmt.execute("SET synchronous_commit = off");
+						stmt.close();
+					}
+				}
+				copy(conn, batch);
+			}catch(SQLException | IOException x){
+				System.err.println("Warning - Unable to write " + batch.size() + " audit events, retrying: " + x.getMessage());
+				try{
+					if(conn != null) conn.close();
+				}catch(SQLException ignored){
+					// ignored.
+				}
+				conn = null;
+				if(!running){
+					//shutting down: the events are lost, tell the waiters
+					dropped.addAndGet(batch.size());
+				}else{
+					LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(Math.max(flushMillis, 1000)));
+					continue;
+				}
+			}
+			position += batch.size();
+			batch.clear();
+			synchronized(writtenLock){
+				written = position;
+				writtenLock.notifyAll();
+			}
+		}
+		try{
+			if(conn != null) conn.close();
+		}catch(SQLException ignored){
+			// ignored.
+		}
+	}
+
+	void copy(Connection conn, List<Event> batch) throws SQLException, IOException {
+		StringBuilder sb = new StringBuilder(batch.size() * 96);
+		for(Event e : batch){
+			sb.append(new Timestamp(e.millis)).append('\t');
+			field(sb, dbUser).append('\t');
+			field(sb, osUser).append('\t');
+			field(sb, e.operation).append('\t');
+			field(sb, e.table).append('\t');
+			sb.append(e.key).append('\t');
+			field(sb, e.detail).append('\n');
+		}
+		byte[] rows = sb.toString().getBytes(StandardCharsets.UTF_8);
+		conn.unwrap(PGConnection.class).getCopyAPI().copyIn("COPY Audit_Log (at, db_user, os_user, operation, tbl, key, detail) FROM STDIN", new ByteArrayInputStream(rows));
+	}
+
+	/* appends a value in COPY text format */
+	static StringBuilder field(StringBuilder sb, String v){
+		if(v == null) return sb.append("\\N");
+		for(int i = 0; i < v.length(); i++){
+			char c = v.charAt(i);
+			switch(c){
+				case '\\': sb.append("\\\\"); break;
+				case '\t': sb.append("\\t"); break;
+				case '\n': sb.append("\\n"); break;
+				case '\r': sb.append("\\r"); break;
+				default: sb.append(c);
+			}
+		}
+		return sb;
+	}
+
+	/**
+	 * Writes out what is still in the ring and stops the writer.
+	 */
+	public void close(){
+		running = false;
+		LockSupport.unpark(writer);
+		try{
+			writer.join(10000);
+		}catch(InterruptedException e){
+			// ignored.
+		}
+		if(dropped.get() > 0) System.err.println("Warning - " + dropped.get() + " audit events were not recorded");
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 3) {
+			System.err.println("Usage: java [-classpath <classpath>] AuditLog <dbname> <port> <user> [--table T] [--key K] [--operation O] [--by dbuser] [--since yyyy-MM-dd] [--until yyyy-MM-dd] [--limit N]");
+			return;
+		}
+		List<String> opts = Arrays.asList(args).subList(3, args.length);
+		StringBuilder where = new StringBuilder("TRUE");
+		List<Object> binds = new ArrayList<Object>();
+		if(opts.contains("--table")){
+			where.append(" AND lower(tbl) = lower(?)");
+			binds.add(opts.get(opts.indexOf("--table") + 1));
+		}
+		if(opts.contains("--key")){
+			where.append(" AND key = ?");
+			binds.add(Integer.parseInt(opts.get(opts.indexOf("--key") + 1)));
+		}
+		if(opts.contains("--operation")){
+			where.append(" AND lower(operation) = lower(?)");
+			binds.add(opts.get(opts.indexOf("--operation") + 1));
+		}
+		if(opts.contains("--by")){
+			where.append(" AND db_user = ?");
+			binds.add(opts.get(opts.indexOf("--by") + 1));
+		}
+		if(opts.contains("--since")){
+			where.append(" AND at >= ?");
+			binds.add(Timestamp.valueOf(LocalDate.parse(opts.get(opts.indexOf("--since") + 1)).atStartOfDay()));
+		}
+		if(opts.contains("--until")){
+			where.append(" AND at < ?");
+			binds.add(Timestamp.valueOf(LocalDate.parse(opts.get(opts.indexOf("--until") + 1)).plusDays(1).atStartOfDay()));
+		}
+		int limit = opts.contains("--limit") ? Integer.parseInt(opts.get(opts.indexOf("--limit") + 1)) : 100;
+
+		Class.forName("org.postgresql.Driver");
+		DBproject esql = new DBproject(args[0], args[1], args[2], "");
+		Connection conn = esql.openConnection();
+		try{
+			PreparedStatement ps = conn.prepareStatement("SELECT at, db_user, os_user, operation, tbl, key, detail FROM Audit_Log WHERE " + where + " ORDER BY at DESC LIMIT " + limit);
+			for(int i = 0; i < binds.size(); i++) ps.setObject(i + 1, binds.get(i));
+			ResultSet rs = ps.executeQuery();
+			System.out.println("|Time                     User         Operation        Table        Key        Detail");
+			System.out.println("------------------------------------------------------------------------------------------------");
+			int n = 0;
+			while(rs.next()){
+				String who = rs.getString(2) + (rs.getString(3).isEmpty() ? "" : "/" + rs.getString(3));
+				String key = rs.getString(6);
+				System.out.println("|" + DBproject.pad(rs.getTimestamp(1).toString(), 25) + DBproject.pad(who, 13) + DBproject.pad(rs.getString(4), 17)
+					+ DBproject.pad(rs.getString(5), 13) + DBproject.pad(key == null ? "" : key, 11) + (rs.getString(7) == null ? "" : rs.getString(7)));
+				n++;
+			}
+			ps.close();
+			System.out.println("------------------------------------------------------------------------------------------------");
+			System.out.println(n + " events" + (n == limit ? " (limit reached, use --limit for more)" : ""));
+		}finally{
+			conn.close();
+			esql.cleanup();
+		}
+	}
+}
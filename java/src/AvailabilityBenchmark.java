@@ -0,0 +1,67 @@
+import java.time.LocalDate;
+import java.util.List;
+
+/**
+ * Compares FlightRepository.seatsLeft, one query for a whole list of
+ * flights, with asking for each flight in turn the way
+ * ListNumberOfAvailableSeats does (seat capacity, then a count of
+ * reservations).  Random scheduled departures are drawn from Schedule; both
+ * ways must agree on every flight.
+ *
+ * Usage:
+ *   java -cp lib/*:bin/ AvailabilityBenchmark <dbname> <port> <user> [flights] [rounds]
+ */
+public class AvailabilityBenchmark{
+	public static void main(String[] args) throws Exception {
+		if (args.length < 3) {
+			System.err.println("Usage: java [-classpath <classpath>] AvailabilityBenchmark <dbname> <port> <user> [flights] [rounds]");
+			return;
+		}
+		int n = args.length > 3 ? Integer.parseInt(args[3]) : 200;
+		int rounds = args.length > 4 ? Integer.parseInt(args[4]) : 20;
+		Class.forName("org.postgresql.Driver");
+		DBproject esql = new DBproject(args[0], args[1], args[2], "");
+		try{
+			List<List<String>> picked = esql.executeQueryAndReturnResult("SELECT flightNum, departure_time FROM Schedule ORDER BY random() LIMIT " + n + ";");
+			int[] flights = new int[picked.size()];
+			LocalDate[] days = new LocalDate[picked.size()];
+			for(int i = 0; i < flights.length; i++){
+				flights[i] = Integer.parseInt(picked.get(i).get(0));
+				days[i] = LocalDate.parse(picked.get(i).get(1).substring(0, 10));
+			}
+			FlightRepository repository = new JdbcRepository(esql);
+
+			int[] sequential = new int[flights.length];
+			int[] batch = null;
+			long sequentialNanos = 0;
+			long batchNanos = 0;
+			//the first round warms up the JIT and the server's caches
+			for(int round = 0; round <= rounds; round++){
+				long start = System.nanoTime();
+				for(int i = 0; i < flights.length; i++){
+					int seats = repository.seats(flights[i], days[i]);
+					sequential[i] = seats < 0 ? -1 : Math.max(0, seats - repository.countReservations(flights[i], "RC"));
+				}
+				long mid = System.nanoTime();
+				batch = repository.seatsLeft(flights, days);
+				long end = System.nanoTime();
+				if(round > 0){
+					sequentialNanos += mid - start;
+					batchNanos += end - mid;
+				}
+			}
+			int mismatches = 0;
+			for(int i = 0; i < flights.length; i++){
+				if(sequential[i] != batch[i]) mismatches++;
+			}
+
+			System.out.println(flights.length + " flights, " + rounds + " rounds");
+			System.out.println(DBproject.pad("sequential", 12) + String.format("%.2f", sequentialNanos / 1e6 / rounds) + " ms per round");
+			System.out.println(DBproject.pad("batch", 12) + String.format("%.2f", batchNanos / 1e6 / rounds) + " ms per round ("
+				+ String.format("%.1f", (double)sequentialNanos / Math.max(1, batchNanos)) + "x)");
+			if(mismatches > 0) System.out.println("Warning - " + mismatches + " flights differ between the two ways");
+		}finally{
+			esql.cleanup();
+		}
+	}
+}
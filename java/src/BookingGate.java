@@ -0,0 +1,339 @@
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Admission control in front of FlightRepository.book.  Every flight has a
+ * bounded queue of pending bookings.  Whichever caller finds the queue without
+ * a drainer becomes its single writer: it takes up to maxBatch bookings, runs
+ * one capacity check (seats and reserved count) for all of them, and inserts
+ * them with one bookAll, all in one transaction (FlightRepository.atomically,
+ * on a connection of its own for every drainer).  The other callers wait for
+ * their result, so a burst on a popular flight costs a few round trips
+ * instead of one capacity join and COUNT per client.
+ *
+ * Batching happens only between the threads of one process: bookings made
+ * by other processes on the same database are not queued here.
+ *
+ * Batches across all flights share an adaptive concurrency limit.  The limit
+ * grows by one while batches complete near the lowest latency seen and shrinks
+ * by a tenth when latency doubles.  A booking that finds its flight's queue
+ * full, or whose drainer cannot get under the limit within maxWaitMillis, is
+ * answered BUSY at once rather than adding load to the database.
+ */
+public class BookingGate{
+	/* statuses of a Ticket besides R and W */
+	public static final char FULL = 'F';
+	public static final char BUSY = 'B';
+	public static final char NOT_SCHEDULED = 'N';
+
+	/** The outcome of one booking. */
+	public static final class Ticket{
+		public final char status;
+		public final int rnum;
+
+		Ticket(char status, int rnum){
+			this.status = status;
+			this.rnum = rnum;
+		}
+	}
+
+	static final class Request{
+		final int customerId;
+		final LocalDate departure;
+		final boolean waitlist;
+		final CountDownLatch done = new CountDownLatch(1);
+		Ticket ticket;
+		SQLException error;
+
+		Request(int customerId, LocalDate departure, boolean waitlist){
+			this.customerId = customerId;
+			this.departure = departure;
+			this.waitlist = waitlist;
+		}
+
+		void complete(Ticket t){
+			ticket = t;
+			done.countDown();
+		}
+
+		void fail(SQLException e){
+			error = e;
+			done.countDown();
+		}
+	}
+
+	static final class Lane{
+		final ArrayBlockingQueue<Request> queue;
+		final AtomicBoolean draining = new AtomicBoolean(false);
+
+		Lane(int capacity){
+			queue = new ArrayBlockingQueue<Request>(capacity);
+		}
+	}
+
+	/**
+	 * A concurrency limit that follows latency: additive increase while the
+	 * batches in flight use the whole limit and stay fast, multiplicative
+	 * decrease when the smoothed latency reaches twice the lowest.  The lowest
+	 * latency is re-learned every WINDOW samples, so it follows a database that
+	 * got slower for good.
+	 */
+	static final class AdaptiveLimit{
+		static final int WINDOW = 256;
+
+		private final int min;
+		private final int max;
+		private double limit;
+		private int inFlight = 0;
+		private long minNanos = Long.MAX_VALUE;
+		private long windowMin = Long.MAX_VALUE;
+		private double smoothed = 0;
+		private int samples = 0;
+
+		AdaptiveLimit(int initial, int min, int max){
+			this.min = min;
+			this.max = max;
+			this.limit = Math.max(min, Math.min(max, initial));
+		}
+
+		synchronized boolean acquire(long waitMillis) throws InterruptedException {
+			long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(waitMillis);
+			while(inFlight >= (int)limit){
+				long left = deadline - System.nanoTime();
+				if(left <= 0) return false;
+				TimeUnit.NANOSECONDS.timedWait(this, left);
+			}
+			inFlight++;
+			return true;
+		}
+
+		synchronized void release(long nanos){
+			boolean saturated = inFlight >= (int)limit;
+			inFlight--;
+			minNanos = Math.min(minNanos, nanos);
+			windowMin = Math.min(windowMin, nanos);
+			if(++samples == WINDOW){
+				minNanos = windowMin;
+				windowMin = Long.MAX_VALUE;
+				samples = 0;
+			}
+			smoothed = smoothed == 0 ? nanos : 0.9 * smoothed + 0.1 * nanos;
+			if(smoothed > 2 * minNanos){
+				limit = Math.max(min, limit * 0.9);
+			}
+			else if(saturated){
+				limit = Math.min(max, limit + 1);
+			}
+			notifyAll();
+		}
+
+		synchronized int limit(){
+			return (int)limit;
+		}
+	}
+
+	private final FlightRepository repository;
+	private final ConcurrentHashMap<Integer, Lane> lanes = new ConcurrentHashMap<Integer, Lane>();
+	private final AdaptiveLimit limit;
+	private final int queueCapacity;
+	private final int maxBatch;
+	private final long maxWaitMillis;
+	private final AtomicLong batches = new AtomicLong();
+	private final AtomicLong booked = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+
+	/**
+	 * @param queueCapacity the pending bookings per flight before BUSY
+	 * @param maxBatch the most bookings one capacity check and insert covers
+	 * @param initialLimit the concurrent batches allowed at first
+	 * @param maxLimit the most concurrent batches the limit may grow to
+	 * @param maxWaitMillis how long a drainer waits to get under the limit
+	 */
+	public BookingGate(FlightRepository repository, int queueCapacity, int maxBatch, int initialLimit, int maxLimit, long maxWaitMillis){
+		this.repository = repository;
+		this.queueCapacity = queueCapacity;
+		this.maxBatch = maxBatch;
+		this.limit = new AdaptiveLimit(initialLimit, 1, maxLimit);
+		this.maxWaitMillis = maxWaitMillis;
+	}
+
+	/**
+	 * Settings from dbproject.bookingQueue (default 64), dbproject.bookingBatch
+	 * (64), dbproject.bookingLimit (the number of processors),
+	 * dbproject.bookingMaxLimit (four times that) and dbproject.bookingWaitMillis
+	 * (200).
+	 */
+	public static BookingGate fromSystemProperties(FlightRepository repository){
+		int cores = Runtime.getRuntime().availableProcessors();
+		return new BookingGate(repository,
+			Integer.getInteger("dbproject.bookingQueue", 64),
+			Integer.getInteger("dbproject.bookingBatch", 64),
+			Integer.getInteger("dbproject.bookingLimit", cores),
+			Integer.getInteger("dbproject.bookingMaxLimit", 4 * cores),
+			Long.getLong("dbproject.bookingWaitMillis", 200));
+	}
+
+	/**
+	 * Books a customer on a flight departing on the given day, as reserved if
+	 * a seat is left and otherwise on the waitlist or not at all.
+	 *
+	 * @param waitlist whether to waitlist the customer when the flight is full
+	 * @return R or W with the reservation number, FULL, NOT_SCHEDULED, or BUSY
+	 *         when the system is saturated and the booking should be retried later
+	 */
+	public Ticket book(int customerId, int flightNum, LocalDate departure, boolean waitlist) throws SQLException {
+		Lane lane = lanes.get(flightNum);
+		if(lane == null){
+			Lane fresh = new Lane(queueCapacity);
+			lane = lanes.putIfAbsent(flightNum, fresh);
+			if(lane == null) lane = fresh;
+		}
+		Request request = new Request(customerId, departure, waitlist);
+		if(!lane.queue.offer(request)){
+			rejected.incrementAndGet();
+			return new Ticket(BUSY, -1);
+		}
+		try{
+			while(request.done.getCount() > 0){
+				if(lane.draining.compareAndSet(false, true)){
+					try{
+						drain(flightNum, lane);
+					}finally{
+						lane.draining.set(false);
+					}
+				}
+				else{
+					request.done.await(1, TimeUnit.MILLISECONDS);
+				}
+			}
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while waiting to book flight " + flightNum, "57014", e);
+		}
+		if(request.error != null) throw request.error;
+		return request.ticket;
+	}
+
+	/** Runs one batch of the lane's queue, or answers the whole queue BUSY. */
+	void drain(int flightNum, Lane lane) throws InterruptedException {
+		if(lane.queue.isEmpty()) return;
+		if(!limit.acquire(maxWaitMillis)){
+			List<Request> shed = new ArrayList<Request>();
+			lane.queue.drainTo(shed);
+			rejected.addAndGet(shed.size());
+			for(Request r : shed) r.complete(new Ticket(BUSY, -1));
+			return;
+		}
+		List<Request> batch = new ArrayList<Request>(maxBatch);
+		lane.queue.drainTo(batch, maxBatch);
+		long start = System.nanoTime();
+		try{
+			run(flightNum, batch);
+			batches.incrementAndGet();
+		}catch(SQLException e){
+			for(Request r : batch) r.fail(e);
+		}finally{
+			limit.release(System.nanoTime() - start);
+		}
+	}
+
+	void run(final int flightNum, List<Request> batch) throws SQLException {
+		final Request[] requests = batch.toArray(new Request[batch.size()]);
+		Ticket[] tickets;
+		try{
+			tickets = repository.atomically(flightNum, new FlightRepository.Work<Ticket[]>(){
+				public Ticket[] run() throws SQLException {
+					return admit(flightNum, requests);
+				}
+			});
+		}catch(SQLException e){
+			if(requests.length == 1) throw e;
+			//one bad customer id fails the whole insert; book the rest one by one
+			for(final Request r : requests){
+				try{
+					Ticket t = repository.atomically(flightNum, new FlightRepository.Work<Ticket[]>(){
+						public Ticket[] run() throws SQLException {
+							return admit(flightNum, new Request[]{r});
+						}
+					})[0];
+					if(t.rnum >= 0) booked.incrementAndGet();
+					r.complete(t);
+				}catch(SQLException one){
+					r.fail(one);
+				}
+			}
+			return;
+		}
+		//answered only now that the bookings are committed
+		for(int i = 0; i < requests.length; i++){
+			if(tickets[i].rnum >= 0) booked.incrementAndGet();
+			requests[i].complete(tickets[i]);
+		}
+	}
+
+	/*
+	 * One capacity check (seats and reserved count) for the requests and one
+	 * insert of those admitted, inside the transaction of run().
+	 */
+	Ticket[] admit(int flightNum, Request[] requests) throws SQLException {
+		Ticket[] tickets = new Ticket[requests.length];
+		Map<LocalDate, Integer> seats = new HashMap<LocalDate, Integer>();
+		int reserved = repository.countReservations(flightNum, "R");
+		int n = 0;
+		int[] customers = new int[requests.length];
+		char[] statuses = new char[requests.length];
+		int[] booking = new int[requests.length];
+		for(int i = 0; i < requests.length; i++){
+			Request r = requests[i];
+			Integer capacity = seats.get(r.departure);
+			if(capacity == null){
+				capacity = repository.seats(flightNum, r.departure);
+				seats.put(r.departure, capacity);
+			}
+			if(capacity < 0){
+				tickets[i] = new Ticket(NOT_SCHEDULED, -1);
+				continue;
+			}
+			char status;
+			if(reserved < capacity){
+				status = 'R';
+				reserved++;
+			}
+			else if(r.waitlist){
+				status = 'W';
+			}
+			else{
+				tickets[i] = new Ticket(FULL, -1);
+				continue;
+			}
+			customers[n] = r.customerId;
+			statuses[n] = status;
+			booking[n++] = i;
+		}
+		if(n == 0) return tickets;
+		int[] rnums = n == 1 ? new int[]{repository.book(customers[0], flightNum, statuses[0])}
+			: repository.bookAll(flightNum, Arrays.copyOf(customers, n), Arrays.copyOf(statuses, n));
+		for(int i = 0; i < n; i++){
+			tickets[booking[i]] = new Ticket(statuses[i], rnums[i]);
+		}
+		return tickets;
+	}
+
+	/**
+	 * @return {batches, bookings made, bookings answered BUSY, current limit}
+	 */
+	public long[] stats(){
+		return new long[]{batches.get(), booked.get(), rejected.get(), limit.limit()};
+	}
+}
@@ -0,0 +1,393 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Read-only binary snapshot of the flight catalog (Plane, Flight, FlightInfo
+ * and Schedule), memory-mapped at startup so plane capacities and schedules
+ * are answered off-heap without a round trip, and without first loading the
+ * tables into a cache.
+ *
+ * Layout (big-endian):
+ *   header, 128 bytes: int magic, int format, long catalog version, long
+ *     written at (epoch millis), then per section: int count, int smallest
+ *     key, int index length (0 if none), int unused, long records offset
+ *   per section: the records, fixed width and sorted by key, followed by the
+ *     index: one int per key from the smallest up, the slot of the first
+ *     record with that key or -1
+ *
+ *   PLANE       104 bytes: id, short seats, short age, make[32], model[64]
+ *   FLIGHT       40 bytes: fnum, cost, num_sold, num_stops, departure day,
+ *                          arrival day (epoch days), arrival[5], departure[5]
+ *   FLIGHTINFO   16 bytes: fiid, flight_id, pilot_id, plane_id   (key flight_id)
+ *   SCHEDULE     16 bytes: id, flightNum, departure day, arrival day (key flightNum)
+ *
+ * A section whose keys are too sparse for a dense index (more than four
+ * slots per record) has no index and is binary searched instead.
+ *
+ * The snapshot records the version kept in Catalog_Version by the triggers of
+ * sql/catalog_version.sql, read in the same transaction as the rows, so
+ * isCurrent() tells exactly whether the catalog changed since it was written.
+ */
+public class CatalogSnapshot{
+	static final int MAGIC = 0x44424353;
+	static final int FORMAT = 1;
+	static final int HEADER = 128;
+
+	public static final int PLANE = 0;
+	public static final int FLIGHT = 1;
+	public static final int FLIGHTINFO = 2;
+	public static final int SCHEDULE = 3;
+	static final int[] RECORD = {104, 40, 16, 16};
+	/* offset of the key within a record */
+	static final int[] KEY = {0, 0, 4, 4};
+	static final String[] QUERY = {
+		"SELECT id, seats, age, make, model FROM Plane ORDER BY id",
+		"SELECT fnum, cost, num_sold, num_stops, actual_departure_date, actual_arrival_date, arrival_airport, departure_airport FROM Flight ORDER BY fnum",
+		"SELECT fiid, flight_id, pilot_id, plane_id FROM FlightInfo ORDER BY flight_id, fiid",
+		"SELECT id, flightNum, departure_time, arrival_time FROM Schedule ORDER BY flightNum, departure_time"
+	};
+
+	private final MappedByteBuffer buf;
+	private final long version;
+	private final int[] count = new int[4];
+	private final int[] minKey = new int[4];
+	private final int[] indexLength = new int[4];
+	private final int[] records = new int[4];
+
+	private CatalogSnapshot(MappedByteBuffer buf){
+		this.buf = buf;
+		this.version = buf.getLong(8);
+		for(int s = 0; s < 4; s++){
+			int at = 32 + s * 24;
+			count[s] = buf.getInt(at);
+			minKey[s] = buf.getInt(at + 4);
+			indexLength[s] = buf.getInt(at + 8);
+			records[s] = (int)buf.getLong(at + 16);
+		}
+	}
+
+	/**
+	 * Maps a snapshot file.
+	 *
+	 * @return the snapshot, or null if the file is missing or of another format
+	 * @throws java.io.IOException when the file could not be read
+	 */
+	public static CatalogSnapshot open(File file) throws IOException {
+		if(!file.exists() || file.length() < HEADER) return null;
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try{
+			MappedByteBuffer buf = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+			if(buf.getInt(0) != MAGIC || buf.getInt(4) != FORMAT) return null;
+			return new CatalogSnapshot(buf);
+		}finally{
+			//the mapping stays valid after the channel is closed
+			raf.close();
+		}
+	}
+
+	public static long currentVersion(DBproject esql) throws SQLException {
+		List<List<String>> res = esql.executeQueryAndReturnResult("SELECT version FROM Catalog_Version;");
+		if(res.isEmpty()) throw new SQLException("Catalog_Version is empty, run sql/catalog_version.sql");
+		return Long.parseLong(res.get(0).get(0));
+	}
+
+	/** @return true if nothing in the catalog changed since the snapshot was written */
+	public boolean isCurrent(DBproject esql) throws SQLException {
+		return currentVersion(esql) == version;
+	}
+
+	public long version(){
+		return version;
+	}
+
+	public int size(int section){
+		return count[section];
+	}
+
+	/* ---- lookups ---- */
+
+	private int key(int section, int slot){
+		return buf.getInt(records[section] + slot * RECORD[section] + KEY[section]);
+	}
+
+	/*
+	 * Slot of the first record with the key, or -1.
+	 */
+	private int slot(int section, int k){
+		if(indexLength[section] > 0){
+			long i = (long)k - minKey[section];
+			if(i < 0 || i >= indexLength[section]) return -1;
+			return buf.getInt(records[section] + count[section] * RECORD[section] + (int)i * 4);
+		}
+		int lo = 0;
+		int hi = count[section];
+		while(lo < hi){
+			int mid = (lo + hi) >>> 1;
+			if(key(section, mid) < k) lo = mid + 1;
+			else hi = mid;
+		}
+		return lo < count[section] && key(section, lo) == k ? lo : -1;
+	}
+
+	private int field(int section, int slot, int offset){
+		return buf.getInt(records[section] + slot * RECORD[section] + offset);
+	}
+
+	/** @return the seats of the plane, or -1 if it is not in the snapshot */
+	public int planeSeats(int planeId){
+		int s = slot(PLANE, planeId);
+		return s < 0 ? -1 : buf.getShort(records[PLANE] + s * RECORD[PLANE] + 4);
+	}
+
+	public String planeModel(int planeId){
+		int s = slot(PLANE, planeId);
+		return s < 0 ? null : text(records[PLANE] + s * RECORD[PLANE] + 40, 64);
+	}
+
+	/** @return the plane assigned to the flight in FlightInfo, or -1 */
+	public int planeOf(int flightNum){
+		int s = slot(FLIGHTINFO, flightNum);
+		return s < 0 ? -1 : field(FLIGHTINFO, s, 12);
+	}
+
+	/** @return the pilot assigned to the flight in FlightInfo, or -1 */
+	public int pilotOf(int flightNum){
+		int s = slot(FLIGHTINFO, flightNum);
+		return s < 0 ? -1 : field(FLIGHTINFO, s, 8);
+	}
+
+	/** @return the seats of the plane flying the flight, or -1 */
+	public int flightSeats(int flightNum){
+		int plane = planeOf(flightNum);
+		return plane < 0 ? -1 : planeSeats(plane);
+	}
+
+	public boolean hasFlight(int flightNum){
+		return slot(FLIGHT, flightNum) >= 0;
+	}
+
+	/** @return {departure airport, arrival airport}, or null */
+	public String[] airports(int flightNum){
+		int s = slot(FLIGHT, flightNum);
+		if(s < 0) return null;
+		int at = records[FLIGHT] + s * RECORD[FLIGHT];
+		return new String[]{text(at + 29, 5), text(at + 24, 5)};
+	}
+
+	/**
+	 * Seat capacity on a departure day, as FlightRepository.seats().
+	 *
+	 * @return the seats, or -1 if the flight is not scheduled that day or
+	 *         has no plane in the snapshot
+	 */
+	public int seats(int flightNum, LocalDate departure){
+		int s = slot(SCHEDULE, flightNum);
+		if(s < 0) return -1;
+		long day = departure.toEpochDay();
+		for(; s < count[SCHEDULE] && key(SCHEDULE, s) == flightNum; s++){
+			if(field(SCHEDULE, s, 8) == day) return flightSeats(flightNum);
+		}
+		return -1;
+	}
+
+	/** @return the scheduled departure days of the flight, earliest first */
+	public List<LocalDate> departures(int flightNum){
+		List<LocalDate> out = new ArrayList<LocalDate>();
+		int s = slot(SCHEDULE, flightNum);
+		if(s < 0) return out;
+		for(; s < count[SCHEDULE] && key(SCHEDULE, s) == flightNum; s++){
+			out.add(LocalDate.ofEpochDay(field(SCHEDULE, s, 8)));
+		}
+		return out;
+	}
+
+	private String text(int at, int width){
+		byte[] b = new byte[width];
+		for(int i = 0; i < width; i++) b[i] = buf.get(at + i);
+		int n = width;
+		while(n > 0 && (b[n - 1] == 0 || b[n - 1] == ' ')) n--;
+		return new String(b, 0, n, StandardCharsets.UTF_8);
+	}
+
+	/* ---- writing ---- */
+
+	/**
+	 * Writes a snapshot of the catalog.  The rows and the version are read in
+	 * one repeatable-read transaction on a separate connection; the file is
+	 * written next to the target and renamed over it, so a snapshot that is
+	 * mapped by a running process is never modified.
+	 *
+	 * @throws java.sql.SQLException when the catalog could not be read
+	 * @throws java.io.IOException when the file could not be written
+	 */
+	public static void write(DBproject esql, File file) throws SQLException, IOException {
+		Connection conn = esql.openConnection();
+		try{
+			write(conn, file);
+		}finally{
+			conn.close();
+		}
+	}
+
+	static void write(Connection conn, File file) throws SQLException, IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+		long[] offsets = new long[4];
+		int[] counts = new int[4];
+		int[] mins = new int[4];
+		int[] indexes = new int[4];
+		long version;
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16));
+		try{
+			conn.setAutoCommit(false);
+			conn.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+			Statement stmt = conn.createStatement();
+			stmt.setFetchSize(10000);
+			ResultSet rs = stmt.executeQuery("SELECT version FROM Catalog_Version");
+			if(!rs.next()) throw new SQLException("Catalog_Version is empty, run sql/catalog_version.sql");
+			version = rs.getLong(1);
+			rs.close();
+			out.write(new byte[HEADER]);
+			long pos = HEADER;
+			for(int s = 0; s < 4; s++){
+				offsets[s] = pos;
+				int[] keys = new int[1024];
+				int n = 0;
+				rs = stmt.executeQuery(QUERY[s]);
+				while(rs.next()){
+					writeRecord(out, s, rs);
+					if(n == keys.length) keys = Arrays.copyOf(keys, n * 2);
+					keys[n++] = rs.getInt(KEY[s] == 0 ? 1 : 2);
+				}
+				rs.close();
+				counts[s] = n;
+				pos += (long)n * RECORD[s];
+				if(n > 0){
+					mins[s] = keys[0];
+					long range = (long)keys[n - 1] - keys[0] + 1;
+					if(range <= 4L * n){
+						int[] index = new int[(int)range];
+						Arrays.fill(index, -1);
+						for(int i = n - 1; i >= 0; i--) index[keys[i] - keys[0]] = i;
+						for(int slot : index) out.writeInt(slot);
+						indexes[s] = index.length;
+						pos += 4L * index.length;
+					}
+				}
+			}
+			stmt.close();
+			conn.commit();
+		}catch(SQLException e){
+			conn.rollback();
+			out.close();
+			tmp.delete();
+			throw e;
+		}finally{
+			out.close();
+		}
+		if(offsets[3] + 16L * counts[3] + 4L * indexes[3] > Integer.MAX_VALUE){
+			tmp.delete();
+			throw new IOException("The catalog is too large for a single mapped snapshot");
+		}
+		RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+		try{
+			raf.writeInt(MAGIC);
+			raf.writeInt(FORMAT);
+			raf.writeLong(version);
+			raf.writeLong(System.currentTimeMillis());
+			raf.seek(32);
+			for(int s = 0; s < 4; s++){
+				raf.writeInt(counts[s]);
+				raf.writeInt(mins[s]);
+				raf.writeInt(indexes[s]);
+				raf.writeInt(0);
+				raf.writeLong(offsets[s]);
+			}
+		}finally{
+			raf.close();
+		}
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private static void writeRecord(DataOutputStream out, int section, ResultSet rs) throws SQLException, IOException {
+		switch(section){
+			case PLANE:
+				out.writeInt(rs.getInt(1));
+				out.writeShort(rs.getInt(2));
+				out.writeShort(rs.getInt(3));
+				writeText(out, rs.getString(4), 32);
+				writeText(out, rs.getString(5), 64);
+				break;
+			case FLIGHT:
+				out.writeInt(rs.getInt(1));
+				out.writeInt(rs.getInt(2));
+				out.writeInt(rs.getInt(3));
+				out.writeInt(rs.getInt(4));
+				out.writeInt((int)day(rs.getString(5)));
+				out.writeInt((int)day(rs.getString(6)));
+				writeText(out, rs.getString(7), 5);
+				writeText(out, rs.getString(8), 5);
+				out.write(new byte[6]);
+				break;
+			case FLIGHTINFO:
+				out.writeInt(rs.getInt(1));
+				out.writeInt(rs.getInt(2));
+				out.writeInt(rs.getInt(3));
+				out.writeInt(rs.getInt(4));
+				break;
+			default:
+				out.writeInt(rs.getInt(1));
+				out.writeInt(rs.getInt(2));
+				out.writeInt((int)day(rs.getString(3)));
+				out.writeInt((int)day(rs.getString(4)));
+		}
+	}
+
+	static long day(String s){
+		return LocalDate.parse(s.substring(0, 10)).toEpochDay();
+	}
+
+	private static void writeText(DataOutputStream out, String s, int width) throws IOException {
+		byte[] b = s == null ? new byte[0] : s.trim().getBytes(StandardCharsets.UTF_8);
+		int n = Math.min(b.length, width);
+		out.write(b, 0, n);
+		for(int i = n; i < width; i++) out.writeByte(0);
+	}
+
+	/**
+	 * Writes a snapshot: java -cp lib/*:bin/ CatalogSnapshot <dbname> <port> <user> <file>
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length != 4) {
+			System.err.println("Usage: java [-classpath <classpath>] CatalogSnapshot <dbname> <port> <user> <file>");
+			return;
+		}
+		Class.forName("org.postgresql.Driver");
+		DBproject esql = new DBproject(args[0], args[1], args[2], "");
+		try{
+			long start = System.nanoTime();
+			write(esql, new File(args[3]));
+			CatalogSnapshot c = open(new File(args[3]));
+			System.out.println("Wrote catalog version " + c.version() + ": " + c.size(PLANE) + " planes, " + c.size(FLIGHT) + " flights, "
+				+ c.size(FLIGHTINFO) + " flight infos, " + c.size(SCHEDULE) + " schedules in " + (System.nanoTime() - start) / 1000000 + " ms");
+		}finally{
+			esql.cleanup();
+		}
+	}
+}
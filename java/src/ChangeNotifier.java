@@ -0,0 +1,187 @@
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+/**
+ * Receives the change notifications sent by the triggers in sql/notify.sql and
+ * hands them to the in-process caches, so that several DBproject processes on
+ * one database do not serve each other's stale data.
+ *
+ * A dedicated connection LISTENs on dbproject_changes.  Notifications are
+ * coalesced: after the first one arrives the listener keeps collecting for
+ * coalesceMillis, merges the keys per table and column, and dispatches once.
+ * A column with more than maxKeys distinct keys in one window, or one the
+ * trigger already reported as "*", is dispatched as "everything changed", so a
+ * bulk load costs each cache one invalidation instead of thousands.
+ *
+ * Notifications caused by this process are skipped; the caches already
+ * applied those changes.  Every connection DBproject opens carries the
+ * process's instance id (see DBproject.getInstanceId()), which the triggers
+ * send along.
+ */
+public class ChangeNotifier{
+	public static final String CHANNEL = "dbproject_changes";
+
+	/** Something that caches rows of the notified tables. */
+	public interface Listener{
+		/**
+		 * @param table the lower-case table name, e.g. "reservation"
+		 * @param column the key column, e.g. "fid"
+		 * @param keys the changed keys, or null if too many changed to list
+		 */
+		void changed(String table, String column, int[] keys);
+	}
+
+	private final DBproject esql;
+	private final long coalesceMillis;
+	private final int maxKeys;
+	private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+	private volatile boolean running = true;
+	private Thread thread = null;
+	private Connection conn = null;
+	private long received = 0;
+	private long dispatched = 0;
+
+	public ChangeNotifier(DBproject esql, long coalesceMillis, int maxKeys){
+		this.esql = esql;
+		this.coalesceMillis = coalesceMillis;
+		this.maxKeys = maxKeys;
+	}
+
+	public void addListener(Listener l){
+		listeners.add(l);
+	}
+
+	/**
+	 * Opens the listening connection and starts the listener thread.
+	 *
+	 * @throws java.sql.SQLException when the connection could not be opened
+	 */
+	public synchronized void start() throws SQLException {
+		if(thread != null) return;
+		conn = esql.openConnection();
+		Statement stmt = conn.createStatement();
+		stmt.execute("LISTEN " + CHANNEL);
+		stmt.close();
+		thread = new Thread(new Runnable(){
+			public void run(){
+				listen();
+			}
+		}, "change-listener");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private void listen(){
+		String own = esql.getInstanceId();
+		try{
+			PGConnection pg = conn.unwrap(PGConnection.class);
+			while(running){
+				PGNotification[] first = pg.getNotifications(1000);
+				if(first == null || first.length == 0) continue;
+				Map<String, Set<Integer>> pending = new HashMap<String, Set<Integer>>();
+				add(first, own, pending);
+				long deadline = System.currentTimeMillis() + coalesceMillis;
+				long left;
+				while((left = deadline - System.currentTimeMillis()) > 0){
+					add(pg.getNotifications((int)left), own, pending);
+				}
+				dispatch(pending);
+			}
+		}catch(SQLException e){
+			if(running) System.err.println("Error - Change listener stopped, caches may go stale: " + e.getMessage());
+		}
+	}
+
+	/*
+	 * Merges notifications into pending, keyed "table.column".  A null set
+	 * means the whole column is invalid.
+	 */
+	private void add(PGNotification[] notes, String own, Map<String, Set<Integer>> pending){
+		if(notes == null) return;
+		for(PGNotification n : notes){
+			received++;
+			String[] parts = n.getParameter().split("\\|");
+			if(parts.length < 3 || parts[2].equals(own)) continue;
+			for(int i = 3; i < parts.length; i++){
+				int eq = parts[i].indexOf('=');
+				if(eq < 0) continue;
+				String key = parts[0] + "." + parts[i].substring(0, eq);
+				String values = parts[i].substring(eq + 1);
+				boolean known = pending.containsKey(key);
+				Set<Integer> set = pending.get(key);
+				if(known && set == null) continue;
+				if(values.equals("*")){
+					pending.put(key, null);
+					continue;
+				}
+				if(set == null){
+					set = new HashSet<Integer>();
+					pending.put(key, set);
+				}
+				for(String v : values.split(",")){
+					set.add(Integer.parseInt(v));
+				}
+				if(set.size() > maxKeys) pending.put(key, null);
+			}
+		}
+	}
+
+	private void dispatch(Map<String, Set<Integer>> pending){
+		for(Map.Entry<String, Set<Integer>> e : pending.entrySet()){
+			String table = e.getKey().substring(0, e.getKey().indexOf('.'));
+			String column = e.getKey().substring(e.getKey().indexOf('.') + 1);
+			int[] keys = null;
+			if(e.getValue() != null){
+				keys = new int[e.getValue().size()];
+				int i = 0;
+				for(Integer k : e.getValue()) keys[i++] = k;
+			}
+			for(Listener l : listeners){
+				try{
+					l.changed(table, column, keys);
+				}catch(RuntimeException ex){
+					System.err.println("Error - Cache listener failed on " + table + "." + column + ": " + ex);
+				}
+			}
+			dispatched++;
+		}
+	}
+
+	/**
+	 * @return {notifications received, invalidations dispatched}
+	 */
+	public long[] stats(){
+		return new long[]{received, dispatched};
+	}
+
+	public void close(){
+		running = false;
+		try{
+			if(thread != null) thread.join(2000);
+			if(conn != null) conn.close();
+		}catch(Exception e){
+			// ignored.
+		}
+	}
+
+	/**
+	 * Convenience for listeners: true if key is among keys (null means all).
+	 */
+	public static boolean touches(int[] keys, int key){
+		if(keys == null) return true;
+		for(int k : keys){
+			if(k == key) return true;
+		}
+		return false;
+	}
+}
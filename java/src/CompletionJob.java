@@ -0,0 +1,203 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Completes the reservations of flights that have arrived: 'R' rows become
+ * 'C' and leftover 'W' rows are deleted, so the reserved counts of
+ * BookFlight and FindPassengersCountWithStatus only see flights still to fly.
+ *
+ * The backlog is worked through in rnum order, CHUNK reservations per
+ * statement.  Each chunk is one set-based UPDATE and DELETE in its own short
+ * transaction on the job's own connection; rows a booking holds locked are
+ * skipped (and picked up by the next run) instead of waited for, and the job
+ * pauses between chunks so it never holds the table for long.  The partial
+ * index ReservationOpen keeps each run from rescanning completed rows.
+ *
+ * A listener is told the flights and customers of every chunk, so caches
+ * that count or show statuses can be refreshed.
+ *
+ * Settings are Java system properties:
+ *   dbproject.completionMinutes  minutes between runs inside DBproject (unset disables)
+ *   dbproject.completionChunk    reservations per chunk (default 1000)
+ *   dbproject.completionPause    milliseconds between chunks (default 50)
+ *
+ * It can also be run once, e.g. from cron:
+ *   java -cp lib/*:bin/ CompletionJob <dbname> <port> <user> [--chunk N] [--pause ms]
+ */
+public class CompletionJob{
+	static final String CHUNK_QUERY = "WITH done AS ("
+		+ "SELECT R.rnum FROM Reservation R JOIN Flight F ON F.fnum = R.fid "
+		+ "WHERE R.status IN ('R', 'W') AND R.rnum > ? AND F.actual_arrival_date < CURRENT_DATE "
+		+ "ORDER BY R.rnum LIMIT ? FOR UPDATE OF R SKIP LOCKED), "
+		+ "completed AS (UPDATE Reservation R SET status = 'C' FROM done WHERE R.rnum = done.rnum AND R.status = 'R' RETURNING R.rnum, R.fid, R.cid), "
+		+ "dropped AS (DELETE FROM Reservation R USING done WHERE R.rnum = done.rnum AND R.status = 'W' RETURNING R.rnum, R.fid, R.cid) "
+		+ "SELECT rnum, fid, cid, 'C' FROM completed UNION ALL SELECT rnum, fid, cid, 'W' FROM dropped";
+
+	/** Told about every chunk once it is committed. */
+	public interface Listener{
+		void completed(int[] flights, int[] customers);
+	}
+
+	/** What one run did. */
+	public static final class Run{
+		public long completed;
+		public long dropped;
+		public int chunks;
+		public long elapsedNanos;
+	}
+
+	private final DBproject esql;
+	private final int chunk;
+	private final long pauseMillis;
+	private final Listener listener;
+	private Thread thread = null;
+	private volatile boolean running = true;
+
+	/**
+	 * @param listener told about every chunk, or null
+	 */
+	public CompletionJob(DBproject esql, int chunk, long pauseMillis, Listener listener){
+		this.esql = esql;
+		this.chunk = chunk;
+		this.pauseMillis = pauseMillis;
+		this.listener = listener;
+	}
+
+	/**
+	 * @return a job set up from the dbproject.completion* properties, or null
+	 *         if dbproject.completionMinutes is unset
+	 */
+	public static CompletionJob fromSystemProperties(DBproject esql, Listener listener){
+		Long minutes = Long.getLong("dbproject.completionMinutes");
+		if(minutes == null || minutes <= 0) return null;
+		CompletionJob job = new CompletionJob(esql, Integer.getInteger("dbproject.completionChunk", 1000),
+			Long.getLong("dbproject.completionPause", 50L), listener);
+		job.start(minutes * 60000);
+		return job;
+	}
+
+	/**
+	 * Runs the job now and then every intervalMillis on a daemon thread.
+	 */
+	public synchronized void start(final long intervalMillis){
+		if(thread != null) return;
+		thread = new Thread(new Runnable(){
+			public void run(){
+				while(running){
+					try{
+						Run r = runOnce();
+						if(r.completed + r.dropped > 0){
+							System.err.println("Completion job: " + r.completed + " reservations completed, " + r.dropped + " waitlist rows dropped");
+						}
+					}catch(SQLException e){
+						System.err.println("Warning - Completion job failed, retrying at the next run: " + e.getMessage());
+					}catch(InterruptedException e){
+						continue;
+					}
+					try{
+						Thread.sleep(intervalMillis);
+					}catch(InterruptedException e){
+						// woken to stop
+					}
+				}
+			}
+		}, "flight-completion");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Works through every reservation of an arrived flight.
+	 *
+	 * @throws InterruptedException when the job is stopped between chunks
+	 */
+	public Run runOnce() throws SQLException, InterruptedException {
+		Run run = new Run();
+		long start = System.nanoTime();
+		Connection conn = esql.openConnection();
+		try{
+			Statement setup = conn.createStatement();
+			setup.execute("SET lock_timeout = 1000");
+			setup.close();
+			PreparedStatement ps = conn.prepareStatement(CHUNK_QUERY);
+			int after = -1;
+			while(running){
+				ps.setInt(1, after);
+				ps.setInt(2, chunk);
+				ResultSet rs = ps.executeQuery();
+				Set<Integer> flights = new LinkedHashSet<Integer>();
+				Set<Integer> customers = new LinkedHashSet<Integer>();
+				int n = 0;
+				while(rs.next()){
+					after = Math.max(after, rs.getInt(1));
+					flights.add(rs.getInt(2));
+					customers.add(rs.getInt(3));
+					if(rs.getString(4).equals("C")) run.completed++;
+					else run.dropped++;
+					n++;
+				}
+				rs.close();
+				if(n == 0) break;
+				run.chunks++;
+				if(listener != null) listener.completed(toArray(flights), toArray(customers));
+				if(n < chunk) break;
+				if(pauseMillis > 0) Thread.sleep(pauseMillis);
+			}
+			ps.close();
+		}finally{
+			conn.close();
+		}
+		run.elapsedNanos = System.nanoTime() - start;
+		return run;
+	}
+
+	static int[] toArray(Set<Integer> set){
+		int[] out = new int[set.size()];
+		int i = 0;
+		for(int v : set) out[i++] = v;
+		return out;
+	}
+
+	public void close(){
+		running = false;
+		Thread t;
+		synchronized(this){
+			t = thread;
+		}
+		if(t == null) return;
+		t.interrupt();
+		try{
+			t.join(5000);
+		}catch(InterruptedException e){
+			// ignored.
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 3) {
+			System.err.println("Usage: java [-classpath <classpath>] CompletionJob <dbname> <port> <user> [--chunk N] [--pause ms]");
+			return;
+		}
+		List<String> opts = Arrays.asList(args).subList(3, args.length);
+		int chunk = opts.contains("--chunk") ? Integer.parseInt(opts.get(opts.indexOf("--chunk") + 1)) : 1000;
+		long pause = opts.contains("--pause") ? Long.parseLong(opts.get(opts.indexOf("--pause") + 1)) : 50;
+
+		Class.forName("org.postgresql.Driver");
+		DBproject esql = new DBproject(args[0], args[1], args[2], "");
+		try{
+			//running sessions hear of the changes through the Reservation triggers
+			Run r = new CompletionJob(esql, Math.max(1, chunk), pause, null).runOnce();
+			System.out.println(r.completed + " reservations completed and " + r.dropped + " waitlist rows dropped in " + r.chunks + " chunks, "
+				+ r.elapsedNanos / 1000000 + " ms");
+		}finally{
+			esql.cleanup();
+		}
+	}
+}
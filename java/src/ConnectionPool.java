@@ -0,0 +1,125 @@
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A small fixed-size pool of extra connections to the database of a DBproject,
+ * for work that runs on several connections at once (parallel reports, audits,
+ * dumps).  Connections are opened lazily up to the pool size and handed out in
+ * FIFO order; callers must give every borrowed connection back.  An optional
+ * statement (e.g. a SET) is run on every connection when it is opened.
+ */
+public class ConnectionPool{
+	private final DBproject esql;
+	private final int size;
+	private final ArrayBlockingQueue<Connection> idle;
+	private final List<Connection> all = new ArrayList<Connection>();
+	private final String setup;
+	private final boolean read;
+
+	public ConnectionPool(DBproject esql, int size){
+		this(esql, size, null, false);
+	}
+
+	/**
+	 * @param setup run on every new connection, or null
+	 * @param read open the connections with openReadConnection(), so they
+	 *        are on the read replica if there is one
+	 */
+	public ConnectionPool(DBproject esql, int size, String setup, boolean read){
+		this.esql = esql;
+		this.size = size;
+		this.idle = new ArrayBlockingQueue<Connection>(size);
+		this.setup = setup;
+		this.read = read;
+	}
+
+	public int size(){
+		return size;
+	}
+
+	/**
+	 * Borrows a connection, opening a new one if the pool is not full yet and
+	 * otherwise waiting for one to be returned.
+	 *
+	 * @throws java.sql.SQLException when a connection could not be opened
+	 */
+	public Connection borrow() throws SQLException {
+		Connection c = idle.poll();
+		if(c != null) return c;
+		synchronized(this){
+			if(all.size() < size){
+				c = read ? esql.openReadConnection() : esql.openConnection();
+				if(setup != null){
+					Statement stmt = c.createStatement();
+					try{
+						stmt.execute(setup);
+					}catch(SQLException e){
+						c.close();
+						throw e;
+					}finally{
+						stmt.close();
+					}
+				}
+				all.add(c);
+				return c;
+			}
+		}
+		try{
+			while(true){
+				c = idle.poll(30, TimeUnit.SECONDS);
+				if(c != null) return c;
+				System.err.println("Warning - Waiting more than 30s for a pooled connection");
+			}
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while waiting for a connection");
+		}
+	}
+
+	/**
+	 * Returns a borrowed connection.  A connection left inside a transaction is
+	 * rolled back first.
+	 */
+	public void giveBack(Connection c){
+		try{
+			if(!c.getAutoCommit()){
+				c.rollback();
+				c.setAutoCommit(true);
+			}
+		}catch(SQLException e){
+			//a broken connection is dropped so borrow() can open a fresh one
+			try{
+				c.close();
+			}catch(SQLException ignored){
+				// ignored.
+			}
+			synchronized(this){
+				all.remove(c);
+			}
+			return;
+		}
+		idle.offer(c);
+	}
+
+	/** @return whether the connection was borrowed from this pool */
+	public synchronized boolean owns(Connection c){
+		return all.contains(c);
+	}
+
+	public synchronized void close(){
+		for(Connection c : all){
+			try{
+				c.close();
+			}catch(SQLException e){
+				// ignored.
+			}
+		}
+		all.clear();
+		idle.clear();
+	}
+}
@@ -0,0 +1,324 @@
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Checks the invariants the schema does not enforce:
+ *   num_sold     Flight.num_sold is the number of its reserved and completed reservations
+ *   structure    every flight has exactly one FlightInfo and one Schedule row
+ *   overbooked   a flight has no more reserved seats than its plane has seats
+ *   repair       no repair is dated while its plane is away on a flight, i.e.
+ *                every repair is done before the plane's next flight leaves
+ *
+ * Flight is split into chunks of fnum range and Repairs into chunks of rid
+ * range, and the chunks are checked in parallel on a pool of connections.
+ * Every discrepancy found is counted, the first few of each check are kept
+ * for the summary, and all of them can be written to a tab-separated report.
+ *
+ * With fixing on, each check of a chunk is followed by its fix, a short
+ * transaction of set-based statements: duplicate FlightInfo and Schedule rows
+ * are deleted (the lowest id is kept), the reservations beyond a plane's seats
+ * are waitlisted (the latest first) and lose their seat assignment, and
+ * num_sold is set to the count.  The statements recompute what they change,
+ * so rows written since the check are fixed on their current values.
+ * Missing FlightInfo or Schedule rows and repairs dated in flight are
+ * reported only.
+ *
+ * With shards (see Shards), run it against each shard; the repair check then
+ * sees only the flights of that shard.
+ *
+ * Usage:
+ *   java -cp lib/*:bin/ ConsistencyAudit <dbname> <port> <user> [--threads N] [--chunk keys] [--fix] [--report file] [--show N]
+ */
+public class ConsistencyAudit{
+	public static final String NUM_SOLD = "num_sold";
+	public static final String STRUCTURE = "structure";
+	public static final String OVERBOOKED = "overbooked";
+	public static final String REPAIR = "repair";
+	static final String[] CHECKS = {STRUCTURE, OVERBOOKED, NUM_SOLD, REPAIR};
+
+	static final String STRUCTURE_QUERY = "SELECT * FROM (SELECT F.fnum, "
+		+ "(SELECT COUNT(*) FROM FlightInfo I WHERE I.flight_id = F.fnum), (SELECT COUNT(*) FROM Schedule S WHERE S.flightNum = F.fnum) "
+		+ "FROM Flight F WHERE F.fnum >= ? AND F.fnum < ?) C(fnum, info, schedule) WHERE info <> 1 OR schedule <> 1";
+	static final String[] STRUCTURE_FIX = {
+		"DELETE FROM FlightInfo A USING FlightInfo B WHERE A.flight_id = B.flight_id AND A.fiid > B.fiid AND A.flight_id >= ? AND A.flight_id < ?",
+		"DELETE FROM Schedule A USING Schedule B WHERE A.flightNum = B.flightNum AND A.id > B.id AND A.flightNum >= ? AND A.flightNum < ?"
+	};
+	static final String OVERBOOKED_QUERY = "SELECT I.flight_id, P.seats, COUNT(*) FROM FlightInfo I JOIN Plane P ON P.id = I.plane_id "
+		+ "JOIN Reservation R ON R.fid = I.flight_id AND R.status = 'R' WHERE I.flight_id >= ? AND I.flight_id < ? "
+		+ "GROUP BY I.fiid, I.flight_id, P.seats HAVING COUNT(*) > P.seats";
+	static final String[] OVERBOOKED_FIX = {
+		"WITH moved AS (SELECT rnum FROM (SELECT R.rnum, P.seats, row_number() OVER (PARTITION BY R.fid ORDER BY R.rnum) AS k "
+		+ "FROM Reservation R JOIN FlightInfo I ON I.flight_id = R.fid JOIN Plane P ON P.id = I.plane_id "
+		+ "WHERE R.status = 'R' AND R.fid >= ? AND R.fid < ?) O WHERE O.k > O.seats), "
+		+ "unseated AS (DELETE FROM Seat_Assignment WHERE rnum IN (SELECT rnum FROM moved)) "
+		+ "UPDATE Reservation SET status = 'W' WHERE rnum IN (SELECT rnum FROM moved)"
+	};
+	static final String NUM_SOLD_QUERY = "SELECT F.fnum, F.num_sold, COUNT(R.rnum) FROM Flight F "
+		+ "LEFT JOIN Reservation R ON R.fid = F.fnum AND R.status IN ('R', 'C') WHERE F.fnum >= ? AND F.fnum < ? "
+		+ "GROUP BY F.fnum HAVING F.num_sold <> COUNT(R.rnum)";
+	static final String[] NUM_SOLD_FIX = {
+		"UPDATE Flight F SET num_sold = C.n FROM (SELECT G.fnum, COUNT(R.rnum) AS n FROM Flight G "
+		+ "LEFT JOIN Reservation R ON R.fid = G.fnum AND R.status IN ('R', 'C') WHERE G.fnum >= ? AND G.fnum < ? GROUP BY G.fnum) C "
+		+ "WHERE F.fnum = C.fnum AND F.num_sold <> C.n"
+	};
+	static final String REPAIR_QUERY = "SELECT R.rid, R.plane_id, R.repair_date, F.fnum, F.actual_departure_date, F.actual_arrival_date "
+		+ "FROM Repairs R JOIN FlightInfo I ON I.plane_id = R.plane_id JOIN Flight F ON F.fnum = I.flight_id "
+		+ "WHERE R.rid >= ? AND R.rid < ? AND F.actual_departure_date < R.repair_date AND R.repair_date < F.actual_arrival_date";
+
+	/** One broken invariant: the flight (or repair) and what is wrong with it. */
+	public static final class Discrepancy{
+		public final String check;
+		public final int key;
+		public final String detail;
+
+		Discrepancy(String check, int key, String detail){
+			this.check = check;
+			this.key = key;
+			this.detail = detail;
+		}
+	}
+
+	/** What one check found over every chunk. */
+	public static final class Result{
+		public final String check;
+		public long chunks;
+		public long found;
+		public long fixed;
+		public final List<Discrepancy> samples = new ArrayList<Discrepancy>();
+
+		Result(String check){
+			this.check = check;
+		}
+	}
+
+	private final DBproject esql;
+	private final int threads;
+	private final boolean fix;
+	private final int show;
+	private final Writer report;
+	private final Map<String, Result> results = new LinkedHashMap<String, Result>();
+
+	/**
+	 * @param fix repair what can be repaired
+	 * @param show discrepancies of each check kept for the summary
+	 * @param report where every discrepancy is written, or null
+	 */
+	public ConsistencyAudit(DBproject esql, int threads, boolean fix, int show, Writer report){
+		this.esql = esql;
+		this.threads = threads;
+		this.fix = fix;
+		this.show = show;
+		this.report = report;
+		for(String c : CHECKS) results.put(c, new Result(c));
+	}
+
+	private synchronized void found(Discrepancy d) throws SQLException {
+		Result r = results.get(d.check);
+		r.found++;
+		if(r.samples.size() < show) r.samples.add(d);
+		if(report != null){
+			try{
+				report.write(d.check + "\t" + d.key + "\t" + d.detail + "\n");
+			}catch(IOException e){
+				throw new SQLException("Unable to write the report: " + e.getMessage());
+			}
+		}
+	}
+
+	private synchronized void checked(String check, long fixed){
+		Result r = results.get(check);
+		r.chunks++;
+		r.fixed += fixed;
+	}
+
+	/* runs a check's query on a chunk, reporting every row it returns */
+	private long query(Connection conn, String check, String sql, long lo, long hi) throws SQLException {
+		PreparedStatement ps = conn.prepareStatement(sql);
+		long n = 0;
+		try{
+			ps.setLong(1, lo);
+			ps.setLong(2, hi);
+			ResultSet rs = ps.executeQuery();
+			while(rs.next()){
+				n++;
+				if(check.equals(STRUCTURE)){
+					found(new Discrepancy(check, rs.getInt(1), "flightinfo " + rs.getLong(2) + ", schedule " + rs.getLong(3)));
+				}else if(check.equals(OVERBOOKED)){
+					found(new Discrepancy(check, rs.getInt(1), "seats " + rs.getInt(2) + ", reserved " + rs.getLong(3)));
+				}else if(check.equals(NUM_SOLD)){
+					found(new Discrepancy(check, rs.getInt(1), "num_sold " + rs.getInt(2) + ", reservations " + rs.getLong(3)));
+				}else{
+					found(new Discrepancy(check, rs.getInt(1), "plane " + rs.getInt(2) + " repaired " + rs.getDate(3) + " during flight " + rs.getInt(4)
+						+ " (" + rs.getDate(5) + " to " + rs.getDate(6) + ")"));
+				}
+			}
+		}finally{
+			ps.close();
+		}
+		return n;
+	}
+
+	/* runs a fix's statements on a chunk, returning the rows changed */
+	static long update(Connection conn, String[] sql, long lo, long hi) throws SQLException {
+		long n = 0;
+		for(String s : sql){
+			PreparedStatement ps = conn.prepareStatement(s);
+			try{
+				ps.setLong(1, lo);
+				ps.setLong(2, hi);
+				n += ps.executeUpdate();
+			}finally{
+				ps.close();
+			}
+		}
+		return n;
+	}
+
+	/*
+	 * Checks, and fixes, one chunk of flights.  The fixes go in this order
+	 * because each one changes what the next counts.
+	 */
+	private void flights(Connection conn, long lo, long hi) throws SQLException {
+		String[] checks = {STRUCTURE, OVERBOOKED, NUM_SOLD};
+		String[] queries = {STRUCTURE_QUERY, OVERBOOKED_QUERY, NUM_SOLD_QUERY};
+		String[][] fixes = {STRUCTURE_FIX, OVERBOOKED_FIX, NUM_SOLD_FIX};
+		for(int i = 0; i < checks.length; i++){
+			long found = query(conn, checks[i], queries[i], lo, hi);
+			long fixed = 0;
+			if(fix && found > 0){
+				conn.setAutoCommit(false);
+				try{
+					fixed = update(conn, fixes[i], lo, hi);
+					conn.commit();
+				}catch(SQLException e){
+					conn.rollback();
+					throw e;
+				}finally{
+					conn.setAutoCommit(true);
+				}
+			}
+			checked(checks[i], fixed);
+		}
+	}
+
+	/** @return {min, max + 1} of a key, or null if the table is empty */
+	private long[] range(String table, String key) throws SQLException {
+		List<List<String>> res = esql.executeQueryAndReturnResult("SELECT MIN(" + key + "), MAX(" + key + ") FROM " + table + ";");
+		if(res.isEmpty() || res.get(0).get(0) == null) return null;
+		return new long[]{Long.parseLong(res.get(0).get(0)), Long.parseLong(res.get(0).get(1)) + 1};
+	}
+
+	/**
+	 * Runs every check over the whole database.
+	 *
+	 * @param chunkKeys the key range of one chunk
+	 * @return the results, in the order of CHECKS
+	 * @throws java.sql.SQLException the first failure of a chunk
+	 */
+	public List<Result> run(long chunkKeys) throws SQLException {
+		final ConnectionPool pool = new ConnectionPool(esql, threads);
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		long[] flights = range("Flight", "fnum");
+		long[] repairs = range("Repairs", "rid");
+		for(int t = 0; t < 2; t++){
+			long[] r = t == 0 ? flights : repairs;
+			if(r == null) continue;
+			final boolean isFlights = t == 0;
+			for(long from = r[0]; from < r[1]; from += chunkKeys){
+				final long lo = from;
+				final long hi = Math.min(r[1], from + chunkKeys);
+				tasks.add(new Callable<Void>(){
+					public Void call() throws Exception {
+						Connection conn = pool.borrow();
+						try{
+							if(isFlights){
+								flights(conn, lo, hi);
+							}else{
+								query(conn, REPAIR, REPAIR_QUERY, lo, hi);
+								checked(REPAIR, 0);
+							}
+						}finally{
+							pool.giveBack(conn);
+						}
+						return null;
+					}
+				});
+			}
+		}
+		ExecutorService workers = Executors.newFixedThreadPool(threads);
+		try{
+			for(Future<Void> f : workers.invokeAll(tasks)) f.get();
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted");
+		}catch(ExecutionException e){
+			Throwable cause = e.getCause();
+			if(cause instanceof SQLException) throw (SQLException)cause;
+			throw new SQLException(cause.getMessage(), cause);
+		}finally{
+			workers.shutdownNow();
+			pool.close();
+		}
+		return new ArrayList<Result>(results.values());
+	}
+
+	static void print(List<Result> results, long elapsedNanos){
+		System.out.println(DBproject.pad("Check", 14) + DBproject.pad("Chunks", 10) + DBproject.pad("Found", 12) + "Fixed");
+		System.out.println("----------------------------------------------------------");
+		for(Result r : results){
+			System.out.println(DBproject.pad(r.check, 14) + DBproject.pad(Long.toString(r.chunks), 10) + DBproject.pad(Long.toString(r.found), 12) + r.fixed);
+		}
+		for(Result r : results){
+			if(r.samples.isEmpty()) continue;
+			System.out.println();
+			System.out.println(r.check + (r.found > r.samples.size() ? " (first " + r.samples.size() + " of " + r.found + ")" : ""));
+			for(Discrepancy d : r.samples){
+				System.out.println("  " + (r.check.equals(REPAIR) ? "repair " : "flight ") + d.key + ": " + d.detail);
+			}
+		}
+		System.out.println();
+		System.out.println("Audited in " + elapsedNanos / 1000000 + " ms");
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 3) {
+			System.err.println("Usage: java [-classpath <classpath>] ConsistencyAudit <dbname> <port> <user> [--threads N] [--chunk keys] [--fix] [--report file] [--show N]");
+			return;
+		}
+		List<String> opts = Arrays.asList(args).subList(3, args.length);
+		int threads = opts.contains("--threads") ? Integer.parseInt(opts.get(opts.indexOf("--threads") + 1)) : Math.min(8, Runtime.getRuntime().availableProcessors());
+		long chunkKeys = opts.contains("--chunk") ? Long.parseLong(opts.get(opts.indexOf("--chunk") + 1)) : 50000;
+		int show = opts.contains("--show") ? Integer.parseInt(opts.get(opts.indexOf("--show") + 1)) : 10;
+		String file = opts.contains("--report") ? opts.get(opts.indexOf("--report") + 1) : null;
+
+		Class.forName("org.postgresql.Driver");
+		DBproject esql = new DBproject(args[0], args[1], args[2], "");
+		Writer report = file == null ? null : new BufferedWriter(new FileWriter(file));
+		try{
+			if(report != null) report.write("check\tkey\tdetail\n");
+			ConsistencyAudit audit = new ConsistencyAudit(esql, Math.max(1, threads), opts.contains("--fix"), Math.max(0, show), report);
+			long start = System.nanoTime();
+			List<Result> results = audit.run(Math.max(1, chunkKeys));
+			print(results, System.nanoTime() - start);
+		}finally{
+			if(report != null) report.close();
+			esql.cleanup();
+		}
+	}
+}
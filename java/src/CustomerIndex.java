@@ -0,0 +1,210 @@
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * In-memory prefix index over Customer names and phone numbers.
+ *
+ * Customer.fname and lname are CHAR(24) and phone is CHAR(10), so every key is
+ * trimmed and lower-cased before it is indexed.  Each field is kept as a sorted,
+ * packed byte array with an offset table and a parallel id array; a prefix
+ * lookup is two binary searches followed by a scan of the matching run, which
+ * takes microseconds even for millions of customers.
+ *
+ * The index is built once and never changed, as nothing in the application
+ * inserts customers; rows added to Customer afterwards are not in it.
+ */
+public class CustomerIndex{
+	/** A sorted run of (key, customer id) pairs packed into flat arrays. */
+	static final class SortedKeys{
+		final byte[] data;
+		final int[] offset;
+		final int[] ids;
+
+		SortedKeys(byte[] data, int[] offset, int[] ids){
+			this.data = data;
+			this.offset = offset;
+			this.ids = ids;
+		}
+
+		static SortedKeys build(List<String> keys, List<Integer> ids){
+			Integer[] order = new Integer[keys.size()];
+			for(int i = 0; i < order.length; i++) order[i] = i;
+			final List<String> k = keys;
+			Arrays.sort(order, (a, b) -> k.get(a).compareTo(k.get(b)));
+			int total = 0;
+			for(String s : keys) total += s.length();
+			byte[] data = new byte[total];
+			int[] offset = new int[order.length + 1];
+			int[] id = new int[order.length];
+			int pos = 0;
+			for(int i = 0; i < order.length; i++){
+				byte[] b = keys.get(order[i]).getBytes(StandardCharsets.ISO_8859_1);
+				System.arraycopy(b, 0, data, pos, b.length);
+				offset[i] = pos;
+				pos += b.length;
+				id[i] = ids.get(order[i]);
+			}
+			offset[order.length] = pos;
+			return new SortedKeys(data, offset, id);
+		}
+
+		int size(){
+			return ids.length;
+		}
+
+		/* compares key i against the prefix, treating a key that starts with the prefix as equal */
+		int comparePrefix(int i, byte[] prefix){
+			int start = offset[i];
+			int len = offset[i + 1] - start;
+			for(int j = 0; j < prefix.length; j++){
+				if(j >= len) return -1;
+				int c = (data[start + j] & 0xff) - (prefix[j] & 0xff);
+				if(c != 0) return c;
+			}
+			return 0;
+		}
+
+		/** Adds up to limit ids whose key starts with the prefix. */
+		void find(byte[] prefix, int limit, Set<Integer> out){
+			int lo = 0;
+			int hi = size();
+			while(lo < hi){
+				int mid = (lo + hi) >>> 1;
+				if(comparePrefix(mid, prefix) < 0) lo = mid + 1;
+				else hi = mid;
+			}
+			for(int i = lo; i < size() && out.size() < limit && comparePrefix(i, prefix) == 0; i++){
+				out.add(ids[i]);
+			}
+		}
+	}
+
+	private final SortedKeys lname;
+	private final SortedKeys fname;
+	private final SortedKeys phone;
+
+	//display form of every customer, "First Last (phone)"
+	private final Map<Integer, String> labels = new HashMap<Integer, String>();
+
+	private CustomerIndex(SortedKeys lname, SortedKeys fname, SortedKeys phone){
+		this.lname = lname;
+		this.fname = fname;
+		this.phone = phone;
+	}
+
+	/**
+	 * Builds the index from every row of Customer.
+	 *
+	 * @param esql the database connection
+	 * @return the loaded index
+	 * @throws java.sql.SQLException when the customers could not be read
+	 */
+	public static CustomerIndex load(DBproject esql) throws SQLException {
+		List<List<String>> res = esql.executeQueryAndReturnResult("SELECT id, fname, lname, phone FROM Customer;");
+		List<String> ln = new ArrayList<String>(res.size());
+		List<String> fn = new ArrayList<String>(res.size());
+		List<String> ph = new ArrayList<String>(res.size());
+		List<Integer> lnIds = new ArrayList<Integer>(res.size());
+		List<Integer> fnIds = new ArrayList<Integer>(res.size());
+		List<Integer> phIds = new ArrayList<Integer>(res.size());
+		for (List<String> r : res) {
+			int id = Integer.parseInt(r.get(0));
+			fn.add(normalizeName(r.get(1)));
+			fnIds.add(id);
+			ln.add(normalizeName(r.get(2)));
+			lnIds.add(id);
+			if(r.get(3) != null){
+				ph.add(normalizePhone(r.get(3)));
+				phIds.add(id);
+			}
+		}
+		CustomerIndex index = new CustomerIndex(SortedKeys.build(ln, lnIds), SortedKeys.build(fn, fnIds), SortedKeys.build(ph, phIds));
+		for (List<String> r : res) {
+			index.labels.put(Integer.parseInt(r.get(0)), label(r.get(1), r.get(2), r.get(3)));
+		}
+		return index;
+	}
+
+	public static String label(String first, String last, String phoneNumber){
+		return (first == null ? "" : first.trim()) + " " + (last == null ? "" : last.trim()) + " (" + (phoneNumber == null ? "" : phoneNumber.trim()) + ")";
+	}
+
+	/**
+	 * @return "First Last (phone)" for the customer, or null if unknown
+	 */
+	public synchronized String describe(int id){
+		return labels.get(id);
+	}
+
+	public static String normalizeName(String s){
+		return s == null ? "" : s.trim().toLowerCase();
+	}
+
+	public static String normalizePhone(String s){
+		return s == null ? "" : s.replaceAll("[^0-9]", "");
+	}
+
+	/**
+	 * Finds up to k customer ids matching the query.  A query made of digits is
+	 * a phone prefix; "first last" matches both name prefixes; a single word
+	 * matches last names first and then first names.
+	 */
+	public synchronized List<Integer> search(String query, int k){
+		Set<Integer> out = new LinkedHashSet<Integer>();
+		String q = query.trim().toLowerCase();
+		if(q.isEmpty()) return new ArrayList<Integer>();
+		if(q.matches("[0-9 ()-]+")){
+			byte[] p = normalizePhone(q).getBytes(StandardCharsets.ISO_8859_1);
+			phone.find(p, k, out);
+		}
+		else if(q.indexOf(' ') > 0){
+			String first = q.substring(0, q.indexOf(' ')).trim();
+			String last = q.substring(q.indexOf(' ') + 1).trim();
+			Set<Integer> firsts = new LinkedHashSet<Integer>();
+			fname.find(first.getBytes(StandardCharsets.ISO_8859_1), Integer.MAX_VALUE, firsts);
+			Set<Integer> lasts = new LinkedHashSet<Integer>();
+			lname.find(last.getBytes(StandardCharsets.ISO_8859_1), Integer.MAX_VALUE, lasts);
+			Set<Integer> small = firsts.size() < lasts.size() ? firsts : lasts;
+			Set<Integer> large = small == firsts ? lasts : firsts;
+			for (Integer id : small) {
+				if(out.size() >= k) break;
+				if(large.contains(id)) out.add(id);
+			}
+		}
+		else{
+			lname.find(q.getBytes(StandardCharsets.ISO_8859_1), k, out);
+			fname.find(q.getBytes(StandardCharsets.ISO_8859_1), k, out);
+		}
+		return new ArrayList<Integer>(out);
+	}
+
+	/**
+	 * Database-side search used while the in-memory index is still loading.
+	 * It is served by the lower(rtrim(...)) text_pattern_ops indexes created in
+	 * create.sql.
+	 *
+	 * @return rows of (id, fname, lname, phone)
+	 * @throws java.sql.SQLException when the query fails
+	 */
+	public static List<List<String>> searchDatabase(DBproject esql, String query, int k) throws SQLException {
+		String q = query.trim().toLowerCase().replaceAll("[^a-z0-9 ]", "");
+		String where;
+		if(q.matches("[0-9 ]+")){
+			where = "rtrim(phone) LIKE '" + q.replace(" ", "") + "%'";
+		}
+		else if(q.indexOf(' ') > 0){
+			where = "lower(rtrim(fname)) LIKE '" + q.substring(0, q.indexOf(' ')) + "%' AND lower(rtrim(lname)) LIKE '" + q.substring(q.indexOf(' ') + 1).trim() + "%'";
+		}
+		else{
+			where = "lower(rtrim(lname)) LIKE '" + q + "%' OR lower(rtrim(fname)) LIKE '" + q + "%'";
+		}
+		return esql.executeQueryAndReturnResult("SELECT id, fname, lname, phone FROM Customer WHERE " + where + " ORDER BY lname, fname LIMIT " + k + ";");
+	}
+}
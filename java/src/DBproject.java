@@ -21,9 +21,13 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Scanner;
+import java.util.UUID;
 import java.util.Date;
 import java.text.SimpleDateFormat;
 import java.text.ParseException;
@@ -31,6 +35,7 @@ import java.time.format.DateTimeFormatter;
 import java.time.LocalDateTime;
 import java.time.LocalDate;
 import java.time.DateTimeException;
+import java.time.temporal.ChronoUnit;
 
 /**
  * This class defines a simple embedded SQL utility class that is designed to
@@ -41,6 +46,75 @@ import java.time.DateTimeException;
 public class DBproject{
 	//reference to physical database connection
 	private Connection _connection = null;
+	//carried by every connection of this process, so change notifications it caused can be told apart
+	private final String _instance = UUID.randomUUID().toString();
+	//connection settings, kept so tools can open additional connections
+	private String _url = null;
+	private String _user = null;
+	private String _passwd = null;
+	//slow and failed statements, written to a rotating log in the background
+	private SlowQueryLog _slowLog = null;
+	//pilot and plane double-booking index, loaded on first use
+	private volatile ScheduleConflictIndex _conflicts = null;
+	//customer name and phone prefix index, loaded in the background on first search
+	private volatile CustomerIndex _customers = null;
+	private Thread _customerLoader = null;
+	//per-flight seat bitmaps, persisted to Seat_Assignment in batches
+	private SeatMap _seats = null;
+	//delay distributions per route, airport, plane and pilot, run on first use
+	private volatile DelayReport _delays = null;
+	//pilot, technician and pilot-plane counters, loaded on first use
+	private volatile Workload _workload = null;
+	//upcoming departures per airport with seats left, loaded on first use
+	private volatile DepartureBoard _board = null;
+	//first page of the itinerary of recently asked customers
+	private Itinerary _itinerary = null;
+	//invalidates the caches above when another process writes
+	private ChangeNotifier _notifier = null;
+	//memory-mapped Plane, Flight, FlightInfo and Schedule, if enabled and current
+	private volatile CatalogSnapshot _catalog = null;
+	//catalog changes seen from other processes, so a snapshot written meanwhile is not used
+	private volatile int _catalogChanges = 0;
+	//where the snapshot lives, and the thread rewriting it if one is running
+	private File _catalogFile = null;
+	private Thread _catalogWriter = null;
+	//storage behind the menu operations, JDBC unless dbproject.memoryData is set
+	private FlightRepository _repository = null;
+	//batches concurrent bookings per flight and sheds load when the database is slow
+	private BookingGate _bookingGate = null;
+	//extra connections for parallel reports, transactions and background refreshes
+	private ConnectionPool _pool = null;
+	//the pool connection of the transaction the calling thread has open, if any (see inTransaction)
+	private final ThreadLocal<Connection> _transaction = new ThreadLocal<Connection>();
+	//records the statements of each menu operation for replay, if enabled
+	private OperationJournal _journal = null;
+	//who added or booked what, written in batches by a background thread, if enabled
+	private AuditLog _audit = null;
+	//time limits per operation class, and the connections reports run on
+	private StatementWatchdog _watchdog = null;
+	private ConnectionPool _reportLane = null;
+	private final ThreadLocal<Integer> _operationClass = new ThreadLocal<Integer>(){
+		protected Integer initialValue(){
+			return StatementWatchdog.INTERACTIVE;
+		}
+	};
+	//statement_timeout currently set on the interactive connection, -1 if unknown
+	private long _sessionTimeout = -1;
+	//where reports and read-only operations read from, if dbproject.replicaPort is set
+	private ReadReplica _replica = null;
+	private final ThreadLocal<Boolean> _readOnly = new ThreadLocal<Boolean>(){
+		protected Boolean initialValue(){
+			return false;
+		}
+	};
+	//System.nanoTime() of the last write on the interactive connection, 0 before the first
+	private volatile long _lastWrite = 0;
+	//completes the reservations of arrived flights, if dbproject.completionMinutes is set
+	private CompletionJob _completion = null;
+	//the databases flights are split over, if dbproject.shards is set; this one is shard 0
+	private Shards _shards = null;
+	//for the DBproject of another shard, the one on shard 0
+	private DBproject _coordinator = null;
 	static BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
 	
 	public DBproject(String dbname, String dbport, String user, String passwd) throws SQLException {
@@ -49,9 +123,19 @@ public class DBproject{
 			// constructs the connection URL
 			String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
 			System.out.println ("Connection URL: " + url + "\n");
+			this._url = url;
+			this._user = user;
+			this._passwd = passwd;
+			this._slowLog = SlowQueryLog.fromSystemProperties(this);
+			this._journal = OperationJournal.fromSystemProperties();
+			this._audit = AuditLog.fromSystemProperties(this, user);
+			this._watchdog = StatementWatchdog.fromSystemProperties();
+			this._replica = ReadReplica.fromSystemProperties(this, dbname, user, passwd,
+				"SET statement_timeout = " + this._watchdog.timeout(StatementWatchdog.INTERACTIVE));
 			
 			// obtain a physical connection
-	        this._connection = DriverManager.getConnection(url, user, passwd);
+	        this._connection = identify(DriverManager.getConnection(url, user, passwd));
+	        this._shards = Shards.fromSystemProperties(this, dbname);
 	        System.out.println("Done");
 		}catch(Exception e){
 			System.err.println("Error - Unable to Connect to Database: " + e.getMessage());
@@ -59,6 +143,21 @@ public class DBproject{
 	        System.exit(-1);
 		}
 	}
+
+	/*
+	 * The DBproject of another shard (see Shards), sharing the slow-query
+	 * log, journal and time limits of the one on shard 0.
+	 */
+	DBproject(DBproject coordinator, String url) throws SQLException {
+		this._url = url;
+		this._user = coordinator._user;
+		this._passwd = coordinator._passwd;
+		this._slowLog = coordinator._slowLog;
+		this._journal = coordinator._journal;
+		this._watchdog = coordinator._watchdog;
+		this._coordinator = coordinator;
+		this._connection = identify(DriverManager.getConnection(url, this._user, this._passwd));
+	}
 	
 	/**
 	 * Method to execute an update SQL statement.  Update SQL instructions
@@ -68,16 +167,97 @@ public class DBproject{
 	 * @throws java.sql.SQLException when update failed
 	 * */
 	public void executeUpdate (String sql) throws SQLException { 
-		// creates a statement object
-		Statement stmt = this._connection.createStatement ();
+		long start = System.nanoTime ();
+		SQLException error = null;
+		int cls = operationClass ();
+		Connection conn = null;
+		StatementWatchdog.Watch watch = null;
+		try{
+			conn = acquire (cls, true);
 
-		// issues the update instruction
-		stmt.executeUpdate (sql);
+			// creates a statement object
+			Statement stmt = conn.createStatement ();
+			watch = this._watchdog.watch (stmt, cls);
 
-		// close the instruction
-	    stmt.close ();
+			// issues the update instruction
+			stmt.executeUpdate (sql);
+			this._lastWrite = System.nanoTime ();
+
+			// close the instruction
+		    stmt.close ();
+		}catch(SQLException e){
+			error = e;
+			throw e;
+		}finally{
+			this._watchdog.done (watch);
+			release (conn);
+			finished (sql, OperationJournal.UPDATE, start, error);
+		}
 	}//end executeUpdate
 
+	/*
+	 * The connection a statement of the given operation class runs on.
+	 * Report reads borrow one from the report lane, whose connections carry
+	 * the report time limit and are on the replica if there is one; other
+	 * reads of read-only operations go to the replica's interactive
+	 * connection.  Right after a write, reads stay on the primary, reports on
+	 * the general pool.  Inside inTransaction() everything runs on the
+	 * transaction's connection, and background refreshes borrow from the
+	 * general pool.  Everything else runs on the interactive connection,
+	 * whose statement_timeout is switched to the class's limit when needed.
+	 */
+	private Connection acquire (int cls, boolean write) throws SQLException {
+		Connection transaction = this._transaction.get ();
+		if (transaction != null) return transaction;
+		if (cls == StatementWatchdog.BACKGROUND) return getPool ().borrow ();
+		ReadReplica replica = this._replica;
+		if (!write){
+			long lastWrite = this._lastWrite;
+			boolean pinned = replica != null && lastWrite != 0 && System.nanoTime () - lastWrite < replica.pinMillis () * 1000000L;
+			if (cls == StatementWatchdog.REPORT) return pinned ? getPool ().borrow () : getReportLane ().borrow ();
+			if (replica != null && !pinned && readOnlyOperation ()) return replica.interactive ();
+		}
+		long timeout = this._watchdog.timeout (cls);
+		synchronized (this._connection){
+			if (timeout != this._sessionTimeout){
+				Statement stmt = this._connection.createStatement ();
+				try{
+					stmt.execute ("SET statement_timeout = " + timeout);
+				}finally{
+					stmt.close ();
+				}
+				this._sessionTimeout = timeout;
+			}
+		}
+		return this._connection;
+	}
+
+	private void release (Connection conn) {
+		if (conn == null || conn == this._connection || conn == this._transaction.get ()) return;
+		if (this._replica != null && this._replica.owns (conn)) return;
+		if (this._reportLane != null && this._reportLane.owns (conn)){
+			//a connection opened on the primary while the replica was down
+			if (this._replica != null && this._replica.stale (conn)) this._replica.close (conn);
+			this._reportLane.giveBack (conn);
+		}else{
+			this._pool.giveBack (conn);
+		}
+	}
+
+	//whether a failed read lost its replica connection and should run again on the primary
+	private boolean rerun (Connection conn, SQLException e) {
+		return this._replica != null && this._replica.failed (conn, e);
+	}
+
+	//hands a finished statement to the slow-query log and the journal
+	private void finished (String sql, int kind, long start, SQLException error) {
+		long nanos = System.nanoTime () - start;
+		this._slowLog.record (sql, nanos, error);
+		if (this._journal != null){
+			this._journal.statement (sql, kind, nanos, error != null);
+		}
+	}
+
 	/**
 	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
 	 * method issues the query to the DBMS and outputs the results to
@@ -88,9 +268,30 @@ public class DBproject{
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
 	public int executeQueryAndPrintResult (String query) throws SQLException {
-		//creates a statement object
-		Statement stmt = this._connection.createStatement ();
+		long start = System.nanoTime ();
+		SQLException error = null;
+		int cls = operationClass ();
+		Connection conn = null;
+		StatementWatchdog.Watch watch = null;
+		try{
+			conn = acquire (cls, false);
+			//creates a statement object
+			Statement stmt = conn.createStatement ();
+			watch = this._watchdog.watch (stmt, cls);
+			return printResult (stmt, query);
+		}catch(SQLException e){
+			error = e;
+			if (!rerun (conn, e)) throw e;
+		}finally{
+			this._watchdog.done (watch);
+			release (conn);
+			finished (query, OperationJournal.QUERY, start, error);
+		}
+		//the replica went away mid-statement; it is marked down, so this runs on the primary
+		return executeQueryAndPrintResult (query);
+	}
 
+	private int printResult (Statement stmt, String query) throws SQLException {
 		//issues the query instruction
 		ResultSet rs = stmt.executeQuery (query);
 
@@ -131,9 +332,30 @@ public class DBproject{
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
 	public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException {
-		//creates a statement object 
-		Statement stmt = this._connection.createStatement (); 
-		
+		long start = System.nanoTime ();
+		SQLException error = null;
+		int cls = operationClass ();
+		Connection conn = null;
+		StatementWatchdog.Watch watch = null;
+		try{
+			conn = acquire (cls, false);
+			//creates a statement object 
+			Statement stmt = conn.createStatement (); 
+			watch = this._watchdog.watch (stmt, cls);
+			return returnResult (stmt, query);
+		}catch(SQLException e){
+			error = e;
+			if (!rerun (conn, e)) throw e;
+		}finally{
+			this._watchdog.done (watch);
+			release (conn);
+			finished (query, OperationJournal.QUERY, start, error);
+		}
+		//the replica went away mid-statement; it is marked down, so this runs on the primary
+		return executeQueryAndReturnResult (query);
+	}
+
+	private List<List<String>> returnResult (Statement stmt, String query) throws SQLException {
 		//issues the query instruction 
 		ResultSet rs = stmt.executeQuery (query); 
 	 
@@ -167,22 +389,83 @@ public class DBproject{
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
 	public int executeQuery (String query) throws SQLException {
-		//creates a statement object
-		Statement stmt = this._connection.createStatement ();
-
-		//issues the query instruction
-		ResultSet rs = stmt.executeQuery (query);
-
-		int rowCount = 0;
-
-		//iterates through the result set and count nuber of results.
-		if(rs.next()){
-			rowCount++;
-		}//end while
-		stmt.close ();
-		return rowCount;
+		long start = System.nanoTime ();
+		SQLException error = null;
+		int cls = operationClass ();
+		Connection conn = null;
+		StatementWatchdog.Watch watch = null;
+		try{
+			conn = acquire (cls, false);
+
+			//creates a statement object
+			Statement stmt = conn.createStatement ();
+			watch = this._watchdog.watch (stmt, cls);
+
+			//issues the query instruction
+			ResultSet rs = stmt.executeQuery (query);
+
+			int rowCount = 0;
+
+			//iterates through the result set and count nuber of results.
+			if(rs.next()){
+				rowCount++;
+			}//end while
+			stmt.close ();
+			return rowCount;
+		}catch(SQLException e){
+			error = e;
+			if (!rerun (conn, e)) throw e;
+		}finally{
+			this._watchdog.done (watch);
+			release (conn);
+			finished (query, OperationJournal.QUERY, start, error);
+		}
+		//the replica went away mid-statement; it is marked down, so this runs on the primary
+		return executeQuery (query);
 	}
 	
+	/** Work run by inTransaction(). */
+	public interface Transaction<T>{
+		T run () throws SQLException;
+	}
+
+	/**
+	 * Method to run work as one transaction.  It runs on a connection
+	 * borrowed from the general pool, never on the interactive connection,
+	 * which the change listener and the completion job use meanwhile: every
+	 * statement the calling thread makes through this DBproject goes to that
+	 * connection until the work returns.  The transaction is committed if the
+	 * work returns and rolled back if it throws.  A call made inside the work
+	 * joins the transaction already open.
+	 *
+	 * @param work the statements to run
+	 * @return what the work returned
+	 * @throws java.sql.SQLException when a statement or the commit failed
+	 */
+	public <T> T inTransaction (Transaction<T> work) throws SQLException {
+		if (this._transaction.get () != null) return work.run ();
+		ConnectionPool pool = getPool ();
+		Connection conn = pool.borrow ();
+		try{
+			conn.setAutoCommit (false);
+			Statement stmt = conn.createStatement ();
+			try{
+				//LOCAL, so the limit goes with the transaction and the pooled connection keeps its own
+				stmt.execute ("SET LOCAL statement_timeout = " + this._watchdog.timeout (operationClass ()));
+			}finally{
+				stmt.close ();
+			}
+			this._transaction.set (conn);
+			T result = work.run ();
+			conn.commit ();
+			return result;
+		}finally{
+			this._transaction.remove ();
+			//rolls back what was not committed
+			pool.giveBack (conn);
+		}
+	}
+
 	/**
 	 * Method to fetch the last value from sequence. This
 	 * method issues the query to the DBMS and returns the current 
@@ -194,222 +477,809 @@ public class DBproject{
 	 */
 	
 	public int getCurrSeqVal(String sequence) throws SQLException {
-		Statement stmt = this._connection.createStatement ();
-		
-		ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
-		if (rs.next()) return rs.getInt(1);
-		return -1;
+		String query = String.format("Select currval('%s')", sequence);
+		long start = System.nanoTime ();
+		SQLException error = null;
+		try{
+			Statement stmt = this._connection.createStatement ();
+			
+			ResultSet rs = stmt.executeQuery (query);
+			if (rs.next()) return rs.getInt(1);
+			return -1;
+		}catch(SQLException e){
+			error = e;
+			throw e;
+		}finally{
+			finished (query, OperationJournal.QUERY, start, error);
+		}
 	}
 
 	/**
-	 * Method to close the physical connection if it is open.
+	 * Method to open another physical connection to the same database, for
+	 * work that must not share the interactive connection.  The caller owns
+	 * and closes the returned connection.
+	 *
+	 * @return a new connection
+	 * @throws java.sql.SQLException when the connection could not be opened
 	 */
-	public void cleanup(){
-		try{
-			if (this._connection != null){
-				this._connection.close ();
-			}//end if
-		}catch (SQLException e){
-	         // ignored.
-		}//end try
-	}//end cleanup
+	public Connection openConnection() throws SQLException {
+		return identify(DriverManager.getConnection(this._url, this._user, this._passwd));
+	}
 
-	/**
-	 * The main execution method
-	 * 
-	 * @param args the command line arguments this inclues the <mysql|pgsql> <login file>
+	/*
+	 * Sets dbproject.instance on a new connection to this process's instance
+	 * id, which the triggers of sql/notify.sql send with every change.
 	 */
-	public static void main (String[] args) {
-		if (args.length != 3) {
-			System.err.println (
-				"Usage: " + "java [-classpath <classpath>] " + DBproject.class.getName () +
-		            " <dbname> <port> <user>");
-			return;
-		}//end if
-		
-		DBproject esql = null;
-		
+	private Connection identify(Connection conn) throws SQLException {
+		Statement stmt = conn.createStatement();
 		try{
-			System.out.println("(1)");
-			
-			try {
-				Class.forName("org.postgresql.Driver");
-			}catch(Exception e){
-
-				System.out.println("Where is your PostgreSQL JDBC Driver? " + "Include in your library path!");
-				e.printStackTrace();
-				return;
-			}
-			
-			System.out.println("(2)");
-			String dbname = args[0];
-			String dbport = args[1];
-			String user = args[2];
-			
-			esql = new DBproject (dbname, dbport, user, "");
-			
-			boolean keepon = true;
-			while(keepon){
-				System.out.println("MAIN MENU");
-				System.out.println("---------");
-				System.out.println("1. Add Plane");
-				System.out.println("2. Add Pilot");
-				System.out.println("3. Add Flight");
-				System.out.println("4. Add Technician");
-				System.out.println("5. Book Flight");
-				System.out.println("6. List number of available seats for a given flight.");
-				System.out.println("7. List total number of repairs per plane in descending order");
-				System.out.println("8. List total number of repairs per year in ascending order");
-				System.out.println("9. Find total number of passengers with a given status");
-				System.out.println("10. < EXIT");
-				
-				switch (readChoice()){
-					case 1: AddPlane(esql); break;
-					case 2: AddPilot(esql); break;
-					case 3: AddFlight(esql); break;
-					case 4: AddTechnician(esql); break;
-					case 5: BookFlight(esql); break;
-					case 6: ListNumberOfAvailableSeats(esql); break;
-					case 7: ListsTotalNumberOfRepairsPerPlane(esql); break;
-					case 8: ListTotalNumberOfRepairsPerYear(esql); break;
-					case 9: FindPassengersCountWithStatus(esql); break;
-					case 10: keepon = false; break;
-				}
-			}
-		}catch(Exception e){
-			System.err.println (e.getMessage ());
+			stmt.execute("SET dbproject.instance = '" + this._instance + "'");
+		}catch(SQLException e){
+			conn.close();
+			throw e;
 		}finally{
-			try{
-				if(esql != null) {
-					System.out.print("Disconnecting from database...");
-					esql.cleanup ();
-					System.out.println("Done\n\nBye !");
-				}//end if				
-			}catch(Exception e){
-				// ignored.
-			}
+			stmt.close();
 		}
+		return conn;
 	}
 
-	public static int readChoice() {
-		int input;
-		// returns only if a correct value is given.
-		do {
-			System.out.print("Please make your choice: ");
-			try { // read the integer, parse it and break.
-				input = Integer.parseInt(in.readLine());
-				break;
-			}catch (Exception e) {
-				System.out.println("Your input is invalid!");
-				continue;
-			}//end try
-		}while (true);
-		return input;
-	}//end readChoice
+	/**
+	 * Method to open a connection for reads: on the read replica if one is
+	 * set and reachable, otherwise on the primary like openConnection().
+	 *
+	 * @return a new connection
+	 * @throws java.sql.SQLException when the connection could not be opened
+	 */
+	public Connection openReadConnection() throws SQLException {
+		return this._replica == null ? openConnection() : this._replica.open();
+	}
 
-	public static void AddPlane(DBproject esql) {//1
-		Integer id = -1;
-		String make = "1";	
-		String model = "1";
-		String age = "a";
-		String seats = "a";
-		Integer currID;
-		String query;
-		Scanner input = new Scanner(System.in);
-		List<List<String>> res;
+	/**
+	 * Method to fetch the shards flights are split over (see Shards).
+	 *
+	 * @return the shards, or null if dbproject.shards is unset
+	 */
+	public Shards getShards() {
+		return this._shards;
+	}
 
-//		System.out.print("Enter Plane ID: ");
-//		id = input.nextLine();
+	/**
+	 * Method to find the database a flight lives on.
+	 *
+	 * @param fnum the flight number
+	 * @return the DBproject of the flight's shard, this one if unsharded
+	 */
+	public DBproject shardFor(int fnum) {
+		return this._shards == null ? this : this._shards.forFlight(fnum);
+	}
 
-		query = "SELECT MAX(id) FROM Plane;";
-		try{
-			res = esql.executeQueryAndReturnResult(query);
+	/**
+	 * Method to run a query on every shard at once and return the rows of
+	 * all of them, shard 0's first.  Unsharded it is executeQueryAndReturnResult.
+	 *
+	 * @param query the input query string
+	 * @return the query result as a list of records
+	 * @throws java.sql.SQLException when failed to execute the query on a shard
+	 */
+	public List<List<String>> executeQueryOnAllShards (String query) throws SQLException {
+		return this._shards == null ? executeQueryAndReturnResult (query) : this._shards.queryAll (query);
+	}
 
-			for (List<String> l1 : res) {
-			   for (String s : l1) {
-				id = Integer.parseInt(s);
-			   }
-			} 
-			id += 1;
+	/**
+	 * Method to fetch the pool of extra connections used by parallel work.
+	 * Its size is the dbproject.poolSize system property, by default the
+	 * number of cores up to eight.
+	 *
+	 * @return the connection pool
+	 */
+	public synchronized ConnectionPool getPool() {
+		if (this._pool == null){
+			int size = Integer.getInteger("dbproject.poolSize", Math.min(8, Runtime.getRuntime().availableProcessors()));
+			this._pool = new ConnectionPool(this, Math.max(1, size));
 		}
-		catch(SQLException e){
-			System.out.println("ERR in Getting Plane ID");
-			System.out.println("Err: " + e);
-			System.out.println("------------------------------------------------------------------");
-			System.out.println();
+		return this._pool;
+	}
+
+	/**
+	 * Method to fetch the connections report statements run on, so reports
+	 * never hold the interactive connection.  The lane has
+	 * dbproject.reportConnections (default 2) connections, each with the
+	 * report time limit as its statement_timeout; reports beyond that wait.
+	 * With a read replica (see ReadReplica) the lane's connections are on it.
+	 *
+	 * @return the report lane
+	 */
+	public synchronized ConnectionPool getReportLane() {
+		if (this._reportLane == null){
+			this._reportLane = new ConnectionPool(this, Math.max(1, Integer.getInteger("dbproject.reportConnections", 2)),
+				"SET statement_timeout = " + this._watchdog.timeout(StatementWatchdog.REPORT), true);
 		}
-		
-		System.out.println();
-		System.out.print("Enter Make: ");
-		make = input.nextLine();
-		System.out.print("Enter Model: ");
-		model = input.nextLine();
-		while(!age.matches("[0-9]+")){
-			System.out.print("Enter Age: ");
-			age = input.nextLine();
-			if(!age.matches("[0-9]+")){
-				System.out.println("Invalid input, please enter a Number");
+		return this._reportLane;
+	}
+
+	/**
+	 * Method to fetch the storage behind the menu operations: the database, or
+	 * with -Ddbproject.memoryData=<dir> an in-memory copy of the CSV files in
+	 * that directory (see MemoryRepository).
+	 *
+	 * @return the repository
+	 * @throws java.sql.SQLException when the in-memory data failed to load
+	 */
+	public synchronized FlightRepository getRepository() throws SQLException {
+		if (this._repository == null){
+			String dir = System.getProperty("dbproject.memoryData");
+			if (dir == null){
+				this._repository = this._shards == null ? new JdbcRepository(this) : new ShardedRepository(this._shards);
+			}else{
+				try{
+					this._repository = MemoryRepository.load(new File(dir));
+				}catch(java.io.IOException e){
+					throw new SQLException("Unable to load " + dir + ": " + e.getMessage());
+				}
 			}
 		}
-		while(!seats.matches("[0-9]+")){
-			System.out.print("Enter the number of Seats: ");
-			seats = input.nextLine();
-			if(!seats.matches("[0-9]+")){
-				System.out.println("Invalid input, please enter a Number");
-			}
+		return this._repository;
+	}
 
-		}
+	/**
+	 * Methods to mark the start and end of a menu operation and the flight it
+	 * works on, for the operation journal (see OperationJournal).  They do
+	 * nothing unless dbproject.journal is set.
+	 */
+	public void beginOperation(int type) {
+		setOperation(operationClass(type), readOnly(type));
+		if (this._journal != null) this._journal.begin(type);
+	}
 
-		System.out.println("------------------------------------------------------------------");
+	/*
+	 * The time limit class and read-only flag of the operation running on the
+	 * calling thread.  Shard members keep none of their own and use their
+	 * coordinator's, so a statement sent to any shard runs under the
+	 * operation that sent it; Shards.scatter() hands them on to its threads.
+	 */
+	int operationClass() {
+		return this._coordinator != null ? this._coordinator.operationClass() : this._operationClass.get();
+	}
 
-		System.out.println("Plane ID: " + id);
-		System.out.println("Make: " + make);
-		System.out.println("Model: " + model);		
-		System.out.println("Age: " + age);
-		System.out.println("Number of Seats: " + seats);
+	boolean readOnlyOperation() {
+		return this._coordinator != null ? this._coordinator.readOnlyOperation() : this._readOnly.get();
+	}
 
-		query = "INSERT INTO Plane (id, make, model, age, seats) VALUES (" + id + ", \'" + make + "\', \'" + model + "\', " + age + ", " + seats + ");";
-		try{
-			esql.executeUpdate(query);
-		}
-		catch(SQLException e){
-			System.out.println("Error! Flight Already Exists. Please Try again");
-			System.out.println("Err: " + e);
-			System.out.println("------------------------------------------------------------------");
-			System.out.println();
+	void setOperation(int cls, boolean readOnly) {
+		if (this._coordinator != null){
+			this._coordinator.setOperation(cls, readOnly);
 			return;
-		}		
+		}
+		this._operationClass.set(cls);
+		this._readOnly.set(readOnly);
+	}
 
-		System.out.println("------------------------------------------------------------------");
-		System.out.println();
+	/*
+	 * The time limit class of a menu operation: bookings, reports (the
+	 * repair counts, the conflict audit, the revenue and on-time reports),
+	 * or interactive for everything else.
+	 */
+	static int operationClass(int type) {
+		switch (type){
+			case 5: case 15: return StatementWatchdog.BOOKING;
+			case 7: case 8: case 10: case 13: case 16: case 18: return StatementWatchdog.REPORT;
+			default: return StatementWatchdog.INTERACTIVE;
+		}
+	}
 
+	/*
+	 * Whether a menu operation only reads, so that it may read from the
+	 * replica: everything but adding and booking.
+	 */
+	static boolean readOnly(int type) {
+		switch (type){
+			case 1: case 2: case 3: case 4: case 5: case 15: return false;
+			default: return true;
+		}
 	}
 
-	public static void AddPilot(DBproject esql) {//2
-		Integer id = -1;
-		String fullName = "1";
-		String nationality = "1";
-		String query;
-		List<List<String>> res;
-		Scanner input = new Scanner(System.in);
+	public void operationFlight(int fnum) {
+		if (this._journal != null) this._journal.flight(fnum);
+	}
 
-		query = "SELECT MAX(id) FROM Pilot;";
-		try{
-			res = esql.executeQueryAndReturnResult(query);
-			for (List<String> l1 : res) {
-			   for (String s : l1) {
-				id = Integer.parseInt(s);
-			   }
-			} 
-			id += 1;
-		}
+	/**
+	 * Records a write in the audit log, if auditing is enabled.
+	 *
+	 * @param key the primary key of the row written
+	 */
+	public void audit(String operation, String table, int key, String detail) {
+		if (this._audit != null) this._audit.record(operation, table, key, detail);
+	}
+
+	public void endOperation() {
+		if (this._journal != null) this._journal.end();
+		setOperation(StatementWatchdog.INTERACTIVE, false);
+	}
+
+	/**
+	 * Method to fetch the id every connection of this process carries as
+	 * dbproject.instance, so that the change listener can skip the
+	 * notifications of its own writes.
+	 *
+	 * @return the instance id
+	 */
+	public String getInstanceId() {
+		return this._instance;
+	}
+
+	/**
+	 * Method to start listening for changes made by other DBproject processes
+	 * (see sql/notify.sql) and to drop or patch the local caches accordingly.
+	 *
+	 * @return the running notifier, so more caches can register with it
+	 * @throws java.sql.SQLException when the listening connection failed
+	 */
+	public synchronized ChangeNotifier startChangeListener() throws SQLException {
+		if (this._notifier != null) return this._notifier;
+		this._notifier = new ChangeNotifier(this, 100, 256);
+		this._notifier.addListener(new ChangeNotifier.Listener(){
+			public void changed(String table, String column, int[] keys){
+				//refreshes run on the listener thread, on the general pool rather than the interactive connection
+				setOperation(StatementWatchdog.BACKGROUND, false);
+				if (table.equals("plane") || table.equals("flight") || table.equals("flightinfo") || table.equals("schedule")){
+					_catalogChanges++;
+					_catalog = null;
+					rewriteCatalog();
+				}
+				if (table.equals("flight") || table.equals("flightinfo") || table.equals("schedule")){
+					//sketches cannot take a flight back out, so any change from elsewhere means a rerun
+					_delays = null;
+				}
+				if (table.equals("flight") || table.equals("flightinfo") || table.equals("repairs")){
+					_workload = null;
+				}
+				DepartureBoard board = _board;
+				if (board != null){
+					if (table.equals("reservation") && column.equals("fid")){
+						try{
+							if (keys == null) _board = null;
+							else board.refreshReservations(DBproject.this, keys);
+						}catch(SQLException e){
+							_board = null;
+						}
+					}
+					else if (!table.equals("reservation") && !table.equals("repairs")){
+						_board = null;
+					}
+				}
+				if (table.equals("flight") || table.equals("flightinfo")){
+					if (column.equals("plane_id")) return;
+					ScheduleConflictIndex conflicts = _conflicts;
+					if (conflicts != null){
+						if (keys == null){
+							_conflicts = null;
+						}else{
+							try{
+								conflicts.refresh(DBproject.this, keys);
+							}catch(SQLException e){
+								_conflicts = null;
+							}
+						}
+					}
+					if (_seats != null){
+						if (keys == null) _seats.forgetAll();
+						else for (int k : keys) _seats.forget(k);
+					}
+				}
+				else if (table.equals("plane") && _seats != null){
+					//seat maps are keyed by flight, so a plane change drops them all
+					_seats.forgetAll();
+				}
+				else if (table.equals("seat_assignment") && _seats != null){
+					//seats saved by another process; the map is reloaded from the table on next use
+					if (keys == null) _seats.forgetAll();
+					else for (int k : keys) _seats.forget(k);
+				}
+				Itinerary itinerary = _itinerary;
+				if (itinerary != null){
+					if (table.equals("reservation") && column.equals("cid")){
+						if (keys == null) itinerary.forgetAll();
+						else for (int k : keys) itinerary.forget(k);
+					}
+					else if (table.equals("flight") || table.equals("schedule")){
+						//itineraries are keyed by customer, so a flight or schedule change drops them all
+						itinerary.forgetAll();
+					}
+				}
+			}
+		});
+		this._notifier.start();
+		return this._notifier;
+	}
+
+	/**
+	 * Method to start completing the reservations of arrived flights in the
+	 * background every dbproject.completionMinutes (see CompletionJob).
+	 * The reserved counts of the departure boards and the itineraries of the
+	 * customers involved are refreshed as each chunk commits; the change
+	 * listener skips these writes like every other one of this process.  With
+	 * shards, a job runs on every shard.
+	 */
+	public synchronized void startCompletionJob() {
+		if (this._completion != null) return;
+		this._completion = CompletionJob.fromSystemProperties(this, completionListener());
+		if (this._shards != null){
+			//every shard completes its own flights
+			for (int i = 1; i < this._shards.size(); i++){
+				DBproject member = this._shards.member(i);
+				member._completion = CompletionJob.fromSystemProperties(member, completionListener());
+			}
+		}
+	}
+
+	/* completions are this process's own writes, which the change listener skips, so they are applied here */
+	private CompletionJob.Listener completionListener() {
+		return new CompletionJob.Listener(){
+			public void completed(int[] flights, int[] customers){
+				setOperation(StatementWatchdog.BACKGROUND, false);
+				DepartureBoard board = _board;
+				if (board != null){
+					try{
+						board.refreshReservations(DBproject.this, flights);
+					}catch(SQLException e){
+						_board = null;
+					}
+				}
+				Itinerary itinerary = _itinerary;
+				if (itinerary != null){
+					for (int c : customers) itinerary.forget(c);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Method to serve plane capacities and schedules from a memory-mapped
+	 * catalog snapshot (see CatalogSnapshot).  A current snapshot is used at
+	 * once; a missing or stale one is rewritten in the background and used
+	 * once it is written.  A change from another process drops the snapshot
+	 * and rewrites it the same way.
+	 *
+	 * @param file the snapshot file
+	 */
+	public void openCatalog(final File file) {
+		try{
+			CatalogSnapshot catalog = CatalogSnapshot.open(file);
+			synchronized (this){
+				this._catalogFile = file;
+			}
+			if (catalog != null && catalog.isCurrent(this)){
+				this._catalog = catalog;
+				return;
+			}
+		}catch(Exception e){
+			System.err.println("Warning - Not using the catalog snapshot: " + e.getMessage());
+			return;
+		}
+		rewriteCatalog();
+	}
+
+	/*
+	 * Writes the snapshot again in the background, unless a rewrite is
+	 * already running; that one then sees the new change and writes once
+	 * more, since a snapshot is only used if the catalog did not change while
+	 * it was written.
+	 */
+	private synchronized void rewriteCatalog() {
+		if (this._catalogFile == null || this._catalogWriter != null) return;
+		final File file = this._catalogFile;
+		this._catalogWriter = new Thread(new Runnable(){
+			public void run(){
+				try{
+					while (true){
+						int changes = _catalogChanges;
+						CatalogSnapshot.write(DBproject.this, file);
+						CatalogSnapshot catalog = CatalogSnapshot.open(file);
+						synchronized (DBproject.this){
+							if (_catalogChanges == changes){
+								_catalog = catalog;
+								_catalogWriter = null;
+								return;
+							}
+						}
+					}
+				}catch(Exception e){
+					System.err.println("Error - Unable to write the catalog snapshot: " + e.getMessage());
+					synchronized (DBproject.this){
+						_catalogWriter = null;
+					}
+				}
+			}
+		}, "catalog-snapshot");
+		this._catalogWriter.setDaemon(true);
+		this._catalogWriter.start();
+	}
+
+	/**
+	 * Method to fetch the catalog snapshot.  Rows added by this process after
+	 * the snapshot was written are not in it, so a miss must go to the database.
+	 *
+	 * @return the snapshot, or null if there is no current one
+	 */
+	public CatalogSnapshot getCatalog() {
+		return this._catalog;
+	}
+
+	/**
+	 * Method to fetch the scheduling-conflict index.  The index is built from
+	 * FlightInfo and Flight the first time it is needed and is kept up to date
+	 * by AddFlight afterwards.
+	 *
+	 * @return the pilot and plane conflict index
+	 * @throws java.sql.SQLException when failed to load the index
+	 */
+	public ScheduleConflictIndex getConflictIndex() throws SQLException {
+		if (this._conflicts == null){
+			this._conflicts = ScheduleConflictIndex.load(this);
+		}
+		return this._conflicts;
+	}
+
+	/**
+	 * Method to search customers by name or phone prefix.  The first search
+	 * starts loading the in-memory CustomerIndex in the background and is
+	 * answered by the database; later searches are served from memory.
+	 *
+	 * @param query a phone prefix, a name prefix, or "first last" prefixes
+	 * @param k the maximum number of matches
+	 * @return the matches as (id, "First Last (phone)") records
+	 * @throws java.sql.SQLException when the database search fails
+	 */
+	public List<List<String>> searchCustomers(String query, int k) throws SQLException {
+		CustomerIndex index = this._customers;
+		List<List<String>> result = new ArrayList<List<String>>();
+		if (index != null){
+			for (Integer id : index.search(query, k)){
+				List<String> record = new ArrayList<String>();
+				record.add(Integer.toString(id));
+				record.add(index.describe(id));
+				result.add(record);
+			}
+			return result;
+		}
+		synchronized (this){
+			if (this._customerLoader == null){
+				this._customerLoader = new Thread(new Runnable(){
+					public void run(){
+						//a full scan of Customer, so it runs in the report lane
+						_operationClass.set(StatementWatchdog.REPORT);
+						try{
+							_customers = CustomerIndex.load(DBproject.this);
+						}catch(SQLException e){
+							System.err.println("Error - Unable to load the customer index: " + e.getMessage());
+						}
+					}
+				});
+				this._customerLoader.setDaemon(true);
+				this._customerLoader.start();
+			}
+		}
+		for (List<String> r : CustomerIndex.searchDatabase(this, query, k)){
+			List<String> record = new ArrayList<String>();
+			record.add(r.get(0));
+			record.add(CustomerIndex.label(r.get(1), r.get(2), r.get(3)));
+			result.add(record);
+		}
+		return result;
+	}
+
+	/**
+	 * Method to fetch the seat map of every flight touched so far.
+	 *
+	 * @return the seat maps
+	 */
+	public synchronized SeatMap getSeatMap() {
+		if (this._seats == null){
+			this._seats = new SeatMap(this, 256, 200);
+		}
+		return this._seats;
+	}
+
+	/**
+	 * Method to fetch the admission control in front of the repository's
+	 * bookings, configured from the dbproject.booking* system properties.
+	 *
+	 * @return the booking gate
+	 * @throws java.sql.SQLException when the repository cannot be loaded
+	 */
+	public synchronized BookingGate getBookingGate() throws SQLException {
+		if (this._bookingGate == null){
+			this._bookingGate = BookingGate.fromSystemProperties(getRepository());
+		}
+		return this._bookingGate;
+	}
+
+	/**
+	 * Method to fetch the on-time performance report, run over the whole
+	 * history on first use and kept up to date with the flights added here.
+	 *
+	 * @return the delay report
+	 * @throws java.sql.SQLException when the report could not be run
+	 */
+	public synchronized DelayReport getDelayReport() throws SQLException {
+		if (this._delays == null){
+			this._delays = this._shards == null ? DelayReport.run(this, getReportLane()) : DelayReport.run(this._shards);
+		}
+		return this._delays;
+	}
+
+	/**
+	 * Method to fetch the workload counters, loaded on first use and then
+	 * kept up to date by the flights added here.
+	 *
+	 * @return the workload counters
+	 * @throws java.sql.SQLException when the counters could not be loaded
+	 */
+	public synchronized Workload getWorkload() throws SQLException {
+		if (this._workload == null){
+			this._workload = this._shards == null ? Workload.load(getReportLane()) : Workload.load(this._shards);
+		}
+		return this._workload;
+	}
+
+	/**
+	 * Method to fetch the departure boards, loaded on first use and kept up
+	 * to date with the flights and bookings made here and by other processes.
+	 *
+	 * @return the departure boards
+	 * @throws java.sql.SQLException when the boards could not be loaded
+	 */
+	public synchronized DepartureBoard getDepartureBoard() throws SQLException {
+		if (this._board == null){
+			this._board = DepartureBoard.load(this);
+		}
+		return this._board;
+	}
+
+	/**
+	 * Method to fetch the customer itineraries, with the first page of the
+	 * dbproject.itineraryCache (default 1024) most recently asked customers cached.
+	 *
+	 * @return the itineraries
+	 */
+	public synchronized Itinerary getItinerary() {
+		if (this._itinerary == null){
+			this._itinerary = new Itinerary(this, Integer.getInteger("dbproject.itineraryCache", 1024), 10);
+		}
+		return this._itinerary;
+	}
+
+	/**
+	 * Method to close the physical connection if it is open.
+	 */
+	public void cleanup(){
+		if (this._completion != null){
+			this._completion.close();
+		}
+		if (this._shards != null){
+			this._shards.close();
+		}
+		if (this._notifier != null){
+			this._notifier.close();
+		}
+		if (this._seats != null){
+			this._seats.close();
+		}
+		if (this._pool != null){
+			this._pool.close();
+		}
+		if (this._reportLane != null){
+			this._reportLane.close();
+		}
+		if (this._replica != null){
+			this._replica.close();
+		}
+		//the log, journal and watchdog of another shard's DBproject are shard 0's
+		if (this._watchdog != null && this._coordinator == null){
+			this._watchdog.close();
+		}
+		if (this._journal != null && this._coordinator == null){
+			this._journal.close();
+		}
+		if (this._audit != null){
+			this._audit.close();
+		}
+		if (this._slowLog != null && this._coordinator == null){
+			this._slowLog.close();
+		}
+		try{
+			if (this._connection != null){
+				this._connection.close ();
+			}//end if
+		}catch (SQLException e){
+	         // ignored.
+		}//end try
+	}//end cleanup
+
+	/**
+	 * The main execution method
+	 * 
+	 * @param args the command line arguments this inclues the <mysql|pgsql> <login file>
+	 */
+	public static void main (String[] args) {
+		if (args.length != 3) {
+			System.err.println (
+				"Usage: " + "java [-classpath <classpath>] " + DBproject.class.getName () +
+		            " <dbname> <port> <user>");
+			return;
+		}//end if
+		
+		DBproject esql = null;
+		
+		try{
+			System.out.println("(1)");
+			
+			try {
+				Class.forName("org.postgresql.Driver");
+			}catch(Exception e){
+
+				System.out.println("Where is your PostgreSQL JDBC Driver? " + "Include in your library path!");
+				e.printStackTrace();
+				return;
+			}
+			
+			System.out.println("(2)");
+			String dbname = args[0];
+			String dbport = args[1];
+			String user = args[2];
+			
+			esql = new DBproject (dbname, dbport, user, "");
+			if (!"false".equals(System.getProperty("dbproject.listen"))){
+				try{
+					esql.startChangeListener();
+				}catch(SQLException e){
+					System.err.println("Warning - Not listening for changes from other instances: " + e.getMessage());
+				}
+			}
+			if (System.getProperty("dbproject.catalogSnapshot") != null){
+				esql.openCatalog(new File(System.getProperty("dbproject.catalogSnapshot")));
+			}
+			esql.startCompletionJob();
+			
+			boolean keepon = true;
+			while(keepon){
+				System.out.println("MAIN MENU");
+				System.out.println("---------");
+				System.out.println("1. Add Plane");
+				System.out.println("2. Add Pilot");
+				System.out.println("3. Add Flight");
+				System.out.println("4. Add Technician");
+				System.out.println("5. Book Flight");
+				System.out.println("6. List number of available seats for a given flight.");
+				System.out.println("7. List total number of repairs per plane in descending order");
+				System.out.println("8. List total number of repairs per year in ascending order");
+				System.out.println("9. Find total number of passengers with a given status");
+				System.out.println("10. Find all pilot and plane scheduling conflicts");
+				System.out.println("11. Search for a customer by name or phone");
+				System.out.println("12. Show the seat map of a flight");
+				System.out.println("13. Fleet revenue and load factor report");
+				System.out.println("14. Show the itinerary of a customer");
+				System.out.println("15. Book a group on a flight");
+				System.out.println("16. On-time performance report");
+				System.out.println("17. Show the departure board of an airport");
+				System.out.println("18. Pilot and technician workload report");
+				System.out.println("19. < EXIT");
+				
+				int choice = readChoice();
+				esql.beginOperation(choice);
+				switch (choice){
+					case 1: AddPlane(esql); break;
+					case 2: AddPilot(esql); break;
+					case 3: AddFlight(esql); break;
+					case 4: AddTechnician(esql); break;
+					case 5: BookFlight(esql); break;
+					case 6: ListNumberOfAvailableSeats(esql); break;
+					case 7: ListsTotalNumberOfRepairsPerPlane(esql); break;
+					case 8: ListTotalNumberOfRepairsPerYear(esql); break;
+					case 9: FindPassengersCountWithStatus(esql); break;
+					case 10: FindSchedulingConflicts(esql); break;
+					case 11: SearchCustomer(esql); break;
+					case 12: ShowSeatMap(esql); break;
+					case 13: FleetRevenueReport(esql); break;
+					case 14: ShowItinerary(esql); break;
+					case 15: BookGroup(esql); break;
+					case 16: OnTimeReport(esql); break;
+					case 17: ShowDepartureBoard(esql); break;
+					case 18: WorkloadReport(esql); break;
+					case 19: keepon = false; break;
+				}
+				esql.endOperation();
+			}
+		}catch(Exception e){
+			System.err.println (e.getMessage ());
+		}finally{
+			try{
+				if(esql != null) {
+					System.out.print("Disconnecting from database...");
+					esql.cleanup ();
+					System.out.println("Done\n\nBye !");
+				}//end if				
+			}catch(Exception e){
+				// ignored.
+			}
+		}
+	}
+
+	public static int readChoice() {
+		int input;
+		// returns only if a correct value is given.
+		do {
+			System.out.print("Please make your choice: ");
+			try { // read the integer, parse it and break.
+				input = Integer.parseInt(in.readLine());
+				break;
+			}catch (Exception e) {
+				System.out.println("Your input is invalid!");
+				continue;
+			}//end try
+		}while (true);
+		return input;
+	}//end readChoice
+
+	public static void AddPlane(DBproject esql) {//1
+		Integer id;
+		String make = "1";	
+		String model = "1";
+		String age = "a";
+		String seats = "a";
+		Scanner input = new Scanner(System.in);
+
+		System.out.println();
+		System.out.print("Enter Make: ");
+		make = input.nextLine();
+		System.out.print("Enter Model: ");
+		model = input.nextLine();
+		while(!age.matches("[0-9]+")){
+			System.out.print("Enter Age: ");
+			age = input.nextLine();
+			if(!age.matches("[0-9]+")){
+				System.out.println("Invalid input, please enter a Number");
+			}
+		}
+		while(!seats.matches("[0-9]+")){
+			System.out.print("Enter the number of Seats: ");
+			seats = input.nextLine();
+			if(!seats.matches("[0-9]+")){
+				System.out.println("Invalid input, please enter a Number");
+			}
+
+		}
+
+		System.out.println("------------------------------------------------------------------");
+
+		System.out.println("Make: " + make);
+		System.out.println("Model: " + model);		
+		System.out.println("Age: " + age);
+		System.out.println("Number of Seats: " + seats);
+
+		try{
+			id = esql.getRepository().addPlane(make, model, Integer.parseInt(age), Integer.parseInt(seats));
+		}
 		catch(SQLException e){
-			System.out.println("ERR in Getting Pilot ID");
+			System.out.println("Error adding the Plane, please make sure the number of Seats is below 500. Please Try again");
 			System.out.println("Err: " + e);
 			System.out.println("------------------------------------------------------------------");
 			System.out.println();
 			return;
-		}
+		}		
+		esql.audit("AddPlane", "Plane", id, "make=" + make + ", model=" + model + ", age=" + age + ", seats=" + seats);
+		System.out.println("Plane ID: " + id);
+
+		System.out.println("------------------------------------------------------------------");
+		System.out.println();
+
+	}
+
+	public static void AddPilot(DBproject esql) {//2
+		Integer id;
+		String fullName = "1";
+		String nationality = "1";
+		Scanner input = new Scanner(System.in);
 
 		System.out.println();
 		while(fullName.matches(".*\\d+.*")){
@@ -430,22 +1300,21 @@ public class DBproject{
 		
 		System.out.println("------------------------------------------------------------------");
 
-		System.out.println("Pilot ID: " + id);
 		System.out.println("Full Name: " + fullName);
 		System.out.println("Nationality: " + nationality);
 
-		query = "INSERT INTO Pilot (id, fullname, nationality) VALUES (" + id + ", \'" + fullName + "\', \'" + nationality + "\');";
-
 		try{
-			esql.executeUpdate(query);
+			id = esql.getRepository().addPilot(fullName, nationality);
 		}
 		catch(SQLException e){
-			System.out.println("Error, Pilot with this ID already Exists! Please try again.");
+			System.out.println("Error adding the Pilot! Please try again.");
 			System.out.println("Err: " + e);
 			System.out.println("------------------------------------------------------------------");
 			System.out.println();
 			return;
 		}		
+		esql.audit("AddPilot", "Pilot", id, "fullname=" + fullName + ", nationality=" + nationality);
+		System.out.println("Pilot ID: " + id);
 		System.out.println("------------------------------------------------------------------");
 		System.out.println();
 
@@ -465,38 +1334,16 @@ public class DBproject{
 		String departure_airport = "1";
 		LocalDateTime sched_arrive = null;
 		LocalDateTime sched_depart = null;
-		String query;
-		String dDate;
-		String aDate;
 		String sdDate;
 		String saDate;
 		String PilotID = "a";
 		String PlaneID = "a";
 		Boolean isValid = false;
-		List<List<String>> res;		
 
 		DateTimeFormatter ft = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm");
 		String tempDate;
 
-		query = "SELECT MAX(fnum) FROM Flight;";
 		System.out.println();
-		try{
-			res = esql.executeQueryAndReturnResult(query);
-			for (List<String> l1 : res) {
-			   for (String s : l1) {
-				flightNum = Integer.parseInt(s);
-			   }
-			} 
-			flightNum += 1;
-		}
-		catch(SQLException e){
-			System.out.println("ERR in Getting Flight number");
-			System.out.println("Err: " + e);
-			System.out.println("------------------------------------------------------------------");
-			System.out.println();
-		}
-
-
 		while(!cost.matches("[0-9]+")){
 			System.out.print("Enter Cost: ");
 			cost = input.nextLine();
@@ -558,7 +1405,6 @@ public class DBproject{
 				isValid = false;
 			}
 		}
-		dDate = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm").format(actual_departure_date);
 		isValid = false;
 		while(!isValid){
 			isValid = true;
@@ -573,7 +1419,6 @@ public class DBproject{
 			}
 		}
 		isValid = false;
-		aDate = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm").format(actual_arrival_date);
 		while(arrival_airport.matches(".*\\d+.*")){
 			System.out.print("Enter the Airport of Arrival: ");
 			arrival_airport = input.nextLine();
@@ -603,158 +1448,601 @@ public class DBproject{
 			}
 		}
 
+
+		long window_start = ScheduleConflictIndex.windowStart(actual_departure_date.toLocalDate());
+		long window_end = ScheduleConflictIndex.windowEnd(actual_arrival_date.toLocalDate());
+		try{
+			ScheduleConflictIndex conflicts = esql.getConflictIndex();
+			List<Integer> pilotBusy = conflicts.pilotConflicts(Integer.parseInt(PilotID), window_start, window_end);
+			List<Integer> planeBusy = conflicts.planeConflicts(Integer.parseInt(PlaneID), window_start, window_end);
+			if(!pilotBusy.isEmpty() || !planeBusy.isEmpty()){
+				System.out.println();
+				if(!pilotBusy.isEmpty()){
+					System.out.println("Pilot " + PilotID + " is already flying during this window on flight(s) " + pilotBusy);
+				}
+				if(!planeBusy.isEmpty()){
+					System.out.println("Plane " + PlaneID + " is already flying during this window on flight(s) " + planeBusy);
+				}
+				System.out.print("Schedule the flight anyway? (y/n)");
+				if(!input.nextLine().equals("y")){
+					System.out.println("Returning to main menu");
+					System.out.println();
+					return;
+				}
+			}
+		}
+		catch(SQLException e){
+			System.out.println("ERR in Checking for Scheduling Conflicts");
+			System.out.println("Err: " + e);
+		}
+		
+		System.out.println();
+
+		System.out.println("------------------------------------------------------------------");
+	
+		System.out.println("Adding Flight");
+		System.out.println("Cost: " + cost);
+		System.out.println("Number of Seats Sold: " + num_sold);
+		System.out.println("Number of Stops: " + num_stops);
+		System.out.println("Actual Departure Date: " + actual_departure_date.toString()); 
+		System.out.println("Actual Arrival Date: " + actual_arrival_date.toString());
+		System.out.println("Arrival Airport: " + arrival_airport);
+		System.out.println("Departure Airpot: " + departure_airport);	
+		System.out.println("PilotID: " + PilotID); 
+		System.out.println("PlaneID: " + PlaneID);
+		System.out.println("Scheduled Departure Date: " + sdDate); 
+		System.out.println("Scheduled Arrival Date: " + saDate);
+
+		try{
+			flightNum = esql.getRepository().addFlight(Integer.parseInt(cost), Integer.parseInt(num_sold), Integer.parseInt(num_stops),
+				actual_departure_date, actual_arrival_date, arrival_airport, departure_airport,
+				Integer.parseInt(PilotID), Integer.parseInt(PlaneID), sched_depart, sched_arrive);
+		}
+		catch(SQLException e){
+			System.out.println("Error in adding the Flight, please make sure PilotID and PlaneID exist. Nothing was added, please try again.");
+			System.out.println("Err: " + e);
+			System.out.println("------------------------------------------------------------------");
+			System.out.println();
+			return;
+		}
+		esql.operationFlight(flightNum);
+		esql.audit("AddFlight", "Flight", flightNum, "from=" + departure_airport.trim() + ", to=" + arrival_airport.trim() + ", pilot=" + PilotID
+			+ ", plane=" + PlaneID + ", scheduled=" + sdDate + ", cost=" + cost);
+		if(esql._conflicts != null){
+			esql._conflicts.add(flightNum, Integer.parseInt(PilotID), Integer.parseInt(PlaneID), window_start, window_end);
+		}
+		DepartureBoard board = esql._board;
+		if(board != null){
+			try{
+				board.addFlight(flightNum, departure_airport.trim(), arrival_airport.trim(),
+					esql.getRepository().seats(flightNum, sched_depart.toLocalDate()), sched_depart.toLocalDate());
+			}catch(SQLException e){
+				esql._board = null;
+			}
+		}
+		DelayReport delays = esql._delays;
+		if(delays != null){
+			delays.add(departure_airport.trim(), arrival_airport.trim(), Integer.parseInt(PlaneID), Integer.parseInt(PilotID),
+				(int)ChronoUnit.DAYS.between(sched_depart.toLocalDate(), actual_departure_date.toLocalDate()),
+				(int)ChronoUnit.DAYS.between(sched_arrive.toLocalDate(), actual_arrival_date.toLocalDate()));
+		}
+		Workload workload = esql._workload;
+		if(workload != null){
+			workload.flight(Integer.parseInt(PilotID), Integer.parseInt(PlaneID),
+				(int)ChronoUnit.DAYS.between(actual_departure_date.toLocalDate(), actual_arrival_date.toLocalDate()));
+		}
+
+		System.out.println("Flight Number: " + flightNum);
+		System.out.println("Added to Flight, Flight Info and Schedule");
+		System.out.println("------------------------------------------------------------------");
+		System.out.println();
+}
+
+	public static void AddTechnician(DBproject esql) {//4
+
+		Integer id;
+		String fullName = "1";
+		Scanner input = new Scanner(System.in);
+
+		System.out.println();
+		while(fullName.matches(".*\\d+.*")){
+			System.out.print("Enter Full Name of the Technician: ");
+			fullName = input.nextLine();
+			if(fullName.matches(".*\\d+.*")){
+				System.out.println("Invalid input, please enter a String without numbers");
+			}
+		}
+
+		System.out.println();
+		System.out.println("------------------------------------------------------------------");
+
+		System.out.println("Full Name: " + fullName);
+
+		try{
+			id = esql.getRepository().addTechnician(fullName);
+		}
+		catch(SQLException e){
+			System.out.println("Error adding the Technician! Please try again.");
+			System.out.println("Err: " + e);
+			System.out.println("------------------------------------------------------------------");
+			System.out.println();
+			return;
+		}		
+		esql.audit("AddTechnician", "Technician", id, "full_name=" + fullName);
+		System.out.println("Technician ID: " + id);
+
+		System.out.println("------------------------------------------------------------------");
+		System.out.println();
+	}
+
+	/*
+	 * Returns the seats of the flight on the departure day in date[0].  If the
+	 * flight is not scheduled that day the user may pick one of its scheduled
+	 * days instead, which is left in date[0]; -1 means the user gave up.
+	 */
+	static int scheduledSeats(DBproject esql, Scanner input, int flightNum, LocalDate[] date) throws SQLException {
+		int numSeats = esql.getRepository().seats(flightNum, date[0]);
+		while(numSeats == -1){
+			System.out.println("Flight does not Exist, Please Try Again");
+			System.out.println("Here is a list of dates with the chosen Flight ID, Select a number of schdule for that flight (0 to return to main menu).");
+			List<LocalDate> dates = esql.getRepository().departures(flightNum);
+			for (int i = 0; i < dates.size(); i++) {
+				System.out.println(Integer.toString(i + 1) + ": " + dates.get(i));
+			}
+			int pos;
+			try{
+				pos = Integer.parseInt(input.nextLine()) - 1;
+			}
+			catch(NumberFormatException e){
+				pos = -1;
+			}
+			if(pos < 0 || pos >= dates.size()){
+				System.out.println("Goodbye");
+				System.out.println("------------------------------------------------------------------");
+				System.out.println();
+				return -1;
+			}
+			date[0] = dates.get(pos);
+			numSeats = esql.getRepository().seats(flightNum, date[0]);
+		}
+		return numSeats;
+	}
+
+	public static void BookFlight(DBproject esql) {//5
+		// Given a customer and a flight that he/she wants to book, add a reservation to the DB
 		
+		Scanner input = new Scanner(System.in);
+		String flightNum = "a";
+		String customerID = "a";
+		String tempDate;
+		LocalDate[] date = new LocalDate[1];
+		DateTimeFormatter ft = DateTimeFormatter.ofPattern("yyyy-MM-dd");
+		Integer numSeats = -1;
+		Integer currRNum = -1;
+		Character status = 'R';
+		Boolean isValid = false;
+
+		System.out.println();
+		while(!flightNum.matches("[0-9]+")){
+			System.out.print("Enter Flight Number: ");
+			flightNum = input.nextLine();
+			if(!flightNum.matches("[0-9]+")){
+				System.out.println("Invalid input, please enter a Number");
+			}
+		}
+		esql.operationFlight(Integer.parseInt(flightNum));
+		while(!(isValid)){
+			isValid = true;
+			System.out.print("Enter Date (yyyy-MM-dd): ");
+			tempDate = input.nextLine();
+			try{
+				date[0] = LocalDate.parse(tempDate, ft);
+			}
+			catch(DateTimeException e){
+				System.out.println("Not a Valid Date, Pleased enter Date in the format yyyy-MM-dd");
+				isValid = false;
+			}
+			
+		}
+		while(!customerID.matches("[0-9]+")){
+			System.out.print("Enter Customer ID (or ? to search): ");
+			customerID = input.nextLine(); 
+			if(customerID.equals("?")){
+				System.out.print("Enter a name or phone prefix: ");
+				printCustomerMatches(esql, input.nextLine());
+			}
+			else if(!customerID.matches("[0-9]+")){
+				System.out.println("Invalid input, please enter a Number");
+			}
+		}		
+
+		System.out.println();
+		System.out.println("------------------------------------------------------------------");
+
+		System.out.println("Flight Number: " + flightNum);
+		System.out.println("Scheduled Date of Departure: " + date[0]);
+		System.out.println("Customer ID: " + customerID);
+
+		try{
+			numSeats = scheduledSeats(esql, input, Integer.parseInt(flightNum), date);
+		}
+		catch(SQLException e){
+			System.out.println("Error, Please make sure that the Flight exists and is properly scheduled! Please try again");
+			System.out.println("Err: " + e);
+			System.out.println("------------------------------------------------------------------");
+			System.out.println();
+			return;
+		}
+		if(numSeats == -1){
+			return;
+		}
+	
+		BookingGate.Ticket ticket;
+		try{
+			ticket = esql.getBookingGate().book(Integer.parseInt(customerID), Integer.parseInt(flightNum), date[0], false);
+			if(ticket.status == BookingGate.FULL){
+				System.out.print("The Flight is full, would you like to be waitlisted? (y/n)");
+				String temp = input.nextLine();
+				if(temp.equals("n")){
+					System.out.println("Returning to main menu");
+					System.out.println();
+					return;
+				}
+				System.out.println("Placing on the waitlist");
+				ticket = esql.getBookingGate().book(Integer.parseInt(customerID), Integer.parseInt(flightNum), date[0], true);
+			}
+		}
+		catch(SQLException e){
+			System.out.println("Error Reserving a Seat, Please make sure CustomerID and FlightNumber are valid!");
+			System.out.println("Err: " + e);
+			System.out.println("------------------------------------------------------------------");
+			System.out.println();
+			return;
+		}
+		if(ticket.status == BookingGate.BUSY){
+			System.out.println("The system is busy right now, please try again later");
+			System.out.println("------------------------------------------------------------------");
+			System.out.println();
+			return;
+		}
+		if(ticket.status == BookingGate.NOT_SCHEDULED){
+			System.out.println("Error, Please make sure that the Flight exists and is properly scheduled! Please try again");
+			System.out.println("------------------------------------------------------------------");
+			System.out.println();
+			return;
+		}
+		status = ticket.status;
+		currRNum = ticket.rnum;
+		esql.audit("BookFlight", "Reservation", currRNum, "cid=" + customerID + ", fid=" + flightNum + ", date=" + date[0] + ", status=" + status);
+		if(status == 'R' && esql._board != null){
+			esql._board.booked(Integer.parseInt(flightNum), 1);
+		}
+		esql.getItinerary().forget(Integer.parseInt(customerID));
+		System.out.println("Done: Registered for flight " + flightNum + " with status " + status);
+		if(status == 'R'){
+			chooseSeat(esql, input, Integer.parseInt(flightNum), numSeats, currRNum);
+		}
+		System.out.println("------------------------------------------------------------------");
+		System.out.println();
+	}
+
+	static void chooseSeat(DBproject esql, Scanner input, int flightNum, int numSeats, int rnum) {
+		SeatMap.FlightSeats seats;
+		try{
+			seats = esql.shardFor(flightNum).getSeatMap().get(flightNum, numSeats);
+		}
+		catch(SQLException e){
+			System.out.println("ERR in Loading the Seat Map, no seat was assigned");
+			System.out.println("Err: " + e);
+			return;
+		}
+		int seat = -1;
+		while(seat == -1){
+			System.out.print("Seat preference (w = window, a = aisle, a seat such as 12C, or Enter for any): ");
+			String choice = input.nextLine().trim();
+			if(choice.equalsIgnoreCase("w")){
+				seat = seats.claimFirstFree(SeatMap.WINDOW);
+				if(seat == -1) System.out.println("No window seats are left");
+			}
+			else if(choice.equalsIgnoreCase("a")){
+				seat = seats.claimFirstFree(SeatMap.AISLE);
+				if(seat == -1) System.out.println("No aisle seats are left");
+			}
+			else if(choice.isEmpty()){
+				seat = seats.claimFirstFree(SeatMap.ANY);
+				if(seat == -1){
+					System.out.println("Every seat already has an assignment, no seat was assigned");
+					return;
+				}
+			}
+			else{
+				int wanted = SeatMap.parse(choice);
+				if(wanted == -1 || wanted >= seats.capacity()){
+					System.out.println("Invalid input, please enter a seat such as 12C");
+				}
+				else if(!seats.claim(wanted)){
+					System.out.println("Seat " + SeatMap.label(wanted) + " is already taken");
+				}
+				else{
+					seat = wanted;
+				}
+			}
+		}
+		esql.shardFor(flightNum).getSeatMap().assigned(flightNum, seat, rnum);
+		System.out.println("Assigned seat " + SeatMap.label(seat));
+	}
+
+	public static void ListNumberOfAvailableSeats(DBproject esql) {//6
+		// For flight number and date, find the number of availalbe seats (i.e. total plane capacity minus booked seats )
+		Scanner input = new Scanner(System.in);
+		String flightNum = "a";
+		String tempDate;
+		LocalDate[] date = new LocalDate[1];
+		DateTimeFormatter ft = DateTimeFormatter.ofPattern("yyyy-MM-dd");
+		Integer numSeats = -1;
+		Integer numReserve = -1;
+		Boolean isValid = false;
+
+		System.out.println();
+		while(!flightNum.matches("[0-9]+")){
+			System.out.print("Enter Flight Number: ");
+			flightNum = input.nextLine();
+			if(!flightNum.matches("[0-9]+")){
+				System.out.println("Invalid input, please enter a Number");
+			}
+		}
+		esql.operationFlight(Integer.parseInt(flightNum));
+		while(!(isValid)){
+			isValid = true;
+			System.out.print("Enter Scheduled Date of Departure: (yyyy-MM-dd): ");
+			tempDate = input.nextLine();
+			try{
+				date[0] = LocalDate.parse(tempDate, ft);
+			}
+			catch(DateTimeException e){
+				System.out.println("Not a Valid Date, Pleased enter Date in the format yyyy-MM-dd");
+				isValid = false;
+			}
+		}
 		System.out.println();
-
 		System.out.println("------------------------------------------------------------------");
-	
-		System.out.println("Adding to Flight");
+
 		System.out.println("Flight Number: " + flightNum);
-		System.out.println("Cost: " + cost);
-		System.out.println("Number of Seats Sold: " + num_sold);
-		System.out.println("Number of Stops: " + num_stops);
-		System.out.println("Actual Departure Date: " + actual_departure_date.toString()); 
-		System.out.println("Actual Arrival Date: " + actual_arrival_date.toString());
-		System.out.println("Arrival Airport: " + arrival_airport);
-		System.out.println("Departure Airpot: " + departure_airport);	
+		System.out.println("Date: " + date[0].toString());
 
-		query = "INSERT INTO Flight (fnum, cost, num_sold, num_stops, actual_departure_date, actual_arrival_date, arrival_airport, departure_airport) VALUES (" + flightNum + ", " + cost + ", " + num_sold + ", " + num_stops + ", \'" + dDate + "\', \'" + aDate + "\', \'" + arrival_airport + "\', \'" + departure_airport + "\');";
 		try{
-			esql.executeUpdate(query);
+			numSeats = scheduledSeats(esql, input, Integer.parseInt(flightNum), date);
 		}
 		catch(SQLException e){
-			System.out.println("Flight Already Exists! Please try again.");
+			System.out.println("ERR in Getting the Seats from the Flight. Please make sure the plane is properly scheduled. Please Try Again.");
 			System.out.println("Err: " + e);
 			System.out.println("------------------------------------------------------------------");
 			System.out.println();
-
 			return;
 		}
-
-		System.out.println();
-		System.out.println("------------------------------------------------------------------");
-		System.out.println("------------------------------------------------------------------");
-
-		System.out.println("Adding to Flight Info");
-		System.out.println("ID: " + flightNum);
-		System.out.println("Flight Number: " + flightNum);
-		System.out.println("PilotID: " + PilotID); 
-		System.out.println("PlaneID: " + PlaneID);
-
-		query = "INSERT INTO FlightInfo (fiid, flight_id, pilot_id, plane_id) VALUES (" + flightNum + ", " + flightNum + ", " + PilotID + ", " + PlaneID + ");";
+		if(numSeats == -1){
+			return;
+		}
 
 		try{
-			esql.executeUpdate(query);
+			numReserve = esql.getRepository().countReservations(Integer.parseInt(flightNum), "RC");
 		}
 		catch(SQLException e){
-			System.out.println("Error in adding Flight Information, please make sure PilotID, PlaneID, and Flight Number exist and the Flight is not already schedule.");
+			System.out.println("ERR in Getting the number of Reservations");
 			System.out.println("Err: " + e);
 			System.out.println("------------------------------------------------------------------");
 			System.out.println();
 			return;
 		}
 
+		System.out.print("Number of Remaining Seats: ");
+		System.out.println(numSeats-numReserve);
+
 		System.out.println("------------------------------------------------------------------");
-		System.out.println("------------------------------------------------------------------");
+		System.out.println();
+		
 
-		System.out.println("Adding to Schedule");
-		System.out.println("ID: " + flightNum);
-		System.out.println("Flight Number: " + flightNum);
-		System.out.println("Scheduled Departure Date: " + sdDate); 
-		System.out.println("Scheduled Arrival Date: " + saDate);
+	}
+
+	public static void ListsTotalNumberOfRepairsPerPlane(DBproject esql) {//7
+		// Count number of repairs per planes and list them in descending order
+		List<List<String>> res;
+		System.out.println();
+		System.out.print("Number of Repairs per Plane: ");
+		System.out.println();
+
+		try{
+			System.out.println("|Plane ID                  Number of Repairs           Model");
+			res = esql.getRepository().repairsPerPlane();
+			System.out.println("--------------------------------------------------------------------------------------------------------------");
+
+			for (List<String> l1 : res) {
+		          System.out.print("|");
+			  for (String s : l1) {
+			      s = s + "                                    ";
+			      s = s.substring(0, 26);
+			      System.out.print(s); 			   
+			   }
+  		            System.out.println();
+			    System.out.println("--------------------------------------------------------------------------------------------------------------");
+	              
+			} 
+       		}
+       		catch(SQLException e){
+		   	System.err.println(e.getMessage());
+       		}	
+		System.out.println();
+	}
+
+	public static void ListTotalNumberOfRepairsPerYear(DBproject esql) {//8
+		// Count repairs per year and list them in ascending order
+		List<List<String>> res;
+		System.out.println();
+		System.out.println("Number of Repairs per Year: ");
+		System.out.println();
+		try{
+			System.out.println("|Year             Number of Repairs           ");
+			res = esql.getRepository().repairsPerYear();
+			System.out.println("----------------------------------------------------------");
+
+			for (List<String> l1 : res) {
+		          System.out.print("|");
+			  for (String s : l1) {
+			      s = s + "                                    ";
+			      s = s.substring(0, 17);
+			      System.out.print(s); 			   
+			   }
+  		            System.out.println();
+			    System.out.println("----------------------------------------------------------");    
+			} 
+       		}
+       		catch(SQLException e){
+		   	System.err.println(e.getMessage());
+       		}	
+		System.out.println();
+	}
+	
+	public static void FindPassengersCountWithStatus(DBproject esql) {//9
+		// Find how many passengers there are with a status (i.e. W,C,R) and list that number.
+
+		Scanner input = new Scanner(System.in);
+		String flightNum = "a";
+		String tempDate;
+		Boolean isValid = false;	
+
+		LocalDate[] date = new LocalDate[1];
+		DateTimeFormatter ft = DateTimeFormatter.ofPattern("yyyy-MM-dd");
+		Integer numSeats = -1;
+		Integer numReserve = 0;
+		Integer numWaitlist = 0;
+		Integer Completed = 0;
+		System.out.println();
+		while(!flightNum.matches("[0-9]+")){
+			System.out.print("Enter Flight Number: ");
+			flightNum = input.nextLine();
+			if(!flightNum.matches("[0-9]+")){
+				System.out.println("Invalid input, please enter a Number");
+			}
+		}
+		esql.operationFlight(Integer.parseInt(flightNum));
+		while(!(isValid)){
+			isValid = true;
+			System.out.print("Enter Date (yyyy-MM-dd): ");
+			tempDate = input.nextLine();
+			try{
+				date[0] = LocalDate.parse(tempDate, ft);
+			}
+			catch(DateTimeException e){
+				System.out.println("Not a Valid Date, Pleased enter Date in the format yyyy-MM-dd");
+				isValid = false;
+			}
+			
+		}
 
-		query = "INSERT INTO Schedule (id, flightNum, departure_time, arrival_time) VALUES (" + flightNum + ", " + flightNum + ", \'" + sdDate + "\', \'" + saDate + "\');";
+		System.out.println();	
+		System.out.println("------------------------------------------------------------------");
 
+		System.out.println("Flight Number: " + flightNum);
+		System.out.println("Scheduled Date of Departure: " + date[0]);
 
 		try{
-			esql.executeUpdate(query);
+			numSeats = scheduledSeats(esql, input, Integer.parseInt(flightNum), date);
+			if(numSeats == -1){
+				return;
+			}
+			FlightRepository repository = esql.getRepository();
+			numReserve = repository.countReservations(Integer.parseInt(flightNum), "R");
+			numWaitlist = repository.countReservations(Integer.parseInt(flightNum), "W");
+			Completed = repository.countReservations(Integer.parseInt(flightNum), "C");
 		}
 		catch(SQLException e){
-			System.out.println("Flight has already been scheduled! Please try again.");
+			System.out.println("Err in getting the number of passengers for the flight. Please make sure that the flight exists and is properly scheduled. Please try again.");
 			System.out.println("Err: " + e);
 			System.out.println("------------------------------------------------------------------");
 			System.out.println();
 			return;
 		}
 
+		System.out.print("Number of Reserved Seats: ");
+		System.out.println(numReserve);	
+		System.out.print("Number of Waitlisted Seats: ");
+		System.out.println(numWaitlist);	
+		System.out.print("Number of Completed Seats: ");
+		System.out.println(Completed);	
+		
 		System.out.println("------------------------------------------------------------------");
 		System.out.println();
-}
-
-	public static void AddTechnician(DBproject esql) {//4
-
-		Integer id = -1;
-		String fullName = "1";
-		String query;
-		Scanner input = new Scanner(System.in);
-		List<List<String>> res;
+	}
 
-		query = "SELECT MAX(id) FROM Technician;";
+	public static void FindSchedulingConflicts(DBproject esql) {//10
+		// Audit the whole schedule for pilots or planes assigned to overlapping flights
+		List<int[]> conflicts;
+		System.out.println();
 		try{
-			res = esql.executeQueryAndReturnResult(query);
-			for (List<String> l1 : res) {
-			   for (String s : l1) {
-				id = Integer.parseInt(s);
-			   }
-			} 
-			id += 1;
+			conflicts = esql.getConflictIndex().findAllConflicts();
 		}
 		catch(SQLException e){
-			System.out.println("ERR in Getting Technician ID");
+			System.out.println("ERR in Loading the Flight Schedule");
 			System.out.println("Err: " + e);
 			System.out.println("------------------------------------------------------------------");
 			System.out.println();
-
+			return;
 		}
 
-		System.out.println();
-		while(fullName.matches(".*\\d+.*")){
-			System.out.print("Enter Full Name of the Technician: ");
-			fullName = input.nextLine();
-			if(fullName.matches(".*\\d+.*")){
-				System.out.println("Invalid input, please enter a String without numbers");
-			}
+		System.out.println("|Resource      ID            Flight        Overlaps Flight");
+		System.out.println("----------------------------------------------------------");
+		for (int[] c : conflicts) {
+			String kind = c[0] == ScheduleConflictIndex.PILOT ? "Pilot" : "Plane";
+			System.out.println("|" + pad(kind, 14) + pad(Integer.toString(c[1]), 14) + pad(Integer.toString(c[2]), 14) + c[3]);
 		}
-
+		System.out.println("----------------------------------------------------------");
+		System.out.println("Number of Conflicts: " + conflicts.size());
 		System.out.println();
-		System.out.println("------------------------------------------------------------------");
+	}
 
-		System.out.println("Technician ID: " + id);
-		System.out.println("Full Name: " + fullName);
+	static String pad(String s, int width){
+		s = s + "                                    ";
+		return s.substring(0, width);
+	}
+
+	public static void SearchCustomer(DBproject esql) {//11
+		// Find customers whose name or phone number starts with the given text
+		Scanner input = new Scanner(System.in);
+		System.out.println();
+		System.out.print("Enter a name (first, last or \"first last\") or phone prefix: ");
+		printCustomerMatches(esql, input.nextLine());
+		System.out.println();
+	}
 
-		query = "INSERT INTO Technician (id, full_name) VALUES (" + id + ", \'" + fullName + "\');";
+	static void printCustomerMatches(DBproject esql, String query) {
+		List<List<String>> res;
 		try{
-			esql.executeUpdate(query);
+			res = esql.searchCustomers(query, 10);
 		}
 		catch(SQLException e){
-			System.out.println("Error, Technician with this ID already exists! Please try again.");
+			System.out.println("ERR in Searching for Customers");
 			System.out.println("Err: " + e);
 			System.out.println("------------------------------------------------------------------");
-			System.out.println();
 			return;
-		}		
-
-		System.out.println("------------------------------------------------------------------");
-		System.out.println();
+		}
+		System.out.println("|Customer ID   Name");
+		System.out.println("----------------------------------------------------------");
+		for (List<String> r : res) {
+			System.out.println("|" + pad(r.get(0), 14) + r.get(1));
+		}
+		System.out.println("----------------------------------------------------------");
+		if(res.isEmpty()){
+			System.out.println("No matching customers");
+		}
 	}
 
-	public static void BookFlight(DBproject esql) {//5
-		// Given a customer and a flight that he/she wants to book, add a reservation to the DB
-		
+	public static void ShowSeatMap(DBproject esql) {//12
+		// Print the seats of a flight, X for taken and . for free
 		Scanner input = new Scanner(System.in);
 		String flightNum = "a";
-		String customerID = "a";
-		String tempDate;
-		String sched_dep;
-		LocalDate date = null;
-		String query;
-		DateTimeFormatter ft = DateTimeFormatter.ofPattern("yyyy-MM-dd");
 		List<List<String>> res;
 		Integer numSeats = -1;
-		Integer numReserve = -1;
-		Integer currRNum = -1;
-		Character status = 'R';
-		Boolean isValid = false;
+		SeatMap.FlightSeats seats;
 
 		System.out.println();
 		while(!flightNum.matches("[0-9]+")){
@@ -763,164 +2051,147 @@ public class DBproject{
 			if(!flightNum.matches("[0-9]+")){
 				System.out.println("Invalid input, please enter a Number");
 			}
-		}		
-		while(!(isValid)){
-			isValid = true;
-			System.out.print("Enter Date (yyyy-MM-dd): ");
-			tempDate = input.nextLine();
-			try{
-				date = LocalDate.parse(tempDate, ft);
-			}
-			catch(DateTimeException e){
-				System.out.println("Not a Valid Date, Pleased enter Date in the format yyyy-MM-dd");
-				isValid = false;
-			}
-			
 		}
-		sched_dep = DateTimeFormatter.ofPattern("yyyy-MM-dd").format(date);		
-		while(!customerID.matches("[0-9]+")){
-			System.out.print("Enter Customer ID: ");
-			customerID = input.nextLine(); 
-			if(!customerID.matches("[0-9]+")){
-				System.out.println("Invalid input, please enter a Number");
+		esql.operationFlight(Integer.parseInt(flightNum));
+		String query = "SELECT P.seats FROM Plane P, FlightInfo F WHERE F.flight_id = " + flightNum + " AND F.plane_id = P.id;";
+		try{
+			CatalogSnapshot catalog = esql.getCatalog();
+			if(catalog != null){
+				numSeats = catalog.flightSeats(Integer.parseInt(flightNum));
 			}
-		}		
-
-		System.out.println();
-		System.out.println("------------------------------------------------------------------");
-
-		System.out.println("Flight Number: " + flightNum);
-		System.out.println("Scheduled Date of Departure: " + sched_dep);
-		System.out.println("Customer ID: " + customerID);
-
-		while(numSeats == -1){
-			query = "SELECT P.seats FROM Plane P, Schedule S, FlightInfo F WHERE S.flightNum = " + flightNum + " AND S.departure_time = \'" + sched_dep + "\' AND S.flightNum = F.flight_id AND F.plane_id = P.id;";
-			try{
-				res = esql.executeQueryAndReturnResult(query);
+			if(numSeats == -1){
+				res = esql.shardFor(Integer.parseInt(flightNum)).executeQueryAndReturnResult(query);
 				for (List<String> l1 : res) {
 				   for (String s : l1) {
 					numSeats = Integer.parseInt(s);
 				   }
-				} 
-			}
-			catch(SQLException e){
-				System.out.println("Error, Please make sure that the Flight exists and is properly scheduled! Please try again");
-				System.out.println("Err: " + e);
-				System.out.println("------------------------------------------------------------------");
-				System.out.println();
-				return;
+				}
 			}
 			if(numSeats == -1){
 				System.out.println("Flight does not Exist, Please Try Again");
-				System.out.println("Here is a list of dates with the chosen Flight ID, Select a number of schdule for that flight (0 to return to main menu).");
-				query = "SELECT departure_time FROM Schedule WHERE id =" + flightNum;
-				Integer pos = 1;
-				try{
-					res = esql.executeQueryAndReturnResult(query);
-					for (List<String> l1 : res) {
-					   for (String s : l1) {
-						System.out.println(Integer.toString(pos) + ": " + s); 
-						pos += 1;
-					  }
-					}
-				} 
-				catch(SQLException e){
-					System.out.println("Err: " + e);
-				}
-				pos = Integer.parseInt(input.nextLine());
-				pos -= 1;
-				if(pos < 0 || pos > res.get(0).size()){
-					System.out.println("Goodbye");
-					System.out.println("------------------------------------------------------------------");
-					System.out.println();
-					return;
-
-				}
-				else{
-					sched_dep = res.get(0).get(pos);
-				}
+				System.out.println();
+				return;
 			}
-		}
-	
-//		query = "SELECT COUNT(*) FROM Reservation R, Schedule S WHERE S.flightNum = " + flightNum + " AND " + "S.departure_time = \'" + sched_dep + "\' AND " + "R.fid = " + flightNum + " AND R.status = 'R';";
-		query = "SELECT COUNT(*) FROM Reservation WHERE fid = " + flightNum + " AND status = 'R';";
-		try{
-			res = esql.executeQueryAndReturnResult(query);
-			for (List<String> l1 : res) {
-			   for (String s : l1) {
-				numReserve = Integer.parseInt(s);
-			   }
-			} 
+			seats = esql.shardFor(Integer.parseInt(flightNum)).getSeatMap().get(Integer.parseInt(flightNum), numSeats);
 		}
 		catch(SQLException e){
-			System.out.println("ERR in Getting Number of Reservations");
+			System.out.println("ERR in Loading the Seat Map. Please make sure the flight exists and has a plane assigned.");
 			System.out.println("Err: " + e);
 			System.out.println("------------------------------------------------------------------");
 			System.out.println();
 			return;
 		}
 
-		query = "SELECT MAX(rnum) FROM Reservation;";
-		try{
-			res = esql.executeQueryAndReturnResult(query);
+		System.out.println("------------------------------------------------------------------");
+		System.out.println("      A B C   D E F");
+		for(int row = 0; row * SeatMap.ABREAST < seats.capacity(); row++){
+			StringBuilder line = new StringBuilder(pad(Integer.toString(row + 1), 6));
+			for(int col = 0; col < SeatMap.ABREAST; col++){
+				int seat = row * SeatMap.ABREAST + col;
+				line.append(seat >= seats.capacity() ? ' ' : seats.isTaken(seat) ? 'X' : '.').append(col == 2 ? "   " : " ");
+			}
+			System.out.println(line);
+		}
+		System.out.println("Free Seats: " + seats.free() + " of " + seats.capacity());
+		System.out.println("------------------------------------------------------------------");
+		System.out.println();
+	}
 
-			for (List<String> l1 : res) {
-			   for (String s : l1) {
-				currRNum = Integer.parseInt(s);
-			   }
-			} 
-			currRNum += 1;
+	public static void FleetRevenueReport(DBproject esql) {//13
+		// Revenue (cost * seats sold) and load factor (seats sold / plane seats) per route, airport and fleet
+		FleetReport report;
+		System.out.println();
+		try{
+			report = esql.getShards() == null ? FleetReport.run(esql, esql.getReportLane()) : FleetReport.run(esql.getShards());
 		}
 		catch(SQLException e){
-			System.out.println("ERR in Getting the Number of Reservations");
+			System.out.println("ERR in Computing the Fleet Report");
 			System.out.println("Err: " + e);
 			System.out.println("------------------------------------------------------------------");
 			System.out.println();
+			return;
+		}
+		long[] t = report.totals();
+		System.out.println("Fleet Totals");
+		System.out.println("----------------------------------------------------------");
+		System.out.println("Flights: " + t[FleetReport.FLIGHTS]);
+		System.out.println("Revenue: " + t[FleetReport.REVENUE]);
+		System.out.println("Seats Sold: " + t[FleetReport.SOLD]);
+		System.out.println("Load Factor: " + String.format("%.1f%%", FleetReport.loadFactor(t)));
+		System.out.println();
+		printRevenueTable("|Route            Flights          Revenue          Load Factor", FleetReport.top(report.routes, 20));
+		printRevenueTable("|Airport          Flights          Revenue          Load Factor", FleetReport.top(report.airports(), 20));
+		System.out.println("Computed over " + report.slices + " key ranges on " + esql.getReportLane().size() + " connections in " + report.elapsedNanos / 1000000 + " ms");
+		System.out.println();
+	}
 
+	static void printRevenueTable(String header, List<java.util.Map.Entry<String, long[]>> rows) {
+		System.out.println(header);
+		System.out.println("--------------------------------------------------------------------------");
+		for (java.util.Map.Entry<String, long[]> e : rows) {
+			long[] a = e.getValue();
+			System.out.println("|" + pad(e.getKey(), 17) + pad(Long.toString(a[FleetReport.FLIGHTS]), 17) + pad(Long.toString(a[FleetReport.REVENUE]), 17) + String.format("%.1f%%", FleetReport.loadFactor(a)));
 		}
-		if((numSeats-numReserve) <= 0){
-			System.out.print("The Flight is full, would you like to be waitlisted? (y/n)");
-			String temp = input.nextLine();
-			if(temp.equals("n")){
-				System.out.println("Returning to main menu");
+		System.out.println("--------------------------------------------------------------------------");
+		System.out.println();
+	}
+
+	public static void ShowItinerary(DBproject esql) {//14
+		// List the reservations of a customer by departure, a page at a time
+		Scanner input = new Scanner(System.in);
+		String customerID = "a";
+		System.out.println();
+		while(!customerID.matches("[0-9]+")){
+			System.out.print("Enter Customer ID (or ? to search): ");
+			customerID = input.nextLine();
+			if(customerID.equals("?")){
+				System.out.print("Enter a name or phone prefix: ");
+				printCustomerMatches(esql, input.nextLine());
+			}
+			else if(!customerID.matches("[0-9]+")){
+				System.out.println("Invalid input, please enter a Number");
+			}
+		}
+		Itinerary itinerary = esql.getItinerary();
+		List<String> last = null;
+		int shown = 0;
+		System.out.println("|Departure   Arrival     Flight   From   To     Reservation  Status");
+		System.out.println("------------------------------------------------------------------");
+		while(true){
+			List<List<String>> page;
+			try{
+				page = itinerary.page(Integer.parseInt(customerID), last);
+			}
+			catch(SQLException e){
+				System.out.println("ERR in Loading the Itinerary");
+				System.out.println("Err: " + e);
+				System.out.println("------------------------------------------------------------------");
 				System.out.println();
 				return;
 			}
-			else{
-				System.out.println("Placing on the waitlist");
-				status = 'W';
+			for (List<String> r : page) {
+				System.out.println("|" + pad(r.get(Itinerary.DEPARTURE), 12) + pad(r.get(Itinerary.ARRIVAL), 12) + pad(r.get(Itinerary.FLIGHT), 9)
+					+ pad(r.get(Itinerary.FROM), 7) + pad(r.get(Itinerary.TO), 7) + pad(r.get(Itinerary.RESERVATION), 13) + r.get(Itinerary.STATUS));
 			}
+			shown += page.size();
+			if(page.size() < itinerary.pageSize()) break;
+			last = page.get(page.size() - 1);
+			System.out.print("Enter for more, q to stop: ");
+			if(input.nextLine().trim().equalsIgnoreCase("q")) break;
 		}
-
-		query = "INSERT INTO Reservation (rnum, cid, fid, status) VALUES (" + currRNum + ", " + customerID + ", " + flightNum + ", \'" + status + "\');";
-		try{
-			esql.executeUpdate(query);
-		}
-		catch(SQLException e){
-			System.out.println("Error Reserving a Seat, Please make sure CustomerID and FlightNumber are valid!");
-			System.out.println("Err: " + e);
-			System.out.println("------------------------------------------------------------------");
-			System.out.println();
-			return;
-		}		
-		System.out.println("Done: Registered for flight " + flightNum + " with status " + status);
 		System.out.println("------------------------------------------------------------------");
+		if(shown == 0){
+			System.out.println("No reservations for customer " + customerID);
+		}
 		System.out.println();
 	}
 
-	public static void ListNumberOfAvailableSeats(DBproject esql) {//6
-		// For flight number and date, find the number of availalbe seats (i.e. total plane capacity minus booked seats )
+	public static void BookGroup(DBproject esql) {//15
+		// Given a flight and a list of customers, reserve seats for all of them at once
 		Scanner input = new Scanner(System.in);
 		String flightNum = "a";
-		String tempDate;
-		String sched_dep;
-		LocalDate date = null;
-		String query;
-		DateTimeFormatter ft = DateTimeFormatter.ofPattern("yyyy-MM-dd");
-		List<List<String>> res;
-		Integer numSeats = -1;
-		Integer numReserve = -1;
-		Boolean isValid = false;
+		LocalDate[] date = new LocalDate[1];
+		int[] customers = null;
 
 		System.out.println();
 		while(!flightNum.matches("[0-9]+")){
@@ -930,336 +2201,266 @@ public class DBproject{
 				System.out.println("Invalid input, please enter a Number");
 			}
 		}
-		while(!(isValid)){
-			isValid = true;
-			System.out.print("Enter Scheduled Date of Departure: (yyyy-MM-dd): ");
-			tempDate = input.nextLine();
+		esql.operationFlight(Integer.parseInt(flightNum));
+		while(date[0] == null){
+			System.out.print("Enter Date (yyyy-MM-dd): ");
 			try{
-				date = LocalDate.parse(tempDate, ft);
+				date[0] = LocalDate.parse(input.nextLine(), DateTimeFormatter.ofPattern("yyyy-MM-dd"));
 			}
 			catch(DateTimeException e){
 				System.out.println("Not a Valid Date, Pleased enter Date in the format yyyy-MM-dd");
-				isValid = false;
 			}
 		}
-		sched_dep = DateTimeFormatter.ofPattern("yyyy-MM-dd").format(date);		
+		while(customers == null){
+			System.out.print("Enter Customer IDs separated by commas or spaces, or the name of a file listing them: ");
+			String line = input.nextLine().trim();
+			try{
+				if(!line.matches("[0-9, ]+")){
+					line = new String(Files.readAllBytes(Paths.get(line)));
+				}
+				String[] ids = line.trim().split("[\\s,]+");
+				customers = new int[ids.length];
+				for(int i = 0; i < ids.length; i++){
+					customers[i] = Integer.parseInt(ids[i]);
+				}
+			}
+			catch(IOException | NumberFormatException e){
+				System.out.println("Invalid input, please enter Customer IDs or a file of them");
+				customers = null;
+			}
+		}
+		System.out.print("If the group does not fit, waitlist the rest? Otherwise nobody is booked (y/n): ");
+		boolean partial = input.nextLine().trim().equalsIgnoreCase("y");
+
 		System.out.println();
 		System.out.println("------------------------------------------------------------------");
-
 		System.out.println("Flight Number: " + flightNum);
-		System.out.println("Date: " + date.toString());
+		System.out.println("Scheduled Date of Departure: " + date[0]);
+		System.out.println("Group Size: " + customers.length);
 
-		query = "SELECT P.seats FROM Plane P, Schedule S, FlightInfo F WHERE S.flightNum = " + flightNum + " AND S.departure_time = \'" + sched_dep + "\' AND S.flightNum = F.flight_id AND F.plane_id = P.id;";
+		char[] statuses = new char[customers.length];
+		int[] rnums;
+		int numSeats;
 		try{
-			res = esql.executeQueryAndReturnResult(query);
-			for (List<String> l1 : res) {
-			   for (String s : l1) {
-				numSeats = Integer.parseInt(s);
-			   }
-			} 
+			numSeats = scheduledSeats(esql, input, Integer.parseInt(flightNum), date);
+			if(numSeats == -1){
+				return;
+			}
+			rnums = esql.getRepository().bookGroup(Integer.parseInt(flightNum), date[0], customers, statuses, partial);
 		}
 		catch(SQLException e){
-			System.out.println("ERR in Getting the Seats from the Flight. Please make sure the plane is properly scheduled. Please Try Again.");
+			System.out.println("Error Reserving Seats, nobody was booked. Please make sure the Customer IDs and Flight are valid!");
 			System.out.println("Err: " + e);
 			System.out.println("------------------------------------------------------------------");
 			System.out.println();
 			return;
 		}
-		while(numSeats == -1){
-			query = "SELECT P.seats FROM Plane P, Schedule S, FlightInfo F WHERE S.flightNum = " + flightNum + " AND S.departure_time = \'" + sched_dep + "\' AND S.flightNum = F.flight_id AND F.plane_id = P.id;";
-			try{
-				res = esql.executeQueryAndReturnResult(query);
-				for (List<String> l1 : res) {
-				   for (String s : l1) {
-					numSeats = Integer.parseInt(s);
-				   }
-				} 
-			}
-			catch(SQLException e){
-				System.out.println("Error, Please make sure that the Flight exists and is properly scheduled! Please try again");
-				System.out.println("Err: " + e);
-				System.out.println("------------------------------------------------------------------");
-				System.out.println();
-				return;
+		if(rnums == null){
+			System.out.println("Not enough seats are left for the whole group, nobody was booked");
+			System.out.println("------------------------------------------------------------------");
+			System.out.println();
+			return;
+		}
+		int reserved = 0;
+		for(int i = 0; i < customers.length; i++){
+			esql.audit("BookGroup", "Reservation", rnums[i], "cid=" + customers[i] + ", fid=" + flightNum + ", date=" + date[0] + ", status=" + statuses[i]);
+			esql.getItinerary().forget(customers[i]);
+			if(statuses[i] == 'R') reserved++;
+		}
+		DepartureBoard board = esql._board;
+		if(board != null && reserved > 0){
+			board.booked(Integer.parseInt(flightNum), reserved);
+		}
+		System.out.println("Done: " + reserved + " reserved and " + (customers.length - reserved) + " waitlisted on flight " + flightNum);
+		if(rnums.length > 0){
+			System.out.println("Reservation Numbers: " + rnums[0] + " to " + rnums[rnums.length - 1]);
+		}
+		if(reserved > 0){
+			System.out.print("Seat the reserved members of the group together? (y/n): ");
+			if(input.nextLine().trim().equalsIgnoreCase("y")){
+				seatGroup(esql, Integer.parseInt(flightNum), numSeats, rnums, statuses);
 			}
-			if(numSeats == -1){
-				System.out.println("Flight does not Exist, Please Try Again");
-				System.out.println("Here is a list of dates with the chosen Flight ID, Select a number of schdule for that flight (0 to return to main menu).");
-				query = "SELECT departure_time FROM Schedule WHERE id =" + flightNum;
-				Integer pos = 1;
-				try{
-					res = esql.executeQueryAndReturnResult(query);
-					for (List<String> l1 : res) {
-					   for (String s : l1) {
-						System.out.println(Integer.toString(pos) + ": " + s); 
-						pos += 1;
-					  }
-					}
-				} 
-				catch(SQLException e){
-					System.out.println("Err: " + e);
-				}
-				pos = Integer.parseInt(input.nextLine());
-				pos -= 1;
-				if(pos < 0 || pos > res.get(0).size()){
-					System.out.println("Goodbye");
-					System.out.println("------------------------------------------------------------------");
-					System.out.println();
-					return;
+		}
+		System.out.println("------------------------------------------------------------------");
+		System.out.println();
+	}
 
-				}
-				else{
-					sched_dep = res.get(0).get(pos);
-				}
+	/*
+	 * Seats the reserved members of a group side by side: runs of up to six
+	 * adjacent seats in one row, shorter runs where no such run is left.
+	 */
+	static void seatGroup(DBproject esql, int flightNum, int numSeats, int[] rnums, char[] statuses) {
+		SeatMap map = esql.shardFor(flightNum).getSeatMap();
+		SeatMap.FlightSeats seats;
+		try{
+			seats = map.get(flightNum, numSeats);
+		}
+		catch(SQLException e){
+			System.out.println("ERR in Loading the Seat Map, no seat was assigned");
+			System.out.println("Err: " + e);
+			return;
+		}
+		List<Integer> reserved = new ArrayList<Integer>();
+		for(int i = 0; i < rnums.length; i++){
+			if(statuses[i] == 'R') reserved.add(rnums[i]);
+		}
+		StringBuilder assigned = new StringBuilder();
+		int done = 0;
+		while(done < reserved.size()){
+			int run = Math.min(SeatMap.ABREAST, reserved.size() - done);
+			int first = seats.claimAdjacent(run);
+			while(first == -1 && run > 1){
+				first = seats.claimAdjacent(--run);
+			}
+			if(first == -1){
+				System.out.println("Every seat already has an assignment, " + (reserved.size() - done) + " of the group have no seat");
+				break;
+			}
+			for(int k = 0; k < run; k++){
+				map.assigned(flightNum, first + k, reserved.get(done + k));
+				assigned.append(assigned.length() == 0 ? "" : " ").append(SeatMap.label(first + k));
 			}
+			done += run;
 		}
+		if(done > 0) System.out.println("Assigned seats " + assigned);
+	}
 
-		query = "SELECT COUNT(*) FROM Reservation WHERE fid = " + flightNum + " AND (status = 'R' OR status = 'C');";
+	public static void OnTimeReport(DBproject esql) {//16
+		// Days between the scheduled and the actual departure and arrival, per route, airport, plane and pilot
+		DelayReport report;
+		System.out.println();
 		try{
-			res = esql.executeQueryAndReturnResult(query);
-			for (List<String> l1 : res) {
-			   for (String s : l1) {
-				numReserve = Integer.parseInt(s);
-			   }
-			} 
+			report = esql.getDelayReport();
 		}
 		catch(SQLException e){
-			System.out.println("ERR in Getting the number of Reservations");
+			System.out.println("ERR in Computing the On-Time Report");
 			System.out.println("Err: " + e);
 			System.out.println("------------------------------------------------------------------");
 			System.out.println();
 			return;
 		}
-
-		System.out.print("Number of Remaining Seats: ");
-		System.out.println(numSeats-numReserve);
-
-		System.out.println("------------------------------------------------------------------");
-		System.out.println();
-		
-
-	}
-
-	public static void ListsTotalNumberOfRepairsPerPlane(DBproject esql) {//7
-		// Count number of repairs per planes and list them in descending order
-		List<List<String>> res;
-		String query;
-		System.out.println();
-		System.out.print("Number of Repairs per Plane: ");
+		DelayReport.Row all = report.total();
+		System.out.println("Delays in days, actual minus scheduled (negative is early)");
+		System.out.println("----------------------------------------------------------");
+		System.out.println("Flights: " + all.flights);
+		System.out.println("Departure Median / 90th Percentile: " + String.format("%.1f / %.1f", all.departureMedian, all.departureP90));
+		System.out.println("Arrival Median / 90th Percentile: " + String.format("%.1f / %.1f", all.arrivalMedian, all.arrivalP90));
 		System.out.println();
-		query = "SELECT R.plane_id, COUNT(*), P.model FROM Repairs R, Plane P WHERE R.plane_id = P.id GROUP BY R.plane_id, P.model ORDER BY COUNT(*) DESC;";
-
-		try{
-			System.out.println("|Plane ID                  Number of Repairs           Model");
-			res = esql.executeQueryAndReturnResult(query);
-			System.out.println("--------------------------------------------------------------------------------------------------------------");
-
-			for (List<String> l1 : res) {
-		          System.out.print("|");
-			  for (String s : l1) {
-			      s = s + "                                    ";
-			      s = s.substring(0, 26);
-			      System.out.print(s); 			   
-			   }
-  		            System.out.println();
-			    System.out.println("--------------------------------------------------------------------------------------------------------------");
-	              
-			} 
-       		}
-       		catch(SQLException e){
-		   	System.err.println(e.getMessage());
-       		}	
+		printDelayTable("|Route        ", report.worst(DelayReport.ROUTE, 10, 1));
+		printDelayTable("|Airport      ", report.worst(DelayReport.AIRPORT, 10, 1));
+		printDelayTable("|Plane        ", report.worst(DelayReport.PLANE, 10, 1));
+		printDelayTable("|Pilot        ", report.worst(DelayReport.PILOT, 10, 1));
+		System.out.println("Computed over " + report.slices + " key ranges in " + report.elapsedNanos / 1000000 + " ms");
 		System.out.println();
 	}
 
-	public static void ListTotalNumberOfRepairsPerYear(DBproject esql) {//8
-		// Count repairs per year and list them in ascending order
-		List<List<String>> res;
-		String query;
-		System.out.println();
-		query = "SELECT EXTRACT(YEAR FROM R.repair_date), COUNT(*) FROM Repairs R GROUP BY EXTRACT(YEAR FROM (R.repair_date)) ORDER BY COUNT(*) ASC;";
-		System.out.println("Number of Repairs per Year: ");
-		System.out.println();
-		try{
-			System.out.println("|Year             Number of Repairs           ");
-			res = esql.executeQueryAndReturnResult(query);
-			System.out.println("----------------------------------------------------------");
-
-			for (List<String> l1 : res) {
-		          System.out.print("|");
-			  for (String s : l1) {
-			      s = s + "                                    ";
-			      s = s.substring(0, 17);
-			      System.out.print(s); 			   
-			   }
-  		            System.out.println();
-			    System.out.println("----------------------------------------------------------");    
-			} 
-       		}
-       		catch(SQLException e){
-		   	System.err.println(e.getMessage());
-       		}	
+	static void printDelayTable(String header, List<DelayReport.Row> rows) {
+		System.out.println(header + "Flights      Dep Median   Dep P90      Arr Median   Arr P90");
+		System.out.println("--------------------------------------------------------------------------");
+		for (DelayReport.Row r : rows) {
+			System.out.println("|" + pad(r.key, 13) + pad(Long.toString(r.flights), 13) + pad(String.format("%.1f", r.departureMedian), 13)
+				+ pad(String.format("%.1f", r.departureP90), 13) + pad(String.format("%.1f", r.arrivalMedian), 13) + String.format("%.1f", r.arrivalP90));
+		}
+		System.out.println("--------------------------------------------------------------------------");
 		System.out.println();
 	}
-	
-	public static void FindPassengersCountWithStatus(DBproject esql) {//9
-		// Find how many passengers there are with a status (i.e. W,C,R) and list that number.
 
+	public static void ShowDepartureBoard(DBproject esql) {//17
+		// The next departures from an airport with the seats left on each, refreshed on demand
 		Scanner input = new Scanner(System.in);
-		String flightNum = "a";
-		String tempDate;
-		String sched_dep;
-//		System.out.println("------------------------------------------------------------------");
-//		System.out.println();
-		Boolean isValid = false;	
-
-		LocalDate date = null;
-		String query;
-		DateTimeFormatter ft = DateTimeFormatter.ofPattern("yyyy-MM-dd");
-		List<List<String>> res;
-		Integer numSeats = -1;
-		Integer numReserve = 0;
-		Integer numWaitlist = 0;
-		Integer Completed = 0;
+		LocalDate from = null;
 		System.out.println();
-		while(!flightNum.matches("[0-9]+")){
-			System.out.print("Enter Flight Number: ");
-			flightNum = input.nextLine();
-			if(!flightNum.matches("[0-9]+")){
-				System.out.println("Invalid input, please enter a Number");
-			}
-		}
-		while(!(isValid)){
-			isValid = true;
-			System.out.print("Enter Date (yyyy-MM-dd): ");
-			tempDate = input.nextLine();
+		System.out.print("Enter Airport Code: ");
+		String airport = input.nextLine().trim();
+		while(from == null){
+			System.out.print("Show departures from date (yyyy-MM-dd, or Enter for today): ");
+			String tempDate = input.nextLine().trim();
 			try{
-				date = LocalDate.parse(tempDate, ft);
+				from = tempDate.isEmpty() ? LocalDate.now() : LocalDate.parse(tempDate, DateTimeFormatter.ofPattern("yyyy-MM-dd"));
 			}
 			catch(DateTimeException e){
 				System.out.println("Not a Valid Date, Pleased enter Date in the format yyyy-MM-dd");
-				isValid = false;
 			}
-			
 		}
-		sched_dep = DateTimeFormatter.ofPattern("yyyy-MM-dd").format(date);
-
-		System.out.println();	
-		System.out.println("------------------------------------------------------------------");
-
-		System.out.println("Flight Number: " + flightNum);
-		System.out.println("Scheduled Date of Departure: " + sched_dep);
-
-		while(numSeats == -1){
-				query = "SELECT P.seats FROM Plane P, Schedule S, FlightInfo F WHERE S.flightNum = " + flightNum + " AND S.departure_time = \'" + sched_dep + "\' AND S.flightNum = F.flight_id AND F.plane_id = P.id;";
-				try{
-					res = esql.executeQueryAndReturnResult(query);
-					for (List<String> l1 : res) {
-					   for (String s : l1) {
-						numSeats = Integer.parseInt(s);
-					   }
-					} 
-				}
-				catch(SQLException e){
-					System.out.println("Error, Please make sure that the Flight exists and is properly scheduled! Please try again");
-					System.out.println("Err: " + e);
-					System.out.println("------------------------------------------------------------------");
-					System.out.println();
-					return;
-				}
-				if(numSeats == -1){
-					System.out.println("Flight does not Exist, Please Try Again");
-					System.out.println("Here is a list of dates with the chosen Flight ID, Select a number of schdule for that flight (0 to return to main menu).");
-					query = "SELECT departure_time FROM Schedule WHERE id =" + flightNum;
-					Integer pos = 1;
-					try{
-						res = esql.executeQueryAndReturnResult(query);
-						for (List<String> l1 : res) {
-						   for (String s : l1) {
-							System.out.println(Integer.toString(pos) + ": " + s); 
-							pos += 1;
-						  }
-						}
-					} 
-					catch(SQLException e){
-						System.out.println("Err: " + e);
-					}
-					pos = Integer.parseInt(input.nextLine());
-					pos -= 1;
-					if(pos < 0 || pos > res.get(0).size()){
-						System.out.println("Goodbye");
-						System.out.println("------------------------------------------------------------------");
-						System.out.println();
-						return;
-
-					}
-					else{
-						sched_dep = res.get(0).get(pos);
-					}
-				}
-			}
-
-		query = "SELECT COUNT(*) FROM Reservation R, Schedule S, FlightInfo F WHERE S.flightNum = " + flightNum + " AND S.departure_time = \'" + sched_dep + "\' AND S.flightNum = F.flight_id AND R.fid = S.flightNum AND R.status = 'R';";
-
+		DepartureBoard board;
 		try{
-			res = esql.executeQueryAndReturnResult(query);
-			for (List<String> l1 : res) {
-			   for (String s : l1) {
-
-				numReserve = Integer.parseInt(s);
-			   }
-			} 
+			board = esql.getDepartureBoard();
 		}
 		catch(SQLException e){
-			System.out.println("Err in getting the number of reservations for the flight. Please make sure that the flight exists and is properly scheduled. Please try again.");
+			System.out.println("ERR in Loading the Departure Board");
 			System.out.println("Err: " + e);
 			System.out.println("------------------------------------------------------------------");
 			System.out.println();
 			return;
 		}
+		long version = -1;
+		while(true){
+			if(board.version(airport) != version){
+				version = board.version(airport);
+				List<DepartureBoard.Departure> next = board.next(airport, from, 10);
+				System.out.println("|Departures from " + airport);
+				System.out.println("|Date         Flight       To           Seats Left");
+				System.out.println("----------------------------------------------------------");
+				for (DepartureBoard.Departure d : next) {
+					int left = d.seatsLeft();
+					System.out.println("|" + pad(d.day.toString(), 13) + pad(Integer.toString(d.flightNum), 13) + pad(d.to, 13) + (left < 0 ? "no plane" : Integer.toString(left)));
+				}
+				System.out.println("----------------------------------------------------------");
+				if(next.isEmpty()){
+					System.out.println("No departures from " + airport + " on or after " + from);
+				}
+			}
+			else{
+				System.out.println("No changes");
+			}
+			System.out.print("Enter to refresh, q to stop: ");
+			if(input.nextLine().trim().equalsIgnoreCase("q")) break;
+		}
+		System.out.println();
+	}
 
-		query = "SELECT COUNT(*) FROM Reservation R, Schedule S, FlightInfo F WHERE S.flightNum = " + flightNum + " AND S.departure_time = \'" + sched_dep + "\' AND S.flightNum = F.flight_id AND R.fid = S.flightNum AND R.status = 'W';";
+	public static void WorkloadReport(DBproject esql) {//18
+		// Flights and block days per pilot, repairs per technician by code, and the busiest pilot and plane pairs
+		Workload workload;
+		System.out.println();
+		long start = System.nanoTime();
 		try{
-			res = esql.executeQueryAndReturnResult(query);
-			for (List<String> l1 : res) {
-			   for (String s : l1) {
-				numWaitlist = Integer.parseInt(s);
-			   }
-			} 
+			workload = esql.getWorkload();
 		}
 		catch(SQLException e){
-			System.out.println("Err in getting the number of waitlist for the flight. Please make sure that the flight exists and is properly scheduled. Please try again.");
+			System.out.println("ERR in Loading the Workload Counters");
 			System.out.println("Err: " + e);
 			System.out.println("------------------------------------------------------------------");
 			System.out.println();
 			return;
 		}
-
-		query = "SELECT COUNT(*) FROM Reservation R, Schedule S, FlightInfo F WHERE S.flightNum = " + flightNum + " AND S.departure_time = \'" + sched_dep + "\' AND S.flightNum = F.flight_id AND R.fid = S.flightNum AND R.status = 'C';";
-		try{
-			res = esql.executeQueryAndReturnResult(query);
-			for (List<String> l1 : res) {
-			   for (String s : l1) {
-				Completed = Integer.parseInt(s);
-			   }
-			} 
+		long loaded = System.nanoTime();
+		System.out.println("|Pilot        Flights      Block Days   Repairs");
+		System.out.println("----------------------------------------------------------");
+		for (Workload.Row r : workload.busiestPilots(10)) {
+			System.out.println("|" + pad(Integer.toString(r.id), 13) + pad(Long.toString(r.counts[Workload.FLIGHTS]), 13)
+				+ pad(Long.toString(r.counts[Workload.BLOCK_DAYS]), 13) + r.counts[Workload.REPAIRS]);
 		}
-		catch(SQLException e){
-			System.out.println("Err in getting the number of completed for the flight. Please make sure that the flight exists and is properly scheduled. Please try again.");
-			System.out.println("Err: " + e);
-			System.out.println("------------------------------------------------------------------");
-			System.out.println();
-			return;
+		System.out.println("----------------------------------------------------------");
+		System.out.println();
+		System.out.println("|Technician   MJ           MN           SV           Total");
+		System.out.println("--------------------------------------------------------------------------");
+		for (Workload.Row r : workload.busiestTechnicians(10)) {
+			System.out.println("|" + pad(Integer.toString(r.id), 13) + pad(Long.toString(r.counts[0]), 13)
+				+ pad(Long.toString(r.counts[1]), 13) + pad(Long.toString(r.counts[2]), 13) + r.total());
 		}
-
-		System.out.print("Number of Reserved Seats: ");
-		System.out.println(numReserve);	
-		System.out.print("Number of Waitlisted Seats: ");
-		System.out.println(numWaitlist);	
-		System.out.print("Number of Completed Seats: ");
-		System.out.println(Completed);	
-		
-		System.out.println("------------------------------------------------------------------");
+		System.out.println("--------------------------------------------------------------------------");
+		System.out.println();
+		System.out.println("|Pilot        Plane        Flights      Repairs");
+		System.out.println("----------------------------------------------------------");
+		for (Workload.Row r : workload.busiestPairs(10)) {
+			System.out.println("|" + pad(Integer.toString(r.id), 13) + pad(Integer.toString(r.plane), 13)
+				+ pad(Long.toString(r.counts[Workload.FLIGHTS]), 13) + r.counts[Workload.PAIR_REPAIRS]);
+		}
+		System.out.println("----------------------------------------------------------");
+		long end = System.nanoTime();
+		if (loaded - start > 1000000) System.out.println("Counters loaded in " + (loaded - start) / 1000000 + " ms");
+		System.out.println("Reported in " + (end - loaded) / 1000 + " us");
 		System.out.println();
 	}
 }
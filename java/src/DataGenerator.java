@@ -0,0 +1,341 @@
+/*
+ * Synthetic Scale Data Generator
+ * ==============================
+ *
+ * Produces the nine tables of the flight database in exactly the column
+ * layout of data/*.csv, so the output can be loaded with the COPY statements
+ * in sql/create.sql or piped straight into COPY ... FROM STDIN.
+ *
+ */
+
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Deterministic, seedable generator for the flight database.
+ *
+ * Every row is a pure function of (seed, table, row number): each table is cut
+ * into fixed-size chunks and every chunk gets its own random stream, so the
+ * output is identical no matter how many threads are used.  Chunks are built
+ * in parallel and written in order through a bounded window, which keeps memory
+ * constant regardless of the number of rows.
+ *
+ * Foreign keys are always consistent (fiid and Schedule.id equal the flight
+ * number, the same way AddFlight assigns them) and the data is skewed: a few
+ * airports and routes carry most flights, a few flights carry most
+ * reservations, and repairs arrive in bursts per plane.
+ *
+ * Usage:
+ *   java -cp bin DataGenerator <outdir|-> [reservations] [seed] [table]
+ *
+ * With "-" a single table is written to standard out, e.g.
+ *   java -cp bin DataGenerator - 10000000 42 reservation | \
+ *     psql -c "COPY Reservation FROM STDIN WITH DELIMITER ','" flightDB
+ */
+public class DataGenerator{
+	public static final String[] TABLES = {"customer", "pilots", "planes", "technician", "flights", "reservation", "flightinfo", "repairs", "schedule"};
+
+	static final int CHUNK_ROWS = 65536;
+
+	static final String[] FIRST = {"Armand", "Alberto", "Wyatt", "Alfonso", "Pearl", "Lena", "Marco", "Priya", "Hana", "Diego",
+		"Noor", "Kenji", "Olga", "Samuel", "Ines", "Tariq", "Chloe", "Ivan", "Mei", "Rafael", "Sofia", "Jonas", "Amara", "Liam"};
+	static final String[] LAST = {"Enderle", "Scarlett", "Ruoff", "Denmark", "Straube", "Okafor", "Nakamura", "Rossi", "Novak", "Silva",
+		"Haddad", "Kowalski", "Moreau", "Fischer", "Larsen", "Ortega", "Petrov", "Tanaka", "Walsh", "Yilmaz", "Chen", "Dubois"};
+	static final String[] STREET = {"Chapel Drive", "Bald Hill Street", "Campfire Ave.", "Lake Road", "Elm St.", "Oak Lane", "Sunset Blvd.", "Mill Road"};
+	static final String[] CITY = {"Melbourne", "Baton Rouge", "Cockeysville", "Riverside", "Fresno", "Dayton", "Tulsa", "Boise", "Reno", "Macon"};
+	static final String[] STATE = {"FL", "LA", "MD", "CA", "OH", "OK", "ID", "NV", "GA", "TX"};
+	static final String[] NATION = {"Argentina", "Australia", "Austria", "Brazil", "Canada", "China", "Egypt", "France", "Germany",
+		"India", "Italy", "Japan", "Mexico", "Morocco", "Spain", "Turkey", "UK", "USA"};
+	static final String[][] MODELS = {{"Airbus", "AirbusA300"}, {"Airbus", "AirbusA310"}, {"Airbus", "AirbusA319"}, {"Airbus", "AirbusA320"},
+		{"Boeing", "Boeing737"}, {"Boeing", "Boeing747"}, {"Boeing", "Boeing767"}, {"Bombadier", "BombardierCRJ900"}, {"Embraer", "EmbraerE190"}};
+	static final String[] CODES = {"MJ", "MN", "SV"};
+
+	static final DateTimeFormatter DATETIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm");
+	static final DateTimeFormatter DATE = DateTimeFormatter.ofPattern("yyyy-MM-dd");
+	static final DateTimeFormatter DOB = DateTimeFormatter.ofPattern("M/d/yyyy");
+	static final LocalDateTime EPOCH = LocalDateTime.of(2014, 1, 1, 0, 0);
+
+	final long seed;
+	final long reservations;
+	final int customers;
+	final int pilots;
+	final int planes;
+	final int technicians;
+	final int flights;
+	final int airports;
+	final int repairs;
+	final int threads;
+
+	/**
+	 * Sizes every table from the number of reservations, keeping roughly the
+	 * proportions of the checked-in data set (which it never shrinks below).
+	 */
+	public DataGenerator(long reservations, long seed, int threads){
+		this.seed = seed;
+		this.reservations = reservations;
+		this.threads = threads;
+		this.flights = (int)Math.max(2000, reservations / 5);
+		this.customers = (int)Math.max(250, reservations / 40);
+		this.pilots = Math.max(250, flights / 8);
+		this.technicians = Math.max(250, pilots / 2);
+		this.planes = Math.max(67, flights / 30);
+		this.airports = Math.max(200, (int)Math.sqrt(flights) * 4);
+		this.repairs = planes * 8;
+	}
+
+	public long rows(String table){
+		switch(table){
+			case "customer": return customers;
+			case "pilots": return pilots;
+			case "planes": return planes;
+			case "technician": return technicians;
+			case "flights": return flights;
+			case "reservation": return reservations;
+			case "flightinfo": return flights;
+			case "repairs": return repairs;
+			case "schedule": return flights;
+		}
+		throw new IllegalArgumentException("Unknown table: " + table);
+	}
+
+	/**
+	 * Writes one table to the stream, building chunks in parallel but
+	 * emitting them strictly in row order.
+	 */
+	public void write(String table, OutputStream out) throws Exception {
+		long total = rows(table);
+		long chunks = (total + CHUNK_ROWS - 1) / CHUNK_ROWS;
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		ArrayDeque<Future<byte[]>> window = new ArrayDeque<Future<byte[]>>();
+		try{
+			for(long c = 0; c < chunks; c++){
+				final long from = c * CHUNK_ROWS;
+				final long to = Math.min(total, from + CHUNK_ROWS);
+				final long chunk = c;
+				window.add(pool.submit(() -> chunk(table, chunk, from, to)));
+				if(window.size() >= threads * 2){
+					out.write(window.poll().get());
+				}
+			}
+			while(!window.isEmpty()){
+				out.write(window.poll().get());
+			}
+			out.flush();
+		}finally{
+			pool.shutdownNow();
+		}
+	}//end write
+
+	byte[] chunk(String table, long chunk, long from, long to){
+		SplittableRandom rnd = new SplittableRandom(mix(seed, table.hashCode(), chunk));
+		StringBuilder sb = new StringBuilder((int)(to - from) * 48);
+		for(long i = from; i < to; i++){
+			switch(table){
+				case "customer": customer(sb, (int)i, rnd); break;
+				case "pilots": pilot(sb, (int)i, rnd); break;
+				case "planes": plane(sb, (int)i, rnd); break;
+				case "technician": technician(sb, (int)i, rnd); break;
+				case "flights": flight(sb, (int)i); break;
+				case "reservation": reservation(sb, i, rnd); break;
+				case "flightinfo": flightInfo(sb, (int)i); break;
+				case "repairs": repair(sb, (int)i, rnd); break;
+				case "schedule": schedule(sb, (int)i); break;
+			}
+		}
+		return sb.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	void customer(StringBuilder sb, int id, SplittableRandom rnd){
+		LocalDate dob = LocalDate.of(1940, 1, 1).plusDays(rnd.nextInt(60 * 365));
+		sb.append(id).append(',').append(pick(FIRST, rnd)).append(',').append(pick(LAST, rnd)).append(',')
+			.append(rnd.nextBoolean() ? 'M' : 'F').append(',').append(DOB.format(dob)).append(',')
+			.append(1000 + rnd.nextInt(9000)).append(' ').append(pick(STREET, rnd)).append(' ').append(pick(CITY, rnd)).append(',')
+			.append(1000000000L + rnd.nextLong(9000000000L)).append(", ").append(pick(STATE, rnd)).append(' ')
+			.append(10000 + rnd.nextInt(90000)).append('\n');
+	}
+
+	void pilot(StringBuilder sb, int id, SplittableRandom rnd){
+		sb.append(id).append(',').append(pick(FIRST, rnd)).append(' ').append(pick(LAST, rnd)).append(',').append(pick(NATION, rnd)).append('\n');
+	}
+
+	void plane(StringBuilder sb, int id, SplittableRandom rnd){
+		String[] m = MODELS[rnd.nextInt(MODELS.length)];
+		sb.append(id).append(',').append(m[0]).append(',').append(m[1]).append(',').append(1 + rnd.nextInt(30)).append(',')
+			.append(planeSeats(id)).append('\n');
+	}
+
+	void technician(StringBuilder sb, int id, SplittableRandom rnd){
+		sb.append(id).append(',').append(pick(FIRST, rnd)).append(' ').append(pick(LAST, rnd)).append('\n');
+	}
+
+	/*
+	 * Flight related rows are derived from per-flight random streams so that
+	 * Flight, FlightInfo and Schedule agree with each other even though they
+	 * are generated independently.  Flight and Schedule both start by drawing
+	 * the scheduled departure and the duration in the same order.
+	 */
+	void flight(StringBuilder sb, int fnum){
+		SplittableRandom rnd = flightRandom(fnum);
+		LocalDateTime sched = scheduledDeparture(rnd);
+		int duration = 60 + rnd.nextInt(14 * 60);
+		int delay = delay(rnd);
+		int route = skewed(rnd, airports * 4L, 2.5);
+		int from = scatter(route, airports);
+		int to = scatter(route * 7 + 3, airports);
+		if(to == from) to = (to + 1) % airports;
+		int stops = rnd.nextInt(4);
+		int cost = 80 + rnd.nextInt(900);
+		int sold = rnd.nextInt(planeSeats(flightPlane(fnum)));
+		LocalDateTime dep = sched.plusMinutes(delay);
+		sb.append(fnum).append(',').append(cost).append(',').append(sold).append(',').append(stops).append(',')
+			.append(DATETIME.format(dep)).append(',').append(DATETIME.format(dep.plusMinutes(duration))).append(',')
+			.append(airport(to)).append(',').append(airport(from)).append('\n');
+	}
+
+	void flightInfo(StringBuilder sb, int fnum){
+		sb.append(fnum).append(',').append(fnum).append(',').append(flightPilot(fnum)).append(',').append(flightPlane(fnum)).append('\n');
+	}
+
+	void schedule(StringBuilder sb, int fnum){
+		SplittableRandom rnd = flightRandom(fnum);
+		LocalDateTime sched = scheduledDeparture(rnd);
+		int duration = 60 + rnd.nextInt(14 * 60);
+		sb.append(fnum).append(',').append(fnum).append(',').append(DATETIME.format(sched)).append(',')
+			.append(DATETIME.format(sched.plusMinutes(duration))).append('\n');
+	}
+
+	void reservation(StringBuilder sb, long rnum, SplittableRandom rnd){
+		int fid = scatter(skewed(rnd, flights, 3.0), flights);
+		int cid = scatter(skewed(rnd, customers, 1.5), customers);
+		int s = rnd.nextInt(3);
+		sb.append(rnum).append(',').append(cid).append(',').append(fid).append(',').append(s == 0 ? 'W' : s == 1 ? 'C' : 'R').append('\n');
+	}
+
+	/*
+	 * Repairs come in bursts: each plane gets a few burst dates and every
+	 * repair lands within two weeks of one of them.
+	 */
+	void repair(StringBuilder sb, int rid, SplittableRandom rnd){
+		int plane = rid % planes;
+		SplittableRandom burst = new SplittableRandom(mix(seed, plane, rid / planes / 3));
+		LocalDate date = LocalDate.of(2012, 1, 1).plusDays(burst.nextInt(4 * 365)).plusDays(rnd.nextInt(14));
+		sb.append(rid).append(',').append(DATE.format(date)).append(',').append(pick(CODES, rnd)).append(',')
+			.append(rnd.nextInt(pilots)).append(',').append(plane).append(',').append(rnd.nextInt(technicians)).append('\n');
+	}
+
+	SplittableRandom flightRandom(int fnum){
+		return new SplittableRandom(mix(seed, 0x5f1a, fnum));
+	}
+
+	static LocalDateTime scheduledDeparture(SplittableRandom rnd){
+		return EPOCH.plusMinutes(rnd.nextInt(3 * 365 * 24 * 60));
+	}
+
+	/* most flights leave within a quarter hour, a long tail does not */
+	static int delay(SplittableRandom rnd){
+		double u = rnd.nextDouble();
+		return (int)(u < 0.7 ? u * 20 : Math.pow(u, 8) * 600);
+	}
+
+	int flightPlane(int fnum){
+		return (int)Math.floorMod(mix(seed, 0x91a7e, fnum), (long)planes);
+	}
+
+	int flightPilot(int fnum){
+		return (int)Math.floorMod(mix(seed, 0x9170, fnum), (long)pilots);
+	}
+
+	int planeSeats(int plane){
+		return 50 + new SplittableRandom(mix(seed, 0x51a7, plane)).nextInt(400);
+	}
+
+	static String airport(int id){
+		char[] code = new char[5];
+		long x = mix(0x41127, id, 0);
+		for(int i = 0; i < 5; i++){
+			code[i] = (char)('A' + (int)Math.floorMod(x, 26L));
+			x /= 26;
+		}
+		return new String(code);
+	}
+
+	/**
+	 * Draws a rank in [0, n) where low ranks are much more likely; a larger
+	 * exponent gives a steeper skew.
+	 */
+	static int skewed(SplittableRandom rnd, long n, double exponent){
+		return (int)(n * Math.pow(rnd.nextDouble(), exponent));
+	}
+
+	/**
+	 * Maps a rank to an id with a fixed bijection so hot rows are spread over
+	 * the key space rather than clustered at the low ids.
+	 */
+	static int scatter(long rank, int n){
+		long step = 2654435761L % n;
+		while(gcd(step, n) != 1) step++;
+		return (int)Math.floorMod(rank * step + 17, (long)n);
+	}
+
+	static long gcd(long a, long b){
+		while(b != 0){
+			long t = a % b;
+			a = b;
+			b = t;
+		}
+		return a;
+	}
+
+	static String pick(String[] values, SplittableRandom rnd){
+		return values[rnd.nextInt(values.length)];
+	}
+
+	static long mix(long seed, long a, long b){
+		long z = seed + a * 0x9E3779B97F4A7C15L + b * 0xC2B2AE3D27D4EB4FL;
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+
+	public static void main(String[] args) throws Exception {
+		if(args.length < 1){
+			System.err.println("Usage: java [-classpath <classpath>] DataGenerator <outdir|-> [reservations] [seed] [table]");
+			return;
+		}
+		long reservations = args.length > 1 ? Long.parseLong(args[1]) : 10000000L;
+		long seed = args.length > 2 ? Long.parseLong(args[2]) : 42L;
+		DataGenerator gen = new DataGenerator(reservations, seed, Runtime.getRuntime().availableProcessors());
+
+		if(args[0].equals("-")){
+			if(args.length < 4){
+				System.err.println("A table name is required when writing to standard out");
+				return;
+			}
+			gen.write(args[3], new BufferedOutputStream(System.out, 1 << 20));
+			return;
+		}
+
+		File dir = new File(args[0]);
+		dir.mkdirs();
+		for(String table : TABLES){
+			if(args.length > 3 && !args[3].equals(table)) continue;
+			long start = System.nanoTime();
+			try(OutputStream out = new BufferedOutputStream(new FileOutputStream(new File(dir, table + ".csv")), 1 << 20)){
+				gen.write(table, out);
+			}
+			System.err.println(table + ": " + gen.rows(table) + " rows in " + (System.nanoTime() - start) / 1000000 + " ms");
+		}
+	}
+}
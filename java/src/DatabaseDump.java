@@ -0,0 +1,563 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyManager;
+
+/**
+ * Parallel dump and restore of the nine tables of SchemaMigrator.TABLES and
+ * Seat_Assignment.
+ *
+ * A dump splits every table into chunks of primary key range and writes each
+ * chunk with COPY ... TO STDOUT (FORMAT binary) into its own gzip file, all
+ * chunks of all tables at once on a pool of connections.  The connections
+ * share one snapshot (pg_export_snapshot), so the dump is consistent even
+ * while DBproject keeps writing.  A manifest lists every chunk with its row
+ * count, size and the CRC32 of its uncompressed COPY stream.
+ *
+ * A restore empties the tables, drops their foreign keys and secondary
+ * indexes, and loads the chunks with
+ * COPY ... FROM STDIN (FORMAT binary), parents before children and the chunks of one level in parallel.  Every
+ * chunk's rows and CRC32 are checked against the manifest as it is read.  The
+ * indexes are then rebuilt in parallel, the foreign keys added back (which
+ * validates them) and the tables analyzed.  Primary keys are kept throughout,
+ * so a dump with duplicate keys fails on load instead of after the rebuild.
+ *
+ * Each chunk is its own COPY transaction: a restore that fails part way
+ * leaves the tables partly loaded and must be run again.  The foreign keys
+ * and indexes are written to the file "rebuild" in the directory before any
+ * is dropped, and the rerun takes them from there rather than from the
+ * catalog they are already gone from; the file is deleted once they are back.
+ *
+ * Usage:
+ *   java -cp lib/*:bin/ DatabaseDump <dbname> <port> <user> dump|restore <dir> [--threads N] [--chunk keys]
+ */
+public class DatabaseDump{
+	static final String MANIFEST = "manifest";
+	static final String REBUILD = "rebuild";
+
+	/* the tables with the column they are chunked by, parents before children */
+	static final Map<String, String> KEYS = new LinkedHashMap<String, String>(SchemaMigrator.KEYS);
+	static final List<String> FOREIGN_KEYS = new ArrayList<String>(Arrays.asList(SchemaMigrator.FOREIGN_KEYS));
+	static{
+		KEYS.put("Seat_Assignment", "flight_id");
+		FOREIGN_KEYS.add("Seat_Assignment (flight_id) REFERENCES Flight(fnum)");
+		FOREIGN_KEYS.add("Seat_Assignment (rnum) REFERENCES Reservation(rnum)");
+	}
+
+	/* the order rows are dumped in, where the chunk column is not unique */
+	static String order(String table){
+		return table.equals("Seat_Assignment") ? "flight_id, seat" : KEYS.get(table);
+	}
+
+	/** One chunk of a table: the rows with lo <= key < hi. */
+	static final class Chunk{
+		final String table;
+		final String file;
+		final long lo;
+		final long hi;
+		long rows;
+		long bytes;
+		long compressed;
+		long crc;
+
+		Chunk(String table, String file, long lo, long hi){
+			this.table = table;
+			this.file = file;
+			this.lo = lo;
+			this.hi = hi;
+		}
+
+		String line(){
+			return table + "\t" + file + "\t" + lo + "\t" + hi + "\t" + rows + "\t" + bytes + "\t" + compressed + "\t" + Long.toHexString(crc);
+		}
+
+		static Chunk parse(String line){
+			String[] f = line.split("\t");
+			Chunk c = new Chunk(f[0], f[1], Long.parseLong(f[2]), Long.parseLong(f[3]));
+			c.rows = Long.parseLong(f[4]);
+			c.bytes = Long.parseLong(f[5]);
+			c.compressed = Long.parseLong(f[6]);
+			c.crc = Long.parseLong(f[7], 16);
+			return c;
+		}
+	}
+
+	/** Counts and checksums the bytes written through it. */
+	static final class Tally extends FilterOutputStream{
+		final CRC32 crc = new CRC32();
+		long bytes = 0;
+
+		Tally(OutputStream out){
+			super(out);
+		}
+
+		public void write(int b) throws IOException {
+			out.write(b);
+			crc.update(b);
+			bytes++;
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			crc.update(b, off, len);
+			bytes += len;
+		}
+	}
+
+	/** Counts and checksums the bytes read through it. */
+	static final class TallyIn extends FilterInputStream{
+		final CRC32 crc = new CRC32();
+		long bytes = 0;
+
+		TallyIn(InputStream in){
+			super(in);
+		}
+
+		public int read() throws IOException {
+			int b = in.read();
+			if(b >= 0){
+				crc.update(b);
+				bytes++;
+			}
+			return b;
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = in.read(b, off, len);
+			if(n > 0){
+				crc.update(b, off, n);
+				bytes += n;
+			}
+			return n;
+		}
+	}
+
+	private final DBproject esql;
+	private final File dir;
+	private final int threads;
+
+	public DatabaseDump(DBproject esql, File dir, int threads){
+		this.esql = esql;
+		this.dir = dir;
+		this.threads = threads;
+	}
+
+	static void execute(Connection conn, String sql) throws SQLException {
+		Statement stmt = conn.createStatement();
+		try{
+			stmt.execute(sql);
+		}finally{
+			stmt.close();
+		}
+	}
+
+	static CopyManager copyAPI(Connection conn) throws SQLException {
+		return conn.unwrap(PGConnection.class).getCopyAPI();
+	}
+
+	/**
+	 * Runs the tasks on the pool's threads and waits for all of them.
+	 *
+	 * @throws java.sql.SQLException the first failure of a task
+	 */
+	<T> List<T> runAll(List<Callable<T>> tasks) throws SQLException {
+		ExecutorService workers = Executors.newFixedThreadPool(threads);
+		try{
+			List<Future<T>> futures = workers.invokeAll(tasks);
+			List<T> out = new ArrayList<T>(futures.size());
+			for(Future<T> f : futures) out.add(f.get());
+			return out;
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted");
+		}catch(ExecutionException e){
+			Throwable cause = e.getCause();
+			if(cause instanceof SQLException) throw (SQLException)cause;
+			throw new SQLException(cause.getMessage(), cause);
+		}finally{
+			workers.shutdownNow();
+		}
+	}
+
+	/**
+	 * Dumps every table into the directory.
+	 *
+	 * @param chunkKeys the primary key range of one chunk
+	 * @return the chunks written, in table order
+	 */
+	public List<Chunk> dump(long chunkKeys) throws SQLException, IOException {
+		Files.createDirectories(dir.toPath());
+		final Connection coordinator = esql.openConnection();
+		final ConnectionPool pool = new ConnectionPool(esql, threads);
+		try{
+			//the snapshot stays importable while this transaction is open
+			coordinator.setAutoCommit(false);
+			execute(coordinator, "SET TRANSACTION ISOLATION LEVEL REPEATABLE READ");
+			final String snapshot;
+			List<Chunk> chunks = new ArrayList<Chunk>();
+			Statement stmt = coordinator.createStatement();
+			try{
+				ResultSet rs = stmt.executeQuery("SELECT pg_export_snapshot()");
+				rs.next();
+				snapshot = rs.getString(1);
+				for(Map.Entry<String, String> t : KEYS.entrySet()){
+					rs = stmt.executeQuery("SELECT MIN(" + t.getValue() + "), MAX(" + t.getValue() + ") FROM " + t.getKey());
+					rs.next();
+					long lo = rs.getLong(1);
+					if(rs.wasNull()){
+						//an empty table still gets one empty chunk in the manifest
+						chunks.add(new Chunk(t.getKey(), t.getKey() + ".0000.bin.gz", 0, 1));
+						continue;
+					}
+					long hi = rs.getLong(2) + 1;
+					int n = 0;
+					for(long from = lo; from < hi; from += chunkKeys){
+						chunks.add(new Chunk(t.getKey(), t.getKey() + String.format(".%04d.bin.gz", n++), from, Math.min(hi, from + chunkKeys)));
+					}
+				}
+			}finally{
+				stmt.close();
+			}
+
+			List<Callable<Chunk>> tasks = new ArrayList<Callable<Chunk>>();
+			for(final Chunk c : chunks){
+				tasks.add(new Callable<Chunk>(){
+					public Chunk call() throws Exception {
+						Connection conn = pool.borrow();
+						try{
+							conn.setAutoCommit(false);
+							execute(conn, "SET TRANSACTION ISOLATION LEVEL REPEATABLE READ");
+							execute(conn, "SET TRANSACTION SNAPSHOT '" + snapshot + "'");
+							String key = KEYS.get(c.table);
+							OutputStream file = new FileOutputStream(new File(dir, c.file));
+							try{
+								GZIPOutputStream gz = new GZIPOutputStream(file, 1 << 16);
+								Tally out = new Tally(gz);
+								c.rows = copyAPI(conn).copyOut("COPY (SELECT * FROM " + c.table + " WHERE " + key + " >= " + c.lo + " AND " + key + " < " + c.hi
+									+ " ORDER BY " + order(c.table) + ") TO STDOUT (FORMAT binary)", out);
+								gz.finish();
+								c.bytes = out.bytes;
+								c.crc = out.crc.getValue();
+							}finally{
+								file.close();
+							}
+							c.compressed = new File(dir, c.file).length();
+							conn.commit();
+						}catch(SQLException e){
+							conn.rollback();
+							throw e;
+						}finally{
+							conn.setAutoCommit(true);
+							pool.giveBack(conn);
+						}
+						return c;
+					}
+				});
+			}
+			runAll(tasks);
+			coordinator.commit();
+
+			PrintWriter manifest = new PrintWriter(new File(dir, MANIFEST), "UTF-8");
+			try{
+				for(Chunk c : chunks) manifest.println(c.line());
+			}finally{
+				manifest.close();
+			}
+			return chunks;
+		}finally{
+			pool.close();
+			coordinator.close();
+		}
+	}
+
+	static List<Chunk> readManifest(File dir) throws IOException {
+		List<Chunk> chunks = new ArrayList<Chunk>();
+		for(String line : Files.readAllLines(new File(dir, MANIFEST).toPath(), StandardCharsets.UTF_8)){
+			if(!line.trim().isEmpty()) chunks.add(Chunk.parse(line));
+		}
+		return chunks;
+	}
+
+	/**
+	 * @return the load level of every table: 0 for tables without foreign
+	 *         keys, otherwise one more than the highest table they reference
+	 */
+	static Map<String, Integer> levels(){
+		Map<String, Integer> level = new HashMap<String, Integer>();
+		for(String table : KEYS.keySet()) level.put(table, 0);
+		boolean changed = true;
+		while(changed){
+			changed = false;
+			for(String fk : FOREIGN_KEYS){
+				String child = fk.substring(0, fk.indexOf(' '));
+				String parent = fk.substring(fk.indexOf("REFERENCES ") + 11, fk.lastIndexOf('('));
+				if(level.get(child) <= level.get(parent)){
+					level.put(child, level.get(parent) + 1);
+					changed = true;
+				}
+			}
+		}
+		return level;
+	}
+
+	/** @return the names of the tables as a SQL IN list of lower case names */
+	static String tableList(){
+		StringBuilder sb = new StringBuilder();
+		for(String table : KEYS.keySet()){
+			if(sb.length() > 0) sb.append(", ");
+			sb.append("'").append(table.toLowerCase()).append("'");
+		}
+		return sb.toString();
+	}
+
+	/* reads the foreign keys and secondary indexes of the tables from the catalog */
+	static void readDefinitions(Connection conn, List<String[]> fks, List<String[]> indexes) throws SQLException {
+		Statement stmt = conn.createStatement();
+		try{
+			ResultSet rs = stmt.executeQuery("SELECT cl.relname, c.conname, pg_get_constraintdef(c.oid) FROM pg_constraint c, pg_class cl, pg_namespace n "
+				+ "WHERE c.contype = 'f' AND cl.oid = c.conrelid AND n.oid = cl.relnamespace AND n.nspname = 'public' AND cl.relname IN (" + tableList() + ")");
+			while(rs.next()) fks.add(new String[]{rs.getString(1), rs.getString(2), rs.getString(3)});
+			rs = stmt.executeQuery("SELECT cl.relname, ic.relname, pg_get_indexdef(i.indexrelid) FROM pg_index i, pg_class cl, pg_class ic, pg_namespace n "
+				+ "WHERE cl.oid = i.indrelid AND ic.oid = i.indexrelid AND n.oid = cl.relnamespace AND n.nspname = 'public' AND cl.relname IN (" + tableList() + ") "
+				+ "AND NOT EXISTS (SELECT 1 FROM pg_constraint c WHERE c.conindid = i.indexrelid)");
+			while(rs.next()) indexes.add(new String[]{rs.getString(1), rs.getString(2), rs.getString(3)});
+		}finally{
+			stmt.close();
+		}
+	}
+
+	/* one line per definition: fk or index, table, name, definition; written whole or not at all */
+	static void writeRebuild(File file, List<String[]> fks, List<String[]> indexes) throws IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+		PrintWriter out = new PrintWriter(tmp, "UTF-8");
+		try{
+			for(String[] fk : fks) out.println("fk\t" + fk[0] + "\t" + fk[1] + "\t" + fk[2]);
+			for(String[] ix : indexes) out.println("index\t" + ix[0] + "\t" + ix[1] + "\t" + ix[2]);
+		}finally{
+			out.close();
+		}
+		if(out.checkError()) throw new IOException("Unable to write " + tmp);
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	static void readRebuild(File file, List<String[]> fks, List<String[]> indexes) throws IOException {
+		for(String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)){
+			if(line.trim().isEmpty()) continue;
+			String[] f = line.split("\t", 4);
+			String[] def = {f[1], f[2], f[3]};
+			if(f[0].equals("fk")) fks.add(def);
+			else indexes.add(def);
+		}
+	}
+
+	/**
+	 * Restores the tables from the directory.
+	 *
+	 * @return the chunks loaded, with the rows and checksum actually read
+	 * @throws java.sql.SQLException on a failed load, or a chunk that does not
+	 *         match the manifest
+	 */
+	public List<Chunk> restore() throws SQLException, IOException {
+		final List<Chunk> chunks = readManifest(dir);
+		Connection admin = esql.openConnection();
+		final ConnectionPool pool = new ConnectionPool(esql, threads);
+		try{
+			//(table, name, definition) of the foreign keys and secondary indexes to rebuild
+			List<String[]> fks = new ArrayList<String[]>();
+			List<String[]> indexes = new ArrayList<String[]>();
+			File rebuild = new File(dir, REBUILD);
+			if(rebuild.exists()){
+				//an earlier restore failed after dropping them
+				System.out.println("Taking the foreign keys and indexes to rebuild from " + rebuild);
+				readRebuild(rebuild, fks, indexes);
+			}else{
+				readDefinitions(admin, fks, indexes);
+				writeRebuild(rebuild, fks, indexes);
+			}
+
+			System.out.println("Emptying the tables, dropping " + fks.size() + " foreign keys and " + indexes.size() + " indexes");
+			admin.setAutoCommit(false);
+			execute(admin, "TRUNCATE " + String.join(", ", KEYS.keySet()) + " CASCADE");
+			for(String[] fk : fks) execute(admin, "ALTER TABLE " + fk[0] + " DROP CONSTRAINT IF EXISTS " + fk[1]);
+			for(String[] ix : indexes) execute(admin, "DROP INDEX IF EXISTS " + ix[1]);
+			admin.commit();
+			admin.setAutoCommit(true);
+
+			Map<String, Integer> level = levels();
+			int levels = 0;
+			for(int l : level.values()) levels = Math.max(levels, l + 1);
+			for(int l = 0; l < levels; l++){
+				List<Callable<Chunk>> tasks = new ArrayList<Callable<Chunk>>();
+				for(final Chunk c : chunks){
+					if(level.get(c.table) != l) continue;
+					tasks.add(new Callable<Chunk>(){
+						public Chunk call() throws Exception {
+							Connection conn = pool.borrow();
+							try{
+								InputStream file = new FileInputStream(new File(dir, c.file));
+								try{
+									TallyIn in = new TallyIn(new GZIPInputStream(file, 1 << 16));
+									long rows = copyAPI(conn).copyIn("COPY " + c.table + " FROM STDIN (FORMAT binary)", in);
+									if(rows != c.rows || in.crc.getValue() != c.crc){
+										throw new SQLException(c.file + ": read " + rows + " rows, crc " + Long.toHexString(in.crc.getValue())
+											+ ", manifest has " + c.rows + " rows, crc " + Long.toHexString(c.crc));
+									}
+								}finally{
+									file.close();
+								}
+							}finally{
+								pool.giveBack(conn);
+							}
+							return c;
+						}
+					});
+				}
+				runAll(tasks);
+			}
+
+			System.out.println("Rebuilding indexes");
+			List<Callable<Void>> builds = new ArrayList<Callable<Void>>();
+			for(final String[] ix : indexes){
+				builds.add(new Callable<Void>(){
+					public Void call() throws Exception {
+						Connection conn = pool.borrow();
+						try{
+							execute(conn, ix[2]);
+						}finally{
+							pool.giveBack(conn);
+						}
+						return null;
+					}
+				});
+			}
+			runAll(builds);
+			//adding a foreign key locks the referenced table against other
+			//additions to it, so these run one at a time
+			for(String[] fk : fks) execute(admin, "ALTER TABLE " + fk[0] + " ADD CONSTRAINT " + fk[1] + " " + fk[2]);
+			Files.delete(rebuild.toPath());
+			List<Callable<Void>> analyzes = new ArrayList<Callable<Void>>();
+			for(final String table : KEYS.keySet()){
+				analyzes.add(new Callable<Void>(){
+					public Void call() throws Exception {
+						Connection conn = pool.borrow();
+						try{
+							execute(conn, "ANALYZE " + table);
+						}finally{
+							pool.giveBack(conn);
+						}
+						return null;
+					}
+				});
+			}
+			runAll(analyzes);
+			return chunks;
+		}finally{
+			pool.close();
+			admin.close();
+		}
+	}
+
+	/**
+	 * Prints rows, sizes and a checksum per table (the CRC32 of its chunks'
+	 * checksums in order, the same for a dump and its restore), then the
+	 * throughput of the whole run.
+	 */
+	static void report(List<Chunk> chunks, long nanos){
+		Map<String, long[]> tables = new LinkedHashMap<String, long[]>();
+		Map<String, CRC32> sums = new HashMap<String, CRC32>();
+		for(Chunk c : chunks){
+			long[] t = tables.get(c.table);
+			if(t == null){
+				t = new long[4];
+				tables.put(c.table, t);
+				sums.put(c.table, new CRC32());
+			}
+			t[0]++;
+			t[1] += c.rows;
+			t[2] += c.bytes;
+			t[3] += c.compressed;
+			for(int i = 0; i < 8; i++) sums.get(c.table).update((int)(c.crc >>> (i * 8)));
+		}
+		System.out.println("----------------------------------------------------------------------------");
+		System.out.println("|Table        Chunks  Rows        Binary (kB)  Gzip (kB)    Checksum");
+		long rows = 0;
+		long bytes = 0;
+		long compressed = 0;
+		for(Map.Entry<String, long[]> e : tables.entrySet()){
+			long[] t = e.getValue();
+			rows += t[1];
+			bytes += t[2];
+			compressed += t[3];
+			System.out.println("|" + DBproject.pad(e.getKey(), 13) + DBproject.pad(Long.toString(t[0]), 8) + DBproject.pad(Long.toString(t[1]), 12)
+				+ DBproject.pad(Long.toString(t[2] / 1024), 13) + DBproject.pad(Long.toString(t[3] / 1024), 13) + String.format("%08x", sums.get(e.getKey()).getValue()));
+		}
+		double seconds = Math.max(1e-9, nanos / 1e9);
+		System.out.println("----------------------------------------------------------------------------");
+		System.out.println(rows + " rows, " + bytes / 1024 + " kB binary (" + compressed / 1024 + " kB compressed) in " + String.format("%.2f", seconds) + " s: "
+			+ String.format("%.0f", rows / seconds) + " rows/s, " + String.format("%.1f", bytes / seconds / (1 << 20)) + " MB/s");
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 5 || !(args[3].equals("dump") || args[3].equals("restore"))) {
+			System.err.println("Usage: java [-classpath <classpath>] DatabaseDump <dbname> <port> <user> dump|restore <dir> [--threads N] [--chunk keys]");
+			return;
+		}
+		List<String> opts = Arrays.asList(args).subList(5, args.length);
+		int threads = opts.contains("--threads") ? Integer.parseInt(opts.get(opts.indexOf("--threads") + 1)) : Math.min(8, Runtime.getRuntime().availableProcessors());
+		long chunkKeys = opts.contains("--chunk") ? Long.parseLong(opts.get(opts.indexOf("--chunk") + 1)) : 100000;
+
+		Class.forName("org.postgresql.Driver");
+		DBproject esql = new DBproject(args[0], args[1], args[2], "");
+		try{
+			DatabaseDump d = new DatabaseDump(esql, new File(args[4]), Math.max(1, threads));
+			long start = System.nanoTime();
+			if(args[3].equals("dump")){
+				List<Chunk> chunks = d.dump(Math.max(1, chunkKeys));
+				report(chunks, System.nanoTime() - start);
+			}else{
+				List<Chunk> chunks = d.restore();
+				report(chunks, System.nanoTime() - start);
+				//every chunk already matched the manifest; this catches rows
+				//added by something else while the restore ran
+				for(Map.Entry<String, String> t : KEYS.entrySet()){
+					long expected = 0;
+					for(Chunk c : chunks) if(c.table.equals(t.getKey())) expected += c.rows;
+					long found = Long.parseLong(esql.executeQueryAndReturnResult("SELECT COUNT(*) FROM " + t.getKey() + ";").get(0).get(0));
+					if(found != expected) System.out.println("Warning - " + t.getKey() + " has " + found + " rows, the dump has " + expected);
+				}
+				System.out.println("All chunks matched the manifest");
+			}
+		}finally{
+			esql.cleanup();
+		}
+	}
+}
@@ -0,0 +1,279 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * On-time performance: how many days each flight left and arrived after its
+ * Schedule row, as delay distributions per route, per airport, per plane and
+ * per pilot (through FlightInfo).
+ *
+ * Like FleetReport, the fnum range is split with fork-join and every leaf
+ * streams its slice of Flight joined with Schedule and FlightInfo over a
+ * pooled connection.  Each leaf folds its rows into DelaySketches, and the
+ * sketches of the leaves are merged on the way back up, so memory is bounded
+ * by the number of routes, airports, planes and pilots however long the
+ * history is.  Flights added afterwards are folded in with add().
+ *
+ * An airport's departure delays are those of flights leaving it and its
+ * arrival delays those of flights arriving at it.
+ */
+public class DelayReport{
+	public static final int ROUTE = 0;
+	public static final int AIRPORT = 1;
+	public static final int PLANE = 2;
+	public static final int PILOT = 3;
+	static final int DIMENSIONS = 4;
+
+	/* index into the sketch pairs */
+	public static final int DEPARTURE = 0;
+	public static final int ARRIVAL = 1;
+
+	static final String SLICE_QUERY = "SELECT F.departure_airport, F.arrival_airport, FI.plane_id, FI.pilot_id, "
+		+ "F.actual_departure_date::date - S.departure_time::date, F.actual_arrival_date::date - S.arrival_time::date "
+		+ "FROM Flight F JOIN Schedule S ON S.flightNum = F.fnum LEFT JOIN FlightInfo FI ON FI.flight_id = F.fnum "
+		+ "WHERE F.fnum >= ? AND F.fnum < ?";
+
+	/** The sketches of one slice, or of the whole history. */
+	static final class Part{
+		/* per dimension, key to {departure, arrival} */
+		final List<Map<String, DelaySketch[]>> keys = new ArrayList<Map<String, DelaySketch[]>>(DIMENSIONS);
+		final DelaySketch[] all = {new DelaySketch(), new DelaySketch()};
+
+		Part(){
+			for(int d = 0; d < DIMENSIONS; d++) keys.add(new HashMap<String, DelaySketch[]>());
+		}
+
+		DelaySketch[] sketches(int dimension, String key){
+			DelaySketch[] s = keys.get(dimension).get(key);
+			if(s == null){
+				s = new DelaySketch[]{new DelaySketch(), new DelaySketch()};
+				keys.get(dimension).put(key, s);
+			}
+			return s;
+		}
+
+		/**
+		 * @param plane the plane id, or -1 if the flight has no FlightInfo
+		 * @param pilot the pilot id, or -1 likewise
+		 */
+		void add(String departureAirport, String arrivalAirport, int plane, int pilot, int departureDelay, int arrivalDelay){
+			DelaySketch[] s = sketches(ROUTE, departureAirport + "-" + arrivalAirport);
+			s[DEPARTURE].add(departureDelay);
+			s[ARRIVAL].add(arrivalDelay);
+			sketches(AIRPORT, departureAirport)[DEPARTURE].add(departureDelay);
+			sketches(AIRPORT, arrivalAirport)[ARRIVAL].add(arrivalDelay);
+			if(plane >= 0){
+				s = sketches(PLANE, Integer.toString(plane));
+				s[DEPARTURE].add(departureDelay);
+				s[ARRIVAL].add(arrivalDelay);
+			}
+			if(pilot >= 0){
+				s = sketches(PILOT, Integer.toString(pilot));
+				s[DEPARTURE].add(departureDelay);
+				s[ARRIVAL].add(arrivalDelay);
+			}
+			all[DEPARTURE].add(departureDelay);
+			all[ARRIVAL].add(arrivalDelay);
+		}
+
+		/* merges o into this part */
+		Part merge(Part o){
+			for(int d = 0; d < DIMENSIONS; d++){
+				for(Map.Entry<String, DelaySketch[]> e : o.keys.get(d).entrySet()){
+					DelaySketch[] into = keys.get(d).get(e.getKey());
+					if(into == null){
+						keys.get(d).put(e.getKey(), e.getValue());
+					}else{
+						into[DEPARTURE].merge(e.getValue()[DEPARTURE]);
+						into[ARRIVAL].merge(e.getValue()[ARRIVAL]);
+					}
+				}
+			}
+			all[DEPARTURE].merge(o.all[DEPARTURE]);
+			all[ARRIVAL].merge(o.all[ARRIVAL]);
+			return this;
+		}
+	}
+
+	static final class Slice extends RecursiveTask<Part>{
+		private static final long serialVersionUID = 1L;
+
+		final ConnectionPool pool;
+		final long lo;
+		final long hi;
+		final long leaf;
+
+		Slice(ConnectionPool pool, long lo, long hi, long leaf){
+			this.pool = pool;
+			this.lo = lo;
+			this.hi = hi;
+			this.leaf = leaf;
+		}
+
+		protected Part compute(){
+			if(hi - lo > leaf){
+				long mid = lo + (hi - lo) / 2;
+				Slice left = new Slice(pool, lo, mid, leaf);
+				left.fork();
+				Part right = new Slice(pool, mid, hi, leaf).compute();
+				return right.merge(left.join());
+			}
+			try{
+				return query();
+			}catch(SQLException e){
+				throw new RuntimeException(e);
+			}
+		}
+
+		Part query() throws SQLException {
+			Part out = new Part();
+			Connection c = pool.borrow();
+			try{
+				//a cursor, so the slice is streamed rather than held in memory
+				c.setAutoCommit(false);
+				PreparedStatement ps = c.prepareStatement(SLICE_QUERY);
+				ps.setFetchSize(10000);
+				ps.setLong(1, lo);
+				ps.setLong(2, hi);
+				ResultSet rs = ps.executeQuery();
+				while(rs.next()){
+					int plane = rs.getInt(3);
+					if(rs.wasNull()) plane = -1;
+					int pilot = rs.getInt(4);
+					if(rs.wasNull()) pilot = -1;
+					out.add(rs.getString(1).trim(), rs.getString(2).trim(), plane, pilot, rs.getInt(5), rs.getInt(6));
+				}
+				ps.close();
+				c.commit();
+			}finally{
+				pool.giveBack(c);
+			}
+			return out;
+		}
+	}
+
+	/** Delays of one route, airport, plane or pilot. */
+	public static final class Row{
+		public final String key;
+		public final long flights;
+		public final double departureMedian;
+		public final double departureP90;
+		public final double arrivalMedian;
+		public final double arrivalP90;
+
+		/* an airport's flights are its departures plus its arrivals */
+		Row(String key, DelaySketch[] s, boolean airport){
+			this.key = key;
+			this.flights = airport ? s[DEPARTURE].count() + s[ARRIVAL].count() : s[DEPARTURE].count();
+			this.departureMedian = s[DEPARTURE].quantile(0.5);
+			this.departureP90 = s[DEPARTURE].quantile(0.9);
+			this.arrivalMedian = s[ARRIVAL].quantile(0.5);
+			this.arrivalP90 = s[ARRIVAL].quantile(0.9);
+		}
+	}
+
+	private final Part part;
+	public final long elapsedNanos;
+	public final int slices;
+
+	private DelayReport(Part part, long elapsedNanos, int slices){
+		this.part = part;
+		this.elapsedNanos = elapsedNanos;
+		this.slices = slices;
+	}
+
+	/**
+	 * Runs the report over every flight.
+	 *
+	 * @param esql the interactive connection, used only to find the key range
+	 * @param pool the connections the slices run on
+	 * @throws java.sql.SQLException when a slice fails
+	 */
+	public static DelayReport run(DBproject esql, ConnectionPool pool) throws SQLException {
+		long start = System.nanoTime();
+		List<List<String>> res = esql.executeQueryAndReturnResult("SELECT MIN(fnum), MAX(fnum) FROM Flight;");
+		if(res.isEmpty() || res.get(0).get(0) == null){
+			return new DelayReport(new Part(), System.nanoTime() - start, 0);
+		}
+		long lo = Long.parseLong(res.get(0).get(0));
+		long hi = Long.parseLong(res.get(0).get(1)) + 1;
+		long leaf = Math.max(10000, (hi - lo) / (pool.size() * 4L) + 1);
+		ForkJoinPool fj = new ForkJoinPool(pool.size());
+		try{
+			Part part = fj.invoke(new Slice(pool, lo, hi, leaf));
+			return new DelayReport(part, System.nanoTime() - start, (int)((hi - lo + leaf - 1) / leaf));
+		}catch(RuntimeException e){
+			if(e.getCause() instanceof SQLException) throw (SQLException)e.getCause();
+			throw e;
+		}finally{
+			fj.shutdown();
+		}
+	}
+
+	/**
+	 * Runs the report on every shard at once (see Shards), each over its own
+	 * report lane, and merges the sketches.
+	 *
+	 * @throws java.sql.SQLException when a shard fails
+	 */
+	public static DelayReport run(final Shards shards) throws SQLException {
+		long start = System.nanoTime();
+		List<DelayReport> parts = shards.scatter(new Shards.Task<DelayReport>(){
+			public DelayReport run(int shard) throws SQLException {
+				DBproject member = shards.member(shard);
+				return DelayReport.run(member, member.getReportLane());
+			}
+		});
+		Part part = new Part();
+		int slices = 0;
+		for(DelayReport p : parts){
+			part = part.merge(p.part);
+			slices += p.slices;
+		}
+		return new DelayReport(part, System.nanoTime() - start, slices);
+	}
+
+	/**
+	 * Folds in a flight added after the report was run.
+	 *
+	 * @param plane the plane id, or -1 if the flight has no FlightInfo
+	 * @param pilot the pilot id, or -1 likewise
+	 */
+	public synchronized void add(String departureAirport, String arrivalAirport, int plane, int pilot, int departureDelay, int arrivalDelay){
+		part.add(departureAirport, arrivalAirport, plane, pilot, departureDelay, arrivalDelay);
+	}
+
+	/** @return the delays of every flight */
+	public synchronized Row total(){
+		return new Row("all", part.all, false);
+	}
+
+	/**
+	 * @param dimension ROUTE, AIRPORT, PLANE or PILOT
+	 * @param minFlights leave out keys with fewer flights than this
+	 * @return the n keys with the highest 90th percentile arrival delay
+	 */
+	public synchronized List<Row> worst(int dimension, int n, long minFlights){
+		List<Row> rows = new ArrayList<Row>();
+		for(Map.Entry<String, DelaySketch[]> e : part.keys.get(dimension).entrySet()){
+			Row r = new Row(e.getKey(), e.getValue(), dimension == AIRPORT);
+			if(r.flights >= minFlights) rows.add(r);
+		}
+		Collections.sort(rows, new Comparator<Row>(){
+			public int compare(Row a, Row b){
+				int c = Double.compare(b.arrivalP90, a.arrivalP90);
+				return c != 0 ? c : Long.compare(b.flights, a.flights);
+			}
+		});
+		return rows.subList(0, Math.min(n, rows.size()));
+	}
+}
@@ -0,0 +1,134 @@
+import java.util.Arrays;
+
+/**
+ * Mergeable quantile sketch of delays in days, with relative accuracy ALPHA
+ * (the log-bucketed design known as DDSketch).  A positive delay v is counted
+ * in bucket ceil(log_gamma(v)), gamma = (1 + ALPHA) / (1 - ALPHA); negative
+ * delays (early flights) go to a mirrored store and zero to its own counter.
+ * Any quantile is then within ALPHA of the true value, two sketches merge by
+ * adding their buckets, and a store never holds more than MAX_BUCKETS
+ * counters: past that the buckets nearest zero are folded together, which
+ * only costs accuracy on the smallest delays.
+ *
+ * Not thread-safe.
+ */
+public class DelaySketch{
+	static final double ALPHA = 0.01;
+	static final double GAMMA = (1 + ALPHA) / (1 - ALPHA);
+	static final double LOG_GAMMA = Math.log(GAMMA);
+	static final int MAX_BUCKETS = 2048;
+
+	/** Dense counters for bucket indexes offset .. offset + counts.length - 1. */
+	static final class Store{
+		long[] counts = new long[0];
+		int offset = 0;
+		long total = 0;
+
+		void add(int index, long n){
+			if(counts.length == 0){
+				counts = new long[8];
+				offset = index;
+			}
+			else if(index < offset){
+				int grow = Math.max(offset - index, counts.length);
+				long[] c = new long[counts.length + grow];
+				System.arraycopy(counts, 0, c, grow, counts.length);
+				counts = c;
+				offset -= grow;
+			}
+			else if(index >= offset + counts.length){
+				counts = Arrays.copyOf(counts, Math.max(index - offset + 1, counts.length * 2));
+			}
+			counts[index - offset] += n;
+			total += n;
+			if(counts.length > MAX_BUCKETS) collapse();
+		}
+
+		/* folds the lowest buckets into one so that MAX_BUCKETS remain */
+		void collapse(){
+			int hi = offset + counts.length - 1;
+			while(hi > offset && counts[hi - offset] == 0) hi--;
+			int lo = Math.max(offset, hi - MAX_BUCKETS + 1);
+			long folded = 0;
+			for(int i = offset; i <= lo; i++) folded += counts[i - offset];
+			long[] c = new long[hi - lo + 1];
+			System.arraycopy(counts, lo - offset, c, 0, c.length);
+			c[0] = folded;
+			counts = c;
+			offset = lo;
+		}
+
+		void merge(Store o){
+			for(int i = 0; i < o.counts.length; i++){
+				if(o.counts[i] != 0) add(o.offset + i, o.counts[i]);
+			}
+		}
+	}
+
+	private final Store positive = new Store();
+	private final Store negative = new Store();
+	private long zero = 0;
+	private long sum = 0;
+	private int min = Integer.MAX_VALUE;
+	private int max = Integer.MIN_VALUE;
+
+	static int index(int v){
+		return (int)Math.ceil(Math.log(v) / LOG_GAMMA);
+	}
+
+	static double value(int index){
+		return 2 * Math.pow(GAMMA, index) / (GAMMA + 1);
+	}
+
+	public void add(int days){
+		if(days > 0) positive.add(index(days), 1);
+		else if(days < 0) negative.add(index(-days), 1);
+		else zero++;
+		sum += days;
+		min = Math.min(min, days);
+		max = Math.max(max, days);
+	}
+
+	public void merge(DelaySketch o){
+		positive.merge(o.positive);
+		negative.merge(o.negative);
+		zero += o.zero;
+		sum += o.sum;
+		min = Math.min(min, o.min);
+		max = Math.max(max, o.max);
+	}
+
+	public long count(){
+		return positive.total + negative.total + zero;
+	}
+
+	public double mean(){
+		return count() == 0 ? 0 : (double)sum / count();
+	}
+
+	/**
+	 * @param q between 0 and 1
+	 * @return the delay in days at quantile q, or 0 for an empty sketch
+	 */
+	public double quantile(double q){
+		long n = count();
+		if(n == 0) return 0;
+		long rank = (long)(q * (n - 1));
+		//most negative first: the negative store from its highest bucket down
+		for(int i = negative.counts.length - 1; i >= 0; i--){
+			rank -= negative.counts[i];
+			if(rank < 0) return clamp(-value(negative.offset + i));
+		}
+		rank -= zero;
+		if(rank < 0) return 0;
+		for(int i = 0; i < positive.counts.length; i++){
+			rank -= positive.counts[i];
+			if(rank < 0) return clamp(value(positive.offset + i));
+		}
+		return max;
+	}
+
+	private double clamp(double v){
+		return Math.max(min, Math.min(max, v));
+	}
+}
@@ -0,0 +1,343 @@
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Departure boards: for every airport, its scheduled departures in order of
+ * departure day, each with the seats left on the flight.
+ *
+ * An airport's departures are an immutable array sorted by (day, fnum), so
+ * "the next K departures from X" is one binary search followed by K array
+ * reads, without locks; refreshing boards costs no database work at all.
+ * Adding a flight copies the arrays of its airport and swaps them in.  Seats
+ * left come from one reserved counter per flight, shared by all its
+ * departures, that bookings update in place.
+ *
+ * Every change bumps the airport's version and is pushed to the listeners
+ * subscribed to that airport.
+ */
+public class DepartureBoard{
+	static final String LOAD_QUERY = "SELECT S.departure_time, F.fnum, F.departure_airport, F.arrival_airport, P.seats, COALESCE(R.n, 0) "
+		+ "FROM Schedule S JOIN Flight F ON F.fnum = S.flightNum "
+		+ "LEFT JOIN FlightInfo FI ON FI.flight_id = F.fnum LEFT JOIN Plane P ON P.id = FI.plane_id "
+		+ "LEFT JOIN (SELECT fid, COUNT(*) AS n FROM Reservation WHERE status = 'R' GROUP BY fid) R ON R.fid = F.fnum";
+
+	/** Told about every change to the board of an airport it subscribed to. */
+	public interface Listener{
+		void changed(String airport, long version);
+	}
+
+	/** Seats of one flight, shared by all its departures. */
+	static final class Seats{
+		final int capacity;
+		final AtomicInteger reserved;
+
+		Seats(int capacity, int reserved){
+			this.capacity = capacity;
+			this.reserved = new AtomicInteger(reserved);
+		}
+	}
+
+	/** One scheduled departure of a flight. */
+	public static final class Departure{
+		public final LocalDate day;
+		public final int flightNum;
+		public final String to;
+		final Seats seats;
+
+		Departure(LocalDate day, int flightNum, String to, Seats seats){
+			this.day = day;
+			this.flightNum = flightNum;
+			this.to = to;
+			this.seats = seats;
+		}
+
+		long key(){
+			return DepartureBoard.key(day.toEpochDay(), flightNum);
+		}
+
+		/** @return the seats left, or -1 if the flight has no plane */
+		public int seatsLeft(){
+			return seats.capacity < 0 ? -1 : Math.max(0, seats.capacity - seats.reserved.get());
+		}
+	}
+
+	static long key(long day, int flightNum){
+		return (day << 32) | (flightNum & 0xffffffffL);
+	}
+
+	/** The departures of one airport; replaced, never changed. */
+	static final class Board{
+		final long[] keys;
+		final Departure[] departures;
+
+		Board(Departure[] departures){
+			this.departures = departures;
+			this.keys = new long[departures.length];
+			for(int i = 0; i < departures.length; i++) keys[i] = departures[i].key();
+		}
+	}
+
+	static final class Airport{
+		volatile Board board = new Board(new Departure[0]);
+		volatile long version = 0;
+		final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+	}
+
+	static final Comparator<Departure> BY_KEY = new Comparator<Departure>(){
+		public int compare(Departure a, Departure b){
+			return Long.compare(a.key(), b.key());
+		}
+	};
+
+	private final ConcurrentHashMap<String, Airport> airports = new ConcurrentHashMap<String, Airport>();
+	/* flight number to seats, and to the airport it leaves from */
+	private final ConcurrentHashMap<Integer, Seats> seats = new ConcurrentHashMap<Integer, Seats>();
+	private final ConcurrentHashMap<Integer, String> origins = new ConcurrentHashMap<Integer, String>();
+
+	/**
+	 * Loads every scheduled departure in one streamed query on its own
+	 * connection; with shards (see Shards), one per shard at once.
+	 */
+	public static DepartureBoard load(DBproject esql) throws SQLException {
+		final DepartureBoard board = new DepartureBoard();
+		Map<String, List<Departure>> byAirport = new HashMap<String, List<Departure>>();
+		final Shards shards = esql.getShards();
+		if(shards == null){
+			board.read(esql, byAirport);
+		}else{
+			List<Map<String, List<Departure>>> parts = shards.scatter(new Shards.Task<Map<String, List<Departure>>>(){
+				public Map<String, List<Departure>> run(int shard) throws SQLException {
+					Map<String, List<Departure>> part = new HashMap<String, List<Departure>>();
+					board.read(shards.member(shard), part);
+					return part;
+				}
+			});
+			for(Map<String, List<Departure>> part : parts){
+				for(Map.Entry<String, List<Departure>> e : part.entrySet()){
+					List<Departure> list = byAirport.get(e.getKey());
+					if(list == null) byAirport.put(e.getKey(), e.getValue());
+					else list.addAll(e.getValue());
+				}
+			}
+		}
+		for(Map.Entry<String, List<Departure>> e : byAirport.entrySet()){
+			Departure[] d = e.getValue().toArray(new Departure[0]);
+			Arrays.sort(d, BY_KEY);
+			board.airport(e.getKey()).board = new Board(d);
+		}
+		return board;
+	}
+
+	/* reads the departures of one database into byAirport */
+	private void read(DBproject esql, Map<String, List<Departure>> byAirport) throws SQLException {
+		Connection conn = esql.openConnection();
+		try{
+			conn.setAutoCommit(false);
+			Statement stmt = conn.createStatement();
+			stmt.setFetchSize(10000);
+			ResultSet rs = stmt.executeQuery(LOAD_QUERY);
+			while(rs.next()){
+				int fnum = rs.getInt(2);
+				String from = rs.getString(3).trim();
+				Seats s = seats.get(fnum);
+				if(s == null){
+					int capacity = rs.getInt(5);
+					if(rs.wasNull()) capacity = -1;
+					s = new Seats(capacity, rs.getInt(6));
+					seats.put(fnum, s);
+					origins.put(fnum, from);
+				}
+				List<Departure> list = byAirport.get(from);
+				if(list == null){
+					list = new ArrayList<Departure>();
+					byAirport.put(from, list);
+				}
+				list.add(new Departure(rs.getDate(1).toLocalDate(), fnum, rs.getString(4).trim(), s));
+			}
+			stmt.close();
+			conn.commit();
+		}finally{
+			conn.close();
+		}
+	}
+
+	Airport airport(String code){
+		Airport a = airports.get(code);
+		if(a == null){
+			Airport fresh = new Airport();
+			a = airports.putIfAbsent(code, fresh);
+			if(a == null) a = fresh;
+		}
+		return a;
+	}
+
+	/**
+	 * @return the first k departures from the airport on or after the given
+	 *         day, in order of departure
+	 */
+	public List<Departure> next(String airport, LocalDate from, int k){
+		Airport a = airports.get(airport);
+		if(a == null) return new ArrayList<Departure>();
+		Board b = a.board;
+		int i = Arrays.binarySearch(b.keys, key(from.toEpochDay(), 0));
+		if(i < 0) i = -i - 1;
+		int end = Math.min(b.keys.length, i + k);
+		List<Departure> out = new ArrayList<Departure>(end - i);
+		for(; i < end; i++) out.add(b.departures[i]);
+		return out;
+	}
+
+	/** @return a number that changes whenever the airport's board does */
+	public long version(String airport){
+		Airport a = airports.get(airport);
+		return a == null ? 0 : a.version;
+	}
+
+	public void subscribe(String airport, Listener l){
+		airport(airport).listeners.add(l);
+	}
+
+	public void unsubscribe(String airport, Listener l){
+		airport(airport).listeners.remove(l);
+	}
+
+	private void changed(String code){
+		Airport a = airport(code);
+		long v;
+		synchronized(a){
+			v = ++a.version;
+		}
+		for(Listener l : a.listeners) l.changed(code, v);
+	}
+
+	/**
+	 * Adds a flight scheduled to depart on the given day.
+	 *
+	 * @param capacity the seats of its plane
+	 */
+	public void addFlight(int flightNum, String from, String to, int capacity, LocalDate day){
+		Seats s = new Seats(capacity, 0);
+		Seats had = seats.putIfAbsent(flightNum, s);
+		if(had != null) s = had;
+		origins.put(flightNum, from);
+		Airport a = airport(from);
+		synchronized(a){
+			Departure[] old = a.board.departures;
+			Departure d = new Departure(day, flightNum, to, s);
+			int i = Arrays.binarySearch(a.board.keys, d.key());
+			if(i >= 0) return;
+			i = -i - 1;
+			Departure[] next = new Departure[old.length + 1];
+			System.arraycopy(old, 0, next, 0, i);
+			next[i] = d;
+			System.arraycopy(old, i, next, i + 1, old.length - i);
+			a.board = new Board(next);
+		}
+		changed(from);
+	}
+
+	/**
+	 * Records seats reserved (or released, with a negative count) on a flight.
+	 */
+	public void booked(int flightNum, int reserved){
+		Seats s = seats.get(flightNum);
+		if(s == null) return;
+		s.reserved.addAndGet(reserved);
+		changed(origins.get(flightNum));
+	}
+
+	/**
+	 * Re-counts the reserved seats of the given flights, after other
+	 * processes booked or cancelled on them.
+	 */
+	public void refreshReservations(DBproject esql, int[] flightNums) throws SQLException {
+		if(flightNums.length == 0) return;
+		StringBuilder in = new StringBuilder();
+		for(int f : flightNums){
+			if(in.length() > 0) in.append(", ");
+			in.append(f);
+		}
+		Map<Integer, Integer> counts = new HashMap<Integer, Integer>();
+		for(List<String> r : esql.executeQueryOnAllShards("SELECT fid, COUNT(*) FROM Reservation WHERE status = 'R' AND fid IN (" + in + ") GROUP BY fid;")){
+			counts.put(Integer.parseInt(r.get(0)), Integer.parseInt(r.get(1)));
+		}
+		for(int f : flightNums){
+			Seats s = seats.get(f);
+			if(s == null) continue;
+			Integer n = counts.get(f);
+			s.reserved.set(n == null ? 0 : n);
+			changed(origins.get(f));
+		}
+	}
+
+	/**
+	 * Measures board refreshes: threads ask for the next ten departures of
+	 * random airports as fast as they can.
+	 *
+	 * Usage:
+	 *   java -cp lib/*:bin/ DepartureBoard <dbname> <port> <user> [threads] [seconds]
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 3) {
+			System.err.println("Usage: java [-classpath <classpath>] DepartureBoard <dbname> <port> <user> [threads] [seconds]");
+			return;
+		}
+		int threads = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+		final long seconds = args.length > 4 ? Long.parseLong(args[4]) : 5;
+		Class.forName("org.postgresql.Driver");
+		DBproject esql = new DBproject(args[0], args[1], args[2], "");
+		try{
+			long start = System.nanoTime();
+			final DepartureBoard board = load(esql);
+			System.out.println("Loaded " + board.seats.size() + " flights from " + board.airports.size() + " airports in " + (System.nanoTime() - start) / 1000000 + " ms");
+			final String[] codes = board.airports.keySet().toArray(new String[0]);
+			if(codes.length == 0) return;
+			final LocalDate today = LocalDate.now();
+			final long[] refreshes = new long[threads];
+			//the seats read are summed so the reads cannot be optimized away
+			final long[] seatsSeen = new long[threads];
+			Thread[] workers = new Thread[threads];
+			for(int t = 0; t < threads; t++){
+				final int slot = t;
+				workers[t] = new Thread(new Runnable(){
+					public void run(){
+						SplittableRandom random = new SplittableRandom(slot);
+						long end = System.nanoTime() + seconds * 1000000000L;
+						long n = 0;
+						long seen = 0;
+						while(System.nanoTime() < end){
+							for(Departure d : board.next(codes[random.nextInt(codes.length)], today.minusDays(random.nextInt(5000)), 10)){
+								seen += d.seatsLeft();
+							}
+							n++;
+						}
+						refreshes[slot] = n;
+						seatsSeen[slot] = seen;
+					}
+				});
+				workers[t].start();
+			}
+			long total = 0;
+			for(int t = 0; t < threads; t++){
+				workers[t].join();
+				total += refreshes[t];
+			}
+			System.out.println(total + " board refreshes on " + threads + " threads in " + seconds + " s (" + total / seconds + " per second)");
+		}finally{
+			esql.cleanup();
+		}
+	}
+}
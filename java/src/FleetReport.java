@@ -0,0 +1,218 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Fleet revenue and load-factor report.
+ *
+ * Revenue of a flight is cost * num_sold and its load factor is num_sold over
+ * the seats of the plane assigned to it in FlightInfo.  The fnum key range is
+ * split recursively with fork-join; every leaf borrows a pooled connection,
+ * aggregates its slice by route on the server (a primary key range scan), and
+ * the partial per-route aggregates are merged on the way back up.  Per-airport
+ * and fleet totals are then derived from the merged routes.
+ */
+public class FleetReport{
+	/* index into the per-route aggregate arrays */
+	public static final int FLIGHTS = 0;
+	public static final int REVENUE = 1;
+	public static final int SOLD = 2;
+	public static final int SEATS = 3;
+	public static final int SOLD_WITH_PLANE = 4;
+	static final int FIELDS = 5;
+
+	static final String SLICE_QUERY = "SELECT F.departure_airport, F.arrival_airport, COUNT(*), SUM(F.cost::bigint * F.num_sold), SUM(F.num_sold), "
+		+ "SUM(P.seats), SUM(CASE WHEN P.seats IS NULL THEN 0 ELSE F.num_sold END) "
+		+ "FROM Flight F LEFT JOIN FlightInfo FI ON FI.flight_id = F.fnum LEFT JOIN Plane P ON P.id = FI.plane_id "
+		+ "WHERE F.fnum >= ? AND F.fnum < ? GROUP BY F.departure_airport, F.arrival_airport";
+
+	/** Route "DEP-ARR" to aggregates. */
+	public final Map<String, long[]> routes;
+	public final long elapsedNanos;
+	public final int slices;
+
+	private FleetReport(Map<String, long[]> routes, long elapsedNanos, int slices){
+		this.routes = routes;
+		this.elapsedNanos = elapsedNanos;
+		this.slices = slices;
+	}
+
+	static final class Slice extends RecursiveTask<Map<String, long[]>>{
+		private static final long serialVersionUID = 1L;
+
+		final ConnectionPool pool;
+		final long lo;
+		final long hi;
+		final long leaf;
+
+		Slice(ConnectionPool pool, long lo, long hi, long leaf){
+			this.pool = pool;
+			this.lo = lo;
+			this.hi = hi;
+			this.leaf = leaf;
+		}
+
+		protected Map<String, long[]> compute(){
+			if(hi - lo > leaf){
+				long mid = lo + (hi - lo) / 2;
+				Slice left = new Slice(pool, lo, mid, leaf);
+				left.fork();
+				Map<String, long[]> right = new Slice(pool, mid, hi, leaf).compute();
+				return merge(left.join(), right);
+			}
+			try{
+				return query();
+			}catch(SQLException e){
+				throw new RuntimeException(e);
+			}
+		}
+
+		Map<String, long[]> query() throws SQLException {
+			Map<String, long[]> out = new HashMap<String, long[]>();
+			Connection c = pool.borrow();
+			try{
+				PreparedStatement ps = c.prepareStatement(SLICE_QUERY);
+				ps.setLong(1, lo);
+				ps.setLong(2, hi);
+				ResultSet rs = ps.executeQuery();
+				while(rs.next()){
+					long[] a = new long[FIELDS];
+					a[FLIGHTS] = rs.getLong(3);
+					a[REVENUE] = rs.getLong(4);
+					a[SOLD] = rs.getLong(5);
+					a[SEATS] = rs.getLong(6);
+					a[SOLD_WITH_PLANE] = rs.getLong(7);
+					out.put(rs.getString(1).trim() + "-" + rs.getString(2).trim(), a);
+				}
+				ps.close();
+			}finally{
+				pool.giveBack(c);
+			}
+			return out;
+		}
+	}
+
+	/* adds the smaller map into the larger one */
+	static Map<String, long[]> merge(Map<String, long[]> a, Map<String, long[]> b){
+		if(a.size() < b.size()){
+			Map<String, long[]> t = a;
+			a = b;
+			b = t;
+		}
+		for(Map.Entry<String, long[]> e : b.entrySet()){
+			long[] into = a.get(e.getKey());
+			if(into == null){
+				a.put(e.getKey(), e.getValue());
+			}else{
+				for(int i = 0; i < FIELDS; i++) into[i] += e.getValue()[i];
+			}
+		}
+		return a;
+	}
+
+	/**
+	 * Runs the report over every flight.
+	 *
+	 * @param esql the interactive connection, used only to find the key range
+	 * @param pool the connections the slices run on
+	 * @throws java.sql.SQLException when a slice fails
+	 */
+	public static FleetReport run(DBproject esql, ConnectionPool pool) throws SQLException {
+		long start = System.nanoTime();
+		List<List<String>> res = esql.executeQueryAndReturnResult("SELECT MIN(fnum), MAX(fnum) FROM Flight;");
+		if(res.isEmpty() || res.get(0).get(0) == null){
+			return new FleetReport(new HashMap<String, long[]>(), System.nanoTime() - start, 0);
+		}
+		long lo = Long.parseLong(res.get(0).get(0));
+		long hi = Long.parseLong(res.get(0).get(1)) + 1;
+		//about four slices per connection keeps every connection busy
+		long leaf = Math.max(10000, (hi - lo) / (pool.size() * 4L) + 1);
+		ForkJoinPool fj = new ForkJoinPool(pool.size());
+		try{
+			Map<String, long[]> routes = fj.invoke(new Slice(pool, lo, hi, leaf));
+			return new FleetReport(routes, System.nanoTime() - start, (int)((hi - lo + leaf - 1) / leaf));
+		}catch(RuntimeException e){
+			if(e.getCause() instanceof SQLException) throw (SQLException)e.getCause();
+			throw e;
+		}finally{
+			fj.shutdown();
+		}
+	}
+
+	/**
+	 * Runs the report on every shard at once (see Shards), each over its own
+	 * report lane, and merges the routes.
+	 *
+	 * @throws java.sql.SQLException when a shard fails
+	 */
+	public static FleetReport run(final Shards shards) throws SQLException {
+		long start = System.nanoTime();
+		List<FleetReport> parts = shards.scatter(new Shards.Task<FleetReport>(){
+			public FleetReport run(int shard) throws SQLException {
+				DBproject member = shards.member(shard);
+				return FleetReport.run(member, member.getReportLane());
+			}
+		});
+		Map<String, long[]> routes = new HashMap<String, long[]>();
+		int slices = 0;
+		for(FleetReport p : parts){
+			routes = merge(routes, p.routes);
+			slices += p.slices;
+		}
+		return new FleetReport(routes, System.nanoTime() - start, slices);
+	}
+
+	public long[] totals(){
+		long[] t = new long[FIELDS];
+		for(long[] a : routes.values()){
+			for(int i = 0; i < FIELDS; i++) t[i] += a[i];
+		}
+		return t;
+	}
+
+	/**
+	 * Per-airport totals: every route counts for both its departure and its
+	 * arrival airport.
+	 */
+	public Map<String, long[]> airports(){
+		Map<String, long[]> out = new HashMap<String, long[]>();
+		for(Map.Entry<String, long[]> e : routes.entrySet()){
+			String[] ends = e.getKey().split("-");
+			for(String airport : ends){
+				long[] into = out.get(airport);
+				if(into == null){
+					into = new long[FIELDS];
+					out.put(airport, into);
+				}
+				for(int i = 0; i < FIELDS; i++) into[i] += e.getValue()[i];
+			}
+		}
+		return out;
+	}
+
+	public static double loadFactor(long[] a){
+		return a[SEATS] == 0 ? 0 : 100.0 * a[SOLD_WITH_PLANE] / a[SEATS];
+	}
+
+	/**
+	 * @return the n entries with the highest revenue
+	 */
+	public static List<Map.Entry<String, long[]>> top(Map<String, long[]> m, int n){
+		List<Map.Entry<String, long[]>> list = new ArrayList<Map.Entry<String, long[]>>(m.entrySet());
+		Collections.sort(list, new Comparator<Map.Entry<String, long[]>>(){
+			public int compare(Map.Entry<String, long[]> a, Map.Entry<String, long[]> b){
+				return Long.compare(b.getValue()[REVENUE], a.getValue()[REVENUE]);
+			}
+		});
+		return list.subList(0, Math.min(n, list.size()));
+	}
+}
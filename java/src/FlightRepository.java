@@ -0,0 +1,105 @@
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.List;
+
+/**
+ * The storage behind the menu operations of DBproject.  JdbcRepository runs
+ * them on the Postgres database; MemoryRepository keeps everything in memory
+ * and enforces the same domain rules, as an upper bound in RepositoryBenchmark.
+ *
+ * Both implementations report violated constraints as SQLExceptions with the
+ * Postgres SQLSTATE (23505 duplicate key, 23503 foreign key, 23514 check,
+ * 22001 value too long), so callers handle them the same way.
+ */
+public interface FlightRepository{
+	/** @return the id given to the new plane */
+	int addPlane(String make, String model, int age, int seats) throws SQLException;
+
+	/** @return the id given to the new pilot */
+	int addPilot(String fullName, String nationality) throws SQLException;
+
+	/** @return the id given to the new technician */
+	int addTechnician(String fullName) throws SQLException;
+
+	/**
+	 * Adds a flight with its FlightInfo (pilot and plane) and Schedule rows,
+	 * all or nothing.  FlightInfo and Schedule get the flight number as id.
+	 *
+	 * @return the flight number given to the new flight
+	 */
+	int addFlight(int cost, int numSold, int numStops, LocalDateTime actualDeparture, LocalDateTime actualArrival,
+		String arrivalAirport, String departureAirport, int pilotId, int planeId,
+		LocalDateTime scheduledDeparture, LocalDateTime scheduledArrival) throws SQLException;
+
+	/**
+	 * @return the seats of the plane flying the flight scheduled to depart on
+	 *         the given day, or -1 if the flight is not scheduled that day
+	 */
+	int seats(int flightNum, LocalDate departure) throws SQLException;
+
+	/**
+	 * Seats left on many flights at once: the seats of the plane less the
+	 * reserved and completed reservations, as ListNumberOfAvailableSeats counts
+	 * them, and never below zero.
+	 *
+	 * @param departures the departure day of each flight, parallel to flightNums
+	 * @return the seats left, parallel to flightNums, -1 where the flight is
+	 *         not scheduled that day
+	 */
+	int[] seatsLeft(int[] flightNums, LocalDate[] departures) throws SQLException;
+
+	/** @return the scheduled departure days of a flight */
+	List<LocalDate> departures(int flightNum) throws SQLException;
+
+	/**
+	 * @param statuses the statuses to count, e.g. "R" or "RC"
+	 * @return the reservations on the flight with one of those statuses
+	 */
+	int countReservations(int flightNum, String statuses) throws SQLException;
+
+	/** @return the reservation number given to the new reservation */
+	int book(int customerId, int flightNum, char status) throws SQLException;
+
+	/**
+	 * Books several customers on one flight in a single insert, all or nothing.
+	 *
+	 * @param statuses the status of each reservation, parallel to customerIds
+	 * @return the reservation numbers, parallel to customerIds
+	 */
+	int[] bookAll(int flightNum, int[] customerIds, char[] statuses) throws SQLException;
+
+	/**
+	 * Books a group on a flight departing on the given day with one capacity
+	 * check and one insert, in one transaction.  With partial, the customers
+	 * are reserved in order while seats are left and the rest are waitlisted;
+	 * otherwise the group is reserved only if all of it fits.
+	 *
+	 * @param statuses filled with the status of each reservation, parallel to customerIds
+	 * @return the reservation numbers, parallel to customerIds, or null if the
+	 *         group did not fit and nothing was booked
+	 * @throws SQLException with SQLSTATE 02000 if the flight is not scheduled that day
+	 */
+	int[] bookGroup(int flightNum, LocalDate departure, int[] customerIds, char[] statuses, boolean partial) throws SQLException;
+
+	/** Work on one flight, run by atomically(). */
+	interface Work<T>{
+		T run() throws SQLException;
+	}
+
+	/**
+	 * Runs work on one flight as one transaction holding the flight's lock, so
+	 * a capacity check and the bookings it admits commit together, and no
+	 * other booking of the flight (group or single, from any process) runs in
+	 * between.
+	 *
+	 * @return what the work returned
+	 */
+	<T> T atomically(int flightNum, Work<T> work) throws SQLException;
+
+	/** @return (plane id, repairs, model) records, most repairs first */
+	List<List<String>> repairsPerPlane() throws SQLException;
+
+	/** @return (year, repairs) records, fewest repairs first */
+	List<List<String>> repairsPerYear() throws SQLException;
+}
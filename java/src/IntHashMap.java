@@ -0,0 +1,97 @@
+/**
+ * Open-addressing hash map from int keys to objects, without boxing the keys.
+ * Keys are spread with a Fibonacci hash and probed linearly; the table doubles
+ * at a load factor of one half.  Integer.MIN_VALUE cannot be a key.
+ * There is no removal; the in-memory tables only ever grow.
+ *
+ * Not thread-safe.
+ */
+public class IntHashMap<V>{
+	static final int EMPTY = Integer.MIN_VALUE;
+
+	/** Called for every entry by forEach. */
+	public interface Visitor<V>{
+		void visit(int key, V value);
+	}
+
+	private int[] keys;
+	private Object[] values;
+	private int size = 0;
+	private int mask;
+	private int shift;
+
+	public IntHashMap(){
+		this(16);
+	}
+
+	public IntHashMap(int expected){
+		int cap = 16;
+		while(cap < expected * 2) cap <<= 1;
+		allocate(cap);
+	}
+
+	private void allocate(int cap){
+		keys = new int[cap];
+		java.util.Arrays.fill(keys, EMPTY);
+		values = new Object[cap];
+		mask = cap - 1;
+		shift = Integer.numberOfLeadingZeros(cap) + 1;
+	}
+
+	private int slot(int key){
+		int i = (key * 0x9E3779B9) >>> shift;
+		while(keys[i] != EMPTY && keys[i] != key) i = (i + 1) & mask;
+		return i;
+	}
+
+	public int size(){
+		return size;
+	}
+
+	@SuppressWarnings("unchecked")
+	public V get(int key){
+		int i = slot(key);
+		return keys[i] == key ? (V)values[i] : null;
+	}
+
+	public boolean containsKey(int key){
+		return keys[slot(key)] == key;
+	}
+
+	/**
+	 * @return the previous value, or null if the key is new
+	 */
+	@SuppressWarnings("unchecked")
+	public V put(int key, V value){
+		if(key == EMPTY) throw new IllegalArgumentException("Integer.MIN_VALUE cannot be a key");
+		int i = slot(key);
+		if(keys[i] == key){
+			V prev = (V)values[i];
+			values[i] = value;
+			return prev;
+		}
+		keys[i] = key;
+		values[i] = value;
+		if(++size * 2 > keys.length) grow();
+		return null;
+	}
+
+	private void grow(){
+		int[] oldKeys = keys;
+		Object[] oldValues = values;
+		allocate(keys.length * 2);
+		for(int j = 0; j < oldKeys.length; j++){
+			if(oldKeys[j] == EMPTY) continue;
+			int i = slot(oldKeys[j]);
+			keys[i] = oldKeys[j];
+			values[i] = oldValues[j];
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	public void forEach(Visitor<? super V> visitor){
+		for(int i = 0; i < keys.length; i++){
+			if(keys[i] != EMPTY) visitor.visit(keys[i], (V)values[i]);
+		}
+	}
+}
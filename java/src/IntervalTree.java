@@ -0,0 +1,191 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An augmented AVL tree of half-open intervals [start, end), each tagged with
+ * an integer id (a flight number).  Every node stores the largest end in its
+ * subtree, so "does anything overlap [s, e)?" is answered in O(log n) and
+ * listing the k overlaps costs O(log n + k).
+ */
+public class IntervalTree{
+	static final class Node{
+		long start;
+		long end;
+		long maxEnd;
+		int id;
+		int height = 1;
+		Node left;
+		Node right;
+
+		Node(long start, long end, int id){
+			this.start = start;
+			this.end = end;
+			this.maxEnd = end;
+			this.id = id;
+		}
+	}
+
+	private Node root = null;
+	private int size = 0;
+
+	public int size(){
+		return size;
+	}
+
+	public void insert(long start, long end, int id){
+		root = insert(root, start, end, id);
+		size++;
+	}
+
+	public boolean remove(long start, int id){
+		int before = size;
+		root = remove(root, start, id);
+		return size < before;
+	}
+
+	/**
+	 * Returns the id of some interval overlapping [start, end), or -1 if there
+	 * is none.  Only one root-to-leaf path is followed.
+	 */
+	public int anyOverlap(long start, long end){
+		Node n = root;
+		while(n != null){
+			if(n.start < end && start < n.end) return n.id;
+			if(n.left != null && n.left.maxEnd > start) n = n.left;
+			else n = n.right;
+		}
+		return -1;
+	}
+
+	/**
+	 * Collects the ids of every interval overlapping [start, end).
+	 */
+	public List<Integer> overlaps(long start, long end){
+		List<Integer> out = new ArrayList<Integer>();
+		overlaps(root, start, end, out);
+		return out;
+	}
+
+	private void overlaps(Node n, long start, long end, List<Integer> out){
+		if(n == null || n.maxEnd <= start) return;
+		overlaps(n.left, start, end, out);
+		if(n.start < end && start < n.end) out.add(n.id);
+		if(n.start < end) overlaps(n.right, start, end, out);
+	}
+
+	/**
+	 * Reports every pair of overlapping intervals in the tree.  The in-order
+	 * walk yields intervals sorted by start, so a sweep that keeps only the
+	 * still-open intervals finds all pairs in O(n log n + k).
+	 */
+	public void forEachOverlappingPair(PairConsumer consumer){
+		List<Node> sorted = new ArrayList<Node>(size);
+		inOrder(root, sorted);
+		List<Node> open = new ArrayList<Node>();
+		for(Node n : sorted){
+			for(int i = open.size() - 1; i >= 0; i--){
+				if(open.get(i).end <= n.start){
+					open.set(i, open.get(open.size() - 1));
+					open.remove(open.size() - 1);
+				}
+			}
+			for(Node o : open){
+				consumer.accept(o.id, n.id);
+			}
+			open.add(n);
+		}
+	}
+
+	public interface PairConsumer{
+		void accept(int first, int second);
+	}
+
+	private void inOrder(Node n, List<Node> out){
+		if(n == null) return;
+		inOrder(n.left, out);
+		out.add(n);
+		inOrder(n.right, out);
+	}
+
+	private static int height(Node n){
+		return n == null ? 0 : n.height;
+	}
+
+	private static void update(Node n){
+		n.height = 1 + Math.max(height(n.left), height(n.right));
+		n.maxEnd = n.end;
+		if(n.left != null && n.left.maxEnd > n.maxEnd) n.maxEnd = n.left.maxEnd;
+		if(n.right != null && n.right.maxEnd > n.maxEnd) n.maxEnd = n.right.maxEnd;
+	}
+
+	private static Node rotateRight(Node n){
+		Node l = n.left;
+		n.left = l.right;
+		l.right = n;
+		update(n);
+		update(l);
+		return l;
+	}
+
+	private static Node rotateLeft(Node n){
+		Node r = n.right;
+		n.right = r.left;
+		r.left = n;
+		update(n);
+		update(r);
+		return r;
+	}
+
+	private static Node balance(Node n){
+		update(n);
+		int diff = height(n.left) - height(n.right);
+		if(diff > 1){
+			if(height(n.left.left) < height(n.left.right)) n.left = rotateLeft(n.left);
+			return rotateRight(n);
+		}
+		if(diff < -1){
+			if(height(n.right.right) < height(n.right.left)) n.right = rotateRight(n.right);
+			return rotateLeft(n);
+		}
+		return n;
+	}
+
+	private static int compare(long start, int id, Node n){
+		if(start != n.start) return start < n.start ? -1 : 1;
+		return Integer.compare(id, n.id);
+	}
+
+	private static Node insert(Node n, long start, long end, int id){
+		if(n == null) return new Node(start, end, id);
+		if(compare(start, id, n) < 0) n.left = insert(n.left, start, end, id);
+		else n.right = insert(n.right, start, end, id);
+		return balance(n);
+	}
+
+	private Node remove(Node n, long start, int id){
+		if(n == null) return null;
+		int c = compare(start, id, n);
+		if(c < 0){
+			n.left = remove(n.left, start, id);
+		}else if(c > 0){
+			n.right = remove(n.right, start, id);
+		}else{
+			size--;
+			if(n.left == null) return n.right;
+			if(n.right == null) return n.left;
+			Node min = n.right;
+			while(min.left != null) min = min.left;
+			n.right = removeMin(n.right);
+			min.left = n.left;
+			min.right = n.right;
+			return balance(min);
+		}
+		return balance(n);
+	}
+
+	private static Node removeMin(Node n){
+		if(n.left == null) return n.right;
+		n.left = removeMin(n.left);
+		return balance(n);
+	}
+}
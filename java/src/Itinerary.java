@@ -0,0 +1,132 @@
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A customer's reservations joined with the flight and its scheduled days,
+ * ordered by departure.  Pages are fetched with a keyset, the (departure_time,
+ * rnum) of the last row seen, so a later page costs the same as the first: the
+ * ReservationCustomer index on (cid, fid, status, rnum) finds the customer's
+ * reservations without touching the table, and ScheduleFlight finds the days.
+ *
+ * The first page of the most recently asked customers is cached.  A booking
+ * or a change notification for a customer drops their page; a change to any
+ * flight or schedule drops them all.
+ */
+public class Itinerary{
+	/* columns of a row */
+	public static final int DEPARTURE = 0;
+	public static final int ARRIVAL = 1;
+	public static final int RESERVATION = 2;
+	public static final int FLIGHT = 3;
+	public static final int STATUS = 4;
+	public static final int FROM = 5;
+	public static final int TO = 6;
+
+	/* departure time, then reservation number, as the page query orders them */
+	static final Comparator<List<String>> BY_DEPARTURE = new Comparator<List<String>>(){
+		public int compare(List<String> a, List<String> b){
+			int c = a.get(DEPARTURE).compareTo(b.get(DEPARTURE));
+			return c != 0 ? c : Integer.compare(Integer.parseInt(a.get(RESERVATION)), Integer.parseInt(b.get(RESERVATION)));
+		}
+	};
+
+	private final DBproject esql;
+	private final int pageSize;
+	private final LinkedHashMap<Integer, List<List<String>>> firstPages;
+	/* bumped by every forget, so a page read before it is not cached after it */
+	private long generation = 0;
+	private long hits = 0;
+	private long misses = 0;
+
+	/**
+	 * @param capacity the number of customers whose first page is kept
+	 * @param pageSize the rows per page
+	 */
+	public Itinerary(DBproject esql, final int capacity, int pageSize){
+		this.esql = esql;
+		this.pageSize = pageSize;
+		this.firstPages = new LinkedHashMap<Integer, List<List<String>>>(capacity * 2, 0.75f, true){
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(Map.Entry<Integer, List<List<String>>> eldest){
+				return size() > capacity;
+			}
+		};
+	}
+
+	public int pageSize(){
+		return pageSize;
+	}
+
+	/**
+	 * @param customerId the customer
+	 * @param last the last row of the previous page, or null for the first page
+	 * @return up to pageSize rows after last, each DEPARTURE, ARRIVAL,
+	 *         RESERVATION, FLIGHT, STATUS, FROM and TO
+	 */
+	public List<List<String>> page(int customerId, List<String> last) throws SQLException {
+		if(last != null){
+			return fetch(customerId, LocalDate.parse(last.get(DEPARTURE).substring(0, 10)), Integer.parseInt(last.get(RESERVATION)));
+		}
+		long seen;
+		synchronized(this){
+			List<List<String>> page = firstPages.get(customerId);
+			if(page != null){
+				hits++;
+				return page;
+			}
+			misses++;
+			seen = generation;
+		}
+		List<List<String>> page = fetch(customerId, null, 0);
+		synchronized(this){
+			if(generation == seen) firstPages.put(customerId, page);
+		}
+		return page;
+	}
+
+	List<List<String>> fetch(int customerId, LocalDate after, int afterReservation) throws SQLException {
+		String keyset = after == null ? "" : " AND (S.departure_time, R.rnum) > ('" + after + "', " + afterReservation + ")";
+		List<List<String>> rows = esql.executeQueryOnAllShards(
+			"SELECT S.departure_time, S.arrival_time, R.rnum, R.fid, R.status, F.departure_airport, F.arrival_airport"
+			+ " FROM Reservation R, Schedule S, Flight F"
+			+ " WHERE R.cid = " + customerId + " AND S.flightNum = R.fid AND F.fnum = R.fid" + keyset
+			+ " ORDER BY S.departure_time, R.rnum LIMIT " + pageSize + ";");
+		if(esql.getShards() != null){
+			//a page from every shard, merged into the first pageSize rows overall
+			Collections.sort(rows, BY_DEPARTURE);
+			rows = rows.subList(0, Math.min(pageSize, rows.size()));
+		}
+		List<List<String>> page = new ArrayList<List<String>>(rows.size());
+		for(List<String> r : rows){
+			List<String> row = new ArrayList<String>(r.size());
+			for(String s : r) row.add(s == null ? null : s.trim());
+			page.add(row);
+		}
+		return page;
+	}
+
+	/** Drops the cached page of one customer. */
+	public synchronized void forget(int customerId){
+		generation++;
+		firstPages.remove(customerId);
+	}
+
+	public synchronized void forgetAll(){
+		generation++;
+		firstPages.clear();
+	}
+
+	/**
+	 * @return {cached customers, hits, misses}
+	 */
+	public synchronized long[] stats(){
+		return new long[]{firstPages.size(), hits, misses};
+	}
+}
@@ -0,0 +1,278 @@
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * FlightRepository on the Postgres database of a DBproject.  Statements go
+ * through the execute* methods, so they are timed, logged when slow and
+ * journaled like any other.  New ids are MAX(id) + 1, as they always were,
+ * except reservation numbers: bookings run concurrently, so those come from
+ * the sequence Reservation_rnum_seq.  Seat capacities and departure days
+ * come from the catalog snapshot when there is a current one.
+ */
+public class JdbcRepository implements FlightRepository{
+	static final DateTimeFormatter MINUTES = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm");
+
+	/* reservation numbers are drawn from it, see sql/create.sql */
+	static final String RNUM_SEQUENCE = "Reservation_rnum_seq";
+
+	private final DBproject esql;
+	private boolean sequenceReady = false;
+
+	public JdbcRepository(DBproject esql){
+		this.esql = esql;
+	}
+
+	static String quote(String s){
+		return "'" + s.replace("'", "''") + "'";
+	}
+
+	int nextId(String table, String column) throws SQLException {
+		List<List<String>> res = esql.executeQueryAndReturnResult("SELECT MAX(" + column + ") FROM " + table + ";");
+		String max = res.isEmpty() ? null : res.get(0).get(0);
+		return max == null ? 0 : Integer.parseInt(max) + 1;
+	}
+
+	private int intResult(String query) throws SQLException {
+		List<List<String>> res = esql.executeQueryAndReturnResult(query);
+		if(res.isEmpty() || res.get(0).get(0) == null) return -1;
+		return Integer.parseInt(res.get(0).get(0));
+	}
+
+	/* the increment of the reservation number sequence, 1 unless sharded */
+	int idStep(){
+		return 1;
+	}
+
+	/* what reservation numbers are congruent to modulo idStep() */
+	int idOffset(){
+		return 0;
+	}
+
+	/* the lowest reservation number the sequence may hand out */
+	int reservationFloor() throws SQLException {
+		return 0;
+	}
+
+	/*
+	 * Creates the sequence if the database predates it, and once per
+	 * repository checks that it hands out numbers above every one in use
+	 * (rows loaded with COPY do not advance it) with the right stride,
+	 * setting it up again if not.  Runs outside any transaction, so the setup
+	 * is kept even if the first booking is rolled back.
+	 */
+	private synchronized void prepareSequence() throws SQLException {
+		if(sequenceReady) return;
+		esql.executeUpdate("CREATE SEQUENCE IF NOT EXISTS " + RNUM_SEQUENCE + " MINVALUE 0;");
+		List<String> r = esql.executeQueryAndReturnResult("SELECT increment_by, COALESCE(last_value + increment_by, start_value), "
+			+ "(SELECT COALESCE(MAX(rnum) + 1, 0) FROM Reservation) FROM pg_sequences "
+			+ "WHERE schemaname = current_schema() AND sequencename = " + quote(RNUM_SEQUENCE.toLowerCase()) + ";").get(0);
+		long next = Long.parseLong(r.get(1));
+		long floor = Math.max(Long.parseLong(r.get(2)), reservationFloor());
+		if(Long.parseLong(r.get(0)) != idStep() || next < floor || Math.floorMod(next - idOffset(), idStep()) != 0){
+			long start = Math.max(next, floor);
+			start += Math.floorMod(idOffset() - start, idStep());
+			esql.executeUpdate("ALTER SEQUENCE " + RNUM_SEQUENCE + " INCREMENT BY " + idStep() + ";");
+			esql.executeQuery("SELECT setval(" + quote(RNUM_SEQUENCE) + ", " + start + ", false);");
+		}
+		sequenceReady = true;
+	}
+
+	/* draws n reservation numbers from the sequence */
+	private int[] reservationNumbers(int n) throws SQLException {
+		prepareSequence();
+		List<List<String>> res = esql.executeQueryAndReturnResult("SELECT nextval(" + quote(RNUM_SEQUENCE) + ") FROM generate_series(1, " + n + ");");
+		int[] rnums = new int[n];
+		for(int i = 0; i < n; i++) rnums[i] = Integer.parseInt(res.get(i).get(0));
+		return rnums;
+	}
+
+	public int addPlane(String make, String model, int age, int seats) throws SQLException {
+		return addPlane(nextId("Plane", "id"), make, model, age, seats);
+	}
+
+	int addPlane(int id, String make, String model, int age, int seats) throws SQLException {
+		esql.executeUpdate("INSERT INTO Plane (id, make, model, age, seats) VALUES (" + id + ", " + quote(make) + ", " + quote(model) + ", " + age + ", " + seats + ");");
+		return id;
+	}
+
+	public int addPilot(String fullName, String nationality) throws SQLException {
+		return addPilot(nextId("Pilot", "id"), fullName, nationality);
+	}
+
+	int addPilot(int id, String fullName, String nationality) throws SQLException {
+		esql.executeUpdate("INSERT INTO Pilot (id, fullname, nationality) VALUES (" + id + ", " + quote(fullName) + ", " + quote(nationality) + ");");
+		return id;
+	}
+
+	public int addTechnician(String fullName) throws SQLException {
+		return addTechnician(nextId("Technician", "id"), fullName);
+	}
+
+	int addTechnician(int id, String fullName) throws SQLException {
+		esql.executeUpdate("INSERT INTO Technician (id, full_name) VALUES (" + id + ", " + quote(fullName) + ");");
+		return id;
+	}
+
+	public int addFlight(int cost, int numSold, int numStops, LocalDateTime actualDeparture, LocalDateTime actualArrival,
+			String arrivalAirport, String departureAirport, int pilotId, int planeId,
+			LocalDateTime scheduledDeparture, LocalDateTime scheduledArrival) throws SQLException {
+		return addFlight(nextId("Flight", "fnum"), cost, numSold, numStops, actualDeparture, actualArrival, arrivalAirport, departureAirport,
+			pilotId, planeId, scheduledDeparture, scheduledArrival);
+	}
+
+	int addFlight(final int fnum, final int cost, final int numSold, final int numStops, final LocalDateTime actualDeparture, final LocalDateTime actualArrival,
+			final String arrivalAirport, final String departureAirport, final int pilotId, final int planeId,
+			final LocalDateTime scheduledDeparture, final LocalDateTime scheduledArrival) throws SQLException {
+		return esql.inTransaction(new DBproject.Transaction<Integer>(){
+			public Integer run() throws SQLException {
+				esql.executeUpdate("INSERT INTO Flight (fnum, cost, num_sold, num_stops, actual_departure_date, actual_arrival_date, arrival_airport, departure_airport) VALUES ("
+					+ fnum + ", " + cost + ", " + numSold + ", " + numStops + ", '" + MINUTES.format(actualDeparture) + "', '" + MINUTES.format(actualArrival) + "', "
+					+ quote(arrivalAirport) + ", " + quote(departureAirport) + ");");
+				esql.executeUpdate("INSERT INTO FlightInfo (fiid, flight_id, pilot_id, plane_id) VALUES (" + fnum + ", " + fnum + ", " + pilotId + ", " + planeId + ");");
+				esql.executeUpdate("INSERT INTO Schedule (id, flightNum, departure_time, arrival_time) VALUES (" + fnum + ", " + fnum + ", '" + MINUTES.format(scheduledDeparture) + "', '" + MINUTES.format(scheduledArrival) + "');");
+				return fnum;
+			}
+		});
+	}
+
+	public int seats(int flightNum, LocalDate departure) throws SQLException {
+		CatalogSnapshot catalog = esql.getCatalog();
+		if(catalog != null){
+			int seats = catalog.seats(flightNum, departure);
+			if(seats >= 0) return seats;
+		}
+		return intResult("SELECT P.seats FROM Plane P, Schedule S, FlightInfo F WHERE S.flightNum = " + flightNum + " AND S.departure_time = '" + departure + "' AND S.flightNum = F.flight_id AND F.plane_id = P.id;");
+	}
+
+	/* {a,b,c}, as an array literal */
+	static String array(Object[] values){
+		StringBuilder sb = new StringBuilder("'{");
+		for(int i = 0; i < values.length; i++){
+			if(i > 0) sb.append(',');
+			sb.append(values[i]);
+		}
+		return sb.append("}'").toString();
+	}
+
+	public int[] seatsLeft(int[] flightNums, LocalDate[] departures) throws SQLException {
+		int[] left = new int[flightNums.length];
+		Arrays.fill(left, -1);
+		if(left.length == 0) return left;
+		Integer[] flights = new Integer[flightNums.length];
+		for(int i = 0; i < flights.length; i++) flights[i] = flightNums[i];
+		String fnums = array(flights) + "::int[]";
+		String reserved = "SELECT fid, COUNT(*) AS n FROM Reservation WHERE fid = ANY(" + fnums + ") AND status IN ('R', 'C') GROUP BY fid";
+
+		//with a current catalog snapshot only the reservations need counting
+		CatalogSnapshot catalog = esql.getCatalog();
+		if(catalog != null){
+			int[] seats = new int[left.length];
+			boolean all = true;
+			for(int i = 0; i < seats.length && all; i++){
+				seats[i] = catalog.seats(flightNums[i], departures[i]);
+				all = seats[i] >= 0;
+			}
+			if(all){
+				Map<Integer, Integer> counts = new HashMap<Integer, Integer>();
+				for(List<String> r : esql.executeQueryAndReturnResult(reserved + ";")){
+					counts.put(Integer.parseInt(r.get(0)), Integer.parseInt(r.get(1)));
+				}
+				for(int i = 0; i < left.length; i++){
+					Integer n = counts.get(flightNums[i]);
+					left[i] = Math.max(0, seats[i] - (n == null ? 0 : n));
+				}
+				return left;
+			}
+		}
+
+		for(List<String> r : esql.executeQueryAndReturnResult("SELECT Q.i, GREATEST(0, P.seats - COALESCE(R.n, 0)) "
+				+ "FROM unnest(" + fnums + ", " + array(departures) + "::date[]) WITH ORDINALITY AS Q(fnum, day, i) "
+				+ "JOIN Schedule S ON S.flightNum = Q.fnum AND S.departure_time = Q.day "
+				+ "JOIN FlightInfo F ON F.flight_id = Q.fnum JOIN Plane P ON P.id = F.plane_id "
+				+ "LEFT JOIN (" + reserved + ") R ON R.fid = Q.fnum;")){
+			left[Integer.parseInt(r.get(0)) - 1] = Integer.parseInt(r.get(1));
+		}
+		return left;
+	}
+
+	public List<LocalDate> departures(int flightNum) throws SQLException {
+		CatalogSnapshot catalog = esql.getCatalog();
+		if(catalog != null && catalog.hasFlight(flightNum)){
+			return catalog.departures(flightNum);
+		}
+		List<LocalDate> out = new ArrayList<LocalDate>();
+		for(List<String> r : esql.executeQueryAndReturnResult("SELECT departure_time FROM Schedule WHERE flightNum = " + flightNum + " ORDER BY departure_time;")){
+			out.add(LocalDate.parse(r.get(0).substring(0, 10)));
+		}
+		return out;
+	}
+
+	public int countReservations(int flightNum, String statuses) throws SQLException {
+		StringBuilder in = new StringBuilder();
+		for(char c : statuses.toCharArray()){
+			if(in.length() > 0) in.append(", ");
+			in.append('\'').append(c).append('\'');
+		}
+		return intResult("SELECT COUNT(*) FROM Reservation WHERE fid = " + flightNum + " AND status IN (" + in + ");");
+	}
+
+	public int book(int customerId, int flightNum, char status) throws SQLException {
+		int rnum = reservationNumbers(1)[0];
+		esql.executeUpdate("INSERT INTO Reservation (rnum, cid, fid, status) VALUES (" + rnum + ", " + customerId + ", " + flightNum + ", '" + status + "');");
+		return rnum;
+	}
+
+	public int[] bookAll(int flightNum, int[] customerIds, char[] statuses) throws SQLException {
+		if(customerIds.length == 0) return new int[0];
+		int[] rnums = reservationNumbers(customerIds.length);
+		StringBuilder sql = new StringBuilder("INSERT INTO Reservation (rnum, cid, fid, status) VALUES ");
+		for(int i = 0; i < customerIds.length; i++){
+			if(i > 0) sql.append(", ");
+			sql.append('(').append(rnums[i]).append(", ").append(customerIds[i]).append(", ").append(flightNum).append(", '").append(statuses[i]).append("')");
+		}
+		esql.executeUpdate(sql.append(';').toString());
+		return rnums;
+	}
+
+	public int[] bookGroup(final int flightNum, final LocalDate departure, final int[] customerIds, final char[] statuses, final boolean partial) throws SQLException {
+		return atomically(flightNum, new Work<int[]>(){
+			public int[] run() throws SQLException {
+				int seats = seats(flightNum, departure);
+				if(seats < 0) throw new SQLException("Flight " + flightNum + " is not scheduled on " + departure, "02000");
+				int left = seats - countReservations(flightNum, "R");
+				if(!partial && left < customerIds.length) return null;
+				for(int i = 0; i < customerIds.length; i++){
+					statuses[i] = i < left ? 'R' : 'W';
+				}
+				return bookAll(flightNum, customerIds, statuses);
+			}
+		});
+	}
+
+	/* the work's statements run on a connection of their own, see DBproject.inTransaction */
+	public <T> T atomically(final int flightNum, final Work<T> work) throws SQLException {
+		prepareSequence();
+		return esql.inTransaction(new DBproject.Transaction<T>(){
+			public T run() throws SQLException {
+				//the flight row serializes the bookings of the flight until the commit
+				esql.executeQuery("SELECT fnum FROM Flight WHERE fnum = " + flightNum + " FOR UPDATE;");
+				return work.run();
+			}
+		});
+	}
+
+	public List<List<String>> repairsPerPlane() throws SQLException {
+		return esql.executeQueryAndReturnResult("SELECT R.plane_id, COUNT(*), P.model FROM Repairs R, Plane P WHERE R.plane_id = P.id GROUP BY R.plane_id, P.model ORDER BY COUNT(*) DESC;");
+	}
+
+	public List<List<String>> repairsPerYear() throws SQLException {
+		return esql.executeQueryAndReturnResult("SELECT EXTRACT(YEAR FROM R.repair_date)::int, COUNT(*) FROM Repairs R GROUP BY EXTRACT(YEAR FROM (R.repair_date)) ORDER BY COUNT(*) ASC;");
+	}
+}
@@ -0,0 +1,201 @@
+import java.io.File;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Re-runs an operation journal (see OperationJournal) against a database,
+ * normally a fresh one loaded the same way as the database it was recorded on
+ * (createPostgreDB.sh, or generate.sh with the same size and seed).
+ *
+ * Operations are spread over a number of lanes, each with its own connection.
+ * Operations on a flight always go to the lane of that flight, so the
+ * bookings of one flight are replayed in their original order.  Operations
+ * that write without a flight (AddPlane, AddPilot, AddTechnician) act as a
+ * barrier: every lane is drained first, so a later AddFlight never runs ahead
+ * of the plane or pilot it refers to.  Read-only operations without a flight
+ * go round robin.
+ *
+ * By default operations are dispatched as fast as the lanes take them;
+ * --paced keeps the original gaps between operation starts (divided by
+ * --speed).  The summary compares the original and replayed time per
+ * operation type and counts statements whose success or failure differs from
+ * the recording.
+ *
+ * Seat assignments are written by the SeatMap background writer and are not
+ * part of the journal.
+ *
+ * Usage:
+ *   java -cp lib/*:bin/ JournalReplay <dbname> <port> <user> <journal> [--threads N] [--paced] [--speed X]
+ */
+public class JournalReplay{
+	static final int TYPES = 256;
+	static final OperationJournal.Op STOP = new OperationJournal.Op();
+
+	/* per operation type: count, original micros, replayed micros, mismatched statements */
+	final AtomicLongArray count = new AtomicLongArray(TYPES);
+	final AtomicLongArray original = new AtomicLongArray(TYPES);
+	final AtomicLongArray replayed = new AtomicLongArray(TYPES);
+	final AtomicLongArray mismatched = new AtomicLongArray(TYPES);
+	private int inFlight = 0;
+
+	final class Lane extends Thread{
+		final Connection conn;
+		final LinkedBlockingQueue<OperationJournal.Op> queue = new LinkedBlockingQueue<OperationJournal.Op>();
+
+		Lane(Connection conn, int n){
+			super("replay-" + n);
+			this.conn = conn;
+		}
+
+		public void run(){
+			try{
+				while(true){
+					OperationJournal.Op op = queue.take();
+					if(op == STOP) return;
+					try{
+						replay(conn, op);
+					}finally{
+						done();
+					}
+				}
+			}catch(InterruptedException e){
+				// stopped
+			}
+		}
+	}
+
+	void replay(Connection conn, OperationJournal.Op op){
+		long start = System.nanoTime();
+		long wasMicros = 0;
+		int mismatches = 0;
+		for(int i = 0; i < op.sql.size(); i++){
+			int flags = op.flags.get(i);
+			boolean failed = false;
+			wasMicros += op.micros.get(i);
+			try{
+				Statement stmt = conn.createStatement();
+				try{
+					if((flags & OperationJournal.QUERY) != 0){
+						ResultSet rs = stmt.executeQuery(op.sql.get(i));
+						while(rs.next()){
+							// read every row, as the menu did
+						}
+					}
+					else{
+						stmt.executeUpdate(op.sql.get(i));
+					}
+				}finally{
+					stmt.close();
+				}
+			}catch(SQLException e){
+				failed = true;
+			}
+			if(failed != ((flags & OperationJournal.FAILED) != 0)) mismatches++;
+		}
+		count.incrementAndGet(op.type);
+		original.addAndGet(op.type, wasMicros);
+		replayed.addAndGet(op.type, (System.nanoTime() - start) / 1000);
+		mismatched.addAndGet(op.type, mismatches);
+	}
+
+	synchronized void dispatched(){
+		inFlight++;
+	}
+
+	synchronized void done(){
+		inFlight--;
+		if(inFlight == 0) notifyAll();
+	}
+
+	synchronized void drain() throws InterruptedException {
+		while(inFlight > 0) wait();
+	}
+
+	/**
+	 * Replays the whole journal.
+	 *
+	 * @return the wall-clock time in nanoseconds
+	 */
+	long run(DBproject esql, File journal, int threads, boolean paced, double speed) throws Exception {
+		Lane[] lanes = new Lane[threads];
+		for(int i = 0; i < threads; i++){
+			lanes[i] = new Lane(esql.openConnection(), i);
+			lanes[i].start();
+		}
+		Connection barrier = esql.openConnection();
+		OperationJournal.Reader reader = new OperationJournal.Reader(journal);
+		long start = System.nanoTime();
+		long first = -1;
+		int next = 0;
+		try{
+			OperationJournal.Op op;
+			while((op = reader.next()) != null){
+				if(paced){
+					if(first < 0) first = op.start;
+					long due = start + (long)((op.start - first) * 1000 / speed);
+					long wait = due - System.nanoTime();
+					if(wait > 0) Thread.sleep(wait / 1000000, (int)(wait % 1000000));
+				}
+				if(op.flight < 0 && op.writes()){
+					drain();
+					replay(barrier, op);
+					continue;
+				}
+				int lane = op.flight >= 0 ? op.flight % threads : next++ % threads;
+				dispatched();
+				lanes[lane].queue.add(op);
+			}
+		}finally{
+			reader.close();
+			for(Lane l : lanes) l.queue.add(STOP);
+			for(Lane l : lanes) l.join();
+			for(Lane l : lanes) l.conn.close();
+			barrier.close();
+		}
+		return System.nanoTime() - start;
+	}
+
+	void print(long elapsedNanos){
+		long ops = 0;
+		long bad = 0;
+		System.out.println("|Operation    Count        Original ms  Replayed ms  Mismatches");
+		System.out.println("------------------------------------------------------------------");
+		for(int t = 0; t < TYPES; t++){
+			if(count.get(t) == 0) continue;
+			ops += count.get(t);
+			bad += mismatched.get(t);
+			System.out.println("|" + DBproject.pad(Integer.toString(t), 13) + DBproject.pad(Long.toString(count.get(t)), 13)
+				+ DBproject.pad(Long.toString(original.get(t) / 1000), 13) + DBproject.pad(Long.toString(replayed.get(t) / 1000), 13) + mismatched.get(t));
+		}
+		System.out.println("------------------------------------------------------------------");
+		double seconds = elapsedNanos / 1e9;
+		System.out.println("Replayed " + ops + " operations in " + String.format("%.2f", seconds) + " s (" + String.format("%.0f", ops / Math.max(seconds, 1e-9)) + " ops/s)");
+		if(bad > 0) System.out.println("Warning - " + bad + " statements succeeded or failed differently than when recorded");
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 4) {
+			System.err.println("Usage: java [-classpath <classpath>] JournalReplay <dbname> <port> <user> <journal> [--threads N] [--paced] [--speed X]");
+			return;
+		}
+		List<String> opts = Arrays.asList(args).subList(4, args.length);
+		int threads = opts.contains("--threads") ? Integer.parseInt(opts.get(opts.indexOf("--threads") + 1)) : Runtime.getRuntime().availableProcessors();
+		double speed = opts.contains("--speed") ? Double.parseDouble(opts.get(opts.indexOf("--speed") + 1)) : 1.0;
+
+		Class.forName("org.postgresql.Driver");
+		DBproject esql = new DBproject(args[0], args[1], args[2], "");
+		try{
+			JournalReplay replay = new JournalReplay();
+			long elapsed = replay.run(esql, new File(args[3]), Math.max(1, threads), opts.contains("--paced"), speed);
+			replay.print(elapsed);
+		}finally{
+			esql.cleanup();
+		}
+	}
+}
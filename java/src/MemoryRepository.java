@@ -0,0 +1,428 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * FlightRepository kept entirely in memory, as an upper bound on throughput
+ * in RepositoryBenchmark.
+ *
+ * Every table is an IntHashMap keyed by its integer primary key.  FlightInfo
+ * and Schedule are folded into their flight, and each flight keeps a counter
+ * per reservation status, so a capacity check is a couple of array reads.
+ * Repairs are kept only as running counts per plane and per year, which is
+ * all the reports need.
+ *
+ * The rules of sql/create.sql are enforced: primary keys, foreign keys, the
+ * domains (_STATUS, _SEATS, _PINTEGER, ...), NOT NULL and the CHAR lengths.
+ * Violations are thrown as SQLExceptions with the SQLSTATE Postgres uses.
+ * Inserts check every rule before they change anything, so a failed
+ * operation leaves no partial rows behind.
+ *
+ * Every method is synchronized.
+ */
+public class MemoryRepository implements FlightRepository{
+	/* per-flight reservation counters */
+	static final String STATUSES = "WCR";
+
+	static final class Plane{
+		final String make;
+		final String model;
+		final int age;
+		final int seats;
+
+		Plane(String make, String model, int age, int seats){
+			this.make = make;
+			this.model = model;
+			this.age = age;
+			this.seats = seats;
+		}
+	}
+
+	static final class Flight{
+		int cost;
+		int numSold;
+		int numStops;
+		long departureDay;
+		long arrivalDay;
+		String arrivalAirport;
+		String departureAirport;
+		int pilot = -1;
+		int plane = -1;
+		/* scheduled departure days, in epoch days */
+		long[] scheduled = new long[0];
+		final int[] reserved = new int[STATUSES.length()];
+	}
+
+	private final IntHashMap<Boolean> customers = new IntHashMap<Boolean>();
+	private final IntHashMap<String[]> pilots = new IntHashMap<String[]>();
+	private final IntHashMap<Plane> planes = new IntHashMap<Plane>();
+	private final IntHashMap<String> technicians = new IntHashMap<String>();
+	private final IntHashMap<Flight> flights = new IntHashMap<Flight>();
+	/* rnum -> {cid, fid, status} */
+	private final IntHashMap<int[]> reservations = new IntHashMap<int[]>();
+	private final IntHashMap<Boolean> repairs = new IntHashMap<Boolean>();
+	private final IntHashMap<int[]> repairsByPlane = new IntHashMap<int[]>();
+	private final IntHashMap<int[]> repairsByYear = new IntHashMap<int[]>();
+	private final IntHashMap<Boolean> fiids = new IntHashMap<Boolean>();
+	private final IntHashMap<Boolean> scheduleIds = new IntHashMap<Boolean>();
+	private int maxPilot = -1;
+	private int maxPlane = -1;
+	private int maxTechnician = -1;
+	private int maxFlight = -1;
+	private int maxReservation = -1;
+
+	/* ---- domain rules ---- */
+
+	static void check(boolean ok, String domain) throws SQLException {
+		if(!ok) throw new SQLException("value for domain " + domain + " violates check constraint", "23514");
+	}
+
+	static void chars(String value, int length, boolean notNull, String column) throws SQLException {
+		if(value == null){
+			if(notNull) throw new SQLException("null value in column \"" + column + "\" violates not-null constraint", "23502");
+			return;
+		}
+		//CHAR(n) accepts longer values whose excess is all blanks
+		if(value.length() > length && !value.substring(length).trim().isEmpty()){
+			throw new SQLException("value too long for type character(" + length + ")", "22001");
+		}
+	}
+
+	static void references(IntHashMap<?> table, int key, String constraint) throws SQLException {
+		if(!table.containsKey(key)) throw new SQLException("insert or update violates foreign key constraint \"" + constraint + "\"", "23503");
+	}
+
+	static void unique(IntHashMap<?> table, int key, String constraint) throws SQLException {
+		if(table.containsKey(key)) throw new SQLException("duplicate key value violates unique constraint \"" + constraint + "\"", "23505");
+	}
+
+	static int status(char status) throws SQLException {
+		int i = STATUSES.indexOf(status);
+		check(i >= 0, "_status");
+		return i;
+	}
+
+	/* ---- inserts with explicit keys, used by load() and the public methods ---- */
+
+	synchronized void insertCustomer(int id) throws SQLException {
+		unique(customers, id, "customer_pkey");
+		customers.put(id, Boolean.TRUE);
+	}
+
+	synchronized void insertPilot(int id, String fullName, String nationality) throws SQLException {
+		unique(pilots, id, "pilot_pkey");
+		chars(fullName, 128, false, "fullname");
+		chars(nationality, 24, false, "nationality");
+		pilots.put(id, new String[]{fullName, nationality});
+		maxPilot = Math.max(maxPilot, id);
+	}
+
+	synchronized void insertPlane(int id, String make, String model, int age, int seats) throws SQLException {
+		unique(planes, id, "plane_pkey");
+		chars(make, 32, true, "make");
+		chars(model, 64, true, "model");
+		check(age >= 0, "_year_1970");
+		check(seats > 0 && seats < 500, "_seats");
+		planes.put(id, new Plane(make, model, age, seats));
+		maxPlane = Math.max(maxPlane, id);
+	}
+
+	synchronized void insertTechnician(int id, String fullName) throws SQLException {
+		unique(technicians, id, "technician_pkey");
+		chars(fullName, 128, true, "full_name");
+		technicians.put(id, fullName);
+		maxTechnician = Math.max(maxTechnician, id);
+	}
+
+	synchronized void insertFlight(int fnum, int cost, int numSold, int numStops, LocalDate departure, LocalDate arrival,
+			String arrivalAirport, String departureAirport) throws SQLException {
+		unique(flights, fnum, "flight_pkey");
+		check(cost > 0, "_pinteger");
+		check(numSold >= 0 && numStops >= 0, "_pzerointeger");
+		chars(arrivalAirport, 5, true, "arrival_airport");
+		chars(departureAirport, 5, true, "departure_airport");
+		Flight f = new Flight();
+		f.cost = cost;
+		f.numSold = numSold;
+		f.numStops = numStops;
+		f.departureDay = departure.toEpochDay();
+		f.arrivalDay = arrival.toEpochDay();
+		f.arrivalAirport = arrivalAirport;
+		f.departureAirport = departureAirport;
+		flights.put(fnum, f);
+		maxFlight = Math.max(maxFlight, fnum);
+	}
+
+	synchronized void insertFlightInfo(int fiid, int flightNum, int pilotId, int planeId) throws SQLException {
+		unique(fiids, fiid, "flightinfo_pkey");
+		references(flights, flightNum, "flightinfo_flight_id_fkey");
+		references(pilots, pilotId, "flightinfo_pilot_id_fkey");
+		references(planes, planeId, "flightinfo_plane_id_fkey");
+		fiids.put(fiid, Boolean.TRUE);
+		Flight f = flights.get(flightNum);
+		f.pilot = pilotId;
+		f.plane = planeId;
+	}
+
+	synchronized void insertSchedule(int id, int flightNum, LocalDate departure) throws SQLException {
+		unique(scheduleIds, id, "schedule_pkey");
+		references(flights, flightNum, "schedule_flightnum_fkey");
+		scheduleIds.put(id, Boolean.TRUE);
+		Flight f = flights.get(flightNum);
+		f.scheduled = Arrays.copyOf(f.scheduled, f.scheduled.length + 1);
+		f.scheduled[f.scheduled.length - 1] = departure.toEpochDay();
+	}
+
+	synchronized void insertReservation(int rnum, int customerId, int flightNum, char status) throws SQLException {
+		unique(reservations, rnum, "reservation_pkey");
+		int s = status(status);
+		references(customers, customerId, "reservation_cid_fkey");
+		references(flights, flightNum, "reservation_fid_fkey");
+		reservations.put(rnum, new int[]{customerId, flightNum, s});
+		flights.get(flightNum).reserved[s]++;
+		maxReservation = Math.max(maxReservation, rnum);
+	}
+
+	synchronized void insertRepair(int rid, LocalDate date, String code, int pilotId, int planeId, int technicianId) throws SQLException {
+		unique(repairs, rid, "repairs_pkey");
+		check(code == null || code.equals("MJ") || code.equals("MN") || code.equals("SV"), "_code");
+		references(pilots, pilotId, "repairs_pilot_id_fkey");
+		references(planes, planeId, "repairs_plane_id_fkey");
+		references(technicians, technicianId, "repairs_technician_id_fkey");
+		repairs.put(rid, Boolean.TRUE);
+		count(repairsByPlane, planeId);
+		count(repairsByYear, date.getYear());
+	}
+
+	private static void count(IntHashMap<int[]> counts, int key){
+		int[] c = counts.get(key);
+		if(c == null) counts.put(key, new int[]{1});
+		else c[0]++;
+	}
+
+	/* ---- FlightRepository ---- */
+
+	public synchronized int addPlane(String make, String model, int age, int seats) throws SQLException {
+		insertPlane(maxPlane + 1, make, model, age, seats);
+		return maxPlane;
+	}
+
+	public synchronized int addPilot(String fullName, String nationality) throws SQLException {
+		insertPilot(maxPilot + 1, fullName, nationality);
+		return maxPilot;
+	}
+
+	public synchronized int addTechnician(String fullName) throws SQLException {
+		insertTechnician(maxTechnician + 1, fullName);
+		return maxTechnician;
+	}
+
+	public synchronized int addFlight(int cost, int numSold, int numStops, LocalDateTime actualDeparture, LocalDateTime actualArrival,
+			String arrivalAirport, String departureAirport, int pilotId, int planeId,
+			LocalDateTime scheduledDeparture, LocalDateTime scheduledArrival) throws SQLException {
+		int fnum = maxFlight + 1;
+		//check the foreign keys first so a failure leaves nothing behind
+		references(pilots, pilotId, "flightinfo_pilot_id_fkey");
+		references(planes, planeId, "flightinfo_plane_id_fkey");
+		unique(fiids, fnum, "flightinfo_pkey");
+		unique(scheduleIds, fnum, "schedule_pkey");
+		insertFlight(fnum, cost, numSold, numStops, actualDeparture.toLocalDate(), actualArrival.toLocalDate(), arrivalAirport, departureAirport);
+		insertFlightInfo(fnum, fnum, pilotId, planeId);
+		insertSchedule(fnum, fnum, scheduledDeparture.toLocalDate());
+		return fnum;
+	}
+
+	public synchronized int seats(int flightNum, LocalDate departure){
+		Flight f = flights.get(flightNum);
+		if(f == null || f.plane < 0) return -1;
+		long day = departure.toEpochDay();
+		for(long d : f.scheduled){
+			if(d == day) return planes.get(f.plane).seats;
+		}
+		return -1;
+	}
+
+	public synchronized int[] seatsLeft(int[] flightNums, LocalDate[] departures) throws SQLException {
+		int[] left = new int[flightNums.length];
+		for(int i = 0; i < left.length; i++){
+			int seats = seats(flightNums[i], departures[i]);
+			left[i] = seats < 0 ? -1 : Math.max(0, seats - countReservations(flightNums[i], "RC"));
+		}
+		return left;
+	}
+
+	public synchronized List<LocalDate> departures(int flightNum){
+		List<LocalDate> out = new ArrayList<LocalDate>();
+		Flight f = flights.get(flightNum);
+		if(f == null) return out;
+		long[] days = f.scheduled.clone();
+		Arrays.sort(days);
+		for(long d : days) out.add(LocalDate.ofEpochDay(d));
+		return out;
+	}
+
+	public synchronized int countReservations(int flightNum, String statuses) throws SQLException {
+		Flight f = flights.get(flightNum);
+		int n = 0;
+		for(char c : statuses.toCharArray()){
+			int s = status(c);
+			if(f != null) n += f.reserved[s];
+		}
+		return n;
+	}
+
+	public synchronized int book(int customerId, int flightNum, char status) throws SQLException {
+		insertReservation(maxReservation + 1, customerId, flightNum, status);
+		return maxReservation;
+	}
+
+	public synchronized int[] bookAll(int flightNum, int[] customerIds, char[] statuses) throws SQLException {
+		//check every row first, so a failure inserts none of them
+		references(flights, flightNum, "reservation_fid_fkey");
+		for(int i = 0; i < customerIds.length; i++){
+			status(statuses[i]);
+			references(customers, customerIds[i], "reservation_cid_fkey");
+		}
+		int[] rnums = new int[customerIds.length];
+		for(int i = 0; i < customerIds.length; i++){
+			rnums[i] = book(customerIds[i], flightNum, statuses[i]);
+		}
+		return rnums;
+	}
+
+	public synchronized int[] bookGroup(int flightNum, LocalDate departure, int[] customerIds, char[] statuses, boolean partial) throws SQLException {
+		int seats = seats(flightNum, departure);
+		if(seats < 0) throw new SQLException("Flight " + flightNum + " is not scheduled on " + departure, "02000");
+		int left = seats - countReservations(flightNum, "R");
+		if(!partial && left < customerIds.length) return null;
+		for(int i = 0; i < customerIds.length; i++){
+			statuses[i] = i < left ? 'R' : 'W';
+		}
+		return bookAll(flightNum, customerIds, statuses);
+	}
+
+	/* every method holds the monitor, so holding it over the work makes it atomic */
+	public synchronized <T> T atomically(int flightNum, Work<T> work) throws SQLException {
+		return work.run();
+	}
+
+	public synchronized List<List<String>> repairsPerPlane(){
+		final List<List<String>> out = new ArrayList<List<String>>();
+		repairsByPlane.forEach(new IntHashMap.Visitor<int[]>(){
+			public void visit(int plane, int[] c){
+				out.add(Arrays.asList(Integer.toString(plane), Integer.toString(c[0]), planes.get(plane).model));
+			}
+		});
+		sortByCount(out, -1);
+		return out;
+	}
+
+	public synchronized List<List<String>> repairsPerYear(){
+		final List<List<String>> out = new ArrayList<List<String>>();
+		repairsByYear.forEach(new IntHashMap.Visitor<int[]>(){
+			public void visit(int year, int[] c){
+				out.add(Arrays.asList(Integer.toString(year), Integer.toString(c[0])));
+			}
+		});
+		sortByCount(out, 1);
+		return out;
+	}
+
+	private static void sortByCount(List<List<String>> rows, final int direction){
+		Collections.sort(rows, new Comparator<List<String>>(){
+			public int compare(List<String> a, List<String> b){
+				return direction * Integer.compare(Integer.parseInt(a.get(1)), Integer.parseInt(b.get(1)));
+			}
+		});
+	}
+
+	synchronized int[] flightNumbers(){
+		return keys(flights);
+	}
+
+	synchronized int[] customerIds(){
+		return keys(customers);
+	}
+
+	private static int[] keys(IntHashMap<?> table){
+		final int[] out = new int[table.size()];
+		table.forEach(new IntHashMap.Visitor<Object>(){
+			int n = 0;
+			public void visit(int key, Object value){
+				out[n++] = key;
+			}
+		});
+		return out;
+	}
+
+	/* ---- loading ---- */
+
+	/**
+	 * Loads the CSV files of a data directory (the layout of data/ and of
+	 * DataGenerator output), enforcing the same rules as the inserts.
+	 *
+	 * @param dir the directory holding customer.csv, pilots.csv, ...
+	 * @return the loaded repository
+	 * @throws java.io.IOException when a file could not be read
+	 * @throws java.sql.SQLException when a row breaks a rule
+	 */
+	public static MemoryRepository load(File dir) throws IOException, SQLException {
+		MemoryRepository m = new MemoryRepository();
+		for(String[] r : rows(dir, "customer")){
+			m.insertCustomer(Integer.parseInt(r[0]));
+		}
+		for(String[] r : rows(dir, "pilots")){
+			m.insertPilot(Integer.parseInt(r[0]), r[1], r[2]);
+		}
+		for(String[] r : rows(dir, "planes")){
+			m.insertPlane(Integer.parseInt(r[0]), r[1], r[2], Integer.parseInt(r[3]), Integer.parseInt(r[4]));
+		}
+		for(String[] r : rows(dir, "technician")){
+			m.insertTechnician(Integer.parseInt(r[0]), r[1]);
+		}
+		for(String[] r : rows(dir, "flights")){
+			m.insertFlight(Integer.parseInt(r[0]), Integer.parseInt(r[1]), Integer.parseInt(r[2]), Integer.parseInt(r[3]),
+				day(r[4]), day(r[5]), r[6], r[7]);
+		}
+		for(String[] r : rows(dir, "reservation")){
+			m.insertReservation(Integer.parseInt(r[0]), Integer.parseInt(r[1]), Integer.parseInt(r[2]), r[3].charAt(0));
+		}
+		for(String[] r : rows(dir, "flightinfo")){
+			m.insertFlightInfo(Integer.parseInt(r[0]), Integer.parseInt(r[1]), Integer.parseInt(r[2]), Integer.parseInt(r[3]));
+		}
+		for(String[] r : rows(dir, "repairs")){
+			m.insertRepair(Integer.parseInt(r[0]), day(r[1]), r[2], Integer.parseInt(r[3]), Integer.parseInt(r[4]), Integer.parseInt(r[5]));
+		}
+		for(String[] r : rows(dir, "schedule")){
+			m.insertSchedule(Integer.parseInt(r[0]), Integer.parseInt(r[1]), day(r[2]));
+		}
+		return m;
+	}
+
+	static LocalDate day(String s){
+		return LocalDate.parse(s.trim().substring(0, 10));
+	}
+
+	private static List<String[]> rows(File dir, String table) throws IOException {
+		List<String[]> out = new ArrayList<String[]>();
+		BufferedReader in = new BufferedReader(new FileReader(new File(dir, table + ".csv")));
+		try{
+			String line;
+			while((line = in.readLine()) != null){
+				if(!line.isEmpty()) out.add(line.split(",", -1));
+			}
+		}finally{
+			in.close();
+		}
+		return out;
+	}
+}
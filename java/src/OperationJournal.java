@@ -0,0 +1,346 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Append-only binary journal of the menu operations, for replaying a
+ * production workload with JournalReplay.
+ *
+ * An operation is one menu choice.  While it runs, every statement DBproject
+ * executes on the menu thread is captured with its elapsed time and whether it
+ * failed; the operation also carries the flight it works on, if any, so replay
+ * can keep the operations of one flight in order.  Statements are stored as a
+ * template plus binds (SlowQueryLog.normalize), and each template is written
+ * once per session, so a booking costs a few dozen bytes.  Recording the
+ * statements rather than the prompted values makes replay deterministic: the
+ * ids that were allocated with MAX()+1 are replayed as they were.
+ *
+ * The menu thread only appends to a small in-memory record; finished
+ * operations go onto a bounded queue (dropped, and counted, when it is full)
+ * and a background thread encodes and writes them in batches, flushing at
+ * least every flushMillis.
+ *
+ * File format: a sequence of records, each starting with a tag byte.
+ *   'H' int magic, long session start (epoch micros)    starts a session
+ *   'T' varint id, UTF template                           defines a template
+ *   'O' byte type, varint flight + 1, zigzag start delta (micros),
+ *       varint statements, then per statement:
+ *       varint template, byte flags, varlong micros, varint binds, UTF binds
+ * Template ids and start deltas are relative to the current session.
+ *
+ * Settings are Java system properties:
+ *   dbproject.journal             journal file (unset disables journaling)
+ *   dbproject.journalFlushMillis  longest time a finished operation waits (default 200)
+ */
+public class OperationJournal{
+	static final int MAGIC = 0x44424a31;
+	static final int HEADER = 'H';
+	static final int TEMPLATE = 'T';
+	static final int OPERATION = 'O';
+
+	/* statement flags */
+	public static final int UPDATE = 0;
+	public static final int QUERY = 1;
+	public static final int FAILED = 2;
+
+	/** One operation and the statements it ran. */
+	public static final class Op{
+		public int type;
+		public int flight = -1;
+		/** start, in microseconds since the epoch */
+		public long start;
+		public final List<String> sql = new ArrayList<String>();
+		public final List<Integer> flags = new ArrayList<Integer>();
+		public final List<Long> micros = new ArrayList<Long>();
+
+		public boolean writes(){
+			for(int f : flags){
+				if((f & QUERY) == 0) return true;
+			}
+			return false;
+		}
+	}
+
+	private final File file;
+	private final long flushMillis;
+	private final long baseMicros = System.currentTimeMillis() * 1000;
+	private final long baseNanos = System.nanoTime();
+	private final ArrayBlockingQueue<Op> queue = new ArrayBlockingQueue<Op>(4096);
+	private final AtomicLong dropped = new AtomicLong();
+	private final ThreadLocal<Op> current = new ThreadLocal<Op>();
+	private Thread writer = null;
+	private volatile boolean running = true;
+
+	public OperationJournal(File file, long flushMillis){
+		this.file = file;
+		this.flushMillis = flushMillis;
+	}
+
+	/**
+	 * @return the journal configured by dbproject.journal, or null if unset
+	 */
+	public static OperationJournal fromSystemProperties(){
+		String path = System.getProperty("dbproject.journal");
+		if(path == null || path.isEmpty()) return null;
+		return new OperationJournal(new File(path), Long.getLong("dbproject.journalFlushMillis", 200L));
+	}
+
+	private long now(){
+		return baseMicros + (System.nanoTime() - baseNanos) / 1000;
+	}
+
+	/** Starts recording an operation of the calling thread. */
+	public void begin(int type){
+		Op op = new Op();
+		op.type = type;
+		op.start = now();
+		current.set(op);
+	}
+
+	/** Sets the flight the current operation works on. */
+	public void flight(int fnum){
+		Op op = current.get();
+		if(op != null) op.flight = fnum;
+	}
+
+	/**
+	 * Adds a statement to the current operation of the calling thread; other
+	 * threads (index loaders, listeners) are not recorded.
+	 */
+	public void statement(String sql, int kind, long nanos, boolean failed){
+		Op op = current.get();
+		if(op == null) return;
+		op.sql.add(sql);
+		op.flags.add(kind | (failed ? FAILED : 0));
+		op.micros.add(nanos / 1000);
+	}
+
+	/** Finishes the current operation and queues it if it ran anything. */
+	public void end(){
+		Op op = current.get();
+		current.remove();
+		if(op == null || op.sql.isEmpty()) return;
+		startWriter();
+		if(!queue.offer(op)) dropped.incrementAndGet();
+	}
+
+	public long dropped(){
+		return dropped.get();
+	}
+
+	private synchronized void startWriter(){
+		if(writer != null) return;
+		writer = new Thread(new Runnable(){
+			public void run(){
+				writeLoop();
+			}
+		}, "operation-journal");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	private void writeLoop(){
+		DataOutputStream out = null;
+		Map<String, Integer> templates = new HashMap<String, Integer>();
+		List<Op> batch = new ArrayList<Op>(256);
+		StringBuilder sb = new StringBuilder(256);
+		List<String> binds = new ArrayList<String>();
+		long last = baseMicros;
+		try{
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true), 1 << 16));
+			out.writeByte(HEADER);
+			out.writeInt(MAGIC);
+			out.writeLong(baseMicros);
+			while(running || !queue.isEmpty()){
+				Op first = queue.poll(flushMillis, TimeUnit.MILLISECONDS);
+				if(first == null) continue;
+				batch.add(first);
+				queue.drainTo(batch, 255);
+				for(Op op : batch){
+					int[] ids = new int[op.sql.size()];
+					List<List<String>> opBinds = new ArrayList<List<String>>(ids.length);
+					for(int i = 0; i < ids.length; i++){
+						sb.setLength(0);
+						binds.clear();
+						SlowQueryLog.normalize(op.sql.get(i), sb, binds, true);
+						String template = sb.toString();
+						Integer id = templates.get(template);
+						if(id == null){
+							id = templates.size();
+							templates.put(template, id);
+							out.writeByte(TEMPLATE);
+							writeVar(out, id);
+							out.writeUTF(template);
+						}
+						ids[i] = id;
+						opBinds.add(new ArrayList<String>(binds));
+					}
+					out.writeByte(OPERATION);
+					out.writeByte(op.type);
+					writeVar(out, op.flight + 1);
+					writeVar(out, (op.start - last) << 1 ^ (op.start - last) >> 63);
+					last = op.start;
+					writeVar(out, ids.length);
+					for(int i = 0; i < ids.length; i++){
+						writeVar(out, ids[i]);
+						out.writeByte(op.flags.get(i));
+						writeVar(out, op.micros.get(i));
+						writeVar(out, opBinds.get(i).size());
+						for(String b : opBinds.get(i)) out.writeUTF(b);
+					}
+				}
+				batch.clear();
+				out.flush();
+			}
+		}catch(InterruptedException e){
+			// shutting down
+		}catch(IOException e){
+			System.err.println("Error - Operation journal stopped: " + e.getMessage());
+		}finally{
+			try{
+				if(out != null) out.close();
+			}catch(IOException e){
+				// ignored.
+			}
+		}
+	}
+
+	static void writeVar(DataOutputStream out, long v) throws IOException {
+		while((v & ~0x7FL) != 0){
+			out.writeByte((int)(v & 0x7F) | 0x80);
+			v >>>= 7;
+		}
+		out.writeByte((int)v);
+	}
+
+	static long readVar(DataInputStream in) throws IOException {
+		long v = 0;
+		for(int shift = 0; ; shift += 7){
+			int b = in.readUnsignedByte();
+			v |= (long)(b & 0x7F) << shift;
+			if((b & 0x80) == 0) return v;
+		}
+	}
+
+	/**
+	 * Rebuilds a statement from a template written with keepQuotes.
+	 */
+	static String render(String template, List<String> binds){
+		StringBuilder sb = new StringBuilder(template.length() + 32);
+		int n = template.length();
+		for(int i = 0; i < n; i++){
+			char c = template.charAt(i);
+			if(c == '$' && i + 1 < n && Character.isDigit(template.charAt(i + 1))){
+				int j = i + 1;
+				while(j < n && Character.isDigit(template.charAt(j))) j++;
+				String b = binds.get(Integer.parseInt(template.substring(i + 1, j)) - 1);
+				sb.append(i > 0 && template.charAt(i - 1) == '\'' ? b.replace("'", "''") : b);
+				i = j - 1;
+			}
+			else{
+				sb.append(c);
+			}
+		}
+		return sb.toString();
+	}
+
+	/** Reads the operations of a journal in the order they were written. */
+	public static final class Reader implements Closeable{
+		private final DataInputStream in;
+		private final Map<Integer, String> templates = new HashMap<Integer, String>();
+		private long last = 0;
+
+		public Reader(File file) throws IOException {
+			this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+		}
+
+		/**
+		 * @return the next operation, or null at the end of the journal
+		 * @throws java.io.IOException when the journal is corrupt
+		 */
+		public Op next() throws IOException {
+			while(true){
+				int tag = in.read();
+				if(tag < 0) return null;
+				try{
+					if(tag == HEADER){
+						if(in.readInt() != MAGIC) throw new IOException("Not an operation journal");
+						last = in.readLong();
+						templates.clear();
+					}
+					else if(tag == TEMPLATE){
+						int id = (int)readVar(in);
+						templates.put(id, in.readUTF());
+					}
+					else if(tag == OPERATION){
+						return readOp();
+					}
+					else{
+						throw new IOException("Unknown journal record " + tag);
+					}
+				}catch(EOFException e){
+					//the writer was killed in the middle of a batch
+					return null;
+				}
+			}
+		}
+
+		private Op readOp() throws IOException {
+			Op op = new Op();
+			op.type = in.readUnsignedByte();
+			op.flight = (int)readVar(in) - 1;
+			long delta = readVar(in);
+			op.start = last + (delta >>> 1 ^ -(delta & 1));
+			last = op.start;
+			int count = (int)readVar(in);
+			List<String> binds = new ArrayList<String>();
+			for(int i = 0; i < count; i++){
+				String template = templates.get((int)readVar(in));
+				if(template == null) throw new IOException("Journal refers to an undefined template");
+				op.flags.add(in.readUnsignedByte());
+				op.micros.add(readVar(in));
+				binds.clear();
+				int nb = (int)readVar(in);
+				for(int b = 0; b < nb; b++) binds.add(in.readUTF());
+				op.sql.add(render(template, binds));
+			}
+			return op;
+		}
+
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+
+	/**
+	 * Writes out what is still queued and stops the writer.
+	 */
+	public void close(){
+		running = false;
+		Thread w;
+		synchronized(this){
+			w = writer;
+		}
+		if(dropped.get() > 0) System.err.println("Warning - " + dropped.get() + " operations were not journaled");
+		if(w == null) return;
+		try{
+			w.join(5000);
+		}catch(InterruptedException e){
+			// ignored.
+		}
+	}
+}
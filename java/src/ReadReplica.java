@@ -0,0 +1,220 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A read replica of the primary database (a streaming standby, or for
+ * testing any second Postgres instance loaded with the same data).
+ *
+ * DBproject sends report statements and the statements of read-only menu
+ * operations here; writes, and everything done inside a write operation,
+ * stay on the primary.  If the replica cannot be reached, connections are
+ * opened on the primary instead and the replica is tried again after
+ * retryMillis; a replica connection that breaks mid-statement marks the
+ * replica down the same way, and the statement is rerun on the primary.
+ *
+ * A standby lags the primary, so after the session writes, its reads are
+ * pinned to the primary for pinMillis ("read your writes").
+ *
+ * Settings are Java system properties:
+ *   dbproject.replicaPort          port of the replica (unset disables routing)
+ *   dbproject.replicaHost          host of the replica (default localhost)
+ *   dbproject.replicaDb            database name (default the primary's)
+ *   dbproject.replicaUser          user name (default the primary's)
+ *   dbproject.replicaRetryMillis   time before an unreachable replica is tried again (default 30000)
+ *   dbproject.readYourWritesMillis reads go to the primary this long after a write (default 2000, 0 disables)
+ */
+public class ReadReplica{
+	/* seconds to wait for the replica to accept a connection */
+	static final int CONNECT_TIMEOUT = 2;
+
+	private final DBproject esql;
+	private final String url;
+	private final String user;
+	private final String passwd;
+	private final long retryMillis;
+	private final long pinMillis;
+	private final String setup;
+	private volatile long downUntil = 0;
+	private final AtomicLong fallbacks = new AtomicLong();
+	/* the open connections that are on the replica, noted when they are opened */
+	private final Set<Connection> opened = Collections.newSetFromMap(new IdentityHashMap<Connection, Boolean>());
+	/* the connection read-only operations run on */
+	private Connection interactive = null;
+
+	/**
+	 * @param setup run on the interactive connection when it is opened, or null
+	 */
+	public ReadReplica(DBproject esql, String url, String user, String passwd, long retryMillis, long pinMillis, String setup){
+		this.esql = esql;
+		this.url = url;
+		this.user = user;
+		this.passwd = passwd;
+		this.retryMillis = retryMillis;
+		this.pinMillis = pinMillis;
+		this.setup = setup;
+	}
+
+	/**
+	 * @return the replica configured by dbproject.replicaPort, or null if unset
+	 */
+	public static ReadReplica fromSystemProperties(DBproject esql, String dbname, String user, String passwd, String setup){
+		String port = System.getProperty("dbproject.replicaPort");
+		if(port == null || port.isEmpty()) return null;
+		String url = "jdbc:postgresql://" + System.getProperty("dbproject.replicaHost", "localhost") + ":" + port + "/" + System.getProperty("dbproject.replicaDb", dbname);
+		return new ReadReplica(esql, url, System.getProperty("dbproject.replicaUser", user), passwd,
+			Long.getLong("dbproject.replicaRetryMillis", 30000L), Long.getLong("dbproject.readYourWritesMillis", 2000L), setup);
+	}
+
+	public long pinMillis(){
+		return pinMillis;
+	}
+
+	public boolean isUp(){
+		return System.currentTimeMillis() >= downUntil;
+	}
+
+	/** @return the connections opened on the primary because the replica was down */
+	public long fallbacks(){
+		return fallbacks.get();
+	}
+
+	private void markDown(String why){
+		if(isUp()) System.err.println("Warning - Read replica " + url + " unavailable, reading from the primary for " + retryMillis / 1000 + "s: " + why);
+		downUntil = System.currentTimeMillis() + retryMillis;
+	}
+
+	/**
+	 * Opens a connection on the replica, or on the primary while the replica
+	 * is down.  The caller owns and closes it.
+	 */
+	public Connection open() throws SQLException {
+		if(isUp()){
+			Properties props = new Properties();
+			props.setProperty("user", user);
+			props.setProperty("password", passwd);
+			props.setProperty("connectTimeout", Integer.toString(CONNECT_TIMEOUT));
+			try{
+				Connection c = DriverManager.getConnection(url, props);
+				synchronized(opened){
+					forgetClosed();
+					opened.add(c);
+				}
+				return c;
+			}catch(SQLException e){
+				markDown(e.getMessage());
+			}
+		}
+		fallbacks.incrementAndGet();
+		return esql.openConnection();
+	}
+
+	/**
+	 * @return the connection of read-only operations, reopened on the
+	 *         replica once it is back if it had fallen back to the primary
+	 */
+	public synchronized Connection interactive() throws SQLException {
+		if(interactive != null && !isReplica(interactive) && isUp()){
+			close(interactive);
+			interactive = null;
+		}
+		if(interactive == null || interactive.isClosed()){
+			Connection c = open();
+			if(setup != null){
+				Statement stmt = c.createStatement();
+				try{
+					stmt.execute(setup);
+				}catch(SQLException e){
+					c.close();
+					throw e;
+				}finally{
+					stmt.close();
+				}
+			}
+			interactive = c;
+		}
+		return interactive;
+	}
+
+	public synchronized boolean owns(Connection c){
+		return c == interactive;
+	}
+
+	/*
+	 * drops the connections closed elsewhere (by a pool that dropped them) so
+	 * the set stays small; called holding opened's lock
+	 */
+	private void forgetClosed(){
+		for(Iterator<Connection> i = opened.iterator(); i.hasNext();){
+			try{
+				if(i.next().isClosed()) i.remove();
+			}catch(SQLException e){
+				i.remove();
+			}
+		}
+	}
+
+	/**
+	 * @return whether the connection was opened on the replica, also once it
+	 *         is lost or closed
+	 */
+	public boolean isReplica(Connection c){
+		synchronized(opened){
+			return opened.contains(c);
+		}
+	}
+
+	/**
+	 * @return whether the connection fell back to the primary and the replica
+	 *         may be back, so it should be closed rather than reused
+	 */
+	public boolean stale(Connection c){
+		return isUp() && !isReplica(c);
+	}
+
+	/**
+	 * Called with a statement's failure.  If the connection is a replica
+	 * connection that was lost, the replica is marked down and the connection
+	 * closed, so the statement can be run again and will go to the primary.
+	 *
+	 * @return whether the statement should be run again
+	 */
+	public boolean failed(Connection c, SQLException e){
+		if(c == null || !isReplica(c)) return false;
+		String state = e.getSQLState();
+		boolean lost;
+		try{
+			lost = (state != null && state.startsWith("08")) || c.isClosed();
+		}catch(SQLException ignored){
+			lost = true;
+		}
+		if(!lost) return false;
+		markDown(e.getMessage());
+		close(c);
+		return true;
+	}
+
+	/** Closes a connection of this replica, or one that fell back to the primary. */
+	public void close(Connection c){
+		synchronized(opened){
+			opened.remove(c);
+		}
+		try{
+			c.close();
+		}catch(SQLException e){
+			// ignored.
+		}
+	}
+
+	public synchronized void close(){
+		if(interactive != null) close(interactive);
+		interactive = null;
+	}
+}
@@ -0,0 +1,124 @@
+import java.io.File;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.SplittableRandom;
+
+/**
+ * Runs the BookFlight work (seats on the departure day, count of reserved
+ * seats, insert of the reservation or waitlist entry) against a repository and
+ * reports the throughput.  The in-memory repository gives the upper bound the
+ * application code could reach; with database arguments the same operations
+ * also run through JdbcRepository, which writes real reservations, so point
+ * it at a benchmark database loaded from the same data directory.
+ *
+ * The gated pass sends the same bookings from one thread per processor at a
+ * handful of hot flights through BookingGate, the way a popular flight opening
+ * looks, and reports how many were batched and how many were turned away.
+ *
+ * Usage:
+ *   java -cp lib/*:bin/ RepositoryBenchmark <datadir> [ops] [<dbname> <port> <user>]
+ */
+public class RepositoryBenchmark{
+	/**
+	 * @return the elapsed nanoseconds
+	 */
+	static long run(FlightRepository repository, int[] flights, int[] customers, int ops, long seed) throws SQLException {
+		SplittableRandom random = new SplittableRandom(seed);
+		long start = System.nanoTime();
+		for(int i = 0; i < ops; i++){
+			int flight = flights[random.nextInt(flights.length)];
+			List<LocalDate> days = repository.departures(flight);
+			if(days.isEmpty()) continue;
+			int seats = repository.seats(flight, days.get(0));
+			if(seats < 0) continue;
+			char status = repository.countReservations(flight, "R") < seats ? 'R' : 'W';
+			repository.book(customers[random.nextInt(customers.length)], flight, status);
+		}
+		return System.nanoTime() - start;
+	}
+
+	/**
+	 * @return the elapsed nanoseconds
+	 */
+	static long runGated(final BookingGate gate, final int[] flights, final int[] customers, final LocalDate[] days, int ops, int threads) throws Exception {
+		final int each = ops / threads;
+		Thread[] workers = new Thread[threads];
+		final SQLException[] error = new SQLException[1];
+		long start = System.nanoTime();
+		for(int t = 0; t < threads; t++){
+			final long seed = t;
+			workers[t] = new Thread(new Runnable(){
+				public void run(){
+					SplittableRandom random = new SplittableRandom(seed);
+					try{
+						for(int i = 0; i < each; i++){
+							int f = random.nextInt(flights.length);
+							gate.book(customers[random.nextInt(customers.length)], flights[f], days[f], true);
+						}
+					}catch(SQLException e){
+						error[0] = e;
+					}
+				}
+			});
+			workers[t].start();
+		}
+		for(Thread w : workers) w.join();
+		if(error[0] != null) throw error[0];
+		return System.nanoTime() - start;
+	}
+
+	static void printGate(BookingGate gate){
+		long[] s = gate.stats();
+		System.out.println(DBproject.pad("", 12) + s[1] + " booked in " + s[0] + " batches, " + s[2] + " turned away, concurrency limit " + s[3]);
+	}
+
+	static void print(String name, int ops, long nanos){
+		System.out.println(DBproject.pad(name, 12) + ops + " bookings in " + nanos / 1000000 + " ms ("
+			+ String.format("%.0f", ops / (nanos / 1e9)) + " per second)");
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length != 1 && args.length != 2 && args.length != 5) {
+			System.err.println("Usage: java [-classpath <classpath>] RepositoryBenchmark <datadir> [ops] [<dbname> <port> <user>]");
+			return;
+		}
+		int ops = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+		MemoryRepository memory = MemoryRepository.load(new File(args[0]));
+		int[] flights = memory.flightNumbers();
+		int[] customers = memory.customerIds();
+
+		//the first pass warms up the JIT
+		run(memory, flights, customers, ops, 1);
+		print("memory", ops, run(memory, flights, customers, ops, 2));
+
+		//a few hot flights that are scheduled, with their first departure day
+		int[] hot = new int[Math.min(8, flights.length)];
+		LocalDate[] days = new LocalDate[hot.length];
+		int n = 0;
+		for(int i = 0; i < flights.length && n < hot.length; i++){
+			List<LocalDate> d = memory.departures(flights[i]);
+			if(d.isEmpty()) continue;
+			hot[n] = flights[i];
+			days[n++] = d.get(0);
+		}
+		hot = java.util.Arrays.copyOf(hot, n);
+		int threads = Runtime.getRuntime().availableProcessors();
+		BookingGate gate = BookingGate.fromSystemProperties(memory);
+		print("gated", ops, runGated(gate, hot, customers, days, ops, threads));
+		printGate(gate);
+
+		if (args.length == 5) {
+			Class.forName("org.postgresql.Driver");
+			DBproject esql = new DBproject(args[2], args[3], args[4], "");
+			try{
+				print("jdbc", ops, run(new JdbcRepository(esql), flights, customers, ops, 2));
+				gate = BookingGate.fromSystemProperties(new JdbcRepository(esql));
+				print("jdbc gated", ops, runGated(gate, hot, customers, days, ops, threads));
+				printGate(gate);
+			}finally{
+				esql.cleanup();
+			}
+		}
+	}
+}
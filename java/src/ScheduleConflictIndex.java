@@ -0,0 +1,149 @@
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Scheduling-conflict index over FlightInfo joined with the Flight times.
+ * Every pilot and every plane gets an interval tree of the flights it is
+ * assigned to, so AddFlight can check a new departure/arrival window for a
+ * double booking in O(log n), and the whole schedule can be audited at once.
+ *
+ * Flight stores actual_departure_date and actual_arrival_date as DATE, so
+ * windows are whole days: a flight occupies its pilot and plane from the start
+ * of its departure day until the end of its arrival day.
+ */
+public class ScheduleConflictIndex{
+	public static final int PILOT = 0;
+	public static final int PLANE = 1;
+
+	private final Map<Integer, IntervalTree> byPilot = new HashMap<Integer, IntervalTree>();
+	private final Map<Integer, IntervalTree> byPlane = new HashMap<Integer, IntervalTree>();
+	//flight number -> {pilot, plane, start, end}, so a changed flight can be replaced
+	private final Map<Integer, long[]> flights = new HashMap<Integer, long[]>();
+
+	/**
+	 * Builds the index from every flight that has a FlightInfo row.
+	 *
+	 * @param esql the database connection
+	 * @return the loaded index
+	 * @throws java.sql.SQLException when the flights could not be read
+	 */
+	public static ScheduleConflictIndex load(DBproject esql) throws SQLException {
+		ScheduleConflictIndex index = new ScheduleConflictIndex();
+		index.addRows(esql, "");
+		return index;
+	}
+
+	private void addRows(DBproject esql, String filter) throws SQLException {
+		String query = "SELECT FI.flight_id, FI.pilot_id, FI.plane_id, F.actual_departure_date, F.actual_arrival_date FROM FlightInfo FI, Flight F WHERE FI.flight_id = F.fnum" + filter + ";";
+		for (List<String> r : esql.executeQueryOnAllShards(query)) {
+			add(Integer.parseInt(r.get(0)), Integer.parseInt(r.get(1)), Integer.parseInt(r.get(2)),
+				windowStart(parseDate(r.get(3))), windowEnd(parseDate(r.get(4))));
+		}
+	}
+
+	/**
+	 * Re-reads the given flights after another process changed them.
+	 *
+	 * @throws java.sql.SQLException when the flights could not be read
+	 */
+	public void refresh(DBproject esql, int[] flightNums) throws SQLException {
+		if(flightNums.length == 0) return;
+		StringBuilder in = new StringBuilder();
+		synchronized(this){
+			for(int f : flightNums){
+				long[] e = flights.get(f);
+				if(e != null) remove(f, (int)e[0], (int)e[1], e[2]);
+				if(in.length() > 0) in.append(", ");
+				in.append(f);
+			}
+		}
+		addRows(esql, " AND FI.flight_id IN (" + in + ")");
+	}
+
+	public static LocalDate parseDate(String s){
+		return LocalDate.parse(s.trim().substring(0, 10));
+	}
+
+	/** First minute of the departure day, in minutes since the epoch. */
+	public static long windowStart(LocalDate departure){
+		return departure.toEpochDay() * 1440L;
+	}
+
+	/** First minute after the arrival day, in minutes since the epoch. */
+	public static long windowEnd(LocalDate arrival){
+		return (arrival.toEpochDay() + 1) * 1440L;
+	}
+
+	public synchronized void add(int flightNum, int pilotId, int planeId, long start, long end){
+		long[] prev = flights.get(flightNum);
+		if(prev != null) remove(flightNum, (int)prev[0], (int)prev[1], prev[2]);
+		flights.put(flightNum, new long[]{pilotId, planeId, start, end});
+		tree(byPilot, pilotId).insert(start, end, flightNum);
+		tree(byPlane, planeId).insert(start, end, flightNum);
+	}
+
+	public synchronized void remove(int flightNum, int pilotId, int planeId, long start){
+		flights.remove(flightNum);
+		IntervalTree t = byPilot.get(pilotId);
+		if(t != null) t.remove(start, flightNum);
+		t = byPlane.get(planeId);
+		if(t != null) t.remove(start, flightNum);
+	}
+
+	public synchronized boolean hasConflict(int pilotId, int planeId, long start, long end){
+		IntervalTree p = byPilot.get(pilotId);
+		IntervalTree q = byPlane.get(planeId);
+		return (p != null && p.anyOverlap(start, end) != -1) || (q != null && q.anyOverlap(start, end) != -1);
+	}
+
+	/**
+	 * @return the flights already assigned to the pilot during [start, end)
+	 */
+	public synchronized List<Integer> pilotConflicts(int pilotId, long start, long end){
+		IntervalTree t = byPilot.get(pilotId);
+		return t == null ? new ArrayList<Integer>() : t.overlaps(start, end);
+	}
+
+	/**
+	 * @return the flights already assigned to the plane during [start, end)
+	 */
+	public synchronized List<Integer> planeConflicts(int planeId, long start, long end){
+		IntervalTree t = byPlane.get(planeId);
+		return t == null ? new ArrayList<Integer>() : t.overlaps(start, end);
+	}
+
+	/**
+	 * Audits the whole schedule.  Each conflict is returned as
+	 * {PILOT or PLANE, pilot or plane id, first flight, second flight}.
+	 */
+	public synchronized List<int[]> findAllConflicts(){
+		final List<int[]> out = new ArrayList<int[]>();
+		collect(byPilot, PILOT, out);
+		collect(byPlane, PLANE, out);
+		return out;
+	}
+
+	private static void collect(Map<Integer, IntervalTree> trees, final int kind, final List<int[]> out){
+		for (Map.Entry<Integer, IntervalTree> e : trees.entrySet()) {
+			final int resource = e.getKey();
+			e.getValue().forEachOverlappingPair(new IntervalTree.PairConsumer(){
+				public void accept(int first, int second){
+					out.add(new int[]{kind, resource, first, second});
+				}
+			});
+		}
+	}
+
+	private static IntervalTree tree(Map<Integer, IntervalTree> trees, int key){
+		IntervalTree t = trees.get(key);
+		if(t == null){
+			t = new IntervalTree();
+			trees.put(key, t);
+		}
+		return t;
+	}
+}
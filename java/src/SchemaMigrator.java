@@ -0,0 +1,448 @@
+/*
+ * Online Migration to Schema v2
+ * =============================
+ *
+ * Rewrites the nine tables of a running v1 database into the compact types of
+ * sql/create_v2.sql while DBproject keeps serving.
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Converts a v1 database to schema v2 without taking it offline.
+ *
+ * For every table, in foreign key order:
+ *   1. an empty copy with the v2 column types is created in schema v2;
+ *   2. a capture trigger on the live table mirrors every insert, update and
+ *      delete into the copy from then on;
+ *   3. existing rows are backfilled in primary key batches, each in its own
+ *      short transaction, with ON CONFLICT DO NOTHING so rows already written
+ *      by the trigger are never overwritten with older values.  A batch
+ *      holds its source rows FOR SHARE until it commits, so a concurrent
+ *      delete waits for the copy and then removes it through the trigger,
+ *      instead of the copy bringing back a row already deleted.
+ * Foreign keys are then added NOT VALID and validated (which does not block
+ * writers), the indexes of create.sql are built, and a single short
+ * transaction with a lock timeout swaps the tables: the v1 tables move to
+ * schema v1 and the v2 tables move to public.  DBproject uses unqualified
+ * table names, so its next statement already reads the new tables.
+ *
+ * The old tables stay in schema v1 until the migration is run with --drop-old.
+ *
+ * Airport codes stay inline as VARCHAR(5).  A five letter code already takes
+ * six bytes; interning it into a smallint id would save four bytes per column
+ * but would turn Flight into a view that every query, COPY and trigger in the
+ * application would have to go through.
+ *
+ * Usage:
+ *   java -cp lib/*:bin/ SchemaMigrator <dbname> <port> <user> [--report-only] [--batch N] [--pause ms] [--drop-old]
+ */
+public class SchemaMigrator{
+	/* v2 column definitions, parents before children */
+	static final Map<String, String> TABLES = new LinkedHashMap<String, String>();
+	static final Map<String, String> KEYS = new LinkedHashMap<String, String>();
+	static{
+		table("Customer", "id", "id INTEGER NOT NULL, fname VARCHAR(24) NOT NULL, lname VARCHAR(24) NOT NULL, gtype _GENDER NOT NULL, dob DATE NOT NULL, address VARCHAR(256), phone VARCHAR(10), zipcode VARCHAR(10)");
+		table("Pilot", "id", "id INTEGER NOT NULL, fullname VARCHAR(128), nationality VARCHAR(24)");
+		table("Flight", "fnum", "fnum INTEGER NOT NULL, cost _PINTEGER NOT NULL, num_sold _PZEROINTEGER NOT NULL, num_stops _SMALLPZEROINTEGER NOT NULL, actual_departure_date DATE NOT NULL, actual_arrival_date DATE NOT NULL, arrival_airport VARCHAR(5) NOT NULL, departure_airport VARCHAR(5) NOT NULL");
+		table("Plane", "id", "id INTEGER NOT NULL, make VARCHAR(32) NOT NULL, model VARCHAR(64) NOT NULL, age _SMALLYEAR_1970 NOT NULL, seats _SMALLSEATS NOT NULL");
+		table("Technician", "id", "id INTEGER NOT NULL, full_name VARCHAR(128) NOT NULL");
+		table("Reservation", "rnum", "rnum INTEGER NOT NULL, cid INTEGER NOT NULL, fid INTEGER NOT NULL, status _STATUS");
+		table("FlightInfo", "fiid", "fiid INTEGER NOT NULL, flight_id INTEGER NOT NULL, pilot_id INTEGER NOT NULL, plane_id INTEGER NOT NULL");
+		table("Repairs", "rid", "rid INTEGER NOT NULL, repair_date DATE NOT NULL, repair_code _CODE, pilot_id INTEGER NOT NULL, plane_id INTEGER NOT NULL, technician_id INTEGER NOT NULL");
+		table("Schedule", "id", "id INTEGER NOT NULL, flightNum INTEGER NOT NULL, departure_time DATE NOT NULL, arrival_time DATE NOT NULL");
+	}
+
+	static final String[] FOREIGN_KEYS = {
+		"Reservation (cid) REFERENCES Customer(id)",
+		"Reservation (fid) REFERENCES Flight(fnum)",
+		"FlightInfo (flight_id) REFERENCES Flight(fnum)",
+		"FlightInfo (pilot_id) REFERENCES Pilot(id)",
+		"FlightInfo (plane_id) REFERENCES Plane(id)",
+		"Repairs (pilot_id) REFERENCES Pilot(id)",
+		"Repairs (plane_id) REFERENCES Plane(id)",
+		"Repairs (technician_id) REFERENCES Technician(id)",
+		"Schedule (flightNum) REFERENCES Flight(fnum)"
+	};
+
+	static final String[] INDEXES = {
+		"flightMAX ON v2.Flight(fnum)",
+		"pilotID ON v2.Pilot(id)",
+		"PlaneID ON v2.Plane(id)",
+		"TechnicianID ON v2.Technician(id)",
+		"ReservationID ON v2.Reservation(rnum)",
+		"FlightInfoID ON v2.FlightInfo(fiid)",
+		"FlightInfoFlight ON v2.FlightInfo(flight_id)",
+		"FlightInfoPlane ON v2.FlightInfo(plane_id)",
+		"ReservationCustomer ON v2.Reservation(cid, fid, status, rnum)",
+		"ReservationOpen ON v2.Reservation(rnum) WHERE status IN ('R', 'W')",
+		"ReservationFlight ON v2.Reservation(fid, status)",
+		"ScheduleFlight ON v2.Schedule(flightNum, departure_time)",
+		"CustomerLname ON v2.Customer(lower(rtrim(lname)) text_pattern_ops)",
+		"CustomerFname ON v2.Customer(lower(rtrim(fname)) text_pattern_ops)",
+		"CustomerPhone ON v2.Customer(rtrim(phone) text_pattern_ops)"
+	};
+
+	/* the queries DBproject runs, timed before and after the migration */
+	static final String[] SCANS = {
+		"SELECT R.plane_id, COUNT(*), P.model FROM Repairs R, Plane P WHERE R.plane_id = P.id GROUP BY R.plane_id, P.model ORDER BY COUNT(*) DESC",
+		"SELECT EXTRACT(YEAR FROM R.repair_date), COUNT(*) FROM Repairs R GROUP BY EXTRACT(YEAR FROM (R.repair_date)) ORDER BY COUNT(*) ASC",
+		"SELECT P.seats FROM Plane P, Schedule S, FlightInfo F WHERE S.flightNum = 1 AND S.flightNum = F.flight_id AND F.plane_id = P.id",
+		"SELECT COUNT(*) FROM Reservation WHERE fid = 1 AND status = 'R'",
+		"SELECT MAX(rnum) FROM Reservation",
+		"SELECT S.departure_time, R.rnum, R.fid, R.status FROM Reservation R, Schedule S WHERE R.cid = 1 AND S.flightNum = R.fid ORDER BY S.departure_time, R.rnum LIMIT 10",
+		"SELECT id, fname, lname, phone FROM Customer",
+		"SELECT COUNT(*) FROM Customer WHERE address LIKE '%Drive%'"
+	};
+
+	static void table(String name, String key, String columns){
+		TABLES.put(name, columns);
+		KEYS.put(name, key);
+	}
+
+	static List<String> columnNames(String table){
+		List<String> names = new ArrayList<String>();
+		for(String def : TABLES.get(table).split(",")){
+			names.add(def.trim().split(" ")[0]);
+		}
+		return names;
+	}
+
+	private final Connection conn;
+	private final int batch;
+	private final long pause;
+
+	public SchemaMigrator(Connection conn, int batch, long pause){
+		this.conn = conn;
+		this.batch = batch;
+		this.pause = pause;
+	}
+
+	void execute(String sql) throws SQLException {
+		Statement stmt = conn.createStatement();
+		try{
+			stmt.execute(sql);
+		}finally{
+			stmt.close();
+		}
+	}
+
+	long queryLong(String sql) throws SQLException {
+		Statement stmt = conn.createStatement();
+		try{
+			ResultSet rs = stmt.executeQuery(sql);
+			return rs.next() ? rs.getLong(1) : 0;
+		}finally{
+			stmt.close();
+		}
+	}
+
+	boolean isMigrated() throws SQLException {
+		return queryLong("SELECT COUNT(*) FROM information_schema.columns WHERE table_schema = 'public' AND table_name = 'plane' AND column_name = 'seats' AND data_type = 'smallint'") > 0;
+	}
+
+	/**
+	 * Creates the compact domains and the empty v2 tables.
+	 */
+	void prepare() throws SQLException {
+		execute("CREATE SCHEMA IF NOT EXISTS v2");
+		execute("CREATE SCHEMA IF NOT EXISTS v1");
+		domain("_SMALLPZEROINTEGER", "int2 CHECK(VALUE >= 0)");
+		domain("_SMALLYEAR_1970", "int2 CHECK(VALUE >= 0)");
+		domain("_SMALLSEATS", "int2 CHECK(VALUE > 0 AND VALUE < 500)");
+		for(Map.Entry<String, String> t : TABLES.entrySet()){
+			execute("CREATE TABLE IF NOT EXISTS v2." + t.getKey() + " (" + t.getValue() + ", PRIMARY KEY (" + KEYS.get(t.getKey()) + "))");
+		}
+	}
+
+	void domain(String name, String definition) throws SQLException {
+		execute("DO $$ BEGIN CREATE DOMAIN " + name + " AS " + definition + "; EXCEPTION WHEN duplicate_object THEN NULL; END $$");
+	}
+
+	/**
+	 * Mirrors every change on the live table into its v2 copy.
+	 */
+	void capture(String table) throws SQLException {
+		String key = KEYS.get(table);
+		List<String> cols = columnNames(table);
+		StringBuilder values = new StringBuilder();
+		StringBuilder updates = new StringBuilder();
+		for(String c : cols){
+			if(values.length() > 0) values.append(", ");
+			values.append("NEW.").append(c);
+			if(c.equals(key)) continue;
+			if(updates.length() > 0) updates.append(", ");
+			updates.append(c).append(" = EXCLUDED.").append(c);
+		}
+		String list = String.join(", ", cols);
+		execute("CREATE OR REPLACE FUNCTION v2.capture_" + table + "() RETURNS trigger AS $$ BEGIN "
+			+ "IF TG_OP = 'DELETE' THEN DELETE FROM v2." + table + " WHERE " + key + " = OLD." + key + "; RETURN OLD; END IF; "
+			+ "IF TG_OP = 'UPDATE' THEN IF NEW." + key + " <> OLD." + key + " THEN "
+			+ "DELETE FROM v2." + table + " WHERE " + key + " = OLD." + key + "; END IF; END IF; "
+			+ "INSERT INTO v2." + table + " (" + list + ") VALUES (" + values + ") ON CONFLICT (" + key + ") DO "
+			+ (updates.length() == 0 ? "NOTHING" : "UPDATE SET " + updates) + "; "
+			+ "RETURN NEW; END $$ LANGUAGE plpgsql");
+		execute("DROP TRIGGER IF EXISTS v2_capture ON public." + table);
+		execute("CREATE TRIGGER v2_capture AFTER INSERT OR UPDATE OR DELETE ON public." + table + " FOR EACH ROW EXECUTE PROCEDURE v2.capture_" + table + "()");
+	}
+
+	/**
+	 * Copies existing rows in key order, one short transaction per batch.
+	 *
+	 * @return the number of rows copied
+	 */
+	long backfill(String table) throws SQLException, InterruptedException {
+		String key = KEYS.get(table);
+		String list = String.join(", ", columnNames(table));
+		long max = queryLong("SELECT COALESCE(MAX(" + key + "), -1) FROM public." + table);
+		long from = queryLong("SELECT COALESCE(MIN(" + key + "), 0) FROM public." + table) - 1;
+		long copied = 0;
+		long start = System.nanoTime();
+		while(from < max){
+			long to = from + batch;
+			Statement stmt = conn.createStatement();
+			try{
+				copied += stmt.executeUpdate("INSERT INTO v2." + table + " (" + list + ") SELECT " + list + " FROM public." + table
+					+ " WHERE " + key + " > " + from + " AND " + key + " <= " + to + " FOR SHARE ON CONFLICT (" + key + ") DO NOTHING");
+			}finally{
+				stmt.close();
+			}
+			from = to;
+			if(pause > 0) Thread.sleep(pause);
+		}
+		System.out.println("  " + table + ": " + copied + " rows backfilled in " + (System.nanoTime() - start) / 1000000 + " ms");
+		return copied;
+	}
+
+	void constrain() throws SQLException {
+		int n = 0;
+		for(String fk : FOREIGN_KEYS){
+			String table = fk.substring(0, fk.indexOf(' '));
+			String name = "v2_fk_" + (n++);
+			execute("DO $$ BEGIN ALTER TABLE v2." + table + " ADD CONSTRAINT " + name + " FOREIGN KEY " + fk.substring(fk.indexOf(' ') + 1)
+				.replace("REFERENCES ", "REFERENCES v2.") + " NOT VALID; EXCEPTION WHEN duplicate_object THEN NULL; END $$");
+			execute("ALTER TABLE v2." + table + " VALIDATE CONSTRAINT " + name);
+		}
+		for(String index : INDEXES){
+			execute("CREATE INDEX IF NOT EXISTS " + index);
+		}
+		for(String table : TABLES.keySet()){
+			execute("ANALYZE v2." + table);
+		}
+	}
+
+	/**
+	 * Moves the v1 tables out of the way and the v2 tables in, in one short
+	 * transaction.  The lock timeout keeps the swap from queueing behind a
+	 * long-running statement; the swap is retried instead.
+	 */
+	void swap() throws SQLException, InterruptedException {
+		List<String[]> repointed = new ArrayList<String[]>();
+		for(int attempt = 1; ; attempt++){
+			conn.setAutoCommit(false);
+			try{
+				execute("SET LOCAL lock_timeout = '2s'");
+				execute("LOCK TABLE " + String.join(", ", prefixed("public.")) + " IN ACCESS EXCLUSIVE MODE");
+				for(String table : TABLES.keySet()){
+					execute("DROP TRIGGER v2_capture ON public." + table);
+					execute("ALTER TABLE public." + table + " SET SCHEMA v1");
+					execute("ALTER TABLE v2." + table + " SET SCHEMA public");
+				}
+				repointed = repointForeignKeys();
+				moveTriggers();
+				conn.commit();
+				conn.setAutoCommit(true);
+				break;
+			}catch(SQLException e){
+				conn.rollback();
+				conn.setAutoCommit(true);
+				if(attempt >= 10) throw e;
+				System.out.println("  swap attempt " + attempt + " could not get its locks, retrying");
+				Thread.sleep(1000L * attempt);
+			}
+		}
+		for(String[] fk : repointed){
+			execute("ALTER TABLE public." + fk[0] + " VALIDATE CONSTRAINT " + fk[1]);
+		}
+		for(String table : TABLES.keySet()){
+			execute("DROP FUNCTION IF EXISTS v2.capture_" + table + "()");
+		}
+	}
+
+	/**
+	 * Re-creates the application's own triggers (such as the change
+	 * notifications of sql/notify.sql) on the new tables.
+	 */
+	void moveTriggers() throws SQLException {
+		List<String[]> triggers = new ArrayList<String[]>();
+		Statement stmt = conn.createStatement();
+		try{
+			ResultSet rs = stmt.executeQuery("SELECT c.relname, t.tgname, pg_get_triggerdef(t.oid) FROM pg_trigger t, pg_class c, pg_namespace n "
+				+ "WHERE t.tgrelid = c.oid AND c.relnamespace = n.oid AND n.nspname = 'v1' AND NOT t.tgisinternal AND t.tgname <> 'v2_capture'");
+			while(rs.next()){
+				triggers.add(new String[]{rs.getString(1), rs.getString(2), rs.getString(3)});
+			}
+		}finally{
+			stmt.close();
+		}
+		for(String[] t : triggers){
+			execute("DROP TRIGGER " + t[1] + " ON v1." + t[0]);
+			execute(t[2].replace(" ON v1.", " ON public."));
+		}
+	}
+
+	/**
+	 * Tables that are not rewritten (such as Seat_Assignment) still reference
+	 * the v1 tables after the swap; their foreign keys are re-created against
+	 * the new tables NOT VALID inside the swap transaction and validated after.
+	 *
+	 * @return (table, constraint) of every re-created foreign key
+	 */
+	List<String[]> repointForeignKeys() throws SQLException {
+		List<String[]> fks = new ArrayList<String[]>();
+		Statement stmt = conn.createStatement();
+		try{
+			ResultSet rs = stmt.executeQuery("SELECT cl.relname, c.conname, pg_get_constraintdef(c.oid) FROM pg_constraint c, pg_class cl, pg_namespace n, pg_class r, pg_namespace rn "
+				+ "WHERE c.contype = 'f' AND cl.oid = c.conrelid AND n.oid = cl.relnamespace AND r.oid = c.confrelid AND rn.oid = r.relnamespace "
+				+ "AND n.nspname = 'public' AND rn.nspname = 'v1'");
+			while(rs.next()){
+				fks.add(new String[]{rs.getString(1), rs.getString(2), rs.getString(3)});
+			}
+		}finally{
+			stmt.close();
+		}
+		for(String[] fk : fks){
+			execute("ALTER TABLE public." + fk[0] + " DROP CONSTRAINT " + fk[1]);
+			execute("ALTER TABLE public." + fk[0] + " ADD CONSTRAINT " + fk[1] + " " + fk[2].replace("REFERENCES v1.", "REFERENCES public.") + " NOT VALID");
+		}
+		return fks;
+	}
+
+	List<String> prefixed(String prefix){
+		List<String> out = new ArrayList<String>();
+		for(String table : TABLES.keySet()) out.add(prefix + table);
+		return out;
+	}
+
+	/**
+	 * Prints on-disk and shared-buffer size per table and the time of the
+	 * application's own queries.
+	 */
+	void report(String label) throws SQLException {
+		System.out.println();
+		System.out.println(label);
+		System.out.println("----------------------------------------------------------------------------");
+		System.out.println("|Table            Heap (kB)        Total (kB)       Cached (kB)");
+		Map<String, Long> cached = new LinkedHashMap<String, Long>();
+		Statement stmt = conn.createStatement();
+		try{
+			//the live tables only: after the swap the old ones of the same name are in schema v1
+			ResultSet rs = stmt.executeQuery("SELECT c.relname, COUNT(*) * current_setting('block_size')::int / 1024 FROM pg_buffercache b, pg_class c, pg_namespace n "
+				+ "WHERE b.relfilenode = pg_relation_filenode(c.oid) AND b.reldatabase = (SELECT oid FROM pg_database WHERE datname = current_database()) "
+				+ "AND n.oid = c.relnamespace AND n.nspname = 'public' GROUP BY c.relname");
+			while(rs.next()) cached.put(rs.getString(1), rs.getLong(2));
+		}catch(SQLException e){
+			//pg_buffercache is an optional extension
+			cached = null;
+		}finally{
+			stmt.close();
+		}
+		long heap = 0;
+		long total = 0;
+		for(String table : TABLES.keySet()){
+			long h = queryLong("SELECT pg_relation_size('public." + table + "') / 1024");
+			long t = queryLong("SELECT pg_total_relation_size('public." + table + "') / 1024");
+			Long c = cached == null ? null : cached.get(table.toLowerCase());
+			heap += h;
+			total += t;
+			System.out.println("|" + pad(table, 17) + pad(Long.toString(h), 17) + pad(Long.toString(t), 17) + (cached == null ? "n/a" : c == null ? "0" : c.toString()));
+		}
+		System.out.println("|" + pad("all", 17) + pad(Long.toString(heap), 17) + pad(Long.toString(total), 17));
+		if(cached == null){
+			System.out.println("(CREATE EXTENSION pg_buffercache to see the cached size)");
+		}
+		System.out.println();
+		System.out.println("|Best of 3 (ms)   Query");
+		for(String q : SCANS){
+			long best = Long.MAX_VALUE;
+			for(int i = 0; i < 3; i++){
+				long start = System.nanoTime();
+				Statement s = conn.createStatement();
+				try{
+					ResultSet rs = s.executeQuery(q);
+					while(rs.next()){
+						//drain the result like the application does
+					}
+				}finally{
+					s.close();
+				}
+				best = Math.min(best, System.nanoTime() - start);
+			}
+			System.out.println("|" + pad(String.format("%.2f", best / 1e6), 17) + q);
+		}
+		System.out.println("----------------------------------------------------------------------------");
+	}
+
+	static String pad(String s, int width){
+		StringBuilder sb = new StringBuilder(s);
+		while(sb.length() < width) sb.append(' ');
+		return sb.toString();
+	}
+
+	public void migrate() throws SQLException, InterruptedException {
+		if(isMigrated()){
+			System.out.println("Database already uses schema v2");
+			return;
+		}
+		System.out.println("Creating v2 tables");
+		prepare();
+		System.out.println("Capturing changes and backfilling");
+		for(String table : TABLES.keySet()){
+			capture(table);
+			backfill(table);
+		}
+		System.out.println("Adding constraints and indexes");
+		constrain();
+		System.out.println("Swapping tables");
+		swap();
+		System.out.println("Done: v1 tables kept in schema v1");
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 3) {
+			System.err.println("Usage: java [-classpath <classpath>] SchemaMigrator <dbname> <port> <user> [--report-only] [--batch N] [--pause ms] [--drop-old]");
+			return;
+		}
+		List<String> opts = Arrays.asList(args).subList(3, args.length);
+		int batch = opts.contains("--batch") ? Integer.parseInt(opts.get(opts.indexOf("--batch") + 1)) : 10000;
+		long pause = opts.contains("--pause") ? Long.parseLong(opts.get(opts.indexOf("--pause") + 1)) : 0;
+
+		Class.forName("org.postgresql.Driver");
+		DBproject esql = new DBproject(args[0], args[1], args[2], "");
+		Connection conn = esql.openConnection();
+		try{
+			SchemaMigrator m = new SchemaMigrator(conn, batch, pause);
+			m.report("Before (" + (m.isMigrated() ? "v2" : "v1") + ")");
+			if(opts.contains("--report-only")) return;
+			m.migrate();
+			if(opts.contains("--drop-old")){
+				m.execute("DROP SCHEMA IF EXISTS v1 CASCADE");
+				System.out.println("Dropped the v1 tables");
+			}
+			m.report("After (v2)");
+		}finally{
+			conn.close();
+			esql.cleanup();
+		}
+	}
+}
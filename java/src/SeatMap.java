@@ -0,0 +1,404 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Seat-level booking.  Plane seats are capped below 500 by the _SEATS domain,
+ * so the whole seat map of a flight fits in eight longs: bit i is seat i, and
+ * seats are laid out six abreast (A to F), A and F at the window, C and D on the
+ * aisle.  Seats are claimed and released with compare-and-set, so any number of
+ * threads can book the same flight without locks.
+ *
+ * Claims are written to the Seat_Assignment table by a background writer in
+ * batches, after the customer was told the seat.  Another process
+ * may have saved the same seat meanwhile: the primary key (flight_id, seat)
+ * keeps the second insert out, and the writer then moves the reservation to
+ * the lowest free seat, or warns that it has none, on standard error.  A
+ * batch that fails is retried on a new connection, backing off up to
+ * MAX_RETRY_MILLIS, until it is saved.  A seat map loaded again while claims
+ * are still queued takes those claims over from the queue.
+ */
+public class SeatMap{
+	public static final int WORDS = 8;
+	public static final int ABREAST = 6;
+	public static final int MAX_SEATS = WORDS * 64;
+	static final long MAX_RETRY_MILLIS = 30000;
+
+	public static final int ANY = 0;
+	public static final int WINDOW = 1;
+	public static final int AISLE = 2;
+
+	static final long[] WINDOW_MASK = new long[WORDS];
+	static final long[] AISLE_MASK = new long[WORDS];
+	/* ROW_START[n][w]: bit i set if n seats starting at seat 64w+i stay in one row */
+	static final long[][] ROW_START = new long[ABREAST + 1][WORDS];
+	static{
+		for(int seat = 0; seat < MAX_SEATS; seat++){
+			int col = seat % ABREAST;
+			long bit = 1L << (seat & 63);
+			if(col == 0 || col == ABREAST - 1) WINDOW_MASK[seat >> 6] |= bit;
+			if(col == 2 || col == 3) AISLE_MASK[seat >> 6] |= bit;
+			for(int n = 1; n <= ABREAST; n++){
+				if(col + n <= ABREAST) ROW_START[n][seat >> 6] |= bit;
+			}
+		}
+	}
+
+	/** The seat map of one flight. */
+	public static final class FlightSeats{
+		final AtomicLongArray taken = new AtomicLongArray(WORDS);
+		final long[] valid = new long[WORDS];
+		final int capacity;
+
+		FlightSeats(int capacity){
+			this.capacity = Math.min(capacity, MAX_SEATS);
+			for(int seat = 0; seat < this.capacity; seat++){
+				valid[seat >> 6] |= 1L << (seat & 63);
+			}
+		}
+
+		public int capacity(){
+			return capacity;
+		}
+
+		public boolean isTaken(int seat){
+			return (taken.get(seat >> 6) & (1L << (seat & 63))) != 0;
+		}
+
+		public int free(){
+			int n = 0;
+			for(int w = 0; w < WORDS; w++){
+				n += Long.bitCount(valid[w] & ~taken.get(w));
+			}
+			return n;
+		}
+
+		/** Claims one seat; false if it is out of range or already taken. */
+		public boolean claim(int seat){
+			if(seat < 0 || seat >= capacity) return false;
+			int w = seat >> 6;
+			long bit = 1L << (seat & 63);
+			while(true){
+				long cur = taken.get(w);
+				if((cur & bit) != 0) return false;
+				if(taken.compareAndSet(w, cur, cur | bit)) return true;
+			}
+		}
+
+		public boolean release(int seat){
+			if(seat < 0 || seat >= capacity) return false;
+			int w = seat >> 6;
+			long bit = 1L << (seat & 63);
+			while(true){
+				long cur = taken.get(w);
+				if((cur & bit) == 0) return false;
+				if(taken.compareAndSet(w, cur, cur & ~bit)) return true;
+			}
+		}
+
+		/**
+		 * Claims the lowest free seat of the requested kind.
+		 *
+		 * @return the seat, or -1 if none is left
+		 */
+		public int claimFirstFree(int kind){
+			for(int w = 0; w < WORDS; w++){
+				long mask = valid[w] & (kind == WINDOW ? WINDOW_MASK[w] : kind == AISLE ? AISLE_MASK[w] : -1L);
+				while(true){
+					long cur = taken.get(w);
+					long free = mask & ~cur;
+					if(free == 0) break;
+					long bit = free & -free;
+					if(taken.compareAndSet(w, cur, cur | bit)){
+						return (w << 6) + Long.numberOfTrailingZeros(bit);
+					}
+				}
+			}
+			return -1;
+		}
+
+		/**
+		 * Claims n adjacent seats in one row (n at most six).  A run of n free
+		 * seats is found by and-ing the free bitmap with itself shifted by
+		 * 1..n-1, carrying bits in from the next word, and masking out runs that
+		 * would wrap into the next row.  The seats are then claimed one by one;
+		 * if another thread wins any of them the partial claim is undone and the
+		 * search starts over.
+		 *
+		 * @return the first seat of the run, or -1 if there is no such run
+		 */
+		public int claimAdjacent(int n){
+			if(n < 1 || n > ABREAST) return -1;
+			while(true){
+				long[] free = new long[WORDS + 1];
+				for(int w = 0; w < WORDS; w++){
+					free[w] = valid[w] & ~taken.get(w);
+				}
+				int start = -1;
+				for(int w = 0; w < WORDS && start < 0; w++){
+					long run = free[w];
+					for(int k = 1; k < n; k++){
+						run &= (free[w] >>> k) | (free[w + 1] << (64 - k));
+					}
+					run &= ROW_START[n][w];
+					if(run != 0) start = (w << 6) + Long.numberOfTrailingZeros(run);
+				}
+				if(start < 0) return -1;
+				int got = 0;
+				while(got < n && claim(start + got)) got++;
+				if(got == n) return start;
+				for(int i = 0; i < got; i++) release(start + i);
+			}
+		}
+	}
+
+	/** A pending insert into Seat_Assignment. */
+	static final class Change{
+		final int flight;
+		final int seat;
+		final int rnum;
+
+		Change(int flight, int seat, int rnum){
+			this.flight = flight;
+			this.seat = seat;
+			this.rnum = rnum;
+		}
+	}
+
+	private final DBproject esql;
+	private final ConcurrentHashMap<Integer, FlightSeats> flights = new ConcurrentHashMap<Integer, FlightSeats>();
+	private final LinkedBlockingQueue<Change> pending = new LinkedBlockingQueue<Change>();
+	/* the claims queued or being written, until they are committed */
+	private final Set<Change> unsaved = ConcurrentHashMap.newKeySet();
+	private final int batchSize;
+	private final long flushMillis;
+	private Thread writer = null;
+	private volatile boolean running = true;
+
+	public SeatMap(DBproject esql, int batchSize, long flushMillis){
+		this.esql = esql;
+		this.batchSize = batchSize;
+		this.flushMillis = flushMillis;
+	}
+
+	public static String label(int seat){
+		return (seat / ABREAST + 1) + "" + (char)('A' + seat % ABREAST);
+	}
+
+	/**
+	 * @return the seat index for a label such as "12C", or -1 if malformed
+	 */
+	public static int parse(String label){
+		String s = label.trim().toUpperCase();
+		if(!s.matches("[0-9]+[A-F]")) return -1;
+		int row = Integer.parseInt(s.substring(0, s.length() - 1));
+		return (row - 1) * ABREAST + (s.charAt(s.length() - 1) - 'A');
+	}
+
+	/**
+	 * Returns the seat map of a flight, loading the persisted assignments the
+	 * first time the flight is touched.
+	 *
+	 * @param capacity the seats of the plane flying it
+	 * @throws java.sql.SQLException when the assignments could not be read
+	 */
+	public FlightSeats get(int flight, int capacity) throws SQLException {
+		FlightSeats seats = flights.get(flight);
+		if(seats != null) return seats;
+		//taken before the read, so a claim committed meanwhile is in one or the other
+		List<Change> queued = new ArrayList<Change>();
+		for(Change c : unsaved){
+			if(c.flight == flight) queued.add(c);
+		}
+		seats = new FlightSeats(capacity);
+		for (List<String> r : esql.executeQueryAndReturnResult("SELECT seat FROM Seat_Assignment WHERE flight_id = " + flight + ";")) {
+			seats.claim(Integer.parseInt(r.get(0)));
+		}
+		for(Change c : queued) seats.claim(c.seat);
+		FlightSeats prev = flights.putIfAbsent(flight, seats);
+		return prev == null ? seats : prev;
+	}
+
+	public void forget(int flight){
+		flights.remove(flight);
+	}
+
+	public void forgetAll(){
+		flights.clear();
+	}
+
+	/** Queues the persistence of a seat claimed for a reservation. */
+	public void assigned(int flight, int seat, int rnum){
+		startWriter();
+		queue(new Change(flight, seat, rnum));
+	}
+
+	private void queue(Change c){
+		unsaved.add(c);
+		pending.add(c);
+	}
+
+	private synchronized void startWriter(){
+		if(writer != null) return;
+		writer = new Thread(new Runnable(){
+			public void run(){
+				writeLoop();
+			}
+		}, "seat-writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	private void writeLoop(){
+		Connection conn = null;
+		List<Change> batch = new ArrayList<Change>(batchSize);
+		long backoff = flushMillis;
+		try{
+			while(running || !pending.isEmpty() || !batch.isEmpty()){
+				if(batch.isEmpty()){
+					Change first = pending.poll(flushMillis, TimeUnit.MILLISECONDS);
+					if(first == null) continue;
+					batch.add(first);
+					pending.drainTo(batch, batchSize - 1);
+				}
+				try{
+					if(conn == null) conn = esql.openConnection();
+					write(conn, batch);
+					backoff = flushMillis;
+				}catch(SQLException e){
+					try{
+						if(conn != null) conn.close();
+					}catch(SQLException ignored){
+						// ignored.
+					}
+					conn = null;
+					if(running){
+						System.err.println("Warning - Unable to save " + batch.size() + " seat assignments, retrying in " + backoff + " ms: " + e.getMessage());
+						Thread.sleep(backoff);
+						backoff = Math.min(backoff * 2, MAX_RETRY_MILLIS);
+						continue;
+					}
+					//shutting down: the batch is given up
+					System.err.println("Error - " + batch.size() + " seat assignments were not saved: " + e.getMessage());
+				}
+				unsaved.removeAll(batch);
+				batch.clear();
+			}
+		}catch(InterruptedException e){
+			// shutting down
+		}finally{
+			try{
+				if(conn != null) conn.close();
+			}catch(SQLException e){
+				// ignored.
+			}
+		}
+	}
+
+	/*
+	 * Saves a batch in one transaction.  A row whose reservation is gone (or
+	 * that breaks another constraint) cannot be saved by retrying; such rows
+	 * are skipped behind savepoints and reported, and the rest is saved.  Any
+	 * other failure rolls the batch back and is thrown, for the writer to
+	 * retry it whole.
+	 */
+	private void write(Connection conn, List<Change> batch) throws SQLException {
+		//a rerun of a batch that did commit finds its own rows and counts them as saved
+		PreparedStatement ins = conn.prepareStatement("INSERT INTO Seat_Assignment (flight_id, seat, rnum) VALUES (?, ?, ?) "
+			+ "ON CONFLICT (flight_id, seat) DO UPDATE SET rnum = EXCLUDED.rnum WHERE Seat_Assignment.rnum = EXCLUDED.rnum");
+		List<Change> lost = new ArrayList<Change>();
+		try{
+			conn.setAutoCommit(false);
+			try{
+				for(Change c : batch){
+					set(ins, c);
+					ins.addBatch();
+				}
+				//a row that inserted nothing was saved by another process first
+				int[] counts = ins.executeBatch();
+				for(int i = 0; i < counts.length; i++){
+					if(counts[i] == 0) lost.add(batch.get(i));
+				}
+			}catch(SQLException e){
+				if(!isConstraint(e)) throw e;
+				conn.rollback();
+				ins.clearBatch();
+				lost.clear();
+				for(Change c : batch){
+					Savepoint sp = conn.setSavepoint();
+					try{
+						set(ins, c);
+						if(ins.executeUpdate() == 0) lost.add(c);
+					}catch(SQLException x){
+						if(!isConstraint(x)) throw x;
+						conn.rollback(sp);
+						System.err.println("Error - Seat " + label(c.seat) + " of flight " + c.flight + " not saved for reservation " + c.rnum + ": " + x.getMessage());
+					}
+				}
+			}
+			conn.commit();
+		}catch(SQLException e){
+			try{
+				conn.rollback();
+			}catch(SQLException ignored){
+				// the connection is broken, the writer opens a new one
+			}
+			throw e;
+		}finally{
+			ins.close();
+		}
+		conn.setAutoCommit(true);
+		for(Change c : lost) reassign(c);
+	}
+
+	private static void set(PreparedStatement ins, Change c) throws SQLException {
+		ins.setInt(1, c.flight);
+		ins.setInt(2, c.seat);
+		ins.setInt(3, c.rnum);
+	}
+
+	/* integrity constraint violations, SQLSTATE class 23 */
+	static boolean isConstraint(SQLException e){
+		return e.getSQLState() != null && e.getSQLState().startsWith("23");
+	}
+
+	/*
+	 * The seat was saved by another process first.  It stays claimed here, as
+	 * it is taken, and the reservation gets the lowest free seat instead.
+	 */
+	private void reassign(Change c){
+		FlightSeats seats = flights.get(c.flight);
+		int seat = seats == null ? -1 : seats.claimFirstFree(ANY);
+		if(seat < 0){
+			System.err.println("Warning - Seat " + label(c.seat) + " of flight " + c.flight + " was taken by another session, reservation " + c.rnum + " has no seat");
+			return;
+		}
+		System.err.println("Warning - Seat " + label(c.seat) + " of flight " + c.flight + " was taken by another session, reservation " + c.rnum + " moved to seat " + label(seat));
+		queue(new Change(c.flight, seat, c.rnum));
+	}
+
+	/**
+	 * Writes out everything still queued and stops the writer.
+	 */
+	public void close(){
+		running = false;
+		Thread w;
+		synchronized(this){
+			w = writer;
+		}
+		if(w == null) return;
+		try{
+			w.join(10000);
+		}catch(InterruptedException e){
+			// ignored.
+		}
+	}
+}
@@ -0,0 +1,190 @@
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * FlightRepository over flight-number shards (see Shards): a JdbcRepository
+ * per shard, with every operation on a flight sent to the shard of that
+ * flight.
+ *
+ * Planes, pilots and technicians are added on every shard with the same id,
+ * in one transaction per shard committed once all of them took the row.
+ * Flight numbers are one past the largest on any shard, and the new flight
+ * goes to the shard of its number.  Reservation numbers stay unique across
+ * shards by striding: each shard's sequence starts above the largest number
+ * found at start and only hands out numbers congruent to the shard's index
+ * modulo the number of shards.
+ */
+public class ShardedRepository implements FlightRepository{
+	private final Shards shards;
+	private final JdbcRepository[] repositories;
+	/* the first reservation number above every existing one, found on first use */
+	private int rnumFloor = -1;
+
+	public ShardedRepository(Shards shards){
+		this.shards = shards;
+		this.repositories = new JdbcRepository[shards.size()];
+		for(int i = 0; i < repositories.length; i++){
+			final int shard = i;
+			repositories[i] = new JdbcRepository(shards.member(i)){
+				int idStep(){
+					return repositories.length;
+				}
+
+				int idOffset(){
+					return shard;
+				}
+
+				int reservationFloor() throws SQLException {
+					return rnumFloor();
+				}
+			};
+		}
+	}
+
+	private synchronized int rnumFloor() throws SQLException {
+		if(rnumFloor < 0) rnumFloor = shards.max("Reservation", "rnum") + 1;
+		return rnumFloor;
+	}
+
+	JdbcRepository of(int flightNum){
+		return repositories[shards.shardOf(flightNum)];
+	}
+
+	/** A write of a reference row, made on one shard. */
+	interface Write{
+		void run(JdbcRepository shard) throws SQLException;
+	}
+
+	/*
+	 * Makes the write on every shard, each in its own transaction, and
+	 * commits only once every shard took it.
+	 */
+	private void everywhere(Write write) throws SQLException {
+		everywhere(write, 0);
+	}
+
+	/*
+	 * the transaction of shard i stays open while the shards after it take
+	 * the write, and commits once they all committed; a failure rolls back
+	 * the shards still open
+	 */
+	private void everywhere(final Write write, final int i) throws SQLException {
+		if(i == repositories.length) return;
+		final boolean[] committed = new boolean[1];
+		try{
+			shards.member(i).inTransaction(new DBproject.Transaction<Void>(){
+				public Void run() throws SQLException {
+					write.run(repositories[i]);
+					everywhere(write, i + 1);
+					committed[0] = true;
+					return null;
+				}
+			});
+		}catch(SQLException e){
+			if(!committed[0] || i == repositories.length - 1) throw e;
+			throw new SQLException("Committed on shards " + (i + 1) + " to " + (repositories.length - 1) + " only, shard " + i + " failed: " + e.getMessage(), e.getSQLState(), e);
+		}
+	}
+
+	public int addPlane(final String make, final String model, final int age, final int seats) throws SQLException {
+		final int id = repositories[0].nextId("Plane", "id");
+		everywhere(new Write(){
+			public void run(JdbcRepository shard) throws SQLException {
+				shard.addPlane(id, make, model, age, seats);
+			}
+		});
+		return id;
+	}
+
+	public int addPilot(final String fullName, final String nationality) throws SQLException {
+		final int id = repositories[0].nextId("Pilot", "id");
+		everywhere(new Write(){
+			public void run(JdbcRepository shard) throws SQLException {
+				shard.addPilot(id, fullName, nationality);
+			}
+		});
+		return id;
+	}
+
+	public int addTechnician(final String fullName) throws SQLException {
+		final int id = repositories[0].nextId("Technician", "id");
+		everywhere(new Write(){
+			public void run(JdbcRepository shard) throws SQLException {
+				shard.addTechnician(id, fullName);
+			}
+		});
+		return id;
+	}
+
+	public int addFlight(int cost, int numSold, int numStops, LocalDateTime actualDeparture, LocalDateTime actualArrival,
+			String arrivalAirport, String departureAirport, int pilotId, int planeId,
+			LocalDateTime scheduledDeparture, LocalDateTime scheduledArrival) throws SQLException {
+		int fnum = shards.max("Flight", "fnum") + 1;
+		return of(fnum).addFlight(fnum, cost, numSold, numStops, actualDeparture, actualArrival, arrivalAirport, departureAirport,
+			pilotId, planeId, scheduledDeparture, scheduledArrival);
+	}
+
+	public int seats(int flightNum, LocalDate departure) throws SQLException {
+		return of(flightNum).seats(flightNum, departure);
+	}
+
+	public int[] seatsLeft(final int[] flightNums, final LocalDate[] departures) throws SQLException {
+		final int[] left = new int[flightNums.length];
+		//each shard answers for its own flights, all shards at once
+		shards.scatter(new Shards.Task<Void>(){
+			public Void run(int shard) throws SQLException {
+				List<Integer> at = new ArrayList<Integer>();
+				for(int i = 0; i < flightNums.length; i++){
+					if(shards.shardOf(flightNums[i]) == shard) at.add(i);
+				}
+				if(at.isEmpty()) return null;
+				int[] f = new int[at.size()];
+				LocalDate[] d = new LocalDate[at.size()];
+				for(int j = 0; j < f.length; j++){
+					f[j] = flightNums[at.get(j)];
+					d[j] = departures[at.get(j)];
+				}
+				int[] l = repositories[shard].seatsLeft(f, d);
+				for(int j = 0; j < l.length; j++) left[at.get(j)] = l[j];
+				return null;
+			}
+		});
+		return left;
+	}
+
+	public List<LocalDate> departures(int flightNum) throws SQLException {
+		return of(flightNum).departures(flightNum);
+	}
+
+	public int countReservations(int flightNum, String statuses) throws SQLException {
+		return of(flightNum).countReservations(flightNum, statuses);
+	}
+
+	public int book(int customerId, int flightNum, char status) throws SQLException {
+		return of(flightNum).book(customerId, flightNum, status);
+	}
+
+	public int[] bookAll(int flightNum, int[] customerIds, char[] statuses) throws SQLException {
+		return of(flightNum).bookAll(flightNum, customerIds, statuses);
+	}
+
+	public int[] bookGroup(int flightNum, LocalDate departure, int[] customerIds, char[] statuses, boolean partial) throws SQLException {
+		return of(flightNum).bookGroup(flightNum, departure, customerIds, statuses, partial);
+	}
+
+	public <T> T atomically(int flightNum, Work<T> work) throws SQLException {
+		return of(flightNum).atomically(flightNum, work);
+	}
+
+	/* Repairs is kept on shard 0 only */
+	public List<List<String>> repairsPerPlane() throws SQLException {
+		return repositories[0].repairsPerPlane();
+	}
+
+	public List<List<String>> repairsPerYear() throws SQLException {
+		return repositories[0].repairsPerYear();
+	}
+}
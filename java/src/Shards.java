@@ -0,0 +1,325 @@
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+import org.postgresql.copy.CopyOut;
+
+/**
+ * Flight, FlightInfo, Schedule, Reservation and Seat_Assignment split by
+ * flight number over several Postgres instances, with Customer, Pilot, Plane
+ * and Technician copied to every one of them.
+ *
+ * Shard 0 is the database DBproject was started on; it also keeps the tables
+ * that are not split (Repairs, Catalog_Version, Audit_Log).  Every other
+ * shard is a DBproject member connected to its own instance, so statements on
+ * it are timed, logged and time-limited like those on shard 0.  A flight
+ * lives on shard fnum mod N, or with range sharding on shard fnum / range
+ * (the last shard taking every flight beyond).
+ *
+ * Operations on one flight run on its shard (see ShardedRepository and
+ * DBproject.shardFor()); reports run on every shard at once through
+ * scatter() and merge what comes back.
+ *
+ * Settings are Java system properties:
+ *   dbproject.shards      the other shards, comma separated, each a port or host:port[/dbname]
+ *   dbproject.shardRange  flight numbers per shard for range sharding (default 0, hash sharding)
+ *
+ * The tool splits a loaded database over empty shards (the tables created,
+ * e.g. with sql/create.sql) and shows the rows on each:
+ *   java -Ddbproject.shards=5433,5434 -cp lib/*:bin/ Shards <dbname> <port> <user> [--split] [--status]
+ */
+public class Shards{
+	/* the split tables, parents first, with the column holding the flight number */
+	static final Map<String, String> SHARDED = new LinkedHashMap<String, String>();
+	static{
+		SHARDED.put("Flight", "fnum");
+		SHARDED.put("FlightInfo", "flight_id");
+		SHARDED.put("Schedule", "flightNum");
+		SHARDED.put("Reservation", "fid");
+		SHARDED.put("Seat_Assignment", "flight_id");
+	}
+
+	/* the tables copied to every shard */
+	static final String[] REFERENCE = {"Customer", "Pilot", "Plane", "Technician"};
+
+	private final DBproject[] members;
+	private final int range;
+	private final ExecutorService workers;
+
+	/**
+	 * @param members the DBproject of every shard, shard 0 first
+	 * @param range flight numbers per shard, or 0 for hash sharding
+	 */
+	public Shards(DBproject[] members, int range){
+		this.members = members;
+		this.range = range;
+		this.workers = Executors.newFixedThreadPool(members.length, new ThreadFactory(){
+			public Thread newThread(Runnable r){
+				Thread t = new Thread(r, "shard-scatter");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * @return the shards set by dbproject.shards, with esql as shard 0, or
+	 *         null if unset
+	 * @throws java.sql.SQLException when a shard could not be connected to
+	 */
+	public static Shards fromSystemProperties(DBproject esql, String dbname) throws SQLException {
+		String spec = System.getProperty("dbproject.shards");
+		if(spec == null || spec.trim().isEmpty()) return null;
+		String[] entries = spec.split(",");
+		DBproject[] members = new DBproject[entries.length + 1];
+		members[0] = esql;
+		try{
+			for(int i = 0; i < entries.length; i++){
+				String e = entries[i].trim();
+				if(e.indexOf(':') < 0) e = "localhost:" + e;
+				if(e.indexOf('/') < 0) e = e + "/" + dbname;
+				members[i + 1] = new DBproject(esql, "jdbc:postgresql://" + e);
+			}
+		}catch(SQLException e){
+			for(int i = 1; i < members.length && members[i] != null; i++) members[i].cleanup();
+			throw e;
+		}
+		return new Shards(members, Math.max(0, Integer.getInteger("dbproject.shardRange", 0)));
+	}
+
+	public int size(){
+		return members.length;
+	}
+
+	public DBproject member(int shard){
+		return members[shard];
+	}
+
+	/** @return the shard of a flight number */
+	public int shardOf(int fnum){
+		if(range > 0) return Math.min(members.length - 1, Math.max(0, fnum) / range);
+		return Math.floorMod(fnum, members.length);
+	}
+
+	public DBproject forFlight(int fnum){
+		return members[shardOf(fnum)];
+	}
+
+	/** @return the condition selecting the rows of a shard, on the column holding the flight number */
+	String where(String column, int shard){
+		if(range > 0) return "LEAST(GREATEST(" + column + ", 0) / " + range + ", " + (members.length - 1) + ") = " + shard;
+		return "mod(" + column + ", " + members.length + ") = " + shard;
+	}
+
+	/** Work on one shard, run on every shard at once by scatter(). */
+	public interface Task<T>{
+		T run(int shard) throws SQLException;
+	}
+
+	/**
+	 * Runs the task on every shard in parallel and waits for all of them.
+	 * The tasks run under the caller's operation (its time limit class and
+	 * whether it only reads), so e.g. a report's statements go to each
+	 * shard's report lane.
+	 *
+	 * @return the results, in shard order
+	 * @throws java.sql.SQLException the first failure of a shard
+	 */
+	public <T> List<T> scatter(final Task<T> task) throws SQLException {
+		final int cls = members[0].operationClass();
+		final boolean readOnly = members[0].readOnlyOperation();
+		List<Callable<T>> calls = new ArrayList<Callable<T>>(members.length);
+		for(int i = 0; i < members.length; i++){
+			final int shard = i;
+			calls.add(new Callable<T>(){
+				public T call() throws Exception {
+					members[shard].setOperation(cls, readOnly);
+					try{
+						return task.run(shard);
+					}finally{
+						members[shard].setOperation(StatementWatchdog.INTERACTIVE, false);
+					}
+				}
+			});
+		}
+		try{
+			List<Future<T>> futures = workers.invokeAll(calls);
+			List<T> out = new ArrayList<T>(futures.size());
+			for(Future<T> f : futures) out.add(f.get());
+			return out;
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted");
+		}catch(ExecutionException e){
+			Throwable cause = e.getCause();
+			if(cause instanceof SQLException) throw (SQLException)cause;
+			throw new SQLException(cause.getMessage(), cause);
+		}
+	}
+
+	/**
+	 * Runs a query on every shard in parallel.
+	 *
+	 * @return the rows of all shards, shard 0's first
+	 */
+	public List<List<String>> queryAll(final String query) throws SQLException {
+		List<List<List<String>>> parts = scatter(new Task<List<List<String>>>(){
+			public List<List<String>> run(int shard) throws SQLException {
+				return members[shard].executeQueryAndReturnResult(query);
+			}
+		});
+		List<List<String>> out = new ArrayList<List<String>>();
+		for(List<List<String>> p : parts) out.addAll(p);
+		return out;
+	}
+
+	/**
+	 * @return the largest value of an integer column over every shard, or -1
+	 *         if every shard's table is empty
+	 */
+	public int max(String table, String column) throws SQLException {
+		int max = -1;
+		for(List<String> r : queryAll("SELECT MAX(" + column + ") FROM " + table + ";")){
+			if(r.get(0) != null) max = Math.max(max, Integer.parseInt(r.get(0)));
+		}
+		return max;
+	}
+
+	/** Closes the connections of every shard but shard 0. */
+	public void close(){
+		workers.shutdownNow();
+		for(int i = 1; i < members.length; i++) members[i].cleanup();
+	}
+
+	static void execute(Connection conn, String sql) throws SQLException {
+		Statement stmt = conn.createStatement();
+		try{
+			stmt.execute(sql);
+		}finally{
+			stmt.close();
+		}
+	}
+
+	/* streams a COPY out of one database into another, returning the rows copied */
+	static long copy(Connection from, String select, Connection to, String table) throws SQLException {
+		CopyOut out = from.unwrap(PGConnection.class).getCopyAPI().copyOut("COPY (" + select + ") TO STDOUT (FORMAT binary)");
+		CopyIn in = to.unwrap(PGConnection.class).getCopyAPI().copyIn("COPY " + table + " FROM STDIN (FORMAT binary)");
+		try{
+			byte[] buf;
+			while((buf = out.readFromCopy()) != null) in.writeToCopy(buf, 0, buf.length);
+			return in.endCopy();
+		}finally{
+			if(in.isActive()) in.cancelCopy();
+			if(out.isActive()) out.cancelCopy();
+		}
+	}
+
+	/**
+	 * Moves the rows of shard 0 to where they belong: every shard but shard 0
+	 * is emptied, the reference tables are copied to it, and each split
+	 * table's rows of that shard are copied over, all shards at once.  Once
+	 * every copy succeeded, the moved rows are deleted from shard 0 in one
+	 * transaction.
+	 */
+	public void split() throws SQLException {
+		final List<String> tables = new ArrayList<String>(Arrays.asList(REFERENCE));
+		tables.addAll(SHARDED.keySet());
+		scatter(new Task<Void>(){
+			public Void run(int shard) throws SQLException {
+				if(shard == 0) return null;
+				Connection from = members[0].openConnection();
+				Connection to = members[shard].openConnection();
+				try{
+					to.setAutoCommit(false);
+					StringBuilder all = new StringBuilder();
+					for(String t : tables) all.append(all.length() == 0 ? "" : ", ").append(t);
+					execute(to, "TRUNCATE " + all + " CASCADE");
+					for(String t : tables){
+						String column = SHARDED.get(t);
+						String select = "SELECT * FROM " + t + (column == null ? "" : " WHERE " + where(column, shard));
+						System.out.println("shard " + shard + ": " + t + " " + copy(from, select, to, t) + " rows");
+					}
+					to.commit();
+				}catch(SQLException e){
+					to.rollback();
+					throw e;
+				}finally{
+					from.close();
+					to.close();
+				}
+				return null;
+			}
+		});
+		List<String> children = new ArrayList<String>(SHARDED.keySet());
+		Collections.reverse(children);
+		Connection conn = members[0].openConnection();
+		try{
+			conn.setAutoCommit(false);
+			for(String t : children){
+				execute(conn, "DELETE FROM " + t + " WHERE NOT (" + where(SHARDED.get(t), 0) + ")");
+			}
+			conn.commit();
+		}catch(SQLException e){
+			conn.rollback();
+			throw e;
+		}finally{
+			conn.close();
+		}
+	}
+
+	/** Prints the rows of every table on every shard. */
+	public void status() throws SQLException {
+		final List<String> tables = new ArrayList<String>(Arrays.asList(REFERENCE));
+		tables.addAll(SHARDED.keySet());
+		StringBuilder query = new StringBuilder();
+		for(String t : tables){
+			query.append(query.length() == 0 ? "SELECT " : ", ").append("(SELECT COUNT(*) FROM ").append(t).append(")");
+		}
+		List<List<String>> rows = queryAll(query.append(";").toString());
+		StringBuilder header = new StringBuilder(DBproject.pad("shard", 8));
+		for(String t : tables) header.append(DBproject.pad(t, 16));
+		System.out.println(header);
+		System.out.println("------------------------------------------------------------------");
+		for(int s = 0; s < rows.size(); s++){
+			StringBuilder line = new StringBuilder(DBproject.pad(Integer.toString(s), 8));
+			for(String n : rows.get(s)) line.append(DBproject.pad(n, 16));
+			System.out.println(line);
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 3) {
+			System.err.println("Usage: java [-classpath <classpath>] Shards <dbname> <port> <user> [--split] [--status]");
+			return;
+		}
+		List<String> opts = Arrays.asList(args).subList(3, args.length);
+
+		Class.forName("org.postgresql.Driver");
+		DBproject esql = new DBproject(args[0], args[1], args[2], "");
+		try{
+			Shards shards = esql.getShards();
+			if(shards == null){
+				System.err.println("Error - Set -Ddbproject.shards to the ports of the other shards");
+				return;
+			}
+			if(opts.contains("--split")) shards.split();
+			shards.status();
+		}finally{
+			esql.cleanup();
+		}
+	}
+}
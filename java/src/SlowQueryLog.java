@@ -0,0 +1,299 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Slow-query log for every execute* path of DBproject.
+ *
+ * The caller only compares the elapsed time with the threshold; a slow or
+ * failed statement is handed to a background thread as one small entry on a
+ * bounded queue (entries are dropped, and counted, if the queue is full).  The
+ * background thread normalizes the SQL into a template with $n placeholders,
+ * extracts the literal values as binds, optionally captures the plan, and
+ * appends the entry to a size-rotated log file.
+ *
+ * For a sampled fraction of slow statements the plan is captured on a
+ * separate connection.  Plain reads get EXPLAIN (ANALYZE, BUFFERS); everything
+ * else gets a plain EXPLAIN, since ANALYZE runs the statement a second time:
+ * it would repeat a write, wait for the row locks of FOR UPDATE, or move a
+ * sequence with nextval() or setval().
+ *
+ * Settings are Java system properties:
+ *   dbproject.slowQueryMillis   threshold in milliseconds (default 200, -1 disables)
+ *   dbproject.explainSample     fraction of slow queries to EXPLAIN (default 0.1)
+ *   dbproject.slowQueryLog      log file (default slow_query.log)
+ *   dbproject.slowQueryLogBytes size at which the log rotates (default 10 MB)
+ *   dbproject.slowQueryLogFiles rotated files kept (default 5)
+ */
+public class SlowQueryLog{
+	static final class Entry{
+		final long when;
+		final long nanos;
+		final String sql;
+		final String error;
+
+		Entry(long when, long nanos, String sql, String error){
+			this.when = when;
+			this.nanos = nanos;
+			this.sql = sql;
+			this.error = error;
+		}
+	}
+
+	/* what makes a SELECT or WITH more than a read, so it must not run again under ANALYZE */
+	static final Pattern SIDE_EFFECTS = Pattern.compile(
+		//UPDATE and SHARE also catch the row locks FOR [NO KEY] UPDATE and FOR [KEY] SHARE
+		"\\b(INSERT|UPDATE|DELETE|SHARE|INTO|"
+		+ "nextval|setval|lastval|currval|pg_advisory\\w*|pg_notify|set_config|pg_export_snapshot|pg_cancel_backend|pg_terminate_backend)\\b",
+		Pattern.CASE_INSENSITIVE);
+
+	private final DBproject esql;
+	private final long thresholdNanos;
+	private final double explainSample;
+	private final File file;
+	private final long maxBytes;
+	private final int maxFiles;
+	private final ArrayBlockingQueue<Entry> queue = new ArrayBlockingQueue<Entry>(1024);
+	private final AtomicLong dropped = new AtomicLong();
+	private Thread writer = null;
+	private volatile boolean running = true;
+
+	public SlowQueryLog(DBproject esql, long thresholdMillis, double explainSample, File file, long maxBytes, int maxFiles){
+		this.esql = esql;
+		this.thresholdNanos = thresholdMillis < 0 ? Long.MAX_VALUE : thresholdMillis * 1000000L;
+		this.explainSample = explainSample;
+		this.file = file;
+		this.maxBytes = maxBytes;
+		this.maxFiles = maxFiles;
+	}
+
+	public static SlowQueryLog fromSystemProperties(DBproject esql){
+		return new SlowQueryLog(esql,
+			Long.getLong("dbproject.slowQueryMillis", 200L),
+			Double.parseDouble(System.getProperty("dbproject.explainSample", "0.1")),
+			new File(System.getProperty("dbproject.slowQueryLog", "slow_query.log")),
+			Long.getLong("dbproject.slowQueryLogBytes", 10L * 1024 * 1024),
+			Integer.getInteger("dbproject.slowQueryLogFiles", 5));
+	}
+
+	/**
+	 * Records one statement.  Fast statements that succeeded return at once.
+	 */
+	public void record(String sql, long nanos, SQLException error){
+		if(nanos < thresholdNanos && error == null) return;
+		startWriter();
+		if(!queue.offer(new Entry(System.currentTimeMillis(), nanos, sql, error == null ? null : error.getMessage()))){
+			dropped.incrementAndGet();
+		}
+	}
+
+	private synchronized void startWriter(){
+		if(writer != null) return;
+		writer = new Thread(new Runnable(){
+			public void run(){
+				writeLoop();
+			}
+		}, "slow-query-log");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	private void writeLoop(){
+		Connection explainConn = null;
+		OutputStream out = null;
+		StringBuilder sb = new StringBuilder(1024);
+		List<String> binds = new ArrayList<String>();
+		SimpleDateFormat time = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+		try{
+			out = new FileOutputStream(file, true);
+			long size = file.length();
+			while(running || !queue.isEmpty()){
+				Entry e = queue.poll(500, TimeUnit.MILLISECONDS);
+				if(e == null) continue;
+				sb.setLength(0);
+				binds.clear();
+				sb.append(time.format(new Date(e.when))).append(" elapsed_ms=").append(e.nanos / 1000000).append('.').append(e.nanos / 1000 % 1000 / 100);
+				if(dropped.get() > 0) sb.append(" dropped=").append(dropped.getAndSet(0));
+				sb.append('\n').append("  template: ");
+				normalize(e.sql, sb, binds);
+				sb.append('\n').append("  binds: ").append(binds).append('\n');
+				if(e.error != null){
+					sb.append("  error: ").append(e.error).append('\n');
+				}
+				else if(explainSample > 0 && ThreadLocalRandom.current().nextDouble() < explainSample){
+					try{
+						if(explainConn == null) explainConn = esql.openConnection();
+						explain(explainConn, e.sql, sb);
+					}catch(SQLException x){
+						//the entry is logged without its plan, and the next sample connects again
+						sb.append("  plan unavailable: ").append(x.getMessage()).append('\n');
+						close(explainConn);
+						explainConn = null;
+					}
+				}
+				byte[] bytes = sb.toString().getBytes(StandardCharsets.UTF_8);
+				if(size + bytes.length > maxBytes && size > 0){
+					out.close();
+					rotate();
+					out = new FileOutputStream(file, true);
+					size = 0;
+				}
+				out.write(bytes);
+				out.flush();
+				size += bytes.length;
+			}
+		}catch(InterruptedException e){
+			// shutting down
+		}catch(IOException e){
+			System.err.println("Error - Slow query log stopped: " + e.getMessage());
+		}finally{
+			try{
+				if(out != null) out.close();
+			}catch(IOException e){
+				// ignored.
+			}
+			close(explainConn);
+		}
+	}
+
+	static void close(Connection conn){
+		try{
+			if(conn != null) conn.close();
+		}catch(SQLException e){
+			// ignored.
+		}
+	}
+
+	/*
+	 * Appends the plan.  A statement EXPLAIN rejects is noted in the entry;
+	 * a failed connection is thrown, so the caller opens a new one.
+	 */
+	private void explain(Connection conn, String sql, StringBuilder sb) throws SQLException {
+		String trimmed = sql.trim();
+		boolean read = isPlainRead(trimmed);
+		try{
+			Statement stmt = conn.createStatement();
+			try{
+				ResultSet rs = stmt.executeQuery((read ? "EXPLAIN (ANALYZE, BUFFERS) " : "EXPLAIN ") + trimmed);
+				sb.append("  plan:\n");
+				while(rs.next()){
+					sb.append("    ").append(rs.getString(1)).append('\n');
+				}
+			}finally{
+				stmt.close();
+			}
+		}catch(SQLException e){
+			if(e.getSQLState() != null && e.getSQLState().startsWith("08")) throw e;
+			sb.append("  plan unavailable: ").append(e.getMessage()).append('\n');
+		}
+	}
+
+	/**
+	 * @return whether running the statement again has no effect beyond
+	 *         reading: a SELECT or WITH that locks no rows, writes nothing
+	 *         and calls none of the functions in SIDE_EFFECTS
+	 */
+	static boolean isPlainRead(String sql){
+		if(!sql.regionMatches(true, 0, "SELECT", 0, 6) && !sql.regionMatches(true, 0, "WITH", 0, 4)) return false;
+		//literals may hold any word; a false match only costs the ANALYZE
+		return !SIDE_EFFECTS.matcher(sql).find();
+	}
+
+	private void rotate(){
+		new File(file.getPath() + "." + maxFiles).delete();
+		for(int i = maxFiles - 1; i >= 1; i--){
+			File from = new File(file.getPath() + "." + i);
+			if(from.exists()) from.renameTo(new File(file.getPath() + "." + (i + 1)));
+		}
+		file.renameTo(new File(file.getPath() + ".1"));
+	}
+
+	/**
+	 * Appends the statement to sb with every string and numeric literal
+	 * replaced by $1, $2, ... and adds the literals to binds, so statements that
+	 * differ only in their values share one template.
+	 */
+	public static void normalize(String sql, StringBuilder sb, List<String> binds){
+		normalize(sql, sb, binds, false);
+	}
+
+	/**
+	 * As above; with keepQuotes a string literal becomes '$n' instead of $n, so
+	 * the statement can be rebuilt from the template (see OperationJournal).
+	 */
+	public static void normalize(String sql, StringBuilder sb, List<String> binds, boolean keepQuotes){
+		int n = sql.length();
+		int i = 0;
+		while(i < n){
+			char c = sql.charAt(i);
+			if(c == '\''){
+				int j = i + 1;
+				StringBuilder lit = new StringBuilder();
+				while(j < n){
+					char d = sql.charAt(j);
+					if(d == '\''){
+						if(j + 1 < n && sql.charAt(j + 1) == '\''){
+							lit.append('\'');
+							j += 2;
+							continue;
+						}
+						break;
+					}
+					lit.append(d);
+					j++;
+				}
+				binds.add(lit.toString());
+				if(keepQuotes) sb.append("'$").append(binds.size()).append('\'');
+				else sb.append('$').append(binds.size());
+				i = j + 1;
+			}
+			else if(Character.isDigit(c) && (i == 0 || !Character.isLetterOrDigit(sql.charAt(i - 1)) && sql.charAt(i - 1) != '_' && sql.charAt(i - 1) != '$')){
+				int j = i;
+				while(j < n && (Character.isDigit(sql.charAt(j)) || sql.charAt(j) == '.')) j++;
+				binds.add(sql.substring(i, j));
+				sb.append('$').append(binds.size());
+				i = j;
+			}
+			else if(Character.isWhitespace(c)){
+				sb.append(' ');
+				while(i < n && Character.isWhitespace(sql.charAt(i))) i++;
+			}
+			else{
+				sb.append(c);
+				i++;
+			}
+		}
+	}
+
+	/**
+	 * Writes out what is still queued and stops the writer.
+	 */
+	public void close(){
+		running = false;
+		Thread w;
+		synchronized(this){
+			w = writer;
+		}
+		if(w == null) return;
+		try{
+			w.join(5000);
+		}catch(InterruptedException e){
+			// ignored.
+		}
+	}
+}
@@ -0,0 +1,137 @@
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Time limits per class of operation, enforced twice: the server's
+ * statement_timeout is set to the limit on the session, and a watchdog
+ * thread calls Statement.cancel() on any statement still running GRACE_MILLIS
+ * after it.  The watchdog catches what statement_timeout cannot, such as a
+ * session where the SET did not take or a server that stopped answering.
+ *
+ * Statements are watched with a DelayQueue; a finished statement is only
+ * marked done and dropped when its deadline comes up, so watching costs one
+ * queue insert.
+ */
+public class StatementWatchdog{
+	/* operation classes */
+	public static final int INTERACTIVE = 0;
+	public static final int BOOKING = 1;
+	public static final int REPORT = 2;
+	/* cache refreshes of the change listener and the completion job */
+	public static final int BACKGROUND = 3;
+	static final String[] NAMES = {"interactive", "booking", "report", "background"};
+	static final long[] DEFAULTS = {10000, 3000, 120000, 10000};
+	static final long GRACE_MILLIS = 1000;
+
+	/** One watched statement. */
+	public static final class Watch implements Delayed{
+		final Statement stmt;
+		final long deadline;
+		volatile boolean done = false;
+
+		Watch(Statement stmt, long deadline){
+			this.stmt = stmt;
+			this.deadline = deadline;
+		}
+
+		public long getDelay(TimeUnit unit){
+			return unit.convert(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+		}
+
+		public int compareTo(Delayed o){
+			return Long.compare(deadline, ((Watch)o).deadline);
+		}
+	}
+
+	private final long[] timeouts;
+	private final DelayQueue<Watch> queue = new DelayQueue<Watch>();
+	private final AtomicLong cancelled = new AtomicLong();
+	private final Thread thread;
+	private volatile boolean running = true;
+
+	/**
+	 * @param timeouts milliseconds per operation class, 0 for no limit
+	 */
+	public StatementWatchdog(long[] timeouts){
+		this.timeouts = timeouts.clone();
+		this.thread = new Thread(new Runnable(){
+			public void run(){
+				loop();
+			}
+		}, "statement-watchdog");
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	/**
+	 * Limits from dbproject.timeout.interactive (default 10000 ms),
+	 * dbproject.timeout.booking (3000), dbproject.timeout.report (120000) and
+	 * dbproject.timeout.background (10000).
+	 */
+	public static StatementWatchdog fromSystemProperties(){
+		long[] timeouts = new long[NAMES.length];
+		for(int c = 0; c < NAMES.length; c++){
+			timeouts[c] = Long.getLong("dbproject.timeout." + NAMES[c], DEFAULTS[c]);
+		}
+		return new StatementWatchdog(timeouts);
+	}
+
+	/** @return the limit of an operation class in milliseconds, 0 for none */
+	public long timeout(int operationClass){
+		return timeouts[operationClass];
+	}
+
+	/**
+	 * Starts watching a statement about to run.
+	 *
+	 * @return the watch to hand to done(), or null if the class has no limit
+	 */
+	public Watch watch(Statement stmt, int operationClass){
+		long millis = timeouts[operationClass];
+		if(millis <= 0) return null;
+		Watch w = new Watch(stmt, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis + GRACE_MILLIS));
+		queue.add(w);
+		return w;
+	}
+
+	public void done(Watch w){
+		if(w != null) w.done = true;
+	}
+
+	void loop(){
+		while(running){
+			Watch w;
+			try{
+				w = queue.take();
+			}catch(InterruptedException e){
+				continue;
+			}
+			if(w.done) continue;
+			try{
+				w.stmt.cancel();
+				cancelled.incrementAndGet();
+			}catch(SQLException e){
+				System.err.println("Warning - Unable to cancel a statement past its time limit: " + e.getMessage());
+			}
+		}
+	}
+
+	/** @return the statements cancelled by the watchdog */
+	public long cancelled(){
+		return cancelled.get();
+	}
+
+	public void close(){
+		running = false;
+		thread.interrupt();
+		try{
+			thread.join(1000);
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,201 @@
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Pilot and technician workload: flights and block days per pilot, repairs
+ * per technician by repair code, and flights and repairs per pilot and plane.
+ *
+ * The counters live in IntHashMaps keyed by the ids themselves and are
+ * loaded once with one streamed pass over FlightInfo and one over Repairs;
+ * after that every new flight or repair adds to them in place, so a report
+ * only walks the pilots, technicians and pairs, however long the history is.
+ *
+ * Flight keeps only the dates of a departure and arrival, so block time is
+ * counted in days: an overnight flight is one block day, a same-day flight
+ * none.
+ */
+public class Workload{
+	public static final String[] CODES = {"MJ", "MN", "SV"};
+
+	/* counters per pilot */
+	public static final int FLIGHTS = 0;
+	public static final int BLOCK_DAYS = 1;
+	public static final int REPAIRS = 2;
+	/* the second counter of a pilot and plane, after FLIGHTS */
+	public static final int PAIR_REPAIRS = 1;
+
+	static final String FLIGHT_QUERY = "SELECT FI.pilot_id, FI.plane_id, F.actual_arrival_date::date - F.actual_departure_date::date "
+		+ "FROM FlightInfo FI JOIN Flight F ON F.fnum = FI.flight_id";
+	static final String REPAIR_QUERY = "SELECT technician_id, pilot_id, plane_id, repair_code FROM Repairs";
+
+	/** The counters of one pilot, technician or pilot and plane. */
+	public static final class Row{
+		public final int id;
+		/* the plane of a pair, otherwise -1 */
+		public final int plane;
+		public final long[] counts;
+
+		Row(int id, int plane, long[] counts){
+			this.id = id;
+			this.plane = plane;
+			this.counts = counts.clone();
+		}
+
+		public long total(){
+			long n = 0;
+			for(long c : counts) n += c;
+			return n;
+		}
+	}
+
+	/* pilot to {flights, block days, repairs} */
+	private final IntHashMap<long[]> pilots = new IntHashMap<long[]>();
+	/* technician to repairs per code, in the order of CODES */
+	private final IntHashMap<long[]> technicians = new IntHashMap<long[]>();
+	/* pilot to plane to {flights, repairs} */
+	private final IntHashMap<IntHashMap<long[]>> pairs = new IntHashMap<IntHashMap<long[]>>();
+
+	/**
+	 * Loads the counters on a connection of the report lane.
+	 */
+	public static Workload load(ConnectionPool lane) throws SQLException {
+		Workload w = new Workload();
+		w.read(lane, true);
+		return w;
+	}
+
+	/**
+	 * Loads the counters from every shard at once (see Shards), the flights
+	 * of each shard over its own report lane; repairs are kept on shard 0.
+	 */
+	public static Workload load(final Shards shards) throws SQLException {
+		final Workload w = new Workload();
+		shards.scatter(new Shards.Task<Void>(){
+			public Void run(int shard) throws SQLException {
+				w.read(shards.member(shard).getReportLane(), shard == 0);
+				return null;
+			}
+		});
+		return w;
+	}
+
+	void read(ConnectionPool lane, boolean repairs) throws SQLException {
+		Connection conn = lane.borrow();
+		try{
+			//cursors, so neither table is held in memory
+			conn.setAutoCommit(false);
+			Statement stmt = conn.createStatement();
+			stmt.setFetchSize(10000);
+			ResultSet rs = stmt.executeQuery(FLIGHT_QUERY);
+			while(rs.next()) flight(rs.getInt(1), rs.getInt(2), rs.getInt(3));
+			if(repairs){
+				rs = stmt.executeQuery(REPAIR_QUERY);
+				while(rs.next()) repair(rs.getInt(1), rs.getInt(2), rs.getInt(3), rs.getString(4));
+			}
+			stmt.close();
+			conn.commit();
+		}finally{
+			conn.setAutoCommit(true);
+			lane.giveBack(conn);
+		}
+	}
+
+	static long[] counters(IntHashMap<long[]> map, int key, int n){
+		long[] c = map.get(key);
+		if(c == null){
+			c = new long[n];
+			map.put(key, c);
+		}
+		return c;
+	}
+
+	long[] pair(int pilot, int plane){
+		IntHashMap<long[]> planes = pairs.get(pilot);
+		if(planes == null){
+			planes = new IntHashMap<long[]>();
+			pairs.put(pilot, planes);
+		}
+		return counters(planes, plane, 2);
+	}
+
+	/** Counts a flight flown by the pilot on the plane. */
+	public synchronized void flight(int pilot, int plane, int blockDays){
+		long[] p = counters(pilots, pilot, 3);
+		p[FLIGHTS]++;
+		p[BLOCK_DAYS] += Math.max(0, blockDays);
+		pair(pilot, plane)[FLIGHTS]++;
+	}
+
+	/**
+	 * Counts a repair.
+	 *
+	 * @param code MJ, MN or SV; any other code counts for the pilot and plane only
+	 */
+	public synchronized void repair(int technician, int pilot, int plane, String code){
+		int c = code == null ? -1 : Arrays.asList(CODES).indexOf(code.trim());
+		long[] t = counters(technicians, technician, CODES.length);
+		if(c >= 0) t[c]++;
+		counters(pilots, pilot, 3)[REPAIRS]++;
+		pair(pilot, plane)[PAIR_REPAIRS]++;
+	}
+
+	/**
+	 * Sorts rows by one counter, then by id, and keeps the first n.
+	 */
+	static List<Row> top(List<Row> rows, final int counter, int n){
+		Collections.sort(rows, new Comparator<Row>(){
+			public int compare(Row a, Row b){
+				long x = counter < 0 ? a.total() : a.counts[counter];
+				long y = counter < 0 ? b.total() : b.counts[counter];
+				int c = Long.compare(y, x);
+				if(c == 0) c = Integer.compare(a.id, b.id);
+				return c != 0 ? c : Integer.compare(a.plane, b.plane);
+			}
+		});
+		return rows.subList(0, Math.min(n, rows.size()));
+	}
+
+	/** @return the n pilots with the most flights */
+	public synchronized List<Row> busiestPilots(int n){
+		final List<Row> rows = new ArrayList<Row>(pilots.size());
+		pilots.forEach(new IntHashMap.Visitor<long[]>(){
+			public void visit(int pilot, long[] c){
+				rows.add(new Row(pilot, -1, c));
+			}
+		});
+		return top(rows, FLIGHTS, n);
+	}
+
+	/** @return the n technicians with the most repairs, counts in the order of CODES */
+	public synchronized List<Row> busiestTechnicians(int n){
+		final List<Row> rows = new ArrayList<Row>(technicians.size());
+		technicians.forEach(new IntHashMap.Visitor<long[]>(){
+			public void visit(int technician, long[] c){
+				rows.add(new Row(technician, -1, c));
+			}
+		});
+		return top(rows, -1, n);
+	}
+
+	/** @return the n pilot and plane pairs with the most flights together, with {flights, repairs} */
+	public synchronized List<Row> busiestPairs(int n){
+		final List<Row> rows = new ArrayList<Row>();
+		pairs.forEach(new IntHashMap.Visitor<IntHashMap<long[]>>(){
+			public void visit(final int pilot, IntHashMap<long[]> planes){
+				planes.forEach(new IntHashMap.Visitor<long[]>(){
+					public void visit(int plane, long[] c){
+						rows.add(new Row(pilot, plane, c));
+					}
+				});
+			}
+		});
+		return top(rows, FLIGHTS, n);
+	}
+}
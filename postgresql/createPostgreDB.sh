@@ -9,4 +9,7 @@ cp ../data/*.csv /tmp/$USER/myDB/data/.
 
 echo "Initializing tables .. "
 sleep 1
-psql -h localhost -p $PGPORT $USER"_DB" < ../sql/create.sql
\ No newline at end of file
+psql -h localhost -p $PGPORT $USER"_DB" < ../sql/create.sql
+psql -h localhost -p $PGPORT $USER"_DB" < ../sql/notify.sql
+psql -h localhost -p $PGPORT $USER"_DB" < ../sql/catalog_version.sql
+psql -h localhost -p $PGPORT $USER"_DB" < ../sql/audit.sql
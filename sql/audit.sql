@@ -0,0 +1,21 @@
+-------------------------------------------------------------------
+-- Audit trail of the write operations of DBproject, filled in   --
+-- batches with COPY by java/src/AuditLog.java.  Rows are only   --
+-- ever appended, in time order, so a BRIN index on the time     --
+-- costs almost nothing to maintain.  Rerunning this script      --
+-- keeps the rows already recorded.                              --
+-------------------------------------------------------------------
+
+CREATE TABLE IF NOT EXISTS Audit_Log
+(
+	at TIMESTAMPTZ NOT NULL,
+	db_user TEXT NOT NULL,
+	os_user TEXT NOT NULL,
+	operation TEXT NOT NULL,
+	tbl TEXT NOT NULL,
+	key INTEGER,
+	detail TEXT
+);
+
+CREATE INDEX IF NOT EXISTS AuditLogAt ON Audit_Log USING brin(at);
+CREATE INDEX IF NOT EXISTS AuditLogKey ON Audit_Log(tbl, key);
@@ -0,0 +1,31 @@
+-------------------------------------------------------------------
+-- Version of the flight catalog (Plane, Flight, FlightInfo,     --
+-- Schedule).  Every statement that writes one of these tables   --
+-- bumps the single row of Catalog_Version in its transaction,   --
+-- so a catalog snapshot (java/src/CatalogSnapshot.java) taken   --
+-- in one transaction together with the version can tell when   --
+-- it has gone stale.  Catalog writes are rare, so the row lock  --
+-- they serialize on is not a bottleneck.                        --
+-------------------------------------------------------------------
+
+DROP TABLE IF EXISTS Catalog_Version CASCADE;
+CREATE TABLE Catalog_Version
+(
+	version BIGINT NOT NULL
+);
+INSERT INTO Catalog_Version VALUES (1);
+
+CREATE OR REPLACE FUNCTION bump_catalog_version() RETURNS trigger AS $$
+BEGIN
+	UPDATE Catalog_Version SET version = version + 1;
+	RETURN NULL;
+END $$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS plane_catalog_version ON Plane;
+DROP TRIGGER IF EXISTS flight_catalog_version ON Flight;
+DROP TRIGGER IF EXISTS flightinfo_catalog_version ON FlightInfo;
+DROP TRIGGER IF EXISTS schedule_catalog_version ON Schedule;
+CREATE TRIGGER plane_catalog_version AFTER INSERT OR UPDATE OR DELETE OR TRUNCATE ON Plane FOR EACH STATEMENT EXECUTE PROCEDURE bump_catalog_version();
+CREATE TRIGGER flight_catalog_version AFTER INSERT OR UPDATE OR DELETE OR TRUNCATE ON Flight FOR EACH STATEMENT EXECUTE PROCEDURE bump_catalog_version();
+CREATE TRIGGER flightinfo_catalog_version AFTER INSERT OR UPDATE OR DELETE OR TRUNCATE ON FlightInfo FOR EACH STATEMENT EXECUTE PROCEDURE bump_catalog_version();
+CREATE TRIGGER schedule_catalog_version AFTER INSERT OR UPDATE OR DELETE OR TRUNCATE ON Schedule FOR EACH STATEMENT EXECUTE PROCEDURE bump_catalog_version();
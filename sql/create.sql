@@ -8,6 +8,8 @@ DROP TABLE IF EXISTS Reservation CASCADE;--OK
 DROP TABLE IF EXISTS FlightInfo CASCADE;--OK
 DROP TABLE IF EXISTS Repairs CASCADE;--OK
 DROP TABLE IF EXISTS Schedule CASCADE;--OK
+DROP TABLE IF EXISTS Seat_Assignment CASCADE;
+DROP SEQUENCE IF EXISTS Reservation_rnum_seq;
 
 -------------
 ---DOMAINS---
@@ -126,6 +128,16 @@ CREATE TABLE Schedule
 	FOREIGN KEY (flightNum) REFERENCES Flight(fnum)
 );
 
+CREATE TABLE Seat_Assignment
+(
+	flight_id INTEGER NOT NULL,
+	seat SMALLINT NOT NULL,-- 0 is 1A, 6 is 2A --
+	rnum INTEGER NOT NULL,
+	PRIMARY KEY (flight_id, seat),
+	FOREIGN KEY (flight_id) REFERENCES Flight(fnum),
+	FOREIGN KEY (rnum) REFERENCES Reservation(rnum)
+);
+
 ----------------------------
 -- INSERT DATA STATEMENTS --
 ----------------------------
@@ -219,10 +231,23 @@ COPY Schedule (
 FROM 'schedule.csv'
 WITH DELIMITER ',';
 
+--reservation numbers of new bookings (see JdbcRepository), past the loaded ones
+CREATE SEQUENCE Reservation_rnum_seq MINVALUE 0;
+SELECT setval('Reservation_rnum_seq', (SELECT COALESCE(MAX(rnum) + 1, 0) FROM Reservation), false);
+
 CREATE INDEX flightMAX ON Flight(fnum);
 CREATE INDEX pilotID ON Pilot(id);
 CREATE INDEX PlaneID ON Plane(id);
 CREATE INDEX TechnicianID ON Technician(id);
 CREATE INDEX ReservationID ON Reservation(rnum);
 CREATE INDEX FlightInfoID ON FlightInfo(fiid);
-
+CREATE INDEX FlightInfoFlight ON FlightInfo(flight_id);
+CREATE INDEX FlightInfoPlane ON FlightInfo(plane_id);
+CREATE INDEX ReservationCustomer ON Reservation(cid, fid, status, rnum);
+CREATE INDEX ReservationOpen ON Reservation(rnum) WHERE status IN ('R', 'W');
+CREATE INDEX ReservationFlight ON Reservation(fid, status);
+CREATE INDEX ScheduleFlight ON Schedule(flightNum, departure_time);
+
+CREATE INDEX CustomerLname ON Customer(lower(rtrim(lname)) text_pattern_ops);
+CREATE INDEX CustomerFname ON Customer(lower(rtrim(fname)) text_pattern_ops);
+CREATE INDEX CustomerPhone ON Customer(rtrim(phone) text_pattern_ops);
@@ -0,0 +1,269 @@
+-----------------------------------------------------------------
+-- Schema v2: same tables, keys and columns as create.sql, but  --
+-- without blank-padded CHAR(n) columns and with 2-byte seats,  --
+-- age and num_stops.  Use it for new databases; an existing v1 --
+-- database is converted in place by SchemaMigrator.            --
+-----------------------------------------------------------------
+
+DROP TABLE IF EXISTS Customer CASCADE;--OK
+DROP TABLE IF EXISTS Flight CASCADE;--OK
+DROP TABLE IF EXISTS Pilot CASCADE;--OK
+DROP TABLE IF EXISTS Plane CASCADE;--OK
+DROP TABLE IF EXISTS Technician CASCADE;--OK
+
+DROP TABLE IF EXISTS Reservation CASCADE;--OK
+DROP TABLE IF EXISTS FlightInfo CASCADE;--OK
+DROP TABLE IF EXISTS Repairs CASCADE;--OK
+DROP TABLE IF EXISTS Schedule CASCADE;--OK
+DROP TABLE IF EXISTS Seat_Assignment CASCADE;
+DROP SEQUENCE IF EXISTS Reservation_rnum_seq;
+
+DROP DOMAIN IF EXISTS _SMALLPZEROINTEGER CASCADE;
+DROP DOMAIN IF EXISTS _SMALLYEAR_1970 CASCADE;
+DROP DOMAIN IF EXISTS _SMALLSEATS CASCADE;
+
+-------------
+---DOMAINS---
+-------------
+CREATE DOMAIN us_postal_code AS TEXT CHECK(VALUE ~ '^\d{5}$' OR VALUE ~ '^\d{5}-\d{4}$');
+CREATE DOMAIN _STATUS CHAR(1) CHECK (value IN ( 'W' , 'C', 'R' ) );
+CREATE DOMAIN _GENDER CHAR(1) CHECK (value IN ( 'F' , 'M' ) );
+CREATE DOMAIN _CODE CHAR(2) CHECK (value IN ( 'MJ' , 'MN', 'SV' ) ); --Major, Minimum, Service
+CREATE DOMAIN _PINTEGER AS int4 CHECK(VALUE > 0);
+CREATE DOMAIN _PZEROINTEGER AS int4 CHECK(VALUE >= 0);
+CREATE DOMAIN _YEAR_1970 AS int4 CHECK(VALUE >= 0);
+CREATE DOMAIN _SEATS AS int4 CHECK(VALUE > 0 AND VALUE < 500);--Plane Seats
+
+--compact variants used by the v2 tables
+CREATE DOMAIN _SMALLPZEROINTEGER AS int2 CHECK(VALUE >= 0);
+CREATE DOMAIN _SMALLYEAR_1970 AS int2 CHECK(VALUE >= 0);
+CREATE DOMAIN _SMALLSEATS AS int2 CHECK(VALUE > 0 AND VALUE < 500);--Plane Seats
+
+------------
+---TABLES---
+------------
+CREATE TABLE Customer
+(
+	id INTEGER NOT NULL,
+	fname VARCHAR(24) NOT NULL,
+	lname VARCHAR(24) NOT NULL,
+	gtype _GENDER NOT NULL,
+	dob DATE NOT NULL,
+	address VARCHAR(256),
+	phone VARCHAR(10),
+	zipcode VARCHAR(10),
+	PRIMARY KEY (id)
+);
+
+CREATE TABLE Pilot
+(
+	id INTEGER NOT NULL,
+	fullname VARCHAR(128),
+	nationality VARCHAR(24),
+	PRIMARY KEY (id)
+);
+
+CREATE TABLE Flight
+(
+	fnum INTEGER NOT NULL,
+	cost _PINTEGER NOT NULL,
+	num_sold _PZEROINTEGER NOT NULL,
+	num_stops _SMALLPZEROINTEGER NOT NULL,
+	actual_departure_date DATE NOT NULL,
+	actual_arrival_date DATE NOT NULL,
+	arrival_airport VARCHAR(5) NOT NULL,-- AIRPORT CODE --
+	departure_airport VARCHAR(5) NOT NULL,-- AIRPORT CODE --
+	PRIMARY KEY (fnum)
+);
+
+CREATE TABLE Plane
+(
+	id INTEGER NOT NULL,
+	make VARCHAR(32) NOT NULL,
+	model VARCHAR(64) NOT NULL,
+	age _SMALLYEAR_1970 NOT NULL,
+	seats _SMALLSEATS NOT NULL,
+	PRIMARY KEY (id)
+);
+
+CREATE TABLE Technician
+(
+	id INTEGER NOT NULL,
+	full_name VARCHAR(128) NOT NULL,
+	PRIMARY KEY (id)
+);
+
+---------------
+---RELATIONS---
+---------------
+
+CREATE TABLE Reservation
+(
+	rnum INTEGER NOT NULL,
+	cid INTEGER NOT NULL,
+	fid INTEGER NOT NULL,
+	status _STATUS,
+	PRIMARY KEY (rnum),
+	FOREIGN KEY (cid) REFERENCES Customer(id),
+	FOREIGN KEY (fid) REFERENCES Flight(fnum)
+);
+
+CREATE TABLE FlightInfo
+(
+	fiid INTEGER NOT NULL,
+	flight_id INTEGER NOT NULL,
+	pilot_id INTEGER NOT NULL,
+	plane_id INTEGER NOT NULL,
+	PRIMARY KEY (fiid),
+	FOREIGN KEY (flight_id) REFERENCES Flight(fnum),
+	FOREIGN KEY (pilot_id) REFERENCES Pilot(id),
+	FOREIGN KEY (plane_id) REFERENCES Plane(id)
+);
+
+CREATE TABLE Repairs
+(
+	rid INTEGER NOT NULL,
+	repair_date DATE NOT NULL,
+	repair_code _CODE,
+	pilot_id INTEGER NOT NULL,
+	plane_id INTEGER NOT NULL,
+	technician_id INTEGER NOT NULL,
+	PRIMARY KEY (rid),
+	FOREIGN KEY (pilot_id) REFERENCES Pilot(id),
+	FOREIGN KEY (plane_id) REFERENCES Plane(id),
+	FOREIGN KEY (technician_id) REFERENCES Technician(id)
+);
+
+CREATE TABLE Schedule
+(
+	id INTEGER NOT NULL,
+	flightNum INTEGER NOT NULL,
+	departure_time DATE NOT NULL,
+	arrival_time DATE NOT NULL,
+	PRIMARY KEY (id),
+	FOREIGN KEY (flightNum) REFERENCES Flight(fnum)
+);
+
+CREATE TABLE Seat_Assignment
+(
+	flight_id INTEGER NOT NULL,
+	seat SMALLINT NOT NULL,-- 0 is 1A, 6 is 2A --
+	rnum INTEGER NOT NULL,
+	PRIMARY KEY (flight_id, seat),
+	FOREIGN KEY (flight_id) REFERENCES Flight(fnum),
+	FOREIGN KEY (rnum) REFERENCES Reservation(rnum)
+);
+
+----------------------------
+-- INSERT DATA STATEMENTS --
+----------------------------
+
+COPY Customer (
+	id,
+	fname,
+	lname,
+	gtype,
+	dob,
+	address,
+	phone,
+	zipcode
+)
+FROM 'customer.csv'
+WITH DELIMITER ',';
+
+COPY Pilot (
+	id,
+	fullname,
+	nationality
+)
+FROM 'pilots.csv'
+WITH DELIMITER ',';
+
+COPY Plane (
+	id,
+	make,
+	model,
+	age,
+	seats
+)
+FROM 'planes.csv'
+WITH DELIMITER ',';
+
+COPY Technician (
+	id,
+	full_name
+)
+FROM 'technician.csv'
+WITH DELIMITER ',';
+
+COPY Flight (
+	fnum,
+	cost,
+	num_sold,
+	num_stops,
+	actual_departure_date,
+	actual_arrival_date,
+	arrival_airport,
+	departure_airport
+)
+FROM 'flights.csv'
+WITH DELIMITER ',';
+
+COPY Reservation (
+	rnum,
+	cid,
+	fid,
+	status
+)
+FROM 'reservation.csv'
+WITH DELIMITER ',';
+
+COPY FlightInfo (
+	fiid,
+	flight_id,
+	pilot_id,
+	plane_id
+)
+FROM 'flightinfo.csv'
+WITH DELIMITER ',';
+
+COPY Repairs (
+	rid,
+	repair_date,
+	repair_code,
+	pilot_id,
+	plane_id,
+	technician_id
+)
+FROM 'repairs.csv'
+WITH DELIMITER ',';
+
+COPY Schedule (
+	id,
+	flightNum,
+	departure_time,
+	arrival_time
+)
+FROM 'schedule.csv'
+WITH DELIMITER ',';
+
+--reservation numbers of new bookings (see JdbcRepository), past the loaded ones
+CREATE SEQUENCE Reservation_rnum_seq MINVALUE 0;
+SELECT setval('Reservation_rnum_seq', (SELECT COALESCE(MAX(rnum) + 1, 0) FROM Reservation), false);
+
+CREATE INDEX flightMAX ON Flight(fnum);
+CREATE INDEX pilotID ON Pilot(id);
+CREATE INDEX PlaneID ON Plane(id);
+CREATE INDEX TechnicianID ON Technician(id);
+CREATE INDEX ReservationID ON Reservation(rnum);
+CREATE INDEX FlightInfoID ON FlightInfo(fiid);
+CREATE INDEX FlightInfoFlight ON FlightInfo(flight_id);
+CREATE INDEX FlightInfoPlane ON FlightInfo(plane_id);
+CREATE INDEX ReservationCustomer ON Reservation(cid, fid, status, rnum);
+CREATE INDEX ReservationOpen ON Reservation(rnum) WHERE status IN ('R', 'W');
+CREATE INDEX ReservationFlight ON Reservation(fid, status);
+CREATE INDEX ScheduleFlight ON Schedule(flightNum, departure_time);
+
+CREATE INDEX CustomerLname ON Customer(lower(rtrim(lname)) text_pattern_ops);
+CREATE INDEX CustomerFname ON Customer(lower(rtrim(fname)) text_pattern_ops);
+CREATE INDEX CustomerPhone ON Customer(rtrim(phone) text_pattern_ops);
@@ -0,0 +1,86 @@
+-------------------------------------------------------------------
+-- Change notifications for cross-instance cache invalidation.   --
+-- Every statement that writes Reservation, Flight, FlightInfo,  --
+-- Plane, Schedule, Repairs or Seat_Assignment sends one NOTIFY  --
+-- on dbproject_changes with the payload                         --
+--     <table>|<op>|<instance>|<column>=<k1>,<k2>,...[|...]      --
+-- listing the distinct keys it touched, or <column>=* when it   --
+-- touched more than 64 of them (bulk loads, set-based updates). --
+-- <instance> is the session's dbproject.instance, set by        --
+-- DBproject on its connections so it can skip its own changes.  --
+-------------------------------------------------------------------
+
+CREATE OR REPLACE FUNCTION notify_changes() RETURNS trigger AS $$
+DECLARE
+	payload TEXT := TG_TABLE_NAME || '|' || left(TG_OP, 1) || '|' || coalesce(current_setting('dbproject.instance', true), '');
+	col TEXT;
+	keys TEXT;
+	n BIGINT;
+BEGIN
+	FOREACH col IN ARRAY TG_ARGV LOOP
+		IF TG_OP = 'DELETE' THEN
+			EXECUTE format('SELECT COUNT(*), string_agg(k::text, '','') FROM (SELECT DISTINCT %I AS k FROM old_rows LIMIT 65) s', col) INTO n, keys;
+		ELSE
+			EXECUTE format('SELECT COUNT(*), string_agg(k::text, '','') FROM (SELECT DISTINCT %I AS k FROM new_rows LIMIT 65) s', col) INTO n, keys;
+		END IF;
+		IF n = 0 THEN
+			RETURN NULL;
+		END IF;
+		IF n > 64 THEN
+			keys := '*';
+		END IF;
+		payload := payload || '|' || col || '=' || keys;
+	END LOOP;
+	PERFORM pg_notify('dbproject_changes', payload);
+	RETURN NULL;
+END $$ LANGUAGE plpgsql;
+
+-- transition tables allow a single event per trigger, so each table gets three
+DROP TRIGGER IF EXISTS reservation_notify_i ON Reservation;
+DROP TRIGGER IF EXISTS reservation_notify_u ON Reservation;
+DROP TRIGGER IF EXISTS reservation_notify_d ON Reservation;
+CREATE TRIGGER reservation_notify_i AFTER INSERT ON Reservation REFERENCING NEW TABLE AS new_rows FOR EACH STATEMENT EXECUTE PROCEDURE notify_changes('fid', 'cid');
+CREATE TRIGGER reservation_notify_u AFTER UPDATE ON Reservation REFERENCING NEW TABLE AS new_rows FOR EACH STATEMENT EXECUTE PROCEDURE notify_changes('fid', 'cid');
+CREATE TRIGGER reservation_notify_d AFTER DELETE ON Reservation REFERENCING OLD TABLE AS old_rows FOR EACH STATEMENT EXECUTE PROCEDURE notify_changes('fid', 'cid');
+
+DROP TRIGGER IF EXISTS flight_notify_i ON Flight;
+DROP TRIGGER IF EXISTS flight_notify_u ON Flight;
+DROP TRIGGER IF EXISTS flight_notify_d ON Flight;
+CREATE TRIGGER flight_notify_i AFTER INSERT ON Flight REFERENCING NEW TABLE AS new_rows FOR EACH STATEMENT EXECUTE PROCEDURE notify_changes('fnum');
+CREATE TRIGGER flight_notify_u AFTER UPDATE ON Flight REFERENCING NEW TABLE AS new_rows FOR EACH STATEMENT EXECUTE PROCEDURE notify_changes('fnum');
+CREATE TRIGGER flight_notify_d AFTER DELETE ON Flight REFERENCING OLD TABLE AS old_rows FOR EACH STATEMENT EXECUTE PROCEDURE notify_changes('fnum');
+
+DROP TRIGGER IF EXISTS flightinfo_notify_i ON FlightInfo;
+DROP TRIGGER IF EXISTS flightinfo_notify_u ON FlightInfo;
+DROP TRIGGER IF EXISTS flightinfo_notify_d ON FlightInfo;
+CREATE TRIGGER flightinfo_notify_i AFTER INSERT ON FlightInfo REFERENCING NEW TABLE AS new_rows FOR EACH STATEMENT EXECUTE PROCEDURE notify_changes('flight_id', 'plane_id');
+CREATE TRIGGER flightinfo_notify_u AFTER UPDATE ON FlightInfo REFERENCING NEW TABLE AS new_rows FOR EACH STATEMENT EXECUTE PROCEDURE notify_changes('flight_id', 'plane_id');
+CREATE TRIGGER flightinfo_notify_d AFTER DELETE ON FlightInfo REFERENCING OLD TABLE AS old_rows FOR EACH STATEMENT EXECUTE PROCEDURE notify_changes('flight_id', 'plane_id');
+
+DROP TRIGGER IF EXISTS plane_notify_i ON Plane;
+DROP TRIGGER IF EXISTS plane_notify_u ON Plane;
+DROP TRIGGER IF EXISTS plane_notify_d ON Plane;
+CREATE TRIGGER plane_notify_i AFTER INSERT ON Plane REFERENCING NEW TABLE AS new_rows FOR EACH STATEMENT EXECUTE PROCEDURE notify_changes('id');
+CREATE TRIGGER plane_notify_u AFTER UPDATE ON Plane REFERENCING NEW TABLE AS new_rows FOR EACH STATEMENT EXECUTE PROCEDURE notify_changes('id');
+CREATE TRIGGER plane_notify_d AFTER DELETE ON Plane REFERENCING OLD TABLE AS old_rows FOR EACH STATEMENT EXECUTE PROCEDURE notify_changes('id');
+
+DROP TRIGGER IF EXISTS schedule_notify_i ON Schedule;
+DROP TRIGGER IF EXISTS schedule_notify_u ON Schedule;
+DROP TRIGGER IF EXISTS schedule_notify_d ON Schedule;
+CREATE TRIGGER schedule_notify_i AFTER INSERT ON Schedule REFERENCING NEW TABLE AS new_rows FOR EACH STATEMENT EXECUTE PROCEDURE notify_changes('flightnum');
+CREATE TRIGGER schedule_notify_u AFTER UPDATE ON Schedule REFERENCING NEW TABLE AS new_rows FOR EACH STATEMENT EXECUTE PROCEDURE notify_changes('flightnum');
+CREATE TRIGGER schedule_notify_d AFTER DELETE ON Schedule REFERENCING OLD TABLE AS old_rows FOR EACH STATEMENT EXECUTE PROCEDURE notify_changes('flightnum');
+
+DROP TRIGGER IF EXISTS repairs_notify_i ON Repairs;
+DROP TRIGGER IF EXISTS repairs_notify_u ON Repairs;
+DROP TRIGGER IF EXISTS repairs_notify_d ON Repairs;
+CREATE TRIGGER repairs_notify_i AFTER INSERT ON Repairs REFERENCING NEW TABLE AS new_rows FOR EACH STATEMENT EXECUTE PROCEDURE notify_changes('technician_id');
+CREATE TRIGGER repairs_notify_u AFTER UPDATE ON Repairs REFERENCING NEW TABLE AS new_rows FOR EACH STATEMENT EXECUTE PROCEDURE notify_changes('technician_id');
+CREATE TRIGGER repairs_notify_d AFTER DELETE ON Repairs REFERENCING OLD TABLE AS old_rows FOR EACH STATEMENT EXECUTE PROCEDURE notify_changes('technician_id');
+
+DROP TRIGGER IF EXISTS seat_assignment_notify_i ON Seat_Assignment;
+DROP TRIGGER IF EXISTS seat_assignment_notify_u ON Seat_Assignment;
+DROP TRIGGER IF EXISTS seat_assignment_notify_d ON Seat_Assignment;
+CREATE TRIGGER seat_assignment_notify_i AFTER INSERT ON Seat_Assignment REFERENCING NEW TABLE AS new_rows FOR EACH STATEMENT EXECUTE PROCEDURE notify_changes('flight_id');
+CREATE TRIGGER seat_assignment_notify_u AFTER UPDATE ON Seat_Assignment REFERENCING NEW TABLE AS new_rows FOR EACH STATEMENT EXECUTE PROCEDURE notify_changes('flight_id');
+CREATE TRIGGER seat_assignment_notify_d AFTER DELETE ON Seat_Assignment REFERENCING OLD TABLE AS old_rows FOR EACH STATEMENT EXECUTE PROCEDURE notify_changes('flight_id');